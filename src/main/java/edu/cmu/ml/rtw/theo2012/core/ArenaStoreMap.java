@@ -0,0 +1,775 @@
+package edu.cmu.ml.rtw.theo2012.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import edu.cmu.ml.rtw.util.Logger;
+import edu.cmu.ml.rtw.util.LogFactory;
+import edu.cmu.ml.rtw.util.Properties;
+import edu.cmu.ml.rtw.util.Timer;
+
+/**
+ * Wholly-in-RAM {@link StoreMap} that keeps its keys and values serialized in a handful of large
+ * byte arrays rather than as a graph of Java objects
+ *
+ * {@link HashMapStoreMap} costs a String, its byte array, a HashMap entry, an RTWListValue, and
+ * an RTWValue object per element for every key, all of which dwarfs the data itself and gives the
+ * garbage collector a great deal to trace.  Here, each (key, value) pair is a record in an arena
+ * of 16MB pages: a 4-byte length, then the key, written with RTWValueBinaryCodec.writeString,
+ * then the value, written with RTWValueBinaryCodec.writeTagged.  The records are found through an
+ * open-addressing hash table held in a long[], probed linearly, each occupied slot of which holds
+ * the page number and offset of a record along with 16 bits of the hash of the key so that most
+ * non-matching slots can be passed over without looking at the record.  The upshot is a few dozen
+ * objects in total no matter how large the KB, and something like a third to a fifth of the heap
+ * that HashMapStoreMap would use for the same content.  Values are decoded on each get (as
+ * RTWLazyListValue objects unless arenaLazyValues=false), which is the price paid for that.
+ *
+ * Replacing or removing a value leaves its old record behind as garbage in the arena.  Once the
+ * garbage amounts to more than arenaCompactRatio (default 0.5) of the arena, the live records are
+ * copied into fresh pages, and the old ones are dropped.  Removal uses backward-shift deletion
+ * rather than tombstones, so the table does not silt up either.
+ *
+ * The content is saved to and loaded from a single file like HashMapStoreMap's, with the same sort
+ * of 64-byte header followed by the records exactly as they lie in the arena, so that loading is a
+ * matter of reading bytes and hashing keys, and nothing need be decoded.  The 25 format-dependent
+ * header bytes hold the number of records (8 bytes).  Similarly, the location "/" gets a RAM-only
+ * map with no file behind it.
+ *
+ * As with HashMapStoreMap, this is threadsafe in read-only mode and not otherwise.
+ */
+public class ArenaStoreMap implements StringListStoreMap {
+    private final static Logger log = LogFactory.getLogger();
+
+    /**
+     * Magic bytes used to identify our on-disk representation; see HashMapStoreMap.magicBytes
+     */
+    protected final static byte[] magicBytes = {'e', 'd', 'u', '.', 'c', 'm', 'u', '.',
+                                                'm', 'l', '.', 'r', 't', 'w', '.', 'm',
+                                                'a', 'g', 'i', 'c', '.', 'A', 'r', 'e',
+                                                'n', 'a', 'S', 't', 'o', 'r', 'e', 'M',
+                                                'a', 'p', 0, 0, 0};
+
+    /**
+     * Length of the file header, which is where the records begin
+     */
+    protected final static int HEADER_LENGTH = magicBytes.length + 2 + 25;
+
+    /**
+     * Number of bits of a record's address given to its offset within its page
+     *
+     * Records too large to fit in a page of this size get a page all to themselves, and always lie
+     * at offset 0.
+     */
+    protected final static int PAGE_BITS = 24;
+
+    /**
+     * Size of an ordinary arena page
+     */
+    protected final static int PAGE_SIZE = 1 << PAGE_BITS;
+
+    /**
+     * Number of bits of a table slot given to the page number
+     */
+    protected final static int PAGE_NUMBER_BITS = 24;
+
+    /**
+     * Mask for the address (page number and offset) in a table slot
+     */
+    protected final static long ADDRESS_MASK = (1L << (PAGE_BITS + PAGE_NUMBER_BITS)) - 1;
+
+    /**
+     * Our location
+     */
+    protected String location = null;
+
+    /**
+     * Our read-only-ness
+     */
+    protected boolean readOnly = false;
+
+    /**
+     * Whether anything has changed since we were loaded or last saved
+     */
+    protected boolean dirty = false;
+
+    /**
+     * Whether to hand lists back as RTWLazyListValue objects (arenaLazyValues property)
+     */
+    protected final boolean lazyLists;
+
+    /**
+     * Fraction of the arena that may be garbage before we compact it (arenaCompactRatio property)
+     */
+    protected final double compactRatio;
+
+    /**
+     * The arena
+     */
+    protected ArrayList<byte[]> pages = new ArrayList<byte[]>();
+
+    /**
+     * Index in pages of the page that new records are appended to, or -1 if there is none yet
+     */
+    protected int currentPage = -1;
+
+    /**
+     * Offset in the current page at which to append the next record
+     */
+    protected int currentPos = 0;
+
+    /**
+     * Number of bytes of records in the arena, live or not
+     */
+    protected long arenaBytes = 0;
+
+    /**
+     * Number of bytes in the arena taken up by records that have been replaced or removed
+     */
+    protected long garbageBytes = 0;
+
+    /**
+     * The hash table, whose length is always a power of two, and whose empty slots are 0
+     */
+    protected long[] table = new long[16];
+
+    /**
+     * Number of occupied slots in the table
+     */
+    protected int size = 0;
+
+    /**
+     * Scratch space for serializing records in put
+     */
+    protected final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+
+    /**
+     * Constructor
+     */
+    public ArenaStoreMap() {
+        Properties properties = TheoFactory.getProperties();
+        lazyLists = properties.getPropertyBooleanValue("arenaLazyValues", true);
+        compactRatio = properties.getPropertyDoubleValue("arenaCompactRatio", 0.5);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Arena and table
+
+    /**
+     * Hash of the UTF-8 bytes of a key
+     *
+     * We hash bytes rather than Strings so that loading and compaction need not construct any.
+     */
+    protected static long hash(byte[] buf, int off, int len) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < len; i++) h = (h ^ buf[off + i]) * 0x100000001B3L;
+        return h ^ (h >>> 29);
+    }
+
+    /**
+     * Return the tag kept in the high bits of a table slot for the given hash
+     *
+     * The low bit is always set so that no occupied slot is ever zero.
+     */
+    protected static long tagOf(long hash) {
+        return (hash >>> (PAGE_BITS + PAGE_NUMBER_BITS)) | 1;
+    }
+
+    /**
+     * Return the page number from a table slot or record address
+     */
+    protected static int pageOf(long slot) {
+        return (int)((slot & ADDRESS_MASK) >>> PAGE_BITS);
+    }
+
+    /**
+     * Return the offset within its page from a table slot or record address
+     */
+    protected static int offsetOf(long slot) {
+        return (int)(slot & (PAGE_SIZE - 1));
+    }
+
+    /**
+     * Return the length of the record at the given page and offset, not including the length
+     * itself
+     */
+    protected int recordLength(byte[] page, int pos) {
+        return ((page[pos] & 0xFF) << 24) | ((page[pos+1] & 0xFF) << 16) | ((page[pos+2] & 0xFF) << 8)
+                | (page[pos+3] & 0xFF);
+    }
+
+    /**
+     * Make room for a record of the given length (including its 4-byte length) and return its
+     * table slot address, minus the tag
+     */
+    protected long allocate(int length) {
+        if (length > PAGE_SIZE) {
+            if (pages.size() >= (1 << PAGE_NUMBER_BITS))
+                throw new RuntimeException("Arena is full");
+            pages.add(new byte[length]);
+            arenaBytes += length;
+            return (long)(pages.size() - 1) << PAGE_BITS;
+        }
+        if (currentPage < 0 || currentPos + length > PAGE_SIZE) {
+            if (pages.size() >= (1 << PAGE_NUMBER_BITS))
+                throw new RuntimeException("Arena is full");
+            pages.add(new byte[PAGE_SIZE]);
+            currentPage = pages.size() - 1;
+            currentPos = 0;
+        }
+        long address = ((long)currentPage << PAGE_BITS) | currentPos;
+        currentPos += length;
+        arenaBytes += length;
+        return address;
+    }
+
+    /**
+     * Return the index of the table slot holding the record for the given key, given as UTF-8,
+     * or of the empty slot where it would go if there is no such record
+     */
+    protected int findSlot(byte[] key, long hash) {
+        final int mask = table.length - 1;
+        final long tag = tagOf(hash);
+        int i = (int)hash & mask;
+        while (true) {
+            final long slot = table[i];
+            if (slot == 0) return i;
+            if ((slot >>> (PAGE_BITS + PAGE_NUMBER_BITS)) == tag && keyEquals(slot, key)) return i;
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Return whether the record at the given table slot has the given key, given as UTF-8
+     */
+    protected boolean keyEquals(long slot, byte[] key) {
+        try {
+            final byte[] page = pages.get(pageOf(slot));
+            RTWValueBinaryCodec.ByteArrayInput in =
+                    new RTWValueBinaryCodec.ByteArrayInput(page, offsetOf(slot) + 4);
+            final int len = RTWValueBinaryCodec.readVarInt(in);
+            if (len != key.length) return false;
+            final int start = in.getPosition();
+            for (int i = 0; i < len; i++)
+                if (page[start + i] != key[i]) return false;
+            return true;
+        } catch (Exception e) {
+            throw new RuntimeException("keyEquals(" + slot + ", <key>)", e);
+        }
+    }
+
+    /**
+     * Return the hash of the key of the record at the given table slot
+     */
+    protected long hashOf(long slot) {
+        try {
+            final byte[] page = pages.get(pageOf(slot));
+            RTWValueBinaryCodec.ByteArrayInput in =
+                    new RTWValueBinaryCodec.ByteArrayInput(page, offsetOf(slot) + 4);
+            final int len = RTWValueBinaryCodec.readVarInt(in);
+            return hash(page, in.getPosition(), len);
+        } catch (Exception e) {
+            throw new RuntimeException("hashOf(" + slot + ")", e);
+        }
+    }
+
+    /**
+     * Return the key of the record at the given table slot
+     */
+    protected String keyOf(long slot) {
+        try {
+            return RTWValueBinaryCodec.readString(
+                    new RTWValueBinaryCodec.ByteArrayInput(pages.get(pageOf(slot)), offsetOf(slot) + 4));
+        } catch (Exception e) {
+            throw new RuntimeException("keyOf(" + slot + ")", e);
+        }
+    }
+
+    /**
+     * Return the value of the record at the given table slot
+     */
+    protected RTWListValue valueOf(long slot) {
+        try {
+            RTWValueBinaryCodec.ByteArrayInput in =
+                    new RTWValueBinaryCodec.ByteArrayInput(pages.get(pageOf(slot)), offsetOf(slot) + 4);
+            in.skipBytes(RTWValueBinaryCodec.readVarInt(in));
+            return (RTWListValue)RTWValueBinaryCodec.readTagged(in, lazyLists);
+        } catch (Exception e) {
+            throw new RuntimeException("valueOf(" + slot + ")", e);
+        }
+    }
+
+    /**
+     * Grow the table to twice its size if it is half full
+     */
+    protected void maybeGrowTable() {
+        if (size < table.length / 2) return;
+        if (table.length >= (1 << 30))
+            throw new RuntimeException("Too many keys for ArenaStoreMap");
+        rehash(table.length * 2);
+    }
+
+    /**
+     * Rebuild the table with the given number of slots
+     */
+    protected void rehash(int slots) {
+        long[] oldTable = table;
+        table = new long[slots];
+        final int mask = slots - 1;
+        for (long slot : oldTable) {
+            if (slot == 0) continue;
+            int i = (int)hashOf(slot) & mask;
+            while (table[i] != 0) i = (i + 1) & mask;
+            table[i] = slot;
+        }
+    }
+
+    /**
+     * Empty the table slot at the given index, moving later slots in its probe sequence back to
+     * fill the hole
+     */
+    protected void deleteSlot(int i) {
+        final int mask = table.length - 1;
+        int hole = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            final long slot = table[j];
+            if (slot == 0) break;
+            final int home = (int)hashOf(slot) & mask;
+
+            // Move slot j into the hole unless its home lies cyclically in (hole, j]
+            if (hole <= j ? (home <= hole || home > j) : (home <= hole && home > j)) {
+                table[hole] = slot;
+                hole = j;
+            }
+        }
+        table[hole] = 0;
+    }
+
+    /**
+     * Mark the record at the given table slot as garbage, and compact the arena if there is enough
+     * of it
+     */
+    protected void discard(long slot) {
+        final byte[] page = pages.get(pageOf(slot));
+        final int length = 4 + recordLength(page, offsetOf(slot));
+        garbageBytes += length;
+
+        // A record that had a page to itself can just be let go of
+        if (length > PAGE_SIZE) {
+            pages.set(pageOf(slot), null);
+            arenaBytes -= length;
+            garbageBytes -= length;
+        }
+    }
+
+    /**
+     * Compact the arena if more than compactRatio of it is garbage
+     *
+     * This is only worth checking after a put or remove has finished with the table, because
+     * compaction rewrites every slot.
+     */
+    protected void maybeCompact() {
+        if (arenaBytes < PAGE_SIZE) return;
+        if (garbageBytes <= arenaBytes * compactRatio) return;
+        compact();
+    }
+
+    /**
+     * Copy all live records into fresh pages, leaving no garbage
+     */
+    protected void compact() {
+        Timer t = new Timer();
+        t.start();
+        long before = arenaBytes;
+        ArrayList<byte[]> oldPages = pages;
+        pages = new ArrayList<byte[]>();
+        currentPage = -1;
+        currentPos = 0;
+        arenaBytes = 0;
+        garbageBytes = 0;
+        for (int i = 0; i < table.length; i++) {
+            final long slot = table[i];
+            if (slot == 0) continue;
+            final byte[] oldPage = oldPages.get(pageOf(slot));
+            final int oldPos = offsetOf(slot);
+            final int length = 4 + recordLength(oldPage, oldPos);
+            final long address = allocate(length);
+            System.arraycopy(oldPage, oldPos, pages.get(pageOf(address)), offsetOf(address), length);
+            table[i] = (slot & ~ADDRESS_MASK) | address;
+        }
+        log.debug("Compacted ArenaStoreMap from " + before + " to " + arenaBytes + " bytes in "
+                + t.getElapsedSeconds() + "s");
+    }
+
+    /**
+     * Add a record holding the given serialized payload, which must be for a key not already in
+     * the table, at the given table index
+     */
+    protected void insertRecord(int i, long hash, byte[] payload, int payloadLength) {
+        final int length = 4 + payloadLength;
+        final long address = allocate(length);
+        final byte[] page = pages.get(pageOf(address));
+        final int pos = offsetOf(address);
+        page[pos] = (byte)(payloadLength >>> 24);
+        page[pos+1] = (byte)(payloadLength >>> 16);
+        page[pos+2] = (byte)(payloadLength >>> 8);
+        page[pos+3] = (byte)payloadLength;
+        System.arraycopy(payload, 0, page, pos + 4, payloadLength);
+        table[i] = (tagOf(hash) << (PAGE_BITS + PAGE_NUMBER_BITS)) | address;
+    }
+
+    /**
+     * Drop all content
+     */
+    protected void reset() {
+        pages = new ArrayList<byte[]>();
+        currentPage = -1;
+        currentPos = 0;
+        arenaBytes = 0;
+        garbageBytes = 0;
+        table = new long[16];
+        size = 0;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Persistence
+
+    /**
+     * Save our content to the given location, or our location if it is null
+     */
+    protected void save(String location, boolean sync) {
+        try {
+            if (location == null) location = this.location;
+            if (location.equals("/")) return;
+
+            log.debug("Saving ArenaStoreMap...");
+            FileOutputStream fos = new FileOutputStream(location);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 20));
+            try {
+                out.write(magicBytes);
+                out.writeByte(0);
+                out.writeByte(0);
+                out.writeLong(size);
+                out.write(new byte[25 - 8]);
+                for (long slot : table) {
+                    if (slot == 0) continue;
+                    final byte[] page = pages.get(pageOf(slot));
+                    final int pos = offsetOf(slot);
+                    out.write(page, pos, 4 + recordLength(page, pos));
+                }
+                out.flush();
+                if (sync) fos.getFD().sync();
+            } finally {
+                out.close();
+            }
+            log.debug("Finished saving.");
+        } catch (Exception e) {
+            throw new RuntimeException("save(" + location + ", " + sync + ")", e);
+        }
+    }
+
+    /**
+     * Opposite of save
+     */
+    protected void load(String location) {
+        try {
+            log.debug("Loading ArenaStoreMap...");
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(location), 1 << 20));
+            try {
+                byte[] magic = new byte[magicBytes.length];
+                in.readFully(magic);
+                if (!Arrays.equals(magic, magicBytes))
+                    throw new RuntimeException("Incorrect format (bad magic bytes)");
+                int majorFormat = in.readUnsignedByte();
+                int minorFormat = in.readUnsignedByte();
+                if (majorFormat != 0)
+                    throw new RuntimeException("Unsupported format " + majorFormat);
+                if (minorFormat != 0)
+                    throw new RuntimeException("Format too new");
+                long numRecords = in.readLong();
+                in.readFully(new byte[25 - 8]);
+                if (numRecords >= (1 << 29))
+                    throw new RuntimeException("Too many keys for ArenaStoreMap (" + numRecords + ")");
+
+                reset();
+                int slots = 16;
+                while (slots <= numRecords * 2) slots <<= 1;
+                table = new long[slots];
+                final int mask = slots - 1;
+                for (long n = 0; n < numRecords; n++) {
+                    final int payloadLength = in.readInt();
+                    final long address = allocate(4 + payloadLength);
+                    final byte[] page = pages.get(pageOf(address));
+                    final int pos = offsetOf(address);
+                    page[pos] = (byte)(payloadLength >>> 24);
+                    page[pos+1] = (byte)(payloadLength >>> 16);
+                    page[pos+2] = (byte)(payloadLength >>> 8);
+                    page[pos+3] = (byte)payloadLength;
+                    in.readFully(page, pos + 4, payloadLength);
+                    final long hash = hashOf(address);
+                    int i = (int)hash & mask;
+                    while (table[i] != 0) i = (i + 1) & mask;
+                    table[i] = (tagOf(hash) << (PAGE_BITS + PAGE_NUMBER_BITS)) | address;
+                    size++;
+                }
+            } finally {
+                in.close();
+            }
+            log.debug("Finished loading " + size + " records in " + arenaBytes + " bytes.");
+        } catch (Exception e) {
+            throw new RuntimeException("load(" + location + ")", e);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // StoreMap
+
+    @Override public void open(String location, boolean openInReadOnlyMode) {
+        if (getLocation() != null)
+            throw new RuntimeException("StoreMap is already open");
+        this.readOnly = openInReadOnlyMode;
+        this.location = location;
+        reset();
+        dirty = false;
+
+        // Special case for not-backed-by-a-file mode
+        if (!location.equals("/")) {
+            File f = new File(location);
+            if (f.exists()) load(location);
+            else dirty = true;
+        }
+    }
+
+    @Override public void close() {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is already closed");
+        flush(false);
+        location = null;
+        readOnly = false;
+        reset();
+    }
+
+    @Override public String getLocation() {
+        return location;
+    }
+
+    @Override public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override public void flush(boolean sync) {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        if (!isReadOnly() && dirty) {
+            save(null, sync);
+            dirty = false;
+        }
+    }
+
+    @Override public void copy(String location) {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        save(location, false);
+    }
+
+    @Override public void giveLargeAccessHint() {
+        // Nothing to do here
+    }
+
+    @Override public void logStats() {
+        log.info("ArenaStoreMap " + location + ": " + size + " keys, " + arenaBytes + " bytes in "
+                + pages.size() + " pages (" + garbageBytes + " garbage), table of " + table.length);
+    }
+
+    @Override public void optimize() {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        if (isReadOnly())
+            throw new RuntimeException("StoreMap is open read-only");
+        compact();
+        save(null, false);
+        dirty = false;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Map
+
+    @Override public void clear() {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        if (isReadOnly())
+            throw new RuntimeException("StoreMap is open read-only");
+        reset();
+        dirty = true;
+    }
+
+    @Override public boolean containsKey(Object key) {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        if (!(key instanceof String)) return false;
+        byte[] utf8 = ((String)key).getBytes(StandardCharsets.UTF_8);
+        return table[findSlot(utf8, hash(utf8, 0, utf8.length))] != 0;
+    }
+
+    @Override public boolean containsValue(Object value) {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        for (long slot : table)
+            if (slot != 0 && valueOf(slot).equals(value)) return true;
+        return false;
+    }
+
+    @Override public Set<Map.Entry<String, RTWListValue>> entrySet() {
+        // Not needed for StringListStore, and not worth the effort to enforce read-only-ness.
+        throw new RuntimeException("Not implemented");
+    }
+
+    @Override public RTWListValue get(Object key) {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        if (!(key instanceof String)) return null;
+        byte[] utf8 = ((String)key).getBytes(StandardCharsets.UTF_8);
+        long slot = table[findSlot(utf8, hash(utf8, 0, utf8.length))];
+        if (slot == 0) return null;
+        return valueOf(slot);
+    }
+
+    @Override public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override public Set<String> keySet() {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        return new AbstractSet<String>() {
+            @Override public Iterator<String> iterator() {
+                return new Iterator<String>() {
+                    protected int i = advance(0);
+
+                    protected int advance(int from) {
+                        while (from < table.length && table[from] == 0) from++;
+                        return from;
+                    }
+
+                    @Override public boolean hasNext() {
+                        return i < table.length;
+                    }
+
+                    @Override public String next() {
+                        if (i >= table.length) throw new NoSuchElementException();
+                        String key = keyOf(table[i]);
+                        i = advance(i + 1);
+                        return key;
+                    }
+
+                    @Override public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override public int size() {
+                return ArenaStoreMap.this.size();
+            }
+
+            @Override public boolean contains(Object o) {
+                return containsKey(o);
+            }
+        };
+    }
+
+    @Override public void putAll(Map<? extends String, ? extends RTWListValue> m) {
+        for (Map.Entry<? extends String, ? extends RTWListValue> entry : m.entrySet())
+            put(entry.getKey(), entry.getValue());
+    }
+
+    @Override public int size() {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        return size;
+    }
+
+    @Override public Collection<RTWListValue> values() {
+        // Not needed for StringListStore, and not worth the effort to enforce read-only-ness.
+        throw new RuntimeException("Not implemented");
+    }
+
+    /**
+     * Note that, to save decoding it, this always returns null rather than the previous value,
+     * which StringListStore has no use for.
+     */
+    @Override public RTWListValue put(String key, RTWListValue value) {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        if (isReadOnly())
+            throw new RuntimeException("StoreMap is open read-only");
+        if (value == null)
+            throw new RuntimeException("null values are not allowed");
+        try {
+            recordBytes.reset();
+            DataOutputStream out = new DataOutputStream(recordBytes);
+            RTWValueBinaryCodec.writeString(out, key);
+            RTWValueBinaryCodec.writeTagged(out, value);
+            out.flush();
+            final byte[] payload = recordBytes.toByteArray();
+
+            // Hash and look up using the UTF-8 that writeString produced
+            RTWValueBinaryCodec.ByteArrayInput in = new RTWValueBinaryCodec.ByteArrayInput(payload, 0);
+            final int keyLength = RTWValueBinaryCodec.readVarInt(in);
+            final byte[] utf8 = Arrays.copyOfRange(payload, in.getPosition(), in.getPosition() + keyLength);
+            final long hash = hash(utf8, 0, utf8.length);
+
+            int i = findSlot(utf8, hash);
+            if (table[i] != 0) {
+                discard(table[i]);
+            } else {
+                size++;
+                if (size >= table.length / 2) {
+                    maybeGrowTable();
+                    i = findSlot(utf8, hash);
+                }
+            }
+            insertRecord(i, hash, payload, payload.length);
+            dirty = true;
+            maybeCompact();
+            return null;
+        } catch (Exception e) {
+            throw new RuntimeException("put(\"" + key + "\", " + value + ")", e);
+        }
+    }
+
+    @Override public RTWListValue remove(Object key) {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        if (isReadOnly())
+            throw new RuntimeException("StoreMap is open read-only");
+        if (!(key instanceof String)) return null;
+        byte[] utf8 = ((String)key).getBytes(StandardCharsets.UTF_8);
+        int i = findSlot(utf8, hash(utf8, 0, utf8.length));
+        final long slot = table[i];
+        if (slot == 0) return null;
+        RTWListValue old = valueOf(slot);
+        discard(slot);
+        deleteSlot(i);
+        size--;
+        dirty = true;
+        maybeCompact();
+        return old;
+    }
+}
@@ -10,6 +10,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.Spliterator;
 
 import edu.cmu.ml.rtw.util.Logger;
 import edu.cmu.ml.rtw.util.LogFactory;
@@ -86,16 +87,26 @@ public class BasicTheo2 extends Theo2Base implements Theo2 {
         }
 
         /**
-         * This is invoked prior to any add operation in order to enforce the constraints that we
-         * enforce.<p>
+         * Return the inverse of the given slot, or null if it has none
+         */
+        protected Slot getInverse(Slot slot) {
+            Entity tmp = slot.getQuery("inverse").into1Entity();  // bk:api primitiveentity
+            if (tmp != null && tmp.isSlot()) return tmp.toSlot();
+            return null;
+        }
+
+        /**
+         * Throw an exception if adding the given value to the given slot of this entity would
+         * violate, or if the given value in the given slot of this entity does violate, any of our
+         * constraints<p>
          *
-         * In general, this either succeeds as a no-op because the add operation does not violate
-         * any constraint, or this throws an exception.  Side-effects are possible, such as in the
-         * case of automatically adjusting masterinverse when inverse slot values are set such
-         * that explicit manipulation of the masterinverse slot becomes unnecessary at this layer
-         * of Theo except when the caller cares which slot is "master" and which is "slave".<p>
+         * This is the checking half of {@link trapAdd}.  Set deferred when checking a value that
+         * is already in the KB, as is done by {@link checkDeferredConstraints}.  In that case,
+         * nrofvalues is violated by the presence of more than one value rather than by any value
+         * other than this one, and the nrofvalues of the inverse is not checked here because it
+         * will be checked when the inverse assertion itself is.<p>
          */
-        protected void trapAdd(Slot slot, RTWValue value) {
+        protected void checkAdd(Slot slot, RTWValue value, boolean deferred) {
             try {
                 String slotName = slot.getName();
                 
@@ -118,9 +129,7 @@ public class BasicTheo2 extends Theo2Base implements Theo2 {
                 // fetches will have a marginal impact on total speed; later profiling that
                 // demonstrates the contrary may motivate coming back to this and doing something
                 // more sophisticated.
-                Slot inverse = null;
-                Entity tmp = slot.getQuery("inverse").into1Entity();  // bk:api primitiveentity
-                if (tmp != null && tmp.isSlot()) inverse = tmp.toSlot();
+                Slot inverse = getInverse(slot);
 
                 // We'll filter value by known metadata, if any, first.  Then we can make a
                 // reasonably reasonable assumption below that we don't have to check nrofvalues,
@@ -135,11 +144,15 @@ public class BasicTheo2 extends Theo2Base implements Theo2 {
                 if (developerMode) log.debug("bkdb:RTI: slot=" + slotName + " and nrofvalues=" + nrofvalues);
                 if (nrofvalues != null && nrofvalues == true) {
                     Query q = getQuery(slot);
-                    if (q.getNumValues() > 0 && !q.into1Value().equals(value))
+                    if (deferred) {
+                        if (q.getNumValues() > 1)
+                            throw new RuntimeException("nrofvalues=1 slot contains multiple values"
+                                    + q.valueDump());
+                    } else if (q.getNumValues() > 0 && !q.into1Value().equals(value))
                         throw new RuntimeException("nrofvalues=1 slot already contains value(s)"
                                 + q.valueDump());
                 }
-                if (inverse != null && value instanceof Entity) {
+                if (inverse != null && value instanceof Entity && !deferred) {
                     nrofvalues = nrofvaluesCache.get(inverse.getName());
                     if (nrofvalues != null && nrofvalues == true) {
                         Query q = ((Entity)value).getQuery(inverse);
@@ -216,7 +229,29 @@ public class BasicTheo2 extends Theo2Base implements Theo2 {
                         }
                     }
                 }
-                    
+            } catch (Exception e) {
+                throw new RuntimeException("checkAdd(" + slot + ", " + value + ", " + deferred + ")", e);
+            }
+        }
+
+        /**
+         * This is invoked prior to any add operation in order to enforce the constraints that we
+         * enforce.<p>
+         *
+         * In general, this either succeeds as a no-op because the add operation does not violate
+         * any constraint, or this throws an exception.  Side-effects are possible, such as in the
+         * case of automatically adjusting masterinverse when inverse slot values are set such
+         * that explicit manipulation of the masterinverse slot becomes unnecessary at this layer
+         * of Theo except when the caller cares which slot is "master" and which is "slave".<p>
+         *
+         * In bulk-load mode, the constraint checks are skipped in favor of {@link
+         * checkDeferredConstraints}, but the side-effects still happen.<p>
+         */
+        protected void trapAdd(Slot slot, RTWValue value) {
+            try {
+                String slotName = slot.getName();
+                if (!bulkLoad) checkAdd(slot, value, false);
+
                 // Update our metdata caches and apply automatic masterInverse logic, but only if
                 // this entity is a slot.
                 if (isSlot()) {
@@ -279,7 +314,7 @@ public class BasicTheo2 extends Theo2Base implements Theo2 {
                         if (value instanceof RTWBooleanValue) {
                             // NB: we want to operate on the unwrapped entity; otherwise we will
                             // trap the modification and go into an infinite loop.
-                            Entity them = (Entity)unwrapEntity(inverse);
+                            Entity them = (Entity)unwrapEntity(getInverse(slot));
 
                             // Note: if this is a symmetric slot then this should be a no-op.
                             if (!them.equals(wrappedEntity)) {
@@ -951,6 +986,16 @@ public class BasicTheo2 extends Theo2Base implements Theo2 {
      */
     protected Set<String> otherSet = new HashSet<String>();
 
+    /**
+     * Whether we are in bulk-load mode (see {@link setBulkLoad})
+     */
+    protected boolean bulkLoad = false;
+
+    /**
+     * Maximum number of constraint violations for checkDeferredConstraints to log individually
+     */
+    protected final static int MAX_LOGGED_VIOLATIONS = 1000;
+
     /**
      * This is used to verify that RTWValues we are given that are Entities are in fact MyEntity
      * objects as we expect, and to unwrap them into the Entity objects of the Theo layer below
@@ -1193,6 +1238,112 @@ public class BasicTheo2 extends Theo2Base implements Theo2 {
         }
     }
 
+    /**
+     * Helper for checkDeferredConstraints that checks everything in and beneath the given entity,
+     * returning the given number of violations plus the number found here
+     */
+    protected int checkDeferredConstraintsRecurse(MyEntity entity, Set<String> constrained,
+            int numViolations) {
+        try {
+            for (Slot slot : entity.getSlots()) {
+                Query q = entity.getQuery(slot);
+                boolean check = constrained.contains(slot.getName());
+                for (RTWValue v : q.iter()) {
+                    if (check) {
+                        try {
+                            entity.checkAdd(slot, v instanceof MyEntity ? unwrapEntity(v) : v, true);
+                        } catch (RuntimeException e) {
+                            numViolations++;
+                            if (numViolations <= MAX_LOGGED_VIOLATIONS) {
+                                Throwable cause = e;
+                                while (cause.getCause() != null) cause = cause.getCause();
+                                log.error("Constraint violation by " + v + " in " + q + ": "
+                                        + cause.getMessage());
+                            } else if (numViolations == MAX_LOGGED_VIOLATIONS + 1) {
+                                log.error("Not logging any further constraint violations");
+                            }
+                        }
+                    }
+                    Belief b = q.getBelief(v);
+                    if (!b.getSlots().isEmpty())
+                        numViolations = checkDeferredConstraintsRecurse((MyEntity)b, constrained,
+                                numViolations);
+                }
+                if (!q.getSlots().isEmpty())
+                    numViolations = checkDeferredConstraintsRecurse((MyEntity)q, constrained,
+                            numViolations);
+            }
+            return numViolations;
+        } catch (Exception e) {
+            throw new RuntimeException("checkDeferredConstraintsRecurse(" + entity + ", <constrained>, "
+                    + numViolations + ")", e);
+        }
+    }
+
+    /**
+     * Enter or leave bulk-load mode<p>
+     *
+     * In bulk-load mode, adds skip the nrofvalues, domain, and range checks that would normally
+     * be made before each one.  Those checks cost a few KB fetches apiece, and, worse, "within"
+     * walks the generalizations of the entity being checked, which adds up to a good fraction of
+     * the time it takes to build a KB from an HFT file.  Everything else that happens on an add,
+     * such as maintaining masterinverse and our metadata caches, happens as usual.  Use {@link
+     * checkDeferredConstraints} when done to find out if anything got in that shouldn't have.<p>
+     *
+     * See also {@link BulkLoadSession}.<p>
+     */
+    public void setBulkLoad(boolean bulkLoad) {
+        this.bulkLoad = bulkLoad;
+    }
+
+    /**
+     * Return whether we are in bulk-load mode
+     */
+    public boolean isBulkLoad() {
+        return bulkLoad;
+    }
+
+    /**
+     * Check every value in the KB against the constraints that {@link setBulkLoad} allowed to go
+     * unchecked, logging each violation and returning the number of them<p>
+     *
+     * This is one pass over the KB in place of a check on each add, and it only has to look at
+     * values in slots that actually have an nrofvalues, domain, or range setting.  Because this
+     * checks what is in the KB rather than what is being added to it, the order in which things
+     * were loaded does not matter, e.g. a slot's range may be set after values have been added to
+     * it.  Of course, the difference from the usual is that an add that would have been refused
+     * will instead have been made, and it is up to the caller to decide what to do about that.<p>
+     */
+    public int checkDeferredConstraints() {
+        try {
+            computeMetadata();
+            Set<String> constrained = new HashSet<String>();
+            constrained.addAll(nrofvaluesCache.keySet());
+            constrained.addAll(domainCache.keySet());
+            constrained.addAll(rangeCache.keySet());
+            if (constrained.isEmpty()) return 0;
+
+            log.info("Checking values of " + constrained.size() + " constrained slots...");
+            int numViolations = 0;
+            Set<String> visited = new HashSet<String>();
+            List<MyPrimitiveEntity> stack = new ArrayList<MyPrimitiveEntity>();
+            stack.add(get("everything"));
+            visited.add("everything");
+            while (!stack.isEmpty()) {
+                MyPrimitiveEntity pe = stack.remove(stack.size() - 1);
+                numViolations = checkDeferredConstraintsRecurse(pe, constrained, numViolations);
+                for (Entity spec : pe.getQuery("specializations").entityIter()) {
+                    String name = spec.toPrimitiveEntity().getName();
+                    if (visited.add(name)) stack.add(get(name));
+                }
+            }
+            log.info("Found " + numViolations + " constraint violations");
+            return numViolations;
+        } catch (Exception e) {
+            throw new RuntimeException("checkDeferredConstraints()", e);
+        }
+    }
+
     /**
      * What we do when opening (or when we are constructed with an already-open store)
      */
@@ -1308,6 +1459,10 @@ public class BasicTheo2 extends Theo2Base implements Theo2 {
         }
     }
 
+    @Override public Spliterator<String> getPrimitiveEntityNameSpliterator() {
+        return t1.getPrimitiveEntityNameSpliterator();
+    }
+
     @Override public MyPrimitiveEntity get(String primitiveEntity) {
         return new MyPrimitiveEntity(t1.get(primitiveEntity));
     }
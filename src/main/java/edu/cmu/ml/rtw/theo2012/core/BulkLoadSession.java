@@ -0,0 +1,143 @@
+package edu.cmu.ml.rtw.theo2012.core;
+
+import edu.cmu.ml.rtw.util.Logger;
+import edu.cmu.ml.rtw.util.LogFactory;
+import edu.cmu.ml.rtw.util.Properties;
+
+/**
+ * A KB opened for the purpose of loading a large amount of content into it<p>
+ *
+ * Building a KB from scratch, e.g. by importing an HFT file, sends each belief through every layer
+ * of Theo.  BasicTheo2 checks nrofvalues, domain, and range, PointerInversingTheo1 adds the
+ * inverse, StringListSuperStore maintains its " P" pointer entries, and StringListStore maintains
+ * its "  S" slotlists, all by way of a StoreMap cache that spends its time evicting and writing
+ * back entries that won't be looked at again.  None of that bookkeeping is needed on a per-write
+ * basis when nobody is going to read the KB until the load is done.  So, in a bulk load session:
+ *
+ * <ul>
+ * <li>The StoreMap's cache is sized to bulkLoadCacheSize entries, 0 (off) by default.
+ * <li>StringListStore defers slotlist additions and writes them out in sorted batches (see {@link
+ * StringListStore.setBulkLoad}).
+ * <li>StringListSuperStore logs " P" pointer entries to a file and merges them in sorted
+ * batches (see {@link StringListSuperStore.setDeferPointers}).
+ * <li>BasicTheo2 skips its constraint checks (see {@link BasicTheo2.setBulkLoad}), and, unless
+ * bulkLoadCheckConstraints is turned off, checks everything in one pass at the end.
+ * </ul>
+ *
+ * The KB can be read from and used in the ordinary way throughout, but the expectation is that the
+ * caller will be adding content in large quantity.  Use {@link TheoFactory.openBulkLoad} to get
+ * one of these, {@link getTheo} to get at the KB, and then {@link finish} once everything has been
+ * loaded, which puts the KB back into ordinary operation.  {@link close} takes care of finish if
+ * need be.<p>
+ *
+ * Note that a KB that is not finished or closed may be left without some of its slotlists, and so
+ * would be missing content.<p>
+ */
+public class BulkLoadSession {
+    private final static Logger log = LogFactory.getLogger();
+
+    protected final StringListStoreMap storeMap;
+    protected final StringListSuperStore<StringListStoreMap> store;
+    protected final BasicTheo2 theo;
+
+    /**
+     * Whether finish is to check constraints
+     */
+    protected final boolean checkConstraints;
+
+    /**
+     * Cache sizing to restore in finish
+     */
+    protected int savedCacheSize = 0;
+    protected long savedCacheBytes = 0;
+
+    protected boolean finished = false;
+    protected int numViolations = 0;
+
+    /**
+     * Protected constructor -- use {@link TheoFactory.openBulkLoad} to obtain an instance
+     *
+     * This opens the KB at the given location read/write using the given unopened StoreMap.
+     */
+    protected BulkLoadSession(StringListStoreMap storeMap, String location) {
+        try {
+            Properties properties = TheoFactory.getProperties();
+            int bulkLoadCacheSize = properties.getPropertyIntegerValue("bulkLoadCacheSize", 0);
+            checkConstraints = properties.getPropertyBooleanValue("bulkLoadCheckConstraints", true);
+
+            this.storeMap = storeMap;
+            if (storeMap instanceof MapDBStoreMap) {
+                MapDBStoreMap m = (MapDBStoreMap)storeMap;
+                savedCacheSize = m.getCacheSize();
+                savedCacheBytes = m.getCacheBytes();
+                m.setCacheSize(bulkLoadCacheSize);
+            } else if (storeMap instanceof ShardedMapDBStoreMap) {
+                ShardedMapDBStoreMap m = (ShardedMapDBStoreMap)storeMap;
+                savedCacheSize = m.getCacheSize();
+                savedCacheBytes = m.getCacheBytes();
+                m.setCacheSize(bulkLoadCacheSize);
+            }
+
+            store = new StringListSuperStore<StringListStoreMap>(storeMap);
+            PointerInversingTheo1 pITheo1 = new PointerInversingTheo1(new StoreInverselessTheo1(store));
+            pITheo1.open(location, false);
+            store.setBulkLoad(true);
+            theo = new BasicTheo2(pITheo1);
+            theo.setBulkLoad(true);
+        } catch (Exception e) {
+            throw new RuntimeException("BulkLoadSession(<storeMap>, \"" + location + "\")", e);
+        }
+    }
+
+    /**
+     * Return the KB being loaded
+     */
+    public Theo2 getTheo() {
+        return theo;
+    }
+
+    /**
+     * Complete the deferred work and put the KB back into ordinary operation, returning the number
+     * of constraint violations found
+     *
+     * Each violation is logged.  It is up to the caller to decide whether any violations make for
+     * a failure.  Calling this again has no effect other than to return the same number.
+     */
+    public int finish() {
+        try {
+            if (finished) return numViolations;
+            log.info("Finishing bulk load...");
+            store.setBulkLoad(false);
+            theo.setBulkLoad(false);
+
+            // The constraint check is all reads, so we want the cache back for that
+            if (storeMap instanceof MapDBStoreMap) {
+                MapDBStoreMap m = (MapDBStoreMap)storeMap;
+                if (savedCacheBytes > 0) m.setCacheBytes(savedCacheBytes);
+                else m.setCacheSize(savedCacheSize);
+            } else if (storeMap instanceof ShardedMapDBStoreMap) {
+                ShardedMapDBStoreMap m = (ShardedMapDBStoreMap)storeMap;
+                if (savedCacheBytes > 0) m.setCacheBytes(savedCacheBytes);
+                else m.setCacheSize(savedCacheSize);
+            }
+
+            if (checkConstraints) numViolations = theo.checkDeferredConstraints();
+            finished = true;
+            log.info("Done finishing bulk load");
+            return numViolations;
+        } catch (Exception e) {
+            throw new RuntimeException("finish()", e);
+        }
+    }
+
+    /**
+     * Finish, if that hasn't been done yet, and close the KB
+     */
+    public void close() {
+        try {
+            if (!finished) finish();
+        } finally {
+            theo.close();
+        }
+    }
+}
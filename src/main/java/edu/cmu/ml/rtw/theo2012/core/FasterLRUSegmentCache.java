@@ -0,0 +1,82 @@
+package edu.cmu.ml.rtw.theo2012.core;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import edu.cmu.ml.rtw.util.FasterLRUCache;
+
+/**
+ * {@link SegmentCache} implementation that is a thin wrapper around rtw-util's FasterLRUCache
+ *
+ * This is the traditional pure-LRU policy used by {@link StringListStoreMapCache}.
+ */
+public class FasterLRUSegmentCache<K, V> implements SegmentCache<K, V> {
+    /**
+     * Adapts an iterator over FasterLRUCache.Item to one over Map.Entry
+     */
+    protected static class ItemIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+        protected final Iterator<FasterLRUCache.Item<K, V>> it;
+
+        protected ItemIterator(Iterator<FasterLRUCache.Item<K, V>> it) {
+            this.it = it;
+        }
+
+        @Override public boolean hasNext() {
+            return it.hasNext();
+        }
+
+        @Override public Map.Entry<K, V> next() {
+            FasterLRUCache.Item<K, V> item = it.next();
+            return new AbstractMap.SimpleImmutableEntry<K, V>(item.getKey(), item.getValue());
+        }
+
+        @Override public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    protected final FasterLRUCache<K, V> cache;
+
+    public FasterLRUSegmentCache(int size) {
+        cache = new FasterLRUCache<K, V>(size);
+    }
+
+    @Override public V get(K key) {
+        return cache.get(key);
+    }
+
+    // We leave acceptsEquivalentKeys false because we can't count on which side of the comparison
+    // FasterLRUCache puts the stored key.  String.equals is false for anything but a String, and
+    // a false miss here would have StringListStoreMapCache overwrite a dirty entry with what's in
+    // the store.
+
+    @Override public V put(K key, V value, boolean dirty, Evicted<K, V> evicted) {
+        FasterLRUCache.Item<K, V> decached = new FasterLRUCache.Item<K, V>();
+        V previous = cache.put(key, value, dirty, decached);
+        if (decached.getKey() != null)
+            evicted.add(decached.getKey(), decached.getValue());
+        return previous;
+    }
+
+    @Override public void clear() {
+        cache.clear();
+    }
+
+    @Override public Iterator<Map.Entry<K, V>> dirtyIterator() {
+        return new ItemIterator<K, V>(cache.dirtyIterator());
+    }
+
+    @Override public Iterator<Map.Entry<K, V>> cleaningDirtyIterator() {
+        return new ItemIterator<K, V>(cache.cleaningDirtyIterator());
+    }
+
+    @Override public long getWeightedSize() {
+        // FasterLRUCache doesn't tell us
+        return -1;
+    }
+
+    @Override public String logStats() {
+        return cache.logStats();
+    }
+}
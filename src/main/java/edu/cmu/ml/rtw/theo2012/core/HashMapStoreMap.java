@@ -1,14 +1,31 @@
 package edu.cmu.ml.rtw.theo2012.core;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import edu.cmu.ml.rtw.util.Logger;
 import edu.cmu.ml.rtw.util.LogFactory;
@@ -29,6 +46,12 @@ import edu.cmu.ml.rtw.util.Timer;
  * Because there is no caching, this ought to be threadsafe in read-only mode without us having to
  * do anything in particular.
  *
+ * Format 1 files (see {@link writeFormat1}) open and save much faster for large KBs, but versions
+ * of this class that predate format 1 can't read them, and a KB that is saved in format 1 stays
+ * that way for as long as it is saved with hashMapFileFormat=1.  So format 0 remains the default,
+ * and moving a KB to format 1 is a one-way step to be taken explicitly by setting that property.
+ * Setting it back to 0 converts the KB back the next time it is saved.
+ *
  * Greater use of this class ought to tell us more about the limitations in StringListStoreBase's
  * implementation as well as inherent list-based design.  Having the map be keyed on RTWLocation
  * would be an obvious alternative for consideration.  But doing this was implementationally
@@ -71,8 +94,52 @@ public class HashMapStoreMap extends HashMap<String, RTWListValue> implements St
     protected boolean readOnly = false;
 
     /**
-     * Wrapper around KbUtility.RTWValueToUTF8 that prepends the length in bytes of what
-     * RTWValueToUTF8 writes.
+     * Whether to write values in binary rather than legacy UTF-8 format
+     */
+    protected boolean binaryValues;
+
+    /**
+     * File format number to write (see {@link writeFormat0} and {@link writeFormat1}); 0 by
+     * default so that older versions of this class can still read what we write
+     */
+    protected final int fileFormat;
+
+    /**
+     * Number of entries per chunk in format 1
+     */
+    protected final int chunkEntries;
+
+    /**
+     * Number of threads to use for encoding and decoding chunks in format 1
+     */
+    protected final int ioThreads;
+
+    /**
+     * Constructor
+     */
+    public HashMapStoreMap() {
+        super();
+
+        // Same meaning as mapValueFormat for MapDBStoreMap.  Both formats are always readable.
+        String valueFormat = TheoFactory.getProperties().getProperty("hashMapValueFormat", "utf8");
+        if (valueFormat.equals("binary")) binaryValues = true;
+        else if (valueFormat.equals("utf8")) binaryValues = false;
+        else throw new RuntimeException("Unrecognized hashMapValueFormat value \"" + valueFormat + "\"");
+
+        // Either format is always readable
+        fileFormat = TheoFactory.getProperties().getPropertyIntegerValue("hashMapFileFormat", 0);
+        if (fileFormat != 0 && fileFormat != 1)
+            throw new RuntimeException("Unrecognized hashMapFileFormat value " + fileFormat);
+        chunkEntries = Math.max(1, TheoFactory.getProperties().getPropertyIntegerValue("hashMapChunkEntries", 65536));
+        ioThreads = Math.max(1, TheoFactory.getProperties().getPropertyIntegerValue("hashMapIOThreads",
+                        Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Write a single RTWValue so that it can be read back with {@link readValue}
+     *
+     * Historically, this was always a wrapper around KbUtility.RTWValueToUTF8 that prepends the
+     * length in bytes of what RTWValueToUTF8 writes.
      *
      * Length is written using 1 or more bytes as if each byte were one digit in a base-128 number,
      * starting with the least-significant byte and proceeding to the most-significant (i.e. little
@@ -86,64 +153,20 @@ public class HashMapStoreMap extends HashMap<String, RTWListValue> implements St
      * But, if, for example, the length of the value is 1000, then the first byte will be 232 (1000
      * % 128 + 128), the second byte will be 7, and there will be no 3rd byte because the second
      * byte is under 128.  A total of 1002 bytes will be written.
+     *
+     * 2019-03: Now, if hashMapValueFormat=binary, values are written in the binary format of
+     * {@link RTWValueBinaryCodec}, which is distinguishable from the above by its leading zero
+     * byte.  That's not the default because versions of this class that predate it can't read it.
      */
-    protected void writeUTF8WithLen(OutputStream out, RTWValue value) {
-        try {
-            byte[] utf8 = value.toUTF8();
-
-            int len = utf8.length;
-            byte lsd;
-            do {
-                lsd = (byte)(len % 128);
-                len = len / 128;
-                if (len > 0) lsd += 128;
-                out.write(lsd);
-            } while (lsd < 0);   // Apparently, bytes are signed in Java....
-
-            out.write(utf8);
-        } catch (Exception e) {
-            throw new RuntimeException("writeUTF8WithLen(<out>, " + value + ")", e);
-        }
+    protected void writeValue(DataOutput out, RTWValue value) {
+        RTWValueBinaryCodec.writeTagged(out, value, binaryValues);
     }
 
     /**
-     * Opposite of writeUTF8WithLen
+     * Opposite of writeValue, accepting either format
      */
-    protected RTWValue readUTF8WithLen(InputStream in) {
-        try {
-            int len = 0;
-            int lsd;
-            int multiplier = 1;
-            boolean more;
-
-            // For whateve reason, in.read() was giving me -1 for bytes with the most significant
-            // bit set.  And, for whatever reason, doing it this way works.
-            byte[] dumbbuffer = new byte[1];
-            do {
-                int foo = in.read(dumbbuffer);
-                if (foo < 1)
-                    throw new RuntimeException("EOF in the middle of a size indicator");
-                lsd = dumbbuffer[0];   // nb. values over 127 will be negative
-                if (lsd < 0) {
-                    more = true;
-                    lsd += 128;
-                } else {
-                    more = false;
-                }
-                len = len + (lsd * multiplier);
-                multiplier = multiplier * 128;
-                if (multiplier == 0)
-                    throw new RuntimeException("Multiplier overflow.  Improperly formated length indicator.");
-            } while (more);
-
-            byte buffer[] = new byte[len];
-            int read = in.read(buffer, 0, len);
-            if (read < len)
-                throw new RuntimeException("Too few bytes read in middle of RTWValue");
-            return RTWValue.fromUTF8(buffer, 0, len);
-        } catch (Exception e) {
-            throw new RuntimeException("readUTF8WithLen(<in>)", e);
-        }
+    protected RTWValue readValue(DataInput in) {
+        return RTWValueBinaryCodec.readTagged(in);
     }
 
     /**
@@ -156,9 +179,13 @@ public class HashMapStoreMap extends HashMap<String, RTWListValue> implements St
      *
      * For ease, everything we write is done through an RTWValue so that we can use
      * KbUtility.RTWValueToUTF8.  But because RTWValueToUTF8 does not encode the length of the UTF8
-     * being written, we forward all of these writes through writeUTF8WithLen, which prepends the
+     * being written, we forward all of these writes through writeValue, which prepends the
      * length of each RTWValue written.  This simplifies reading.
      *
+     * Revision 1 of this format is the same except that values may also be in the binary format
+     * written by writeValue.  We write revision 1 whenever we're writing binary values so that older
+     * code will refuse to read it rather than choke in the middle.
+     *
      * The very first bit of data is a n RTWIntegerValue encoded using KbUtility.RTWValueToUTF8
      * indicating the total number of entries.  This gives us a way to be able to know when we're
      * done reading it back in without requiring that we hit EOF at the end of our content, which
@@ -166,23 +193,24 @@ public class HashMapStoreMap extends HashMap<String, RTWListValue> implements St
      *
      * After that, we alternate between an RTWStringValue key and its RTWListValue value.
      */
-    protected void writeFormat0(OutputStream out) {
+    protected void writeFormat0(OutputStream outStream) {
         try {
             log.debug("Saving HashMapStoreMap...");
+            DataOutputStream out = new DataOutputStream(outStream);
 
             // Magic bytes
             out.write(magicBytes);
 
             // Major and minor format numbers
             out.write(0);
-            out.write(0);
+            out.write(binaryValues ? 1 : 0);
 
             // 25 bytes of nothingness
             for (int i = 0; i < 25; i++) out.write(0);
 
             // Total number of entries
             int numEntries = size();
-            writeUTF8WithLen(out, new RTWIntegerValue(numEntries));
+            writeValue(out, new RTWIntegerValue(numEntries));
 
             // The entries
             Timer t = new Timer();
@@ -190,8 +218,8 @@ public class HashMapStoreMap extends HashMap<String, RTWListValue> implements St
             boolean didLogInfo = false;
             int savedEntries = 0;
             for (Entry<String, RTWListValue> entry : entrySet()) {
-                writeUTF8WithLen(out, new RTWStringValue(entry.getKey()));
-                writeUTF8WithLen(out, entry.getValue());
+                writeValue(out, new RTWStringValue(entry.getKey()));
+                writeValue(out, entry.getValue());
                 savedEntries++;
                 if (t.getElapsedSeconds() > 10) {
                     long totalMemory = Runtime.getRuntime().totalMemory() / 1048756;
@@ -203,6 +231,7 @@ public class HashMapStoreMap extends HashMap<String, RTWListValue> implements St
                     t.start();
                 }
             }
+            out.flush();
             if (didLogInfo) log.info("Finished saving.");
             else log.debug("Finished saving.");
         } catch (Exception e) {
@@ -217,8 +246,9 @@ public class HashMapStoreMap extends HashMap<String, RTWListValue> implements St
      * For now, this handles validation of magic bytes etc.  Later, that will go out into a
      * format-identification method.
      */
-    protected void readFormat0(InputStream in) {
+    protected void readFormat0(InputStream inStream) {
         try {
+            DataInputStream in = new DataInputStream(inStream);
             byte magic[] = new byte[magicBytes.length];
             int read = in.read(magic, 0, magic.length);
             if (read != magic.length)
@@ -233,7 +263,7 @@ public class HashMapStoreMap extends HashMap<String, RTWListValue> implements St
                 throw new RuntimeException("Incorrect format (header missing format numbers");
             if (majorFormat != 0)
                 throw new RuntimeException("This method can only read format 0; the data is in format " + majorFormat);
-            if (minorFormat > 0)
+            if (minorFormat > 1)
                 throw new RuntimeException("Format too new");
 
             for (int i = 0; i < 25; i++)
@@ -241,7 +271,7 @@ public class HashMapStoreMap extends HashMap<String, RTWListValue> implements St
                     throw new RuntimeException("Premature EOF inside header");
             
             RTWValue v;
-            v = readUTF8WithLen(in);
+            v = readValue(in);
             if (!(v instanceof RTWIntegerValue))
                 throw new RuntimeException("Incorrect format (entry count is " + v
                         + " instead of an integer");
@@ -253,11 +283,11 @@ public class HashMapStoreMap extends HashMap<String, RTWListValue> implements St
             boolean didLogInfo = false;
             for (int i = 0; i < numEntries; i++) {
                 try {
-                    v = readUTF8WithLen(in);
+                    v = readValue(in);
                     if (!(v instanceof RTWStringValue))
                         throw new RuntimeException("Incorrect format (non-string key " + v + ")");
                     String key = v.asString();
-                    v = readUTF8WithLen(in);
+                    v = readValue(in);
                     if (!(v instanceof RTWListValue))
                         throw new RuntimeException("Incorrect format (non-list value " + v + ")");
 
@@ -293,6 +323,292 @@ public class HashMapStoreMap extends HashMap<String, RTWListValue> implements St
         }
     }
 
+    /**
+     * Offset of the 25 format-dependent header bytes
+     */
+    protected final static int HEADER_PARAMS_OFFSET = magicBytes.length + 2;
+
+    /**
+     * Offset at which content begins following the header
+     */
+    protected final static int HEADER_LENGTH = HEADER_PARAMS_OFFSET + 25;
+
+    /**
+     * Size of each chunk's entry in the format 1 index
+     */
+    protected final static int INDEX_ENTRY_LENGTH = 8 + 4 + 4;
+
+    /**
+     * Return a ByteBuffer holding the file header for the given format, with the given 25 bytes
+     * of format-dependent content
+     */
+    protected static ByteBuffer makeHeader(int majorFormat, int minorFormat, ByteBuffer params) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.put(magicBytes);
+        header.put((byte)majorFormat);
+        header.put((byte)minorFormat);
+        if (params != null) header.put(params);
+        header.position(0);
+        return header;
+    }
+
+    /**
+     * Write the whole of the given buffer to the given channel at the given position
+     */
+    protected static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) position += channel.write(buf, position);
+    }
+
+    /**
+     * Fill the given buffer from the given channel starting at the given position
+     */
+    protected static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position);
+            if (n < 0) throw new EOFException("Premature EOF at offset " + position);
+            position += n;
+        }
+    }
+
+    /**
+     * Serialize the given entries into one format 1 chunk
+     */
+    protected byte[] encodeChunk(String[] keys, RTWListValue[] values, int numEntries) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(numEntries * 64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (int i = 0; i < numEntries; i++) {
+                RTWValueBinaryCodec.writeString(out, keys[i]);
+                writeValue(out, values[i]);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (Exception e) {
+            throw new RuntimeException("encodeChunk(<keys>, <values>, " + numEntries + ")", e);
+        }
+    }
+
+    /**
+     * Write our entire content to the given channel in format "1"
+     *
+     * 2019-03: Format 0 has to be written and read sequentially, one little write or read call per
+     * key and value, on one thread, which makes opening and closing a multi-GB KB take a good deal
+     * longer than the disk alone would.  Format 1 divides the entries up into chunks of
+     * hashMapChunkEntries entries apiece, each of which can be encoded or decoded on its own, and
+     * adds an index of where the chunks are so that they can be read in parallel.  The encoding
+     * and decoding happen on a pool of hashMapIOThreads threads, and the file I/O happens a whole
+     * chunk at a time through a FileChannel.
+     *
+     * The 25 format-dependent header bytes hold the offset of the index (8 bytes), the number of
+     * chunks (4 bytes), and the total number of entries (4 bytes).  The chunks begin immediately
+     * after the header, and each is just its entries back-to-back, with keys written by
+     * RTWValueBinaryCodec.writeString and values by writeValue.  The index follows the last chunk,
+     * and has, for each chunk, its offset (8 bytes), its length in bytes (4 bytes), and its number
+     * of entries (4 bytes).
+     *
+     * The header is written last, so a file whose writing was cut short will have an index offset
+     * of zero and be rejected when read.
+     *
+     * As with format 0, revision 1 allows binary values, and we write revision 1 whenever we're
+     * writing binary values.
+     */
+    protected void writeFormat1(FileChannel channel) {
+        ExecutorService pool = null;
+        try {
+            log.debug("Saving HashMapStoreMap in format 1...");
+            final int numEntries = size();
+            writeFully(channel, makeHeader(1, binaryValues ? 1 : 0, null), 0);
+
+            // Chunks get encoded in parallel and written in order, with at most a few per thread
+            // in flight so that we don't wind up with a second copy of the KB in RAM.
+            pool = Executors.newFixedThreadPool(ioThreads);
+            final int window = ioThreads * 2;
+            ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>(window);
+            ArrayList<Integer> chunkSizes = new ArrayList<Integer>();
+            ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+            DataOutputStream index = new DataOutputStream(indexBytes);
+            long position = HEADER_LENGTH;
+            int numChunks = 0;
+            int savedEntries = 0;
+            Timer t = new Timer();
+            t.start();
+            boolean didLogInfo = false;
+
+            String[] keys = new String[chunkEntries];
+            RTWListValue[] values = new RTWListValue[chunkEntries];
+            int n = 0;
+            java.util.Iterator<Entry<String, RTWListValue>> it = entrySet().iterator();
+            while (it.hasNext() || n > 0) {
+                if (it.hasNext()) {
+                    Entry<String, RTWListValue> entry = it.next();
+                    keys[n] = entry.getKey();
+                    values[n] = entry.getValue();
+                    n++;
+                    if (n < chunkEntries && it.hasNext()) continue;
+                }
+
+                final String[] chunkKeys = keys;
+                final RTWListValue[] chunkValues = values;
+                final int chunkSize = n;
+                pending.add(pool.submit(new Callable<byte[]>() {
+                            @Override public byte[] call() throws Exception {
+                                return encodeChunk(chunkKeys, chunkValues, chunkSize);
+                            }
+                        }));
+                chunkSizes.add(chunkSize);
+                keys = new String[chunkEntries];
+                values = new RTWListValue[chunkEntries];
+                n = 0;
+
+                while (pending.size() >= window || (!it.hasNext() && !pending.isEmpty())) {
+                    byte[] chunk = pending.remove().get();
+                    final int entries = chunkSizes.get(numChunks);
+                    writeFully(channel, ByteBuffer.wrap(chunk), position);
+                    index.writeLong(position);
+                    index.writeInt(chunk.length);
+                    index.writeInt(entries);
+                    position += chunk.length;
+                    numChunks++;
+                    savedEntries += entries;
+                    if (t.getElapsedSeconds() > 10) {
+                        long totalMemory = Runtime.getRuntime().totalMemory() / 1048756;
+                        long usedMemory = totalMemory - Runtime.getRuntime().freeMemory() / 1048756;
+                        int percent = (int)(((double)savedEntries / (double)numEntries) * 100.0);
+                        log.info("Saved " + percent + "%..."
+                                + " (JVM Total:" + totalMemory + "MB, Used:" + usedMemory + "MB)");
+                        didLogInfo = true;
+                        t.start();
+                    }
+                }
+            }
+
+            // Index, and then the header that points to it
+            index.flush();
+            writeFully(channel, ByteBuffer.wrap(indexBytes.toByteArray()), position);
+            ByteBuffer params = ByteBuffer.allocate(25);
+            params.putLong(position);
+            params.putInt(numChunks);
+            params.putInt(savedEntries);
+            params.position(0);
+            writeFully(channel, makeHeader(1, binaryValues ? 1 : 0, params), 0);
+            channel.truncate(position + indexBytes.size());
+
+            if (didLogInfo) log.info("Finished saving.");
+            else log.debug("Finished saving.");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("writeFormat1(<channel>) with location " + location, e.getCause());
+        } catch (Exception e) {
+            throw new RuntimeException("writeFormat1(<channel>) with location " + location, e);
+        } finally {
+            if (pool != null) pool.shutdown();
+        }
+    }
+
+    /**
+     * Decode one format 1 chunk into the given arrays
+     */
+    protected void decodeChunk(byte[] chunk, String[] keys, RTWListValue[] values) {
+        try {
+            RTWValueBinaryCodec.ByteArrayInput in = new RTWValueBinaryCodec.ByteArrayInput(chunk, 0);
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = RTWValueBinaryCodec.readString(in);
+                RTWValue v = readValue(in);
+                if (!(v instanceof RTWListValue))
+                    throw new RuntimeException("Incorrect format (non-list value " + v + " for key \""
+                            + keys[i] + "\")");
+                values[i] = (RTWListValue)v;
+            }
+            if (in.getPosition() != chunk.length)
+                throw new RuntimeException("Incorrect format (" + (chunk.length - in.getPosition())
+                        + " extra bytes at end of chunk)");
+        } catch (Exception e) {
+            throw new RuntimeException("decodeChunk(<" + chunk.length + " bytes>, <" + keys.length
+                    + " keys>, <values>)", e);
+        }
+    }
+
+    /**
+     * Read a file in format "1" whose header has already been read and checked, and put all
+     * entries into ourself, regardless of any pre-existing content
+     *
+     * Chunks are read and decoded in parallel, but entries are put into the map by the calling
+     * thread, since HashMap won't abide anything else.
+     */
+    protected void readFormat1(final FileChannel channel, int minorFormat, ByteBuffer params) {
+        ExecutorService pool = null;
+        try {
+            if (minorFormat > 1)
+                throw new RuntimeException("Format too new");
+            final long indexOffset = params.getLong();
+            final int numChunks = params.getInt();
+            final int numEntries = params.getInt();
+            if (indexOffset < HEADER_LENGTH)
+                throw new RuntimeException("Incorrect format (no index; was this file completely written?)");
+
+            ByteBuffer index = ByteBuffer.allocate(numChunks * INDEX_ENTRY_LENGTH);
+            readFully(channel, index, indexOffset);
+            index.flip();
+
+            pool = Executors.newFixedThreadPool(ioThreads);
+            final int window = ioThreads * 2;
+            ArrayDeque<Future<Object[]>> pending = new ArrayDeque<Future<Object[]>>(window);
+            int loadedEntries = 0;
+            int submitted = 0;
+            Timer t = new Timer();
+            t.start();
+            boolean didLogInfo = false;
+            while (submitted < numChunks || !pending.isEmpty()) {
+                while (submitted < numChunks && pending.size() < window) {
+                    final long offset = index.getLong();
+                    final int length = index.getInt();
+                    final int entries = index.getInt();
+                    pending.add(pool.submit(new Callable<Object[]>() {
+                                @Override public Object[] call() throws Exception {
+                                    ByteBuffer buf = ByteBuffer.allocate(length);
+                                    readFully(channel, buf, offset);
+                                    String[] keys = new String[entries];
+                                    RTWListValue[] values = new RTWListValue[entries];
+                                    decodeChunk(buf.array(), keys, values);
+                                    return new Object[]{keys, values};
+                                }
+                            }));
+                    submitted++;
+                }
+
+                Object[] decoded = pending.remove().get();
+                String[] keys = (String[])decoded[0];
+                RTWListValue[] values = (RTWListValue[])decoded[1];
+
+                // Bypass our own put so that we don't need to play games with read-only etc.
+                for (int i = 0; i < keys.length; i++) super.put(keys[i], values[i]);
+                loadedEntries += keys.length;
+
+                if (t.getElapsedSeconds() > 10) {
+                    long totalMemory = Runtime.getRuntime().totalMemory() / 1048756;
+                    long usedMemory = totalMemory - Runtime.getRuntime().freeMemory() / 1048756;
+                    int percent = (int)(((double)loadedEntries / (double)numEntries) * 100.0);
+                    log.info("Loaded " + percent + "%... (" + loadedEntries + " of " + numEntries
+                            + " (JVM Total:" + totalMemory + "MB, Used:" + usedMemory + "MB)");
+                    didLogInfo = true;
+                    t.start();
+                }
+            }
+            if (loadedEntries != numEntries)
+                throw new RuntimeException("Incorrect format (header says " + numEntries
+                        + " entries, but chunks hold " + loadedEntries + ")");
+            if (didLogInfo) log.info("Finished loading.");
+            else log.debug("Finished loading.");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("readFormat1(<channel>, " + minorFormat + ", <params>) with location "
+                    + location, e.getCause());
+        } catch (Exception e) {
+            throw new RuntimeException("readFormat1(<channel>, " + minorFormat + ", <params>) with location "
+                    + location, e);
+        } finally {
+            if (pool != null) pool.shutdown();
+        }
+    }
+
     /**
      * Save our content to the given location, or our location if it is null
      */
@@ -304,8 +620,25 @@ public class HashMapStoreMap extends HashMap<String, RTWListValue> implements St
             if (location.equals("/")) return;
         
             // bkdb: may as well just hold this open normally?
+            if (fileFormat == 1) {
+                FileChannel channel = FileChannel.open(new File(location).toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                try {
+                    writeFormat1(channel);
+                    if (sync) channel.force(true);
+                } finally {
+                    channel.close();
+                }
+                return;
+            }
+
             // bkdb: sync?
-            writeFormat0(new FileOutputStream(location));
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(location), 1 << 20);
+            try {
+                writeFormat0(out);
+            } finally {
+                out.close();
+            }
         } catch (Exception e) {
             throw new RuntimeException("save(" + location + ", " + sync + ")", e);
         }
@@ -316,7 +649,28 @@ public class HashMapStoreMap extends HashMap<String, RTWListValue> implements St
      */
     protected void load(String location) {
         try {
-            readFormat0(new BufferedInputStream(new FileInputStream(location)));
+            // Peek at the header to see which format we've got.  readFormat0 does its own
+            // validation of the header, so leave anything that isn't format 1 to it.
+            FileChannel channel = FileChannel.open(new File(location).toPath(), StandardOpenOption.READ);
+            try {
+                if (channel.size() >= HEADER_LENGTH) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+                    readFully(channel, header, 0);
+                    header.flip();
+                    byte[] magic = new byte[magicBytes.length];
+                    header.get(magic);
+                    int majorFormat = header.get() & 0xFF;
+                    int minorFormat = header.get() & 0xFF;
+                    if (Arrays.equals(magic, magicBytes) && majorFormat == 1) {
+                        readFormat1(channel, minorFormat, header.slice());
+                        return;
+                    }
+                }
+            } finally {
+                channel.close();
+            }
+
+            readFormat0(new BufferedInputStream(new FileInputStream(location), 1 << 20));
         } catch (Exception e) {
             throw new RuntimeException("load(" + location + ")", e);
         }
@@ -417,5 +771,17 @@ public class HashMapStoreMap extends HashMap<String, RTWListValue> implements St
         return super.remove(key);
     }
 
+    /**
+     * HashMap asks the probe key rather than the stored key whether they're equal, so we can look
+     * up a StoreMapKey without turning it into a String
+     */
+    @Override public RTWListValue get(StoreMapKey key) {
+        return super.get(key);
+    }
+
+    @Override public boolean containsKey(StoreMapKey key) {
+        return super.containsKey(key);
+    }
+
     // We could override the rest and add additional checks, but this is probably good enough.
 }
@@ -0,0 +1,75 @@
+package edu.cmu.ml.rtw.theo2012.core;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentMap;
+
+import org.mapdb.DB;
+import org.mapdb.Serializer;
+
+/**
+ * Variation on {@link MapDBStoreMap} that uses a MapDB BTreeMap rather than an HTreeMap, and so
+ * keeps its keys in sorted order<p>
+ *
+ * With the keys sorted, all of the entries for a given entity, or for a given slot of a given
+ * entity, are contiguous.  This means that {@link keyIterator} can find them with a range scan
+ * rather than a scan of the entire KB, and reading through them all in order has good locality.
+ * StringListStore uses this, for instance, to skip from one primitive entity to the next when
+ * iterating over them.  The price is that individual gets and puts are somewhat slower than with
+ * the HTreeMap, and that's why this is offered as a separate KB format, "bmdb", rather than being
+ * the new default.<p>
+ *
+ * Everything else, including the cache and the value serialization, is as for MapDBStoreMap.  The
+ * two formats are not interchangeable; each refuses to open a KB made by the other.<p>
+ */
+public class MapDBBTreeStoreMap extends MapDBStoreMap {
+    /**
+     * Name of both the MapDB file within our location directory and the map within that file
+     */
+    protected final static String MAP_NAME = "MapDBBTreeStoreMap";
+
+    @Override protected String getMapName() {
+        return MAP_NAME;
+    }
+
+    @Override protected void checkLocation(File dir) {
+        if (new File(dir, "MapDBStoreMap").exists())
+            throw new RuntimeException("Existing KB at \"" + dir + "\" is in MapDB format");
+    }
+
+    @Override protected ConcurrentMap<String, RTWListValue> openMap(DB db, RTWListValueSerializer serializer) {
+        // Keeping values outside of the BTree nodes keeps the nodes small, which matters because
+        // some of our values are large lists.
+        if (db.exists(getMapName())) {
+            return db.treeMap(getMapName(), Serializer.STRING, serializer).open();
+        } else {
+            return db.treeMap(getMapName(), Serializer.STRING, serializer).valuesOutsideNodesEnable().create();
+        }
+    }
+
+    @Override protected MapDBStoreMap newInstance() {
+        return new MapDBBTreeStoreMap();
+    }
+
+    @Override public boolean isSorted() {
+        return true;
+    }
+
+    @Override public synchronized Iterator<String> keyIterator(String fromKey, String toKey) {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        mapCache.commitAllDirty(true);
+        NavigableMap<String, RTWListValue> m = (NavigableMap<String, RTWListValue>)map;
+        if (toKey == null) return m.tailMap(fromKey, true).keySet().iterator();
+        return m.subMap(fromKey, true, toKey, false).keySet().iterator();
+    }
+
+    @Override public synchronized NavigableSet<String> sortedKeySet() {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        mapCache.commitAllDirty(true);
+        return ((NavigableMap<String, RTWListValue>)map).navigableKeySet();
+    }
+}
@@ -14,13 +14,13 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 import java.util.function.BiConsumer;
 
 import org.mapdb.DataInput2;
 import org.mapdb.DataOutput2;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
-import org.mapdb.HTreeMap;
 import org.mapdb.Serializer;
 
 import edu.cmu.ml.rtw.util.Logger;
@@ -48,7 +48,7 @@ import edu.cmu.ml.rtw.util.Timer;
  * {@link MapDBStoreMap} uses, indicates that performance will degrade past about 1 billion records.
  * That's just above the size of the ongoing NELL KB at iteration 880, so we would want to explore
  * getting clever, for instance maybe by federating into multiple HTreeMaps, if this gets used for
- * NELL at scale.
+ * NELL at scale.  2019-03: {@link ShardedMapDBStoreMap} does exactly that.
  *
  * FODO: It's not clear how best to store out-of-band information, like an identifier that would
  * tell us whether or not an arbitrary file is MapDBStoreMap file, or a version number that would
@@ -73,8 +73,8 @@ public class MapDBStoreMap implements StringListStoreMap {
      */
     protected class RTWValCache extends StringListStoreMapCache {
         public RTWValCache(int cacheSize, boolean writeBack, boolean readOnly,
-                boolean forceAlwaysDirty) {
-            super(cacheSize, writeBack, readOnly, forceAlwaysDirty);
+                boolean forceAlwaysDirty, int numSegments, Policy policy) {
+            super(cacheSize, writeBack, readOnly, forceAlwaysDirty, numSegments, policy);
         }
 
         @Override protected RTWListValue get(String key) {
@@ -101,8 +101,27 @@ public class MapDBStoreMap implements StringListStoreMap {
      */
     static class RTWListValueSerializer implements Serializer<RTWListValue>, Serializable {
         /**
-         * Wrapper around KbUtility.RTWValueToUTF8 that prepends the length in bytes of what
-         * RTWValueToUTF8 writes.
+         * Whether to write values in {@link RTWValueBinaryCodec}'s binary format rather than in the
+         * legacy UTF-8 format.  Either is always readable.
+         */
+        protected final boolean binary;
+
+        /**
+         * Whether to return lists as {@link RTWLazyListValue} objects that decode their elements
+         * only as they are accessed
+         */
+        protected final boolean lazyLists;
+
+        RTWListValueSerializer(boolean binary, boolean lazyLists) {
+            this.binary = binary;
+            this.lazyLists = lazyLists;
+        }
+
+        /**
+         * Write out the given value in either binary or legacy format
+         *
+         * The legacy format is a wrapper around KbUtility.RTWValueToUTF8 that prepends the length in
+         * bytes of what RTWValueToUTF8 writes.
          *
          * Length is written using 1 or more bytes as if each byte were one digit in a base-128
          * number, starting with the least-significant byte and proceeding to the most-significant
@@ -116,21 +135,15 @@ public class MapDBStoreMap implements StringListStoreMap {
          * But, if, for example, the length of the value is 1000, then the first byte will be 232
          * (1000 % 128 + 128), the second byte will be 7, and there will be no 3rd byte because the
          * second byte is under 128.  A total of 1002 bytes will be written.
+         *
+         * 2019-03: The binary format begins with a zero byte, which can never begin the legacy
+         * format because no RTWValue is ever zero bytes long in UTF-8.  See {@link
+         * RTWValueBinaryCodec} for details.  This is the reason that we can mix the two formats
+         * within one KB.
          */
         @Override public void serialize(DataOutput2 out, RTWListValue value) {
             try {
-                final byte[] utf8 = value.toUTF8();
-
-                int len = utf8.length;
-                byte lsd;
-                do {
-                    lsd = (byte)(len % 128);
-                    len = len / 128;
-                    if (len > 0) lsd += 128;
-                    out.write(lsd);
-                } while (lsd < 0);   // Apparently, bytes are signed in Java....
-
-                out.write(utf8);
+                RTWValueBinaryCodec.writeTagged(out, value, binary);
             } catch (Exception e) {
                 throw new RuntimeException("serialize(<out>, " + value + ")", e);
             }
@@ -138,40 +151,10 @@ public class MapDBStoreMap implements StringListStoreMap {
         
         @Override public RTWListValue deserialize(DataInput2 in, int available) {
             try {
-                int len = 0;
-                int lsd;
-                int multiplier = 1;
-                boolean more;
-
-                // For whateve reason, in.read() was giving me -1 for bytes with the most significant
-                // bit set.  And, for whatever reason, doing it this way works.
-                final byte[] dumbbuffer = new byte[1];
-                do {
-                    try {
-                        in.readFully(dumbbuffer);
-                    } catch (Exception e) {
-                        throw new RuntimeException("Error in the middle of a size indicator", e);
-                    }
-                    lsd = dumbbuffer[0];   // nb. values over 127 will be negative
-                    if (lsd < 0) {
-                        more = true;
-                        lsd += 128;
-                    } else {
-                        more = false;
-                    }
-                    len = len + (lsd * multiplier);
-                    multiplier = multiplier * 128;
-                    if (multiplier == 0)
-                        throw new RuntimeException("Multiplier overflow.  Improperly formated length indicator.");
-                } while (more);
-
-                final byte buffer[] = new byte[len];
-                try {
-                    in.readFully(buffer);
-                } catch (Exception e) {
-                    throw new RuntimeException("Error in the middle of reading of RTWValue", e);
-                }
-                RTWValue v = RTWValue.fromUTF8(buffer, 0, len);
+                // Formerly, in.read() was giving us -1 for bytes with the most significant bit set,
+                // which necessitated reading through a one-byte buffer.  RTWValueBinaryCodec uses
+                // readUnsignedByte, which does not suffer from that.
+                RTWValue v = RTWValueBinaryCodec.readTagged(in, lazyLists);
                 if (!(v instanceof RTWListValue))
                     throw new RuntimeException("Non-RTWListValue value " + v);
                 return (RTWListValue)v;
@@ -203,8 +186,11 @@ public class MapDBStoreMap implements StringListStoreMap {
 
     /**
      * The Map within {@link db} acting as our storage mechanism
+     *
+     * This is an HTreeMap for us, but subclasses may use some other kind of MapDB map (see {@link
+     * openMap}).
      */
-    protected HTreeMap<String, RTWListValue> map;
+    protected ConcurrentMap<String, RTWListValue> map;
 
     /**
      * Cache on top of {@link map}
@@ -213,6 +199,19 @@ public class MapDBStoreMap implements StringListStoreMap {
 
     // Parameter values for the construction of new RTWValCache instances
     int cacheSize;
+    int cacheSegments;
+    long cacheBytes;
+
+    /**
+     * Whether to write values in binary rather than legacy UTF-8 format
+     */
+    boolean binaryValues;
+
+    /**
+     * Whether to decode list values lazily
+     */
+    boolean lazyLists;
+    StringListStoreMapCache.Policy cachePolicy;
     boolean writeBack;
     boolean forceAlwaysDirty;
 
@@ -243,6 +242,52 @@ public class MapDBStoreMap implements StringListStoreMap {
          */
         cacheSize = properties.getPropertyIntegerValue("mapCacheSize", 100000);
 
+        /*
+         * Number of independently-locked segments to split the cache into.  MapDB's HTreeMap is
+         * itself segmented and happy to serve concurrent reads, so there's no sense in having a
+         * single cache lock in front of it serialize all of the threads in a read-heavy job.  Set
+         * this to 1 to get the traditional single-lock LRU cache.
+         */
+        cacheSegments = properties.getPropertyIntegerValue("mapCacheSegments", 16);
+
+        /*
+         * If set (e.g. "4g"), size the cache by estimated heap bytes rather than by mapCacheSize
+         * entries.  Cached values range from two-element lists to sets of hundreds of thousands of
+         * values, so an entry count says very little about how much RAM the cache will take.
+         */
+        String bytesStr = properties.getProperty("mapCacheBytes", "0");
+        cacheBytes = StringListStoreMapCache.parseByteSize(bytesStr);
+
+        /*
+         * Replacement policy for the cache: "lru" is the traditional one, and "tinylfu" is a
+         * frequency-based admission policy that is resistant to being flushed out by scans like
+         * relation instance iteration or HFT export.  Use the hit rate reported by logStats to
+         * compare them.
+         */
+        cachePolicy = StringListStoreMapCache.Policy.fromString(
+                properties.getProperty("mapCachePolicy", "lru"));
+
+        /*
+         * Format in which to write values: "binary" for RTWValueBinaryCodec's compact binary format
+         * or "utf8" for the legacy format.  Both are always readable, and can be mixed within a KB,
+         * so a KB migrates to binary lazily as values are rewritten.  Note that versions of this
+         * class that predate the binary format will not be able to read KBs that have been written
+         * to in binary, which is why "utf8" is the default.
+         */
+        String valueFormat = properties.getProperty("mapValueFormat", "utf8");
+        if (valueFormat.equals("binary")) binaryValues = true;
+        else if (valueFormat.equals("utf8")) binaryValues = false;
+        else throw new RuntimeException("Unrecognized mapValueFormat value \"" + valueFormat + "\"");
+
+        /*
+         * Whether to hand lists back as RTWLazyListValue objects that keep their serialized bytes
+         * and decode elements on demand.  Most reads only want the size of a slot, its first value,
+         * or whether it contains some value, none of which require decoding the whole thing.  Sets
+         * are always decoded eagerly.  Off by default so that nobody gets handed a list class that
+         * they haven't asked for.
+         */
+        lazyLists = properties.getPropertyBooleanValue("mapLazyValues", false);
+
         forceAlwaysDirty = true;
     }
 
@@ -263,7 +308,8 @@ public class MapDBStoreMap implements StringListStoreMap {
                         + "\" is not in MapDB format");
             }
 
-            File f = new File(location + "/MapDBStoreMap");
+            File f = new File(location + "/" + getMapName());
+            checkLocation(dir);
 
             // At present these settings are a guess at would should work well.  Feel free to explore
             // alternatives as long as backward compatability is maintained.  We'll try relying on
@@ -288,18 +334,50 @@ public class MapDBStoreMap implements StringListStoreMap {
 
             // Here we could read configuration options or verify that this is a MapDBStoreMap file,
             // etc.  Left for future work, for now.
-            if (db.exists("MapDBStoreMap")) {
-                map = db.hashMap("MapDBStoreMap", Serializer.STRING, new RTWListValueSerializer()).open();
-            } else {
-                map = db.hashMap("MapDBStoreMap", Serializer.STRING, new RTWListValueSerializer()).create();
-            }
+            map = openMap(db, new RTWListValueSerializer(binaryValues, lazyLists));
 
-            mapCache = new RTWValCache(cacheSize, writeBack, readOnly, forceAlwaysDirty);
+            mapCache = new RTWValCache(cacheSize, writeBack, readOnly, forceAlwaysDirty, cacheSegments, cachePolicy);
+            if (cacheBytes > 0) mapCache.resizeBytes(cacheBytes);
         } catch (Exception e) {
             throw new RuntimeException("open(\"" + location + "\", " + openInReadOnlyMode + ")", e);
         }
     }
 
+    /**
+     * Name of both the MapDB file within our location directory and the map within that file
+     */
+    protected String getMapName() {
+        return "MapDBStoreMap";
+    }
+
+    /**
+     * Throw an exception if the given existing KB directory contains something other than what we
+     * can open
+     */
+    protected void checkLocation(File dir) {
+        if (new File(dir, MapDBBTreeStoreMap.MAP_NAME).exists())
+            throw new RuntimeException("Existing KB at \"" + dir
+                    + "\" is in B-tree MapDB format");
+    }
+
+    /**
+     * Open or create the map within the given DB that is to be our storage mechanism
+     */
+    protected ConcurrentMap<String, RTWListValue> openMap(DB db, RTWListValueSerializer serializer) {
+        if (db.exists(getMapName())) {
+            return db.hashMap(getMapName(), Serializer.STRING, serializer).open();
+        } else {
+            return db.hashMap(getMapName(), Serializer.STRING, serializer).create();
+        }
+    }
+
+    /**
+     * Construct a new, unopened instance of this class, e.g. to copy ourselves into
+     */
+    protected MapDBStoreMap newInstance() {
+        return new MapDBStoreMap();
+    }
+
     @Override public void close() {
         if (getLocation() == null)
             throw new RuntimeException("StoreMap is already closed");
@@ -349,7 +427,7 @@ public class MapDBStoreMap implements StringListStoreMap {
         if (f.exists()) f.delete();
         f = null;
         mapCache.commitAllDirty(true);
-        MapDBStoreMap dst = new MapDBStoreMap();
+        MapDBStoreMap dst = newInstance();
         dst.open(newLocation, false);
         dst.setCacheSize(0);
 
@@ -368,6 +446,7 @@ public class MapDBStoreMap implements StringListStoreMap {
 
     @Override public void logStats() {
         // Add something useful here as needed
+        if (mapCache != null) mapCache.logStats();
     }
 
     @Override public synchronized void optimize() {
@@ -383,11 +462,46 @@ public class MapDBStoreMap implements StringListStoreMap {
         return cacheSize;
     }
 
+    /**
+     * Size the cache to the given number of entries, abandoning any byte budget
+     */
     public void setCacheSize(int size) {
         cacheSize = size;
+        cacheBytes = 0;
         if (mapCache != null) mapCache.resize(size);
     }
 
+    public long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    /**
+     * Size the cache to roughly the given number of bytes; see {@link
+     * StringListStoreMapCache.resizeBytes}
+     *
+     * A size of 0 goes back to sizing the cache by the number of entries last given to {@link
+     * setCacheSize} rather than disabling it.
+     */
+    public void setCacheBytes(long bytes) {
+        cacheBytes = Math.max(0, bytes);
+        if (mapCache == null) return;
+        if (cacheBytes > 0) mapCache.resizeBytes(cacheBytes);
+        else mapCache.resize(cacheSize);
+    }
+
+    public int getCacheSegments() {
+        return cacheSegments;
+    }
+
+    /**
+     * Set the number of segments the cache is to be split into
+     *
+     * This only takes effect upon the next open.
+     */
+    public void setCacheSegments(int segments) {
+        cacheSegments = segments;
+    }
+
     /**
      * Control the dirtiness assumptions about cached values
      *
@@ -446,6 +560,32 @@ public class MapDBStoreMap implements StringListStoreMap {
         return null;
     }
 
+    /**
+     * Goes through our cache, which can be probed with the StoreMapKey itself, so that a String
+     * only gets made when the lookup has to go to MapDB
+     */
+    @Override public RTWListValue get(StoreMapKey key) {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        return mapCache.getValue(key);
+    }
+
+    /**
+     * Unlike containsKey(Object), this answers out of the cache rather than committing everything
+     * dirty and asking MapDB.  The cache remembers absent keys as well, so it's the same answer.
+     */
+    @Override public boolean containsKey(StoreMapKey key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Everything goes through our cache, which is threadsafe, or else straight to MapDB, which is
+     * too
+     */
+    @Override public boolean isThreadsafe() {
+        return true;
+    }
+
     @Override public synchronized boolean isEmpty() {
         mapCache.commitAllDirty(true);
         return map.isEmpty();
@@ -0,0 +1,716 @@
+package edu.cmu.ml.rtw.theo2012.core;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import edu.cmu.ml.rtw.util.Logger;
+import edu.cmu.ml.rtw.util.LogFactory;
+import edu.cmu.ml.rtw.util.Properties;
+import edu.cmu.ml.rtw.util.Timer;
+
+/**
+ * {@link StoreMap} implementation that memory-maps an immutable snapshot file and keeps any
+ * changes in an in-heap delta map until the next flush
+ *
+ * {@link HashMapStoreMap} has to read the whole KB into the Java heap before anything can be done
+ * with it, which makes it a poor choice for a quick TheoTool query against a large KB.  This
+ * offers the same single-file arrangement, but opening the file only maps it, and values are
+ * decoded when they are asked for.  The OS pages in what gets touched and is free to drop it again
+ * under memory pressure, so a read-only open of even a very large KB is nearly instantaneous, and
+ * small queries cost about as many page faults as they touch records.
+ *
+ * The snapshot file consists of a 64-byte header laid out like HashMapStoreMap's (magic bytes,
+ * format number, revision number, 25 bytes of format-dependent content), then the records, then an
+ * open-addressing hash table.  The format-dependent header bytes hold the offset of the table (8
+ * bytes), its number of slots (8 bytes), and the number of records (8 bytes).  Each record is a
+ * 4-byte length followed by the key, written with RTWValueBinaryCodec.writeString, and the value,
+ * written with RTWValueBinaryCodec.writeTagged.  The table is a power-of-two number of 8-byte
+ * slots, probed linearly, with each occupied slot holding the record's offset in its low 40 bits
+ * and the top 24 bits of the key's hash in its high bits, so that most non-matching slots can be
+ * passed over without looking at the record.  An empty slot is zero.
+ *
+ * Writes go into a HashMap of pending changes, where a null value marks a deletion.  Flushing in
+ * read-write mode writes a new snapshot alongside the old one, merging the pending changes in and
+ * copying the untouched records over byte-for-byte, then renames it into place and maps it anew.
+ * So a flush costs time proportional to the size of the KB, as with HashMapStoreMap, and this is
+ * meant for KBs that are mostly read.  Use mdb or smdb for KBs that see heavy ongoing writes.
+ *
+ * As with HashMapStoreMap, the location "/" gets a RAM-only map with no snapshot behind it.
+ *
+ * Reads against the snapshot use duplicates of the mapped buffers, and so this is threadsafe in
+ * read-only mode.  It is not threadsafe in read-write mode.
+ *
+ * Because the JVM offers no way to unmap a file, the mapping of a replaced snapshot lingers until
+ * its buffers are garbage collected.  This is harmless on Linux.
+ *
+ * FODO: The hash table is built in a long[] during a flush, which caps the number of records at
+ * around a billion and costs 8 bytes per slot of heap while it lasts.  Building it in a mapped
+ * region of the new file would lift both.
+ */
+public class MappedHashStoreMap implements StringListStoreMap {
+    private final static Logger log = LogFactory.getLogger();
+
+    /**
+     * Magic bytes used to identify our on-disk representation; see HashMapStoreMap.magicBytes
+     */
+    protected final static byte[] magicBytes = {'e', 'd', 'u', '.', 'c', 'm', 'u', '.',
+                                                'm', 'l', '.', 'r', 't', 'w', '.', 'm',
+                                                'a', 'g', 'i', 'c', '.', 'M', 'a', 'p',
+                                                'p', 'e', 'd', 'H', 'a', 's', 'h', 'S',
+                                                't', 'o', 'r', 'e', 0};
+
+    /**
+     * Length of the file header, which is where the records begin
+     */
+    protected final static int HEADER_LENGTH = magicBytes.length + 2 + 25;
+
+    /**
+     * Size of each mapped segment of the snapshot
+     *
+     * A MappedByteBuffer can't be bigger than 2GB, so larger files are mapped in pieces.  This is a
+     * multiple of 8 so that, with the table starting on an 8-byte boundary, no table slot straddles
+     * two segments.
+     */
+    protected final static int SEGMENT_SIZE = 1 << 30;
+
+    /**
+     * Number of bits of a table slot given over to the record offset
+     */
+    protected final static int OFFSET_BITS = 40;
+
+    /**
+     * Mask for the record offset in a table slot
+     */
+    protected final static long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    /**
+     * Our location
+     */
+    protected String location = null;
+
+    /**
+     * Our read-only-ness
+     */
+    protected boolean readOnly = false;
+
+    /**
+     * Whether to hand lists back as RTWLazyListValue objects (mappedLazyValues property)
+     */
+    protected final boolean lazyLists;
+
+    /**
+     * The mapped snapshot, or null if there is none
+     */
+    protected MappedByteBuffer[] segments = null;
+
+    /**
+     * Offset of the hash table in the snapshot
+     */
+    protected long tableOffset;
+
+    /**
+     * Number of slots in the hash table, always a power of two
+     */
+    protected long tableSlots;
+
+    /**
+     * Number of records in the snapshot
+     */
+    protected long snapshotSize;
+
+    /**
+     * Changes not yet written to the snapshot, with null values marking deletions
+     */
+    protected final HashMap<String, RTWListValue> delta = new HashMap<String, RTWListValue>();
+
+    /**
+     * Number of keys in the snapshot and delta combined, not counting deletions
+     */
+    protected long size;
+
+    /**
+     * Constructor
+     */
+    public MappedHashStoreMap() {
+        Properties properties = TheoFactory.getProperties();
+        lazyLists = properties.getPropertyBooleanValue("mappedLazyValues", true);
+    }
+
+    /**
+     * Hash used to place keys in the table
+     *
+     * This has to stay the same from one JVM to the next, which String.hashCode is specified to do.
+     */
+    protected static long hash(String key) {
+        long h = key.hashCode() * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+
+    /**
+     * Return the table slot at which to start looking for a key with the given hash
+     */
+    protected static long slotFor(long hash, long tableSlots) {
+        return hash & (tableSlots - 1);
+    }
+
+    /**
+     * Return the hash tag kept in the high bits of a table slot
+     */
+    protected static long tagOf(long hash) {
+        return hash >>> OFFSET_BITS;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Reading the snapshot
+
+    /**
+     * Return the byte at the given offset in the snapshot
+     */
+    protected int getByte(long offset) {
+        return segments[(int)(offset / SEGMENT_SIZE)].get((int)(offset % SEGMENT_SIZE)) & 0xFF;
+    }
+
+    /**
+     * Return the 4-byte int at the given offset in the snapshot, which may straddle segments
+     */
+    protected int getInt(long offset) {
+        int segmentOffset = (int)(offset % SEGMENT_SIZE);
+        if (segmentOffset <= SEGMENT_SIZE - 4)
+            return segments[(int)(offset / SEGMENT_SIZE)].getInt(segmentOffset);
+        return (getByte(offset) << 24) | (getByte(offset + 1) << 16) | (getByte(offset + 2) << 8)
+                | getByte(offset + 3);
+    }
+
+    /**
+     * Return the 8-byte long at the given offset in the snapshot, which must be a multiple of 8
+     */
+    protected long getLong(long offset) {
+        return segments[(int)(offset / SEGMENT_SIZE)].getLong((int)(offset % SEGMENT_SIZE));
+    }
+
+    /**
+     * Copy len bytes from the given offset in the snapshot into the given array
+     *
+     * This uses duplicates of the buffers so that concurrent readers don't trip over each-other's
+     * buffer positions.
+     */
+    protected void getBytes(long offset, byte[] dst, int len) {
+        int copied = 0;
+        while (copied < len) {
+            int segmentOffset = (int)(offset % SEGMENT_SIZE);
+            ByteBuffer buf = segments[(int)(offset / SEGMENT_SIZE)].duplicate();
+            int n = Math.min(len - copied, buf.limit() - segmentOffset);
+            buf.position(segmentOffset);
+            buf.get(dst, copied, n);
+            copied += n;
+            offset += n;
+        }
+    }
+
+    /**
+     * Return the bytes of the record at the given offset, not including its length
+     */
+    protected byte[] getRecord(long offset) {
+        byte[] record = new byte[getInt(offset)];
+        getBytes(offset + 4, record, record.length);
+        return record;
+    }
+
+    /**
+     * Return the offset of the record for the given key in the snapshot, or -1 if there is none
+     *
+     * If value is non-null, then the record's value is decoded and stored in its first element.
+     */
+    protected long lookup(String key, RTWListValue[] value) {
+        try {
+            if (segments == null || snapshotSize == 0) return -1;
+            final long h = hash(key);
+            final long tag = tagOf(h);
+            long slot = slotFor(h, tableSlots);
+            while (true) {
+                final long entry = getLong(tableOffset + slot * 8);
+                if (entry == 0) return -1;
+                if ((entry >>> OFFSET_BITS) == tag) {
+                    final long offset = entry & OFFSET_MASK;
+                    RTWValueBinaryCodec.ByteArrayInput in =
+                            new RTWValueBinaryCodec.ByteArrayInput(getRecord(offset), 0);
+                    if (RTWValueBinaryCodec.readString(in).equals(key)) {
+                        if (value != null)
+                            value[0] = (RTWListValue)RTWValueBinaryCodec.readTagged(in, lazyLists);
+                        return offset;
+                    }
+                }
+                slot = (slot + 1) & (tableSlots - 1);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("lookup(\"" + key + "\", <value>)", e);
+        }
+    }
+
+    /**
+     * Iterates over the keys of the snapshot's records in file order
+     */
+    protected class SnapshotKeyIterator implements Iterator<String> {
+        protected long offset = HEADER_LENGTH;
+        protected long remaining = (segments == null) ? 0 : snapshotSize;
+
+        /**
+         * Offset of the record last returned by next
+         */
+        protected long recordOffset;
+
+        @Override public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override public String next() {
+            try {
+                if (remaining <= 0) throw new NoSuchElementException();
+                recordOffset = offset;
+                byte[] record = getRecord(offset);
+                offset += 4 + record.length;
+                remaining--;
+                return RTWValueBinaryCodec.readString(new RTWValueBinaryCodec.ByteArrayInput(record, 0));
+            } catch (NoSuchElementException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException("next() at offset " + offset, e);
+            }
+        }
+
+        @Override public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Key set made up of the snapshot's keys that haven't been deleted or changed, followed by the
+     * delta's non-deleted keys
+     */
+    protected class MergedKeySet extends AbstractSet<String> {
+        @Override public Iterator<String> iterator() {
+            return new Iterator<String>() {
+                protected final Iterator<String> snapshotIt = new SnapshotKeyIterator();
+                protected final Iterator<Map.Entry<String, RTWListValue>> deltaIt =
+                        delta.entrySet().iterator();
+                protected String next = advance();
+
+                protected String advance() {
+                    while (snapshotIt.hasNext()) {
+                        String key = snapshotIt.next();
+                        if (!delta.containsKey(key)) return key;
+                    }
+                    while (deltaIt.hasNext()) {
+                        Map.Entry<String, RTWListValue> entry = deltaIt.next();
+                        if (entry.getValue() != null) return entry.getKey();
+                    }
+                    return null;
+                }
+
+                @Override public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override public String next() {
+                    if (next == null) throw new NoSuchElementException();
+                    String key = next;
+                    next = advance();
+                    return key;
+                }
+
+                @Override public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override public int size() {
+            return MappedHashStoreMap.this.size();
+        }
+
+        @Override public boolean contains(Object o) {
+            return containsKey(o);
+        }
+    }
+
+    /**
+     * Map the snapshot at our location, or leave us with no snapshot if there is no file there
+     */
+    protected void mapSnapshot() {
+        try {
+            segments = null;
+            tableOffset = 0;
+            tableSlots = 0;
+            snapshotSize = 0;
+            File file = new File(location);
+            if (!file.exists()) return;
+
+            final long length;
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                length = channel.size();
+                if (length < HEADER_LENGTH)
+                    throw new RuntimeException("Incorrect format (file too short)");
+                segments = new MappedByteBuffer[(int)((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+                for (int i = 0; i < segments.length; i++) {
+                    long start = (long)i * SEGMENT_SIZE;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                            Math.min(SEGMENT_SIZE, length - start));
+                }
+            } finally {
+                channel.close();
+            }
+
+            byte[] header = new byte[HEADER_LENGTH];
+            getBytes(0, header, header.length);
+            if (!Arrays.equals(Arrays.copyOf(header, magicBytes.length), magicBytes))
+                throw new RuntimeException("Incorrect format (bad magic bytes)");
+            if (header[magicBytes.length] != 0)
+                throw new RuntimeException("Unsupported format " + header[magicBytes.length]);
+            if (header[magicBytes.length + 1] != 0)
+                throw new RuntimeException("Format too new");
+            ByteBuffer params = ByteBuffer.wrap(header, magicBytes.length + 2, 25);
+            tableOffset = params.getLong();
+            tableSlots = params.getLong();
+            snapshotSize = params.getLong();
+            if (tableOffset < HEADER_LENGTH || tableOffset % 8 != 0 || Long.bitCount(tableSlots) != 1
+                    || tableOffset + tableSlots * 8 > length)
+                throw new RuntimeException("Incorrect format (bad table location)");
+        } catch (Exception e) {
+            segments = null;
+            throw new RuntimeException("mapSnapshot() with location " + location, e);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Writing the snapshot
+
+    /**
+     * Write a new snapshot holding our current content to the given file
+     *
+     * Records that haven't been changed are copied from the current snapshot without being
+     * decoded, apart from the key that we need to hash.
+     */
+    protected void writeSnapshot(File file) {
+        try {
+            log.debug("Writing MappedHashStoreMap snapshot to " + file + "...");
+            Timer t = new Timer();
+            t.start();
+            long numRecords = 0;
+            long[] offsets = new long[(int)Math.min(size, Integer.MAX_VALUE - 8)];
+            long[] hashes = new long[offsets.length];
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+            try {
+                out.write(new byte[HEADER_LENGTH]);
+                long position = HEADER_LENGTH;
+
+                // Snapshot records, less those superseded by the delta
+                long offset = HEADER_LENGTH;
+                for (long i = 0; segments != null && i < snapshotSize; i++) {
+                    byte[] record = getRecord(offset);
+                    offset += 4 + record.length;
+                    String key = RTWValueBinaryCodec.readString(new RTWValueBinaryCodec.ByteArrayInput(record, 0));
+                    if (delta.containsKey(key)) continue;
+                    offsets[(int)numRecords] = position;
+                    hashes[(int)numRecords] = hash(key);
+                    numRecords++;
+                    out.writeInt(record.length);
+                    out.write(record);
+                    position += 4 + record.length;
+                }
+
+                // Then the delta's additions and changes
+                ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+                DataOutputStream recordOut = new DataOutputStream(recordBytes);
+                for (Map.Entry<String, RTWListValue> entry : delta.entrySet()) {
+                    if (entry.getValue() == null) continue;
+                    recordBytes.reset();
+                    RTWValueBinaryCodec.writeString(recordOut, entry.getKey());
+                    RTWValueBinaryCodec.writeTagged(recordOut, entry.getValue());
+                    recordOut.flush();
+                    offsets[(int)numRecords] = position;
+                    hashes[(int)numRecords] = hash(entry.getKey());
+                    numRecords++;
+                    out.writeInt(recordBytes.size());
+                    recordBytes.writeTo(out);
+                    position += 4 + recordBytes.size();
+                }
+                if (numRecords != size)
+                    throw new RuntimeException("Wrote " + numRecords + " records, but expected " + size);
+
+                // Table, starting on an 8-byte boundary, at a load factor of at most 1/2
+                while (position % 8 != 0) {
+                    out.writeByte(0);
+                    position++;
+                }
+                if (position > OFFSET_MASK)
+                    throw new RuntimeException("Snapshot too large (" + position + " bytes of records)");
+                long slots = 2;
+                while (slots < numRecords * 2) slots <<= 1;
+                if (slots > Integer.MAX_VALUE - 8)
+                    throw new RuntimeException("Too many records for a snapshot (" + numRecords + ")");
+                long[] table = new long[(int)slots];
+                for (int i = 0; i < numRecords; i++) {
+                    long slot = slotFor(hashes[i], slots);
+                    while (table[(int)slot] != 0) slot = (slot + 1) & (slots - 1);
+                    table[(int)slot] = (tagOf(hashes[i]) << OFFSET_BITS) | offsets[i];
+                }
+                offsets = null;
+                hashes = null;
+                for (long entry : table) out.writeLong(entry);
+
+                out.flush();
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+                    header.put(magicBytes);
+                    header.put((byte)0);
+                    header.put((byte)0);
+                    header.putLong(position);
+                    header.putLong(slots);
+                    header.putLong(numRecords);
+                    raf.write(header.array());
+                } finally {
+                    raf.close();
+                }
+            } finally {
+                out.close();
+            }
+            log.debug("Wrote " + numRecords + " records in " + t.getElapsedSeconds() + "s");
+        } catch (Exception e) {
+            throw new RuntimeException("writeSnapshot(" + file + ")", e);
+        }
+    }
+
+    /**
+     * Merge the delta into a new snapshot at our location, and switch over to it
+     *
+     * The new snapshot is written next to the old one and renamed into place, so that a crash
+     * partway through leaves the old one intact.
+     */
+    protected void save(boolean sync) {
+        try {
+            if (location.equals("/")) return;
+            if (delta.isEmpty() && segments != null) return;
+            File file = new File(location);
+            File tmp = new File(location + ".tmp");
+            writeSnapshot(tmp);
+            if (sync) {
+                FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE);
+                try {
+                    channel.force(true);
+                } finally {
+                    channel.close();
+                }
+            }
+            java.nio.file.Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            delta.clear();
+            mapSnapshot();
+        } catch (Exception e) {
+            throw new RuntimeException("save(" + sync + ") with location " + location, e);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // StoreMap
+
+    @Override public void open(String location, boolean openInReadOnlyMode) {
+        if (getLocation() != null)
+            throw new RuntimeException("StoreMap is already open");
+        this.readOnly = openInReadOnlyMode;
+        this.location = location;
+        delta.clear();
+        if (!location.equals("/")) {
+            try {
+                mapSnapshot();
+            } catch (RuntimeException e) {
+                this.location = null;
+                throw e;
+            }
+        }
+        size = snapshotSize;
+    }
+
+    @Override public void close() {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is already closed");
+        flush(false);
+        location = null;
+        readOnly = false;
+        segments = null;
+        delta.clear();
+        size = 0;
+    }
+
+    @Override public String getLocation() {
+        return location;
+    }
+
+    @Override public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override public void flush(boolean sync) {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        if (!isReadOnly())
+            save(sync);
+    }
+
+    @Override public void copy(String location) {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        writeSnapshot(new File(location));
+    }
+
+    /**
+     * Ask the OS to read the whole snapshot in, which it will do with large sequential reads
+     */
+    @Override public void giveLargeAccessHint() {
+        if (segments == null) return;
+        for (MappedByteBuffer segment : segments)
+            segment.load();
+    }
+
+    @Override public void logStats() {
+        log.info("MappedHashStoreMap " + location + ": " + snapshotSize + " records in snapshot, "
+                + delta.size() + " pending changes, " + size + " keys");
+    }
+
+    @Override public void optimize() {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        if (isReadOnly())
+            throw new RuntimeException("StoreMap is open read-only");
+        save(false);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Map
+
+    @Override public void clear() {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        if (isReadOnly())
+            throw new RuntimeException("StoreMap is open read-only");
+        delta.clear();
+        Iterator<String> it = new SnapshotKeyIterator();
+        while (it.hasNext()) delta.put(it.next(), null);
+        size = 0;
+    }
+
+    @Override public boolean containsKey(Object key) {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        if (!(key instanceof String)) return false;
+        if (delta.containsKey(key)) return delta.get(key) != null;
+        return lookup((String)key, null) >= 0;
+    }
+
+    @Override public boolean containsValue(Object value) {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        for (String key : keySet())
+            if (get(key).equals(value)) return true;
+        return false;
+    }
+
+    @Override public Set<Map.Entry<String, RTWListValue>> entrySet() {
+        // Not needed for StringListStore, and not worth the effort to enforce read-only-ness.
+        throw new RuntimeException("Not implemented");
+    }
+
+    @Override public RTWListValue get(Object key) {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        if (!(key instanceof String)) return null;
+        if (delta.containsKey(key)) return delta.get(key);
+        RTWListValue[] value = new RTWListValue[1];
+        lookup((String)key, value);
+        return value[0];
+    }
+
+    @Override public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override public Set<String> keySet() {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        return new MergedKeySet();
+    }
+
+    @Override public void putAll(Map<? extends String, ? extends RTWListValue> m) {
+        for (Map.Entry<? extends String, ? extends RTWListValue> entry : m.entrySet())
+            put(entry.getKey(), entry.getValue());
+    }
+
+    @Override public int size() {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        return (int)Math.min(size, Integer.MAX_VALUE);
+    }
+
+    @Override public Collection<RTWListValue> values() {
+        // Not needed for StringListStore, and not worth the effort to enforce read-only-ness.
+        throw new RuntimeException("Not implemented");
+    }
+
+    /**
+     * Note that, to save decoding it, this always returns null rather than the previous value,
+     * which StringListStore has no use for.
+     */
+    @Override public RTWListValue put(String key, RTWListValue value) {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        if (isReadOnly())
+            throw new RuntimeException("StoreMap is open read-only");
+        if (value == null)
+            throw new RuntimeException("null values are not allowed");
+        if (!containsKey(key)) size++;
+        delta.put(key, value);
+        return null;
+    }
+
+    /**
+     * As with put, this always returns null rather than decoding the previous value
+     */
+    @Override public RTWListValue remove(Object key) {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        if (isReadOnly())
+            throw new RuntimeException("StoreMap is open read-only");
+        if (!(key instanceof String)) return null;
+        final boolean inSnapshot = lookup((String)key, null) >= 0;
+        if (delta.containsKey(key)) {
+            if (delta.get(key) == null) return null;  // Already removed
+        } else if (!inSnapshot) {
+            return null;
+        }
+
+        // Keys that exist only in the delta can simply be forgotten
+        if (inSnapshot) delta.put((String)key, null);
+        else delta.remove(key);
+        size--;
+        return null;
+    }
+}
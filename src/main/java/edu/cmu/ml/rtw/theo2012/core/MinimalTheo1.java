@@ -2,6 +2,7 @@ package edu.cmu.ml.rtw.theo2012.core;
 
 import java.util.Collection;
 import java.util.ArrayList;
+import java.util.Spliterator;
 
 import edu.cmu.ml.rtw.util.TypeChangingFilter;
 
@@ -756,6 +757,10 @@ public class MinimalTheo1 extends Theo1Base implements Theo1 {
 		return wrapEntity(theo0.get(location));
 	}
 	@Override
+	public Spliterator<String> getPrimitiveEntityNameSpliterator() {
+		return theo0.getPrimitiveEntityNameSpliterator();
+	}
+	@Override
 	public PrimitiveEntity getPrimitiveEntity(String primNameString) {
 		PrimitiveEntity e = (PrimitiveEntity)theo0.getPrimitiveEntity(primNameString);
 		if (e==null) throw new RuntimeException("No such primitive entity "+primNameString);
@@ -0,0 +1,256 @@
+package edu.cmu.ml.rtw.theo2012.core;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable Set whose {@link plus} returns a new set sharing all but O(log N) of its structure with
+ * the old one
+ *
+ * This is a hash array mapped trie: each node covers 5 bits of the (spread) hash code, and holds
+ * a 32-bit bitmap of which of its 32 possible children are present along with a compact array of
+ * just those children, each of which is either an element or a subnode.  Elements whose hash codes
+ * are entirely equal wind up together in a collision node.  Adding an element copies only the
+ * nodes on the path to where it goes.
+ *
+ * The mutators inherited from AbstractSet all throw UnsupportedOperationException, so this needs
+ * no unmodifiableSet wrapper.  equals and hashCode are AbstractSet's, and so agree with HashSet.
+ */
+public class PersistentHashSet<E> extends AbstractSet<E> {
+    protected final static int BITS = 5;
+    protected final static int MASK = (1 << BITS) - 1;
+
+    protected final static PersistentHashSet<Object> EMPTY =
+            new PersistentHashSet<Object>(new BitmapNode(0, new Object[0]), 0);
+
+    /**
+     * A trie node
+     */
+    protected static abstract class Node {
+        /**
+         * Return whether the given element with the given hash lies beneath this node, which is at
+         * the given shift
+         */
+        protected abstract boolean contains(int shift, int hash, Object e);
+
+        /**
+         * Return a node like this one but with the given element with the given hash added, or
+         * this node itself if the element is already present
+         */
+        protected abstract Node plus(int shift, int hash, Object e);
+
+        /**
+         * Return the elements and subnodes held directly in this node
+         */
+        protected abstract Object[] children();
+    }
+
+    /**
+     * Node holding a compact array of elements and subnodes indexed by a bitmap
+     */
+    protected static class BitmapNode extends Node {
+        protected final int bitmap;
+        protected final Object[] array;
+
+        protected BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        @Override protected boolean contains(int shift, int hash, Object e) {
+            final int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0) return false;
+            final Object child = array[Integer.bitCount(bitmap & (bit - 1))];
+            if (child instanceof Node) return ((Node)child).contains(shift + BITS, hash, e);
+            return child.equals(e);
+        }
+
+        @Override protected Node plus(int shift, int hash, Object e) {
+            final int bit = 1 << ((hash >>> shift) & MASK);
+            final int idx = Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) == 0) {
+                Object[] newArray = new Object[array.length + 1];
+                System.arraycopy(array, 0, newArray, 0, idx);
+                newArray[idx] = e;
+                System.arraycopy(array, idx, newArray, idx + 1, array.length - idx);
+                return new BitmapNode(bitmap | bit, newArray);
+            }
+
+            final Object child = array[idx];
+            Object newChild;
+            if (child instanceof Node) {
+                newChild = ((Node)child).plus(shift + BITS, hash, e);
+                if (newChild == child) return this;
+            } else {
+                if (child.equals(e)) return this;
+                newChild = merge(shift + BITS, child, spread(child.hashCode()), e, hash);
+            }
+            Object[] newArray = array.clone();
+            newArray[idx] = newChild;
+            return new BitmapNode(bitmap, newArray);
+        }
+
+        @Override protected Object[] children() {
+            return array;
+        }
+    }
+
+    /**
+     * Node holding elements whose spread hash codes are all the same
+     */
+    protected static class CollisionNode extends Node {
+        protected final int hash;
+        protected final Object[] array;
+
+        protected CollisionNode(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        @Override protected boolean contains(int shift, int hash, Object e) {
+            if (hash != this.hash) return false;
+            for (Object o : array)
+                if (o.equals(e)) return true;
+            return false;
+        }
+
+        @Override protected Node plus(int shift, int hash, Object e) {
+            if (hash != this.hash) {
+                // Push ourself down a level beneath a bitmap node that can hold both
+                return new BitmapNode(1 << ((this.hash >>> shift) & MASK), new Object[]{this})
+                        .plus(shift, hash, e);
+            }
+            if (contains(shift, hash, e)) return this;
+            Object[] newArray = new Object[array.length + 1];
+            System.arraycopy(array, 0, newArray, 0, array.length);
+            newArray[array.length] = e;
+            return new CollisionNode(hash, newArray);
+        }
+
+        @Override protected Object[] children() {
+            return array;
+        }
+    }
+
+    /**
+     * Return a node at the given shift holding the two given distinct elements
+     */
+    protected static Node merge(int shift, Object a, int ha, Object b, int hb) {
+        if (ha == hb || shift >= 32) return new CollisionNode(ha, new Object[]{a, b});
+        final int ia = (ha >>> shift) & MASK;
+        final int ib = (hb >>> shift) & MASK;
+        if (ia == ib)
+            return new BitmapNode(1 << ia, new Object[]{merge(shift + BITS, a, ha, b, hb)});
+        return new BitmapNode((1 << ia) | (1 << ib), (ia < ib) ? new Object[]{a, b} : new Object[]{b, a});
+    }
+
+    /**
+     * Spread the hash code bits about, as HashMap does, since RTWValue hash codes are often not
+     * very random in their low bits
+     */
+    protected static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    protected final Node root;
+    protected final int size;
+
+    protected PersistentHashSet(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Return the empty set
+     */
+    @SuppressWarnings("unchecked")
+    public static <E> PersistentHashSet<E> empty() {
+        return (PersistentHashSet<E>)EMPTY;
+    }
+
+    /**
+     * Return a set holding the elements of the given collection
+     */
+    public static <E> PersistentHashSet<E> from(Collection<? extends E> c) {
+        if (c instanceof PersistentHashSet) {
+            @SuppressWarnings("unchecked") PersistentHashSet<E> s = (PersistentHashSet<E>)c;
+            return s;
+        }
+        PersistentHashSet<E> s = empty();
+        for (E e : c) s = s.plus(e);
+        return s;
+    }
+
+    /**
+     * Return a new set with the given element added, or this set if it is already present
+     */
+    public PersistentHashSet<E> plus(E e) {
+        if (e == null) throw new NullPointerException("null elements are not allowed");
+        Node newRoot = root.plus(0, spread(e.hashCode()), e);
+        if (newRoot == root) return this;
+        return new PersistentHashSet<E>(newRoot, size + 1);
+    }
+
+    @Override public boolean contains(Object o) {
+        if (o == null) return false;
+        return root.contains(0, spread(o.hashCode()), o);
+    }
+
+    @Override public int size() {
+        return size;
+    }
+
+    /**
+     * Depth-first walk of the trie with an explicit stack, which can be no deeper than the 7 levels
+     * that 32 bits of hash allow plus one for a collision node
+     */
+    @Override public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            protected final Object[][] arrays = new Object[10][];
+            protected final int[] positions = new int[10];
+            protected int depth = 0;
+            protected Object next;
+
+            {
+                arrays[0] = root.children();
+                next = advance();
+            }
+
+            protected Object advance() {
+                while (depth >= 0) {
+                    if (positions[depth] >= arrays[depth].length) {
+                        depth--;
+                        continue;
+                    }
+                    Object child = arrays[depth][positions[depth]++];
+                    if (child instanceof Node) {
+                        depth++;
+                        arrays[depth] = ((Node)child).children();
+                        positions[depth] = 0;
+                    } else {
+                        return child;
+                    }
+                }
+                return null;
+            }
+
+            @Override public boolean hasNext() {
+                return next != null;
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override public E next() {
+                if (next == null) throw new NoSuchElementException();
+                Object e = next;
+                next = advance();
+                return (E)e;
+            }
+
+            @Override public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
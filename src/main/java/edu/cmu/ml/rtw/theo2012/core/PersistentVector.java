@@ -0,0 +1,200 @@
+package edu.cmu.ml.rtw.theo2012.core;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * Immutable List whose {@link plus} returns a new list sharing all but O(log N) of its structure
+ * with the old one
+ *
+ * This is the usual 32-way trie with a separate tail: elements live in 32-element leaf arrays
+ * hanging off a tree of 32-way interior arrays, except for the last up-to-32 elements, which live
+ * in the tail.  Appending copies the tail, and, once every 32 appends, the path from the root to
+ * where the full tail gets pushed into the tree.  Indexed access walks down from the root, which
+ * is a handful of array dereferences for any list we're likely to see.
+ *
+ * The mutators inherited from AbstractList all throw UnsupportedOperationException, so this needs
+ * no unmodifiableList wrapper.
+ */
+public class PersistentVector<E> extends AbstractList<E> implements RandomAccess {
+    protected final static int BITS = 5;
+    protected final static int WIDTH = 1 << BITS;
+    protected final static int MASK = WIDTH - 1;
+
+    protected final static PersistentVector<Object> EMPTY =
+            new PersistentVector<Object>(0, BITS, new Object[WIDTH], new Object[0]);
+
+    protected final int size;
+
+    /**
+     * Number of bits to shift an index by to find its slot in root
+     */
+    protected final int shift;
+
+    protected final Object[] root;
+    protected final Object[] tail;
+
+    protected PersistentVector(int size, int shift, Object[] root, Object[] tail) {
+        this.size = size;
+        this.shift = shift;
+        this.root = root;
+        this.tail = tail;
+    }
+
+    /**
+     * Return the empty vector
+     */
+    @SuppressWarnings("unchecked")
+    public static <E> PersistentVector<E> empty() {
+        return (PersistentVector<E>)EMPTY;
+    }
+
+    /**
+     * Return a vector holding the elements of the given collection, in its iteration order
+     *
+     * This builds the trie bottom-up in a single pass rather than going through plus.
+     */
+    public static <E> PersistentVector<E> from(Collection<? extends E> c) {
+        if (c instanceof PersistentVector) {
+            @SuppressWarnings("unchecked") PersistentVector<E> v = (PersistentVector<E>)c;
+            return v;
+        }
+        final Object[] elements = c.toArray();
+        final int size = elements.length;
+        if (size == 0) return empty();
+
+        final int tailOffset = tailOffset(size);
+        Object[] tail = new Object[size - tailOffset];
+        System.arraycopy(elements, tailOffset, tail, 0, tail.length);
+
+        Object[][] nodes = new Object[tailOffset >>> BITS][];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new Object[WIDTH];
+            System.arraycopy(elements, i << BITS, nodes[i], 0, WIDTH);
+        }
+        int shift = BITS;
+        while (nodes.length > WIDTH) {
+            Object[][] parents = new Object[(nodes.length + MASK) >>> BITS][];
+            for (int i = 0; i < parents.length; i++) {
+                parents[i] = new Object[WIDTH];
+                System.arraycopy(nodes, i << BITS, parents[i], 0, Math.min(WIDTH, nodes.length - (i << BITS)));
+            }
+            nodes = parents;
+            shift += BITS;
+        }
+        Object[] root = new Object[WIDTH];
+        System.arraycopy(nodes, 0, root, 0, nodes.length);
+        return new PersistentVector<E>(size, shift, root, tail);
+    }
+
+    /**
+     * Index of the first element held in the tail of a vector of the given size
+     */
+    protected static int tailOffset(int size) {
+        if (size < WIDTH) return 0;
+        return ((size - 1) >>> BITS) << BITS;
+    }
+
+    /**
+     * Return the leaf array holding the element at the given index
+     */
+    protected Object[] arrayFor(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        if (index >= tailOffset(size)) return tail;
+        Object[] node = root;
+        for (int level = shift; level > 0; level -= BITS)
+            node = (Object[])node[(index >>> level) & MASK];
+        return node;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override public E get(int index) {
+        return (E)arrayFor(index)[index & MASK];
+    }
+
+    @Override public int size() {
+        return size;
+    }
+
+    /**
+     * Return a new vector with the given element appended
+     */
+    public PersistentVector<E> plus(E element) {
+        // Room in the tail?
+        if (size - tailOffset(size) < WIDTH) {
+            Object[] newTail = new Object[tail.length + 1];
+            System.arraycopy(tail, 0, newTail, 0, tail.length);
+            newTail[tail.length] = element;
+            return new PersistentVector<E>(size + 1, shift, root, newTail);
+        }
+
+        // Push the full tail into the tree, growing a new root if the tree is full
+        Object[] newRoot;
+        int newShift = shift;
+        if ((size >>> BITS) > (1 << shift)) {
+            newRoot = new Object[WIDTH];
+            newRoot[0] = root;
+            newRoot[1] = newPath(shift, tail);
+            newShift += BITS;
+        } else {
+            newRoot = pushTail(shift, root, tail);
+        }
+        return new PersistentVector<E>(size + 1, newShift, newRoot, new Object[]{element});
+    }
+
+    /**
+     * Return a copy of the given interior node at the given level with the given full tail added
+     * as the rightmost leaf
+     */
+    protected Object[] pushTail(int level, Object[] parent, Object[] tailNode) {
+        final int subidx = ((size - 1) >>> level) & MASK;
+        Object[] ret = parent.clone();
+        if (level == BITS) {
+            ret[subidx] = tailNode;
+        } else {
+            Object[] child = (Object[])parent[subidx];
+            ret[subidx] = (child != null) ? pushTail(level - BITS, child, tailNode)
+                    : newPath(level - BITS, tailNode);
+        }
+        return ret;
+    }
+
+    /**
+     * Return a chain of interior nodes from the given level down to the given leaf
+     */
+    protected static Object[] newPath(int level, Object[] node) {
+        if (level == 0) return node;
+        Object[] ret = new Object[WIDTH];
+        ret[0] = newPath(level - BITS, node);
+        return ret;
+    }
+
+    /**
+     * Walks a leaf array at a time rather than going down from the root for every element
+     */
+    @Override public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            protected int i = 0;
+            protected Object[] array = null;
+
+            @Override public boolean hasNext() {
+                return i < size;
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override public E next() {
+                if (i >= size) throw new NoSuchElementException();
+                if (array == null || (i & MASK) == 0) array = arrayFor(i);
+                return (E)array[i++ & MASK];
+            }
+
+            @Override public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -4,11 +4,12 @@ import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
 
 import edu.cmu.ml.rtw.util.Logger;
 import edu.cmu.ml.rtw.util.LogFactory;
@@ -40,7 +41,12 @@ import edu.cmu.ml.rtw.util.Properties;
  *
  * This class is thread-safe in read-only mode because it has no state of its own that is mutated by
  * read operations, and because it is underpinned by a Theo1 object that has the same property.
- * This class is not thread-safe in read-write mode.
+ * This class is not thread-safe in read-write mode, except that, when underpinned by a
+ * StoreInverselessTheo1 whose Store is in concurrent-writes mode, writers may work concurrently on
+ * beliefs of different entities.  Writing a master slot and its slave inverse are then two separate
+ * Store operations, so a concurrent reader may briefly see one without the other.  Creating,
+ * deleting, or changing the inverse of slots should still be done with no other writers active,
+ * since that reworks slave2Master and master2Slave wholesale.
  *
  * 
  * DESIGNATING SLOTS TO RECEIVE AUTOMATIC INVERSING BEHAVIOR
@@ -1464,7 +1470,7 @@ public class PointerInversingTheo1 extends Theo1Base implements Theo1 {
      * use a value type of MySlot in order to avoid the need to needlessly (re) MySlot objects to
      * use.
      */
-    protected Map<String, MySlot> slave2Master = new HashMap<String, MySlot>();
+    protected Map<String, MySlot> slave2Master = new ConcurrentHashMap<String, MySlot>();
 
     /**
      * Inverse of slave2Master, except that entries for symmetric slots are not present.
@@ -1475,7 +1481,7 @@ public class PointerInversingTheo1 extends Theo1Base implements Theo1 {
      * use a value type of MySlot in order to avoid the need to needlessly (re) MySlot objects to
      * use.
      */
-    protected Map<String, MySlot> master2Slave = new HashMap<String, MySlot>();
+    protected Map<String, MySlot> master2Slave = new ConcurrentHashMap<String, MySlot>();
 
     /**
      * Used by computeS2MRecurse
@@ -2342,6 +2348,10 @@ public class PointerInversingTheo1 extends Theo1Base implements Theo1 {
         }
     }
 
+    @Override public Spliterator<String> getPrimitiveEntityNameSpliterator() {
+        return theo1.getPrimitiveEntityNameSpliterator();
+    }
+
     @Override public MyPrimitiveEntity get(String primitiveEntity) {
         // Primitve entity means no opportunity for use of a slave inverse slot.
         PrimitiveEntity pe1 = theo1.get(primitiveEntity);
@@ -0,0 +1,107 @@
+package edu.cmu.ml.rtw.theo2012.core;
+
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over the primitive entities of a {@link Theo0}, made from a Spliterator over their
+ * names<p>
+ *
+ * This is how {@link Theo0.getPrimitiveEntitySpliterator} turns the names coming up from the
+ * lowest layer into PrimitiveEntity objects of the layer it was called on, splitting wherever the
+ * name Spliterator splits.<p>
+ *
+ * This also houses the fork-join task behind {@link Theo0.forEachEntity}.<p>
+ */
+public class PrimitiveEntitySpliterator implements Spliterator<PrimitiveEntity> {
+    protected final Theo0 theo;
+    protected final Spliterator<String> names;
+
+    public PrimitiveEntitySpliterator(Theo0 theo, Spliterator<String> names) {
+        this.theo = theo;
+        this.names = names;
+    }
+
+    @Override public boolean tryAdvance(final Consumer<? super PrimitiveEntity> action) {
+        return names.tryAdvance(new Consumer<String>() {
+            @Override public void accept(String name) {
+                action.accept(theo.get(name));
+            }
+        });
+    }
+
+    @Override public void forEachRemaining(final Consumer<? super PrimitiveEntity> action) {
+        names.forEachRemaining(new Consumer<String>() {
+            @Override public void accept(String name) {
+                action.accept(theo.get(name));
+            }
+        });
+    }
+
+    @Override public Spliterator<PrimitiveEntity> trySplit() {
+        Spliterator<String> prefix = names.trySplit();
+        if (prefix == null) return null;
+        return new PrimitiveEntitySpliterator(theo, prefix);
+    }
+
+    @Override public long estimateSize() {
+        return names.estimateSize();
+    }
+
+    @Override public int characteristics() {
+        // Entities of different names are different entities, but we make new objects, so no
+        // SORTED
+        return names.characteristics() & (DISTINCT | NONNULL | SIZED | SUBSIZED);
+    }
+
+    /**
+     * Fork-join task that keeps splitting its Spliterator until the pieces are small enough and
+     * then runs the action on each element
+     */
+    protected static class ForEachTask<T> extends RecursiveAction {
+        protected final Spliterator<T> spliterator;
+        protected final Consumer<? super T> action;
+        protected final long threshold;
+
+        protected ForEachTask(Spliterator<T> spliterator, Consumer<? super T> action, long threshold) {
+            this.spliterator = spliterator;
+            this.action = action;
+            this.threshold = threshold;
+        }
+
+        @Override protected void compute() {
+            Spliterator<T> prefix;
+            if (spliterator.estimateSize() > threshold && (prefix = spliterator.trySplit()) != null) {
+                invokeAll(new ForEachTask<T>(prefix, action, threshold),
+                        new ForEachTask<T>(spliterator, action, threshold));
+            } else {
+                spliterator.forEachRemaining(action);
+            }
+        }
+    }
+
+    /**
+     * Apply the given action to every element of the given Spliterator with the given number of
+     * threads (0 or less for one per processor)
+     *
+     * We aim for four pieces per thread so that a slow piece doesn't leave the rest idle.  A
+     * Spliterator that doesn't know its size will report Long.MAX_VALUE and so get split for as
+     * long as it's willing to be.
+     */
+    public static <T> void forEach(Spliterator<T> spliterator, Consumer<? super T> action, int parallelism) {
+        if (parallelism <= 0) parallelism = Runtime.getRuntime().availableProcessors();
+        if (parallelism == 1) {
+            spliterator.forEachRemaining(action);
+            return;
+        }
+        final long threshold = Math.max(1, spliterator.estimateSize() / (4L * parallelism));
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new ForEachTask<T>(spliterator, action, threshold));
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
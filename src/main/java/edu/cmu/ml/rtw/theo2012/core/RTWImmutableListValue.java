@@ -25,7 +25,8 @@ public class RTWImmutableListValue extends RTWArrayListValue implements RTWValue
      */
     protected RTWImmutableListValue(List<RTWValue> v) {
         super();
-        val = Collections.unmodifiableList(v);
+        if (v instanceof PersistentVector) val = v;  // Already immutable
+        else val = Collections.unmodifiableList(v);
     }
 
     /**
@@ -66,17 +67,19 @@ public class RTWImmutableListValue extends RTWArrayListValue implements RTWValue
      *
      * If null is passed for the the list, then the result will be an RTWImmutableListValue of size
      * 1 that contains only the new element.<p>
+     *
+     * 2019-03: The result is backed by a {@link PersistentVector}.  Appending to a list that came
+     * from here shares all but O(log N) of the old list's structure rather than copying the whole
+     * thing, which matters for things like slotlists that StringListStore appends to one element
+     * at a time.  Any other kind of list gets copied into a PersistentVector the first time.<p>
      */
     public static RTWImmutableListValue append(Collection<RTWValue> l, RTWValue newElement) {
-        ArrayList<RTWValue> tmp;
-        if (l != null) {
-            tmp = new ArrayList<RTWValue>(l.size() + 1);
-            tmp.addAll(l);
-        } else {
-            tmp = new ArrayList<RTWValue>(1);
-        }
-        tmp.add(newElement);
-        return new RTWImmutableListValue(tmp);
+        PersistentVector<RTWValue> v;
+        if (l == null) v = PersistentVector.empty();
+        else if (l instanceof RTWImmutableListValue && ((RTWImmutableListValue)l).val instanceof PersistentVector)
+            v = (PersistentVector<RTWValue>)((RTWImmutableListValue)l).val;
+        else v = PersistentVector.from(l);
+        return new RTWImmutableListValue(v.plus(newElement));
     }
 
     /**
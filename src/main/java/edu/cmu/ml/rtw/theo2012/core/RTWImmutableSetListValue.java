@@ -3,7 +3,6 @@ package edu.cmu.ml.rtw.theo2012.core;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
@@ -28,7 +27,8 @@ public class RTWImmutableSetListValue extends RTWSetListValue implements RTWValu
      */
     protected RTWImmutableSetListValue(Set<RTWValue> v) {
         super();
-        val = Collections.unmodifiableSet(v);
+        if (v instanceof PersistentHashSet) val = v;  // Already immutable
+        else val = Collections.unmodifiableSet(v);
     }
 
     /**
@@ -44,7 +44,7 @@ public class RTWImmutableSetListValue extends RTWSetListValue implements RTWValu
      */
     public RTWImmutableSetListValue(RTWBag bag) {
         super();
-        HashSet<RTWValue> tmp = new HashSet<RTWValue>(bag.getNumValues());
+        RTWValueSet tmp = new RTWValueSet(bag.getNumValues());
         for (RTWValue v : bag.iter())
             tmp.add(v);
         val = Collections.unmodifiableSet(tmp);
@@ -59,7 +59,7 @@ public class RTWImmutableSetListValue extends RTWSetListValue implements RTWValu
      */
     public RTWImmutableSetListValue(RTWValue... elements) {
         super();
-        HashSet<RTWValue> tmp = new HashSet<RTWValue>(elements.length);
+        RTWValueSet tmp = new RTWValueSet(elements.length);
         Collections.addAll(tmp, elements);
         val = Collections.unmodifiableSet(tmp);
     }
@@ -69,25 +69,25 @@ public class RTWImmutableSetListValue extends RTWSetListValue implements RTWValu
      *
      * If null is passed for the the list, then the result will be an RTWImmutableSetListValue of size
      * 1 that contains only the new element.<p>
+     *
+     * 2019-03: As with RTWImmutableListValue.append, the result is backed by a {@link
+     * PersistentHashSet} so that appending to a set that came from here costs O(log N) rather than
+     * a copy of the whole set.<p>
      */
     public static RTWImmutableSetListValue append(Collection<RTWValue> l, RTWValue newElement) {
-        HashSet<RTWValue> tmp;
-        if (l != null) {
-            tmp = new HashSet<RTWValue>(l.size() + 1);
-            tmp.addAll(l);
-        } else {
-            tmp = new HashSet<RTWValue>(1);
-        }
-        tmp.add(newElement);
-        return new RTWImmutableSetListValue(tmp);
+        PersistentHashSet<RTWValue> s;
+        if (l == null) s = PersistentHashSet.empty();
+        else if (l instanceof RTWImmutableSetListValue && ((RTWImmutableSetListValue)l).val instanceof PersistentHashSet)
+            s = (PersistentHashSet<RTWValue>)((RTWImmutableSetListValue)l).val;
+        else s = PersistentHashSet.from(l);
+        return new RTWImmutableSetListValue(s.plus(newElement));
     }
 
     /**
      * Return a mutable RTWSetListValue copy of the given collection of RTWValues.
      */
     public static RTWImmutableSetListValue copy(Collection<RTWValue> c) {
-        HashSet<RTWValue> l = new HashSet<RTWValue>(c);
-        return copy(l);
+        return copy(new RTWValueSet(c));
     }
 
     /**
@@ -0,0 +1,214 @@
+package edu.cmu.ml.rtw.theo2012.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Immutable RTWListValue that holds on to its serialized form and decodes elements only as they are
+ * accessed<p>
+ *
+ * Fully materializing every list that comes out of a StoreMap means recursively allocating every
+ * element, even though the bulk of what StringListStore and the layers above it do with a slot is
+ * to ask how many values it has, whether it contains some particular value, or what its first value
+ * is.  This class instead keeps the bytes from the StoreMap along with the offset of each element,
+ * which are found once up front without decoding anything.  size() is then free, get(i) decodes
+ * (and remembers) only element i, and contains / indexOf on an RTWStringValue or RTWIntegerValue
+ * can compare bytes without decoding anything at all.<p>
+ *
+ * The bytes can be in either the binary format of {@link RTWValueBinaryCodec} or the legacy format
+ * of {@link RTWValue.toUTF8}.  These are constructed by RTWValueBinaryCodec.readTagged when asked
+ * for lazy lists.<p>
+ *
+ * Because this is a subclass of {@link RTWImmutableListValue}, all of the code that treats
+ * immutable lists as copy-on-write continues to do the right thing.  Sets are never made lazy
+ * because the whole point of an RTWSetListValue is its hashed lookup.<p>
+ *
+ * Decoded elements are remembered in an AtomicReferenceArray so that concurrent readers of a
+ * read-only KB always see fully-constructed elements.<p>
+ */
+public class RTWLazyListValue extends RTWImmutableListValue implements RTWValue {
+    /**
+     * The List that serves as our val, and which does all of the actual work
+     */
+    protected static class Elements extends AbstractList<RTWValue> implements RandomAccess {
+        protected final byte[] buf;
+        protected final int[] starts;
+        protected final int[] ends;
+        protected final boolean binary;
+        protected volatile AtomicReferenceArray<RTWValue> decoded = null;
+
+        protected Elements(byte[] buf, int[] starts, int[] ends, boolean binary) {
+            this.buf = buf;
+            this.starts = starts;
+            this.ends = ends;
+            this.binary = binary;
+        }
+
+        protected RTWValue decode(int index) {
+            try {
+                if (binary)
+                    return RTWValueBinaryCodec.read(new RTWValueBinaryCodec.ByteArrayInput(buf, starts[index]));
+                else
+                    return RTWValue.fromUTF8(buf, starts[index], ends[index]);
+            } catch (Exception e) {
+                throw new RuntimeException("decode(" + index + ")", e);
+            }
+        }
+
+        @Override public RTWValue get(int index) {
+            if (index < 0 || index >= starts.length)
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + starts.length);
+            AtomicReferenceArray<RTWValue> d = decoded;
+            if (d == null) {
+                d = new AtomicReferenceArray<RTWValue>(starts.length);
+                decoded = d;
+            }
+            RTWValue v = d.get(index);
+            if (v == null) {
+                v = decode(index);
+                d.lazySet(index, v);
+            }
+            return v;
+        }
+
+        @Override public int size() {
+            return starts.length;
+        }
+
+        /**
+         * Return the serialized form of the given object in our format if it's something whose
+         * serialized form is canonical (so that byte equality coincides with equals), or null if
+         * not.
+         *
+         * Only RTWValues qualify.  A raw String or Integer must match nothing, just as it would
+         * in an RTWArrayListValue, so those go the slow way along with everything else.
+         */
+        protected byte[] encodeForComparison(Object o) {
+            try {
+                RTWValue v;
+                if (o instanceof RTWStringValue) v = (RTWStringValue)o;
+                else if (o instanceof RTWIntegerValue) v = (RTWIntegerValue)o;
+                else return null;
+
+                if (v instanceof RTWStringValue) {
+                    // Unpaired surrogates don't survive encoding intact, so byte equality could
+                    // lie about those.
+                    String s = v.asString();
+                    for (int i = 0; i < s.length(); i++)
+                        if (Character.isSurrogate(s.charAt(i))) return null;
+                }
+
+                if (!binary) return v.toUTF8();
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+                RTWValueBinaryCodec.write(new DataOutputStream(bytes), v);
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                throw new RuntimeException("encodeForComparison(" + o + ")", e);
+            }
+        }
+
+        protected boolean bytesEqual(int index, byte[] target) {
+            final int start = starts[index];
+            if (ends[index] - start != target.length) return false;
+            for (int j = 0; j < target.length; j++)
+                if (buf[start + j] != target[j]) return false;
+            return true;
+        }
+
+        @Override public int indexOf(Object o) {
+            byte[] target = encodeForComparison(o);
+            if (target == null) return super.indexOf(o);
+            for (int i = 0; i < starts.length; i++)
+                if (bytesEqual(i, target)) return i;
+            return -1;
+        }
+
+        @Override public int lastIndexOf(Object o) {
+            byte[] target = encodeForComparison(o);
+            if (target == null) return super.lastIndexOf(o);
+            for (int i = starts.length - 1; i >= 0; i--)
+                if (bytesEqual(i, target)) return i;
+            return -1;
+        }
+
+        @Override public boolean contains(Object o) {
+            return indexOf(o) >= 0;
+        }
+    }
+
+    /**
+     * Our val, but without the unmodifiable wrapper
+     */
+    protected final Elements elements;
+
+    protected RTWLazyListValue(Elements elements) {
+        super(elements);
+        this.elements = elements;
+    }
+
+    /**
+     * Construct a list whose elements are each in RTWValueBinaryCodec's binary format, with element
+     * i occupying bytes starts[i] (inclusive) through ends[i] (exclusive) of buf.  In this format,
+     * the elements must be contiguous.
+     *
+     * The caller gives up ownership of all three arrays.
+     */
+    public static RTWLazyListValue fromBinary(byte[] buf, int[] starts, int[] ends) {
+        return new RTWLazyListValue(new Elements(buf, starts, ends, true));
+    }
+
+    /**
+     * Construct a list whose elements are each in the format of {@link RTWValue.toUTF8}, with
+     * element i occupying bytes starts[i] (inclusive) through ends[i] (exclusive) of buf.
+     *
+     * The caller gives up ownership of all three arrays.
+     */
+    public static RTWLazyListValue fromUTF8(byte[] buf, int[] starts, int[] ends) {
+        return new RTWLazyListValue(new Elements(buf, starts, ends, false));
+    }
+
+    /**
+     * Return whether our elements are held in RTWValueBinaryCodec's binary format
+     */
+    public boolean isBinary() {
+        return elements.binary;
+    }
+
+    /**
+     * Write the binary encoding of our elements, back-to-back, without having to decode them
+     *
+     * Only valid if {@link isBinary}.
+     */
+    public void writeBinaryElements(DataOutput out) throws IOException {
+        if (!elements.binary)
+            throw new RuntimeException("Elements are not in binary format");
+        final int n = elements.starts.length;
+        if (n == 0) return;
+        final int start = elements.starts[0];
+        out.write(elements.buf, start, elements.ends[n-1] - start);
+    }
+
+    /**
+     * Return a rough estimate of the heap occupied by this object without decoding anything
+     *
+     * See {@link StringListStoreMapCache.estimateRetainedSize}.
+     */
+    public long estimateRetainedSize() {
+        final int n = elements.starts.length;
+        long size = 16 + 16 + 40 + 16 + elements.buf.length + 2 * (16 + 4L * n);
+        AtomicReferenceArray<RTWValue> d = elements.decoded;
+        if (d != null) {
+            size += 16 + 4L * n;
+            for (int i = 0; i < n; i++) {
+                RTWValue v = d.get(i);
+                if (v != null) size += StringListStoreMapCache.estimateRetainedSize(v);
+            }
+        }
+        return size;
+    }
+}
@@ -3,7 +3,6 @@ package edu.cmu.ml.rtw.theo2012.core;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
@@ -32,6 +31,10 @@ public class RTWSetListValue extends RTWListValue implements RTWValue {
      *
      * This is a Set rather than a HashSet so that our {@link RTWImmutableListValue} subclass can
      * use Collections.unmodifiableSet as a quick immutability solution.<p>
+     *
+     * 2019-03: Sets that we construct ourselves are now {@link RTWValueSet}s, which take a fraction
+     * of the memory of a HashSet for the huge slots that wind up in here, and which iterate in
+     * insertion order.<p>
      */
     protected Set<RTWValue> val;
 
@@ -51,7 +54,7 @@ public class RTWSetListValue extends RTWListValue implements RTWValue {
      */
     public RTWSetListValue() {
         super();
-        val = new HashSet<RTWValue>();
+        val = new RTWValueSet();
     }
     
     /**
@@ -59,7 +62,7 @@ public class RTWSetListValue extends RTWListValue implements RTWValue {
      */
     public RTWSetListValue(int size) {
         super();
-        val = new HashSet<RTWValue>(size);
+        val = new RTWValueSet(size);
     }
 
     /**
@@ -71,7 +74,7 @@ public class RTWSetListValue extends RTWListValue implements RTWValue {
      */
     public RTWSetListValue(RTWValue... elements) {
         super();
-        val = new HashSet<RTWValue>(elements.length);
+        val = new RTWValueSet(elements.length);
         Collections.addAll(val, elements);
     }
 
@@ -112,12 +115,12 @@ public class RTWSetListValue extends RTWListValue implements RTWValue {
      * 1 that contains only the new element.<p>
      */
     public static RTWSetListValue append(Collection<RTWValue> l, RTWValue newElement) {
-        HashSet<RTWValue> tmp;
+        RTWValueSet tmp;
         if (l != null) {
-            tmp = new HashSet<RTWValue>(l.size() + 1);
+            tmp = new RTWValueSet(l.size() + 1);
             tmp.addAll(l);
         } else {
-            tmp = new HashSet<RTWValue>(1);
+            tmp = new RTWValueSet(1);
         }
         tmp.add(newElement);
         return new RTWSetListValue(tmp);
@@ -127,7 +130,7 @@ public class RTWSetListValue extends RTWListValue implements RTWValue {
      * Return a mutable RTWSetListValue copy of the given collection of RTWValues.
      */
     public static RTWSetListValue copy(Collection<RTWValue> l) {
-        return new RTWSetListValue(new HashSet<RTWValue>(l));
+        return new RTWSetListValue(new RTWValueSet(l));
     }
 
     /**
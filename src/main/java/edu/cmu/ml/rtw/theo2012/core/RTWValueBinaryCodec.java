@@ -0,0 +1,589 @@
+package edu.cmu.ml.rtw.theo2012.core;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact binary marshalling of RTWValue objects for on-disk StoreMap values
+ *
+ * {@link RTWValue.toUTF8} was designed to be machine-friendly while staying vaguely human-readable,
+ * and so it renders integers and doubles as decimal text, writes the length of every list element
+ * as ASCII decimal digits, escapes strings with repeated passes of indexOf and substring, and
+ * builds an intermediate byte[] for every value and every list element.  That's a lot of wasted
+ * CPU and disk for the values of a StoreMap, which nobody ever reads by eye.
+ *
+ * This codec instead writes straight into a DataOutput (e.g. MapDB's DataOutput2 or a
+ * DataOutputStream) with no intermediate arrays, and reads straight out of a DataInput.  Each value
+ * is a one-byte type tag followed by:
+ *
+ * STRING: a varint byte length followed by the string in UTF-8, unescaped
+ * INTEGER: a zigzag varint, so that small negative numbers stay small
+ * DOUBLE: the 8 raw bytes of the IEEE 754 representation
+ * TRUE, FALSE, NONE: nothing
+ * LIST, SET: a varint element count followed by the elements
+ * POINTER: a varint count of location elements, each of which is a byte 0 followed by a slot name
+ * (as a varint length and UTF-8) or a byte 1 followed by the value of an element reference
+ *
+ * Varints are little-endian base-128 with the high bit set on all but the last byte, the same as
+ * the length prefixes that {@link MapDBStoreMap} and {@link HashMapStoreMap} have always used.
+ *
+ * In order to live side by side with existing UTF-8 content, a value written with {@link
+ * writeTagged} is prefixed by a zero byte and a format version byte.  Legacy entries always begin
+ * with a length prefix, and the length of a UTF-8 encoded RTWValue is never zero, so {@link
+ * readTagged} can tell the two apart from the first byte and read either one.  This allows a KB to
+ * migrate lazily, one value at a time as values are rewritten.
+ *
+ * 2019-03: {@link readTagged(DataInput, boolean)} can also return lists as {@link
+ * RTWLazyListValue} objects that hang on to their encoded bytes and decode elements only on
+ * demand.
+ */
+public class RTWValueBinaryCodec {
+    /**
+     * First byte of a binary-encoded value as written by {@link writeTagged}
+     */
+    public final static int BINARY_MARKER = 0;
+
+    /**
+     * Version of the binary format that we write, and the newest that we can read
+     */
+    public final static int FORMAT_VERSION = 1;
+
+    protected final static int TAG_STRING = 1;
+    protected final static int TAG_INTEGER = 2;
+    protected final static int TAG_DOUBLE = 3;
+    protected final static int TAG_TRUE = 4;
+    protected final static int TAG_FALSE = 5;
+    protected final static int TAG_NONE = 6;
+    protected final static int TAG_LIST = 7;
+    protected final static int TAG_SET = 8;
+    protected final static int TAG_POINTER = 9;
+
+    protected final static int POINTER_SLOT = 0;
+    protected final static int POINTER_ELEMENT = 1;
+
+    /**
+     * Minimal DataInput over a byte array, used to decode the elements of an RTWLazyListValue in
+     * place
+     *
+     * Only the methods that {@link read} needs do anything useful.
+     */
+    public static class ByteArrayInput implements DataInput {
+        protected final byte[] buf;
+        protected int pos;
+
+        public ByteArrayInput(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        public int getPosition() {
+            return pos;
+        }
+
+        @Override public void readFully(byte[] b) throws IOException {
+            readFully(b, 0, b.length);
+        }
+
+        @Override public void readFully(byte[] b, int off, int len) throws IOException {
+            if (pos + len > buf.length) throw new EOFException();
+            System.arraycopy(buf, pos, b, off, len);
+            pos += len;
+        }
+
+        @Override public int skipBytes(int n) {
+            n = Math.min(n, buf.length - pos);
+            pos += n;
+            return n;
+        }
+
+        @Override public boolean readBoolean() throws IOException {
+            return readUnsignedByte() != 0;
+        }
+
+        @Override public byte readByte() throws IOException {
+            return (byte)readUnsignedByte();
+        }
+
+        @Override public int readUnsignedByte() throws IOException {
+            if (pos >= buf.length) throw new EOFException();
+            return buf[pos++] & 0xFF;
+        }
+
+        @Override public short readShort() throws IOException {
+            return (short)readUnsignedShort();
+        }
+
+        @Override public int readUnsignedShort() throws IOException {
+            return (readUnsignedByte() << 8) | readUnsignedByte();
+        }
+
+        @Override public char readChar() throws IOException {
+            return (char)readUnsignedShort();
+        }
+
+        @Override public int readInt() throws IOException {
+            return (readUnsignedShort() << 16) | readUnsignedShort();
+        }
+
+        @Override public long readLong() throws IOException {
+            return ((long)readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+        }
+
+        @Override public float readFloat() throws IOException {
+            return Float.intBitsToFloat(readInt());
+        }
+
+        @Override public double readDouble() throws IOException {
+            return Double.longBitsToDouble(readLong());
+        }
+
+        /**
+         * Same as DataInputStream.readLine: each byte becomes one char, and the line ends at "\n",
+         * "\r", "\r\n", or the end of the buffer
+         */
+        @Override public String readLine() {
+            if (pos >= buf.length) return null;
+            StringBuilder sb = new StringBuilder();
+            while (pos < buf.length) {
+                int c = buf[pos++] & 0xFF;
+                if (c == '\n') break;
+                if (c == '\r') {
+                    if (pos < buf.length && buf[pos] == '\n') pos++;
+                    break;
+                }
+                sb.append((char)c);
+            }
+            return sb.toString();
+        }
+
+        @Override public String readUTF() throws IOException {
+            return DataInputStream.readUTF(this);
+        }
+    }
+
+    /**
+     * Growable byte array into which {@link copy} transcribes encoded values
+     */
+    protected static class ByteSink {
+        protected byte[] buf;
+        protected int len = 0;
+
+        protected ByteSink(int initialCapacity) {
+            buf = new byte[Math.max(16, initialCapacity)];
+        }
+
+        protected void ensure(int extra) {
+            if (len + extra > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(len + extra, buf.length * 2));
+        }
+
+        protected void add(int b) {
+            ensure(1);
+            buf[len++] = (byte)b;
+        }
+
+        protected void addFrom(DataInput in, int n) throws IOException {
+            ensure(n);
+            in.readFully(buf, len, n);
+            len += n;
+        }
+
+        protected byte[] toByteArray() {
+            return len == buf.length ? buf : Arrays.copyOf(buf, len);
+        }
+    }
+
+    /**
+     * Write a non-negative int as a varint
+     */
+    public static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value = value >>> 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Read a varint as written by {@link writeVarInt}
+     */
+    public static int readVarInt(DataInput in) throws IOException {
+        return readVarInt(in, in.readUnsignedByte());
+    }
+
+    /**
+     * Read a varint whose first byte has already been read
+     */
+    public static int readVarInt(DataInput in, int firstByte) throws IOException {
+        int value = firstByte & 0x7F;
+        int shift = 7;
+        int b = firstByte;
+        while ((b & 0x80) != 0) {
+            if (shift > 28)
+                throw new RuntimeException("Varint overflow.  Improperly formatted length indicator.");
+            b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+
+    /**
+     * Return the number of bytes that the given string takes up in UTF-8
+     *
+     * Unpaired surrogates count as one byte because, like String.getBytes, {@link writeString}
+     * replaces them with '?'.
+     */
+    protected static int utf8Length(String s) {
+        final int len = s.length();
+        int bytes = len;
+        for (int i = 0; i < len; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) continue;
+            else if (c < 0x800) bytes += 1;
+            else if (Character.isHighSurrogate(c) && i + 1 < len
+                    && Character.isLowSurrogate(s.charAt(i+1))) {
+                bytes += 2;  // Four bytes for the pair
+                i++;
+            } else if (Character.isSurrogate(c)) continue;
+            else bytes += 2;
+        }
+        return bytes;
+    }
+
+    /**
+     * Write a string as a varint byte length followed by its UTF-8 encoding
+     */
+    public static void writeString(DataOutput out, String s) throws IOException {
+        writeVarInt(out, utf8Length(s));
+        final int len = s.length();
+        for (int i = 0; i < len; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                out.writeByte(c);
+            } else if (c < 0x800) {
+                out.writeByte(0xC0 | (c >> 6));
+                out.writeByte(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len
+                    && Character.isLowSurrogate(s.charAt(i+1))) {
+                final int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.writeByte(0xF0 | (cp >> 18));
+                out.writeByte(0x80 | ((cp >> 12) & 0x3F));
+                out.writeByte(0x80 | ((cp >> 6) & 0x3F));
+                out.writeByte(0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                out.writeByte('?');
+            } else {
+                out.writeByte(0xE0 | (c >> 12));
+                out.writeByte(0x80 | ((c >> 6) & 0x3F));
+                out.writeByte(0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * Read a string as written by {@link writeString}
+     */
+    public static String readString(DataInput in) throws IOException {
+        final int len = readVarInt(in);
+        final byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write the binary encoding of the given value, without any marker or version
+     */
+    public static void write(DataOutput out, RTWValue v) throws IOException {
+        if (v instanceof RTWStringValue) {
+            out.writeByte(TAG_STRING);
+            writeString(out, v.asString());
+        } else if (v instanceof RTWLazyListValue && ((RTWLazyListValue)v).isBinary()) {
+            // No need to decode elements just to re-encode them
+            final RTWLazyListValue lv = (RTWLazyListValue)v;
+            out.writeByte(TAG_LIST);
+            writeVarInt(out, lv.size());
+            lv.writeBinaryElements(out);
+        } else if (v instanceof RTWListValue) {
+            final RTWListValue lv = (RTWListValue)v;
+            out.writeByte(v instanceof RTWSetListValue ? TAG_SET : TAG_LIST);
+            writeVarInt(out, lv.size());
+            for (RTWValue e : lv) write(out, e);
+        } else if (v instanceof RTWIntegerValue) {
+            final int i = v.asInteger();
+            out.writeByte(TAG_INTEGER);
+            writeVarInt(out, (i << 1) ^ (i >> 31));
+        } else if (v instanceof RTWDoubleValue) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeLong(Double.doubleToLongBits(v.asDouble()));
+        } else if (v instanceof RTWBooleanValue) {
+            out.writeByte(v.asBoolean() ? TAG_TRUE : TAG_FALSE);
+        } else if (v instanceof RTWThisHasNoValue) {
+            out.writeByte(TAG_NONE);
+        } else if (v instanceof Entity) {
+            // See comments in RTWValue.toUTF8 about why this is Entity rather than RTWPointerValue
+            final RTWLocation l = ((Entity)v).getRTWLocation();
+            out.writeByte(TAG_POINTER);
+            writeVarInt(out, l.size());
+            for (int i = 0; i < l.size(); i++) {
+                if (l.isSlot(i)) {
+                    out.writeByte(POINTER_SLOT);
+                    writeString(out, l.getAsSlot(i));
+                } else {
+                    out.writeByte(POINTER_ELEMENT);
+                    write(out, l.getAsElement(i).getVal());
+                }
+            }
+        } else {
+            throw new RuntimeException("Unrecognized RTWValue subclass " + v.getClass().getName());
+        }
+    }
+
+    /**
+     * Read a value as written by {@link write}
+     *
+     * As with {@link RTWValue.fromUTF8}, this only returns immutable RTWValue objects.
+     */
+    public static RTWValue read(DataInput in) throws IOException {
+        return read(in, in.readUnsignedByte());
+    }
+
+    /**
+     * Read a value as written by {@link write} whose type tag has already been read
+     */
+    protected static RTWValue read(DataInput in, int tag) throws IOException {
+        switch (tag) {
+            case TAG_STRING:
+                return new RTWStringValue(readString(in));
+            case TAG_LIST: {
+                final int n = readVarInt(in);
+                final List<RTWValue> list = new ArrayList<RTWValue>(n);
+                for (int i = 0; i < n; i++) list.add(read(in));
+                return RTWImmutableListValue.copy(list);
+            }
+            case TAG_SET: {
+                final int n = readVarInt(in);
+                final RTWValueSet set = new RTWValueSet(n);
+                for (int i = 0; i < n; i++) set.add(read(in));
+                return new RTWImmutableSetListValue(set);  // Nobody else has set, so no need to copy
+            }
+            case TAG_INTEGER: {
+                final int z = readVarInt(in);
+                return new RTWIntegerValue((z >>> 1) ^ -(z & 1));
+            }
+            case TAG_DOUBLE:
+                return new RTWDoubleValue(Double.longBitsToDouble(in.readLong()));
+            case TAG_TRUE:
+                return RTWBooleanValue.TRUE;
+            case TAG_FALSE:
+                return RTWBooleanValue.FALSE;
+            case TAG_NONE:
+                return RTWThisHasNoValue.NONE;
+            case TAG_POINTER: {
+                final int n = readVarInt(in);
+                final Object[] elements = new Object[n];
+                for (int i = 0; i < n; i++) {
+                    final int kind = in.readUnsignedByte();
+                    if (kind == POINTER_SLOT) elements[i] = readString(in);
+                    else if (kind == POINTER_ELEMENT) elements[i] = new RTWElementRef(read(in));
+                    else throw new RuntimeException("Unrecognized pointer element kind " + kind);
+                }
+                // See comments in RTWValue.fromUTF8 regarding AbstractRTWLocation
+                return new RTWPointerValue(new AbstractRTWLocation(elements));
+            }
+            default:
+                throw new RuntimeException("Unrecognized type tag " + tag);
+        }
+    }
+
+    /**
+     * Transcribe a varint from the given input to the given sink, returning its value
+     */
+    protected static int copyVarInt(DataInput in, ByteSink out) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (shift > 28)
+                throw new RuntimeException("Varint overflow.  Improperly formatted length indicator.");
+            b = in.readUnsignedByte();
+            out.add(b);
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Transcribe one encoded value from the given input to the given sink without decoding it
+     */
+    protected static void copy(DataInput in, ByteSink out) throws IOException {
+        final int tag = in.readUnsignedByte();
+        out.add(tag);
+        switch (tag) {
+            case TAG_STRING:
+                out.addFrom(in, copyVarInt(in, out));
+                return;
+            case TAG_INTEGER:
+                copyVarInt(in, out);
+                return;
+            case TAG_DOUBLE:
+                out.addFrom(in, 8);
+                return;
+            case TAG_TRUE:
+            case TAG_FALSE:
+            case TAG_NONE:
+                return;
+            case TAG_LIST:
+            case TAG_SET: {
+                final int n = copyVarInt(in, out);
+                for (int i = 0; i < n; i++) copy(in, out);
+                return;
+            }
+            case TAG_POINTER: {
+                final int n = copyVarInt(in, out);
+                for (int i = 0; i < n; i++) {
+                    final int kind = in.readUnsignedByte();
+                    out.add(kind);
+                    if (kind == POINTER_SLOT) out.addFrom(in, copyVarInt(in, out));
+                    else if (kind == POINTER_ELEMENT) copy(in, out);
+                    else throw new RuntimeException("Unrecognized pointer element kind " + kind);
+                }
+                return;
+            }
+            default:
+                throw new RuntimeException("Unrecognized type tag " + tag);
+        }
+    }
+
+    /**
+     * Read the elements of a binary LIST whose tag and count have already been read, returning
+     * them as an RTWLazyListValue
+     *
+     * This makes one pass over the input to copy out the encoded elements and note where each one
+     * begins, but constructs no RTWValue objects.
+     */
+    protected static RTWLazyListValue readLazyList(DataInput in, int n) throws IOException {
+        final ByteSink sink = new ByteSink(n * 16);
+        final int[] starts = new int[n];
+        final int[] ends = new int[n];
+        for (int i = 0; i < n; i++) {
+            starts[i] = sink.len;
+            copy(in, sink);
+            ends[i] = sink.len;
+        }
+        return RTWLazyListValue.fromBinary(sink.toByteArray(), starts, ends);
+    }
+
+    /**
+     * Index the elements of a legacy UTF-8 list (the 'l' type in {@link RTWValue.toUTF8}) that
+     * occupies all of the given buffer, returning an RTWLazyListValue that uses the buffer in place
+     */
+    protected static RTWLazyListValue indexLazyUTF8List(byte[] buffer) {
+        int count = 0;
+        int[] starts = new int[8];
+        int[] ends = new int[8];
+        int offset = 1;
+        while (offset < buffer.length) {
+            int nextLength = 0;
+            while (true) {
+                final byte b = buffer[offset];
+                if (b < '0' || b > '9') break;
+                nextLength = nextLength * 10 + (int)(b - '0');
+                offset++;
+            }
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            starts[count] = offset;
+            ends[count] = offset + nextLength;
+            count++;
+            offset += nextLength;
+        }
+        if (offset != buffer.length)
+            throw new RuntimeException("List elements overran the end of the buffer");
+        return RTWLazyListValue.fromUTF8(buffer, Arrays.copyOf(starts, count),
+                Arrays.copyOf(ends, count));
+    }
+
+    /**
+     * Write the given value in our binary format, prefixed with the marker and version bytes that
+     * let {@link readTagged} distinguish it from a legacy UTF-8 entry
+     */
+    public static void writeTagged(DataOutput out, RTWValue v) {
+        try {
+            out.writeByte(BINARY_MARKER);
+            out.writeByte(FORMAT_VERSION);
+            write(out, v);
+        } catch (Exception e) {
+            throw new RuntimeException("writeTagged(<out>, " + v + ")", e);
+        }
+    }
+
+    /**
+     * Write the given value the legacy way: a varint length followed by {@link RTWValue.toUTF8}
+     */
+    public static void writeLegacy(DataOutput out, RTWValue v) {
+        try {
+            final byte[] utf8 = v.toUTF8();
+            writeVarInt(out, utf8.length);
+            out.write(utf8);
+        } catch (Exception e) {
+            throw new RuntimeException("writeLegacy(<out>, " + v + ")", e);
+        }
+    }
+
+    /**
+     * Write the given value either with {@link writeTagged} or {@link writeLegacy}
+     */
+    public static void writeTagged(DataOutput out, RTWValue v, boolean binary) {
+        if (binary) writeTagged(out, v);
+        else writeLegacy(out, v);
+    }
+
+    /**
+     * Read a value written by either {@link writeTagged} or {@link writeLegacy}
+     */
+    public static RTWValue readTagged(DataInput in) {
+        return readTagged(in, false);
+    }
+
+    /**
+     * Read a value written by either {@link writeTagged} or {@link writeLegacy}, optionally
+     * returning a list (but not a set) as an {@link RTWLazyListValue}
+     *
+     * Only the outermost list is made lazy; nested lists are decoded normally if and when their
+     * enclosing element is.
+     */
+    public static RTWValue readTagged(DataInput in, boolean lazyLists) {
+        try {
+            final int first = in.readUnsignedByte();
+            if (first == BINARY_MARKER) {
+                final int version = in.readUnsignedByte();
+                if (version != FORMAT_VERSION)
+                    throw new RuntimeException("Unsupported binary RTWValue format version " + version);
+                final int tag = in.readUnsignedByte();
+                if (lazyLists && tag == TAG_LIST)
+                    return readLazyList(in, readVarInt(in));
+                return read(in, tag);
+            }
+
+            final int len = readVarInt(in, first);
+            final byte[] buffer = new byte[len];
+            in.readFully(buffer);
+            if (lazyLists && len > 0 && buffer[0] == 'l')
+                return indexLazyUTF8List(buffer);
+            return RTWValue.fromUTF8(buffer, 0, len);
+        } catch (Exception e) {
+            throw new RuntimeException("readTagged(<in>, " + lazyLists + ")", e);
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package edu.cmu.ml.rtw.theo2012.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Compact Set of RTWValues meant to back {@link RTWSetListValue} for very large slots
+ *
+ * A HashSet<RTWValue> of strings costs a HashMap node, an RTWStringValue, a String, and the
+ * String's array per value, which comes to something like 100 bytes of overhead per value before
+ * we get to the characters themselves.  Here, values are kept in insertion order in a few
+ * parallel arrays of entries, with each RTWStringValue held as a slice of UTF-8 in a shared byte
+ * array along with the hash code of its String, and any other kind of RTWValue held as-is.  The
+ * entries are found through an open-addressing table of entry numbers, probed linearly.  That
+ * brings the overhead down to around 20 bytes per string value, and the garbage collector sees a
+ * handful of arrays rather than a few objects per value.  RTWStringValue objects are materialized
+ * as they are iterated over.
+ *
+ * Removing a value leaves a dead entry and dead bytes behind.  Once more than half of the entries
+ * are dead, everything is copied into fresh arrays.  The table itself uses backward-shift deletion
+ * and so has no tombstones.
+ *
+ * Iteration is in insertion order, and iterators work from a snapshot of the arrays taken when
+ * they are created: values added afterward are not seen, values removed afterward may or may not
+ * be, and there is never a ConcurrentModificationException.  So it is fine to modify the set while
+ * iterating over it.  Iterator.remove is supported.
+ *
+ * Like HashSet, this is not threadsafe for modification.
+ */
+public class RTWValueSet extends AbstractSet<RTWValue> {
+    /**
+     * Slice value marking an entry holding a non-string value in objects
+     */
+    protected final static long OBJECT = -2L;
+
+    /**
+     * Slice value marking a removed entry
+     */
+    protected final static long DELETED = -1L;
+
+    /**
+     * Number of bits of a slice given to the length of the string
+     *
+     * Strings whose UTF-8 is longer than this allows are simply held as objects.
+     */
+    protected final static int LENGTH_BITS = 24;
+
+    protected final static long LENGTH_MASK = (1L << LENGTH_BITS) - 1;
+
+    /**
+     * The table, holding entry number plus one, or 0 for an empty slot; always a power of two long
+     */
+    protected int[] table;
+
+    /**
+     * Hash code of each entry's value (that of the String for RTWStringValues)
+     */
+    protected int[] hashes;
+
+    /**
+     * For each entry, the offset (in the high bits) and length (in the low LENGTH_BITS bits) of
+     * its UTF-8 in bytes, or OBJECT, or DELETED
+     */
+    protected long[] slices;
+
+    /**
+     * Each entry's value if it is held as an object; null until there is first one of those
+     */
+    protected RTWValue[] objects;
+
+    /**
+     * UTF-8 of all string entries, back-to-back
+     */
+    protected byte[] bytes;
+
+    /**
+     * Number of bytes in use in bytes
+     */
+    protected int bytesUsed;
+
+    /**
+     * Number of entries in use, including removed ones
+     */
+    protected int count;
+
+    /**
+     * Number of removed entries
+     */
+    protected int removed;
+
+    /**
+     * Number of values in the set
+     */
+    protected int size;
+
+    public RTWValueSet() {
+        this(8);
+    }
+
+    /**
+     * Construct an empty set with space allocated for the given number of values
+     */
+    public RTWValueSet(int expectedSize) {
+        reset(expectedSize);
+    }
+
+    /**
+     * Construct a set containing the values of the given collection
+     */
+    public RTWValueSet(Collection<? extends RTWValue> c) {
+        this(c.size());
+        addAll(c);
+    }
+
+    protected void reset(int expectedSize) {
+        expectedSize = Math.max(expectedSize, 4);
+        int slots = 8;
+        while (slots < expectedSize * 2) slots <<= 1;
+        table = new int[slots];
+        hashes = new int[expectedSize];
+        slices = new long[expectedSize];
+        objects = null;
+        bytes = new byte[expectedSize * 16];
+        bytesUsed = 0;
+        count = 0;
+        removed = 0;
+        size = 0;
+    }
+
+    /**
+     * Hash code that we use for the given value
+     */
+    protected static int hashOf(Object o) {
+        if (o instanceof RTWStringValue) return ((RTWStringValue)o).asString().hashCode();
+        return o.hashCode();
+    }
+
+    /**
+     * Return the table slot at which to start looking for the given hash code
+     */
+    protected int homeOf(int hash) {
+        final int h = hash * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (table.length - 1);
+    }
+
+    /**
+     * Return whether the UTF-8 in the given slice is the given String
+     *
+     * This compares ASCII directly and only encodes the String if it has to.
+     */
+    protected boolean sliceEquals(byte[] bytes, long slice, String s) {
+        final int offset = (int)(slice >>> LENGTH_BITS);
+        final int length = (int)(slice & LENGTH_MASK);
+        final int n = s.length();
+        if (n > length) return false;
+        int j = 0;
+        for (int i = 0; i < n; i++) {
+            final char c = s.charAt(i);
+            if (c >= 0x80) {
+                byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+                if (utf8.length != length) return false;
+                for (int k = 0; k < length; k++)
+                    if (bytes[offset + k] != utf8[k]) return false;
+                return true;
+            }
+            if (bytes[offset + j++] != c) return false;
+        }
+        return j == length;
+    }
+
+    /**
+     * Return whether entry e holds the given value, whose hash code is given, and which is given as
+     * s if it is an RTWStringValue
+     */
+    protected boolean entryEquals(int e, int hash, Object o, String s) {
+        if (hashes[e] != hash) return false;
+        final long slice = slices[e];
+        if (slice == OBJECT) return objects[e].equals(o);
+        if (slice == DELETED || s == null) return false;
+        return sliceEquals(bytes, slice, s);
+    }
+
+    /**
+     * Return the table slot holding the given value, or, if there is none, -1 minus the empty
+     * slot where it would go
+     */
+    protected int find(Object o, int hash) {
+        final String s = (o instanceof RTWStringValue) ? ((RTWStringValue)o).asString() : null;
+        final int mask = table.length - 1;
+        int i = homeOf(hash);
+        while (true) {
+            final int entry = table[i];
+            if (entry == 0) return -1 - i;
+            if (entryEquals(entry - 1, hash, o, s)) return i;
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Return the value held in entry e of the given arrays
+     */
+    protected static RTWValue valueOf(int e, long[] slices, RTWValue[] objects, byte[] bytes) {
+        final long slice = slices[e];
+        if (slice == OBJECT) return objects[e];
+        return new RTWStringValue(new String(bytes, (int)(slice >>> LENGTH_BITS), (int)(slice & LENGTH_MASK),
+                        StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Return whether the given String would come back the same from a round trip through UTF-8,
+     * which is to say that it has no unpaired surrogates
+     */
+    protected static boolean isWellFormed(String s) {
+        final int n = s.length();
+        for (int i = 0; i < n; i++) {
+            final char c = s.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i+1))) i++;
+            else if (Character.isSurrogate(c)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Rebuild the table with the given number of slots
+     */
+    protected void rehash(int slots) {
+        table = new int[slots];
+        final int mask = slots - 1;
+        for (int e = 0; e < count; e++) {
+            if (slices[e] == DELETED) continue;
+            int i = homeOf(hashes[e]);
+            while (table[i] != 0) i = (i + 1) & mask;
+            table[i] = e + 1;
+        }
+    }
+
+    /**
+     * Copy the live entries into fresh arrays, dropping the dead ones
+     *
+     * The arrays are fresh so that iterators working from the old ones are not disturbed.
+     */
+    protected void compact() {
+        final long[] oldSlices = slices;
+        final int[] oldHashes = hashes;
+        final RTWValue[] oldObjects = objects;
+        final byte[] oldBytes = bytes;
+        final int oldCount = count;
+        final int liveBytes = bytesUsed;  // Upper bound
+        hashes = new int[Math.max(size, 4)];
+        slices = new long[hashes.length];
+        objects = (oldObjects == null) ? null : new RTWValue[hashes.length];
+        bytes = new byte[Math.max(16, liveBytes)];
+        bytesUsed = 0;
+        count = 0;
+        removed = 0;
+        for (int e = 0; e < oldCount; e++) {
+            final long slice = oldSlices[e];
+            if (slice == DELETED) continue;
+            hashes[count] = oldHashes[e];
+            if (slice == OBJECT) {
+                slices[count] = OBJECT;
+                objects[count] = oldObjects[e];
+            } else {
+                final int length = (int)(slice & LENGTH_MASK);
+                System.arraycopy(oldBytes, (int)(slice >>> LENGTH_BITS), bytes, bytesUsed, length);
+                slices[count] = ((long)bytesUsed << LENGTH_BITS) | length;
+                bytesUsed += length;
+            }
+            count++;
+        }
+        rehash(table.length);
+    }
+
+    @Override public boolean add(RTWValue o) {
+        if (o == null) throw new NullPointerException("null elements are not allowed");
+        final int hash = hashOf(o);
+        int i = find(o, hash);
+        if (i >= 0) return false;
+        i = -1 - i;
+
+        if (count == hashes.length) {
+            final int capacity = count + (count >> 1) + 1;
+            hashes = Arrays.copyOf(hashes, capacity);
+            slices = Arrays.copyOf(slices, capacity);
+            if (objects != null) objects = Arrays.copyOf(objects, capacity);
+        }
+
+        long slice = OBJECT;
+        if (o instanceof RTWStringValue) {
+            final String s = ((RTWStringValue)o).asString();
+            if (isWellFormed(s)) {
+                final byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+                if (utf8.length <= LENGTH_MASK && (long)bytesUsed + utf8.length < Integer.MAX_VALUE - 8) {
+                    if (bytesUsed + utf8.length > bytes.length) {
+                        long capacity = Math.max((long)bytes.length * 2, (long)bytesUsed + utf8.length);
+                        bytes = Arrays.copyOf(bytes, (int)Math.min(capacity, Integer.MAX_VALUE - 8));
+                    }
+                    System.arraycopy(utf8, 0, bytes, bytesUsed, utf8.length);
+                    slice = ((long)bytesUsed << LENGTH_BITS) | utf8.length;
+                    bytesUsed += utf8.length;
+                }
+            }
+        }
+        if (slice == OBJECT) {
+            if (objects == null) objects = new RTWValue[hashes.length];
+            objects[count] = o;
+        }
+        hashes[count] = hash;
+        slices[count] = slice;
+        table[i] = ++count;
+        size++;
+        if (size * 2 > table.length) rehash(table.length * 2);
+        return true;
+    }
+
+    @Override public boolean contains(Object o) {
+        if (o == null) return false;
+        return find(o, hashOf(o)) >= 0;
+    }
+
+    @Override public boolean remove(Object o) {
+        if (o == null) return false;
+        int i = find(o, hashOf(o));
+        if (i < 0) return false;
+        final int e = table[i] - 1;
+        slices[e] = DELETED;
+        if (objects != null) objects[e] = null;
+        removed++;
+        size--;
+
+        // Backward-shift deletion: move later slots in the probe sequence back to fill the hole
+        // unless their home lies cyclically in (hole, j]
+        final int mask = table.length - 1;
+        int hole = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            final int entry = table[j];
+            if (entry == 0) break;
+            final int home = homeOf(hashes[entry - 1]);
+            if (hole <= j ? (home <= hole || home > j) : (home <= hole && home > j)) {
+                table[hole] = entry;
+                hole = j;
+            }
+        }
+        table[hole] = 0;
+
+        if (removed > 16 && removed * 2 > count) compact();
+        return true;
+    }
+
+    @Override public void clear() {
+        reset(4);
+    }
+
+    @Override public int size() {
+        return size;
+    }
+
+    @Override public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override public Iterator<RTWValue> iterator() {
+        return new Iterator<RTWValue>() {
+            protected final long[] snapshotSlices = slices;
+            protected final RTWValue[] snapshotObjects = objects;
+            protected final byte[] snapshotBytes = bytes;
+            protected final int snapshotCount = count;
+            protected int e = 0;
+            protected RTWValue last = null;
+
+            // Skip dead entries lazily, since entries can die after we've looked at them
+            @Override public boolean hasNext() {
+                while (e < snapshotCount && snapshotSlices[e] == DELETED) e++;
+                return e < snapshotCount;
+            }
+
+            @Override public RTWValue next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                last = valueOf(e++, snapshotSlices, snapshotObjects, snapshotBytes);
+                return last;
+            }
+
+            @Override public void remove() {
+                if (last == null) throw new IllegalStateException();
+                RTWValueSet.this.remove(last);
+                last = null;
+            }
+        };
+    }
+}
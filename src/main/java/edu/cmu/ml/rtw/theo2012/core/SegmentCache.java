@@ -0,0 +1,122 @@
+package edu.cmu.ml.rtw.theo2012.core;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The storage and replacement policy behind one segment of a {@link StringListStoreMapCache}
+ *
+ * This exists so that StringListStoreMapCache can be run with different replacement policies
+ * without having to know anything about them.  It captures the same operations that
+ * StringListStoreMapCache has always used from FasterLRUCache, which is what {@link
+ * FasterLRUSegmentCache} wraps.
+ *
+ * Entries are either clean or dirty.  A dirty entry is one that has not yet been written to the
+ * underlying storage mechanism.  When an insertion forces a dirty entry out of the cache, it gets
+ * reported back to the caller so that it may be written out.  Clean entries are simply dropped.
+ *
+ * Implementations need not be threadsafe because StringListStoreMapCache holds a segment's write
+ * lock for everything except {@link get}.  But get may be invoked concurrently by multiple threads
+ * holding the segment's read lock, and so any implementation whose get alters internal state (as
+ * any interesting replacement policy will) must take care of its own synchronization there.
+ */
+public interface SegmentCache<K, V> {
+    /**
+     * Holder through which {@link put} reports the dirty entries that it evicted
+     *
+     * A count-based cache evicts at most one entry per insertion, but a weighted one may have to
+     * evict several to make room for one heavy entry.
+     */
+    public static class Evicted<K, V> {
+        protected List<Map.Entry<K, V>> entries = null;
+
+        public void add(K key, V value) {
+            if (entries == null) entries = new ArrayList<Map.Entry<K, V>>(1);
+            entries.add(new AbstractMap.SimpleImmutableEntry<K, V>(key, value));
+        }
+
+        public boolean isEmpty() {
+            return entries == null;
+        }
+
+        /**
+         * Returns the evicted entries in order of eviction; not valid to call if {@link isEmpty}
+         */
+        public List<Map.Entry<K, V>> getEntries() {
+            return entries;
+        }
+    }
+
+    /**
+     * Estimates the weight of a cache entry for caches whose capacity is expressed in something
+     * other than the number of entries (e.g. bytes)
+     */
+    public static interface Weigher<K, V> {
+        public long weigh(K key, V value);
+    }
+
+    /**
+     * Return the cached value for the given key, or null if it is not cached
+     */
+    public V get(K key);
+
+    /**
+     * Return whether {@link getEquivalent} may be used
+     */
+    default public boolean acceptsEquivalentKeys() {
+        return false;
+    }
+
+    /**
+     * Version of {@link get} that takes a stand-in for a key, or null if it is not cached
+     *
+     * The stand-in must hash the same as the K it stands for and be equal to it, in the way that a
+     * {@link StoreMapKey} is to a String.  This saves the caller from having to make a K just to do
+     * a lookup.  It is only valid to call this if {@link acceptsEquivalentKeys} returns true.
+     */
+    default public V getEquivalent(Object key) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Cache the given value for the given key, returning the value that was previously cached for
+     * that key, if any.
+     *
+     * Setting dirty will mark the entry dirty.  Setting it false will not clean an entry that was
+     * already dirty.
+     *
+     * Any dirty entries evicted as a result will be added to evicted.
+     */
+    public V put(K key, V value, boolean dirty, Evicted<K, V> evicted);
+
+    /**
+     * Remove all entries, dirty or not
+     */
+    public void clear();
+
+    /**
+     * Return an iterator over all dirty entries that leaves them dirty
+     */
+    public Iterator<Map.Entry<K, V>> dirtyIterator();
+
+    /**
+     * Return an iterator over all dirty entries that marks each one clean as it is returned
+     */
+    public Iterator<Map.Entry<K, V>> cleaningDirtyIterator();
+
+    /**
+     * Return the total weight of the entries in the cache, or -1 if the implementation doesn't
+     * keep track of it
+     *
+     * For an unweighted cache, this is the number of entries.
+     */
+    public long getWeightedSize();
+
+    /**
+     * Return a human-readable description of the cache's state and statistics
+     */
+    public String logStats();
+}
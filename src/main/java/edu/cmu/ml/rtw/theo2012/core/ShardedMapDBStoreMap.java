@@ -0,0 +1,580 @@
+package edu.cmu.ml.rtw.theo2012.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.cmu.ml.rtw.util.Logger;
+import edu.cmu.ml.rtw.util.LogFactory;
+import edu.cmu.ml.rtw.util.Properties;
+
+/**
+ * {@link StoreMap} implementation that federates a number of {@link MapDBStoreMap} shards
+ *
+ * MapDB's javadoc says that HTreeMap performance degrades past about a billion records, which is
+ * right about the size of the ongoing NELL KB.  So this hashes keys across N independent MapDB
+ * files, each with its own HTreeMap, commit, locking, and cache.  Each shard is nothing more than a
+ * MapDBStoreMap living in its own subdirectory of the KB directory, which means that all of the
+ * caching and immutability business in MapDBStoreMap carries over as-is.  Since each shard has its
+ * own cache, the configured cache size (whether mapCacheSize or mapCacheBytes) is divided among the
+ * shards.  So is the number of cache segments (mapCacheSegments), except that no shard gets fewer
+ * segments than an unsharded MapDBStoreMap would by default, lest each shard's cache wind up
+ * behind a single lock.
+ *
+ * The number of shards is fixed when the KB is created, and is recorded in a small properties file
+ * named ShardedMapDBStoreMap in the KB directory.  That file also serves to identify the directory
+ * as a ShardedMapDBStoreMap.  New KBs get the number of shards given by the mapShards property,
+ * defaulting to 16, which ought to be good for several billion records.
+ *
+ * Operations that touch every shard, like flush, optimize, copy, open, and close, are run in
+ * parallel across the shards using up to mapShardThreads threads (defaulting to the number of
+ * processors).  A flush therefore commits each shard separately, and there is no atomicity across
+ * shards, which is no worse than what we get with a single MapDB file in the face of a crash
+ * partway through a flush.
+ */
+public class ShardedMapDBStoreMap implements StringListStoreMap {
+    private final static Logger log = LogFactory.getLogger();
+
+    /**
+     * Name of the file in the KB directory that records the shard count
+     */
+    protected final static String METADATA_FILENAME = "ShardedMapDBStoreMap";
+
+    /**
+     * MapDBStoreMap's default number of cache segments, which is also the least number of segments
+     * we give each shard's cache unless mapCacheSegments is set lower than that
+     */
+    protected final static int DEFAULT_CACHE_SEGMENTS = 16;
+
+    /**
+     * Format version recorded in the metadata file
+     */
+    protected final static int FORMAT_VERSION = 0;
+
+    /**
+     * Something to do to each shard, for {@link forAllShards}
+     */
+    protected interface ShardOperation {
+        public void run(int shardNum, MapDBStoreMap shard) throws Exception;
+    }
+
+    /**
+     * Set view of all keys in all shards
+     *
+     * Each shard's key set is obtained up front, which, as with {@link MapDBStoreMap.keySet},
+     * entails committing that shard's dirty cache entries.
+     */
+    protected class ShardedKeySet extends AbstractSet<String> {
+        protected final List<Set<String>> sets;
+
+        protected ShardedKeySet() {
+            sets = new ArrayList<Set<String>>(shards.length);
+            for (MapDBStoreMap shard : shards) sets.add(shard.keySet());
+        }
+
+        @Override public Iterator<String> iterator() {
+            return new Iterator<String>() {
+                protected int setNum = 0;
+                protected Iterator<String> it = sets.get(0).iterator();
+
+                @Override public boolean hasNext() {
+                    while (!it.hasNext()) {
+                        setNum++;
+                        if (setNum >= sets.size()) return false;
+                        it = sets.get(setNum).iterator();
+                    }
+                    return true;
+                }
+
+                @Override public String next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    return it.next();
+                }
+
+                @Override public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override public int size() {
+            long total = 0;
+            for (Set<String> s : sets) total += s.size();
+            return (int)Math.min(total, Integer.MAX_VALUE);
+        }
+
+        @Override public boolean contains(Object o) {
+            if (!(o instanceof String)) return false;
+            return sets.get(shardFor((String)o)).contains(o);
+        }
+    }
+
+    protected boolean readOnly;
+    protected String location = null;
+
+    /**
+     * Our shards, or null when we are not open
+     */
+    protected MapDBStoreMap[] shards = null;
+
+    // Parameter values for new shards
+    protected int newShardCount;
+    protected int threads;
+    protected int cacheSize;
+    protected int cacheSegments;
+    protected long cacheBytes;
+    protected boolean forceAlwaysDirty;
+
+    /**
+     * Constructor
+     */
+    public ShardedMapDBStoreMap() {
+        Properties properties = TheoFactory.getProperties();
+        newShardCount = properties.getPropertyIntegerValue("mapShards", 16);
+        threads = properties.getPropertyIntegerValue("mapShardThreads",
+                Runtime.getRuntime().availableProcessors());
+
+        // Same properties and defaults that MapDBStoreMap uses, but to be split among the shards
+        cacheSize = properties.getPropertyIntegerValue("mapCacheSize", 100000);
+        cacheSegments = properties.getPropertyIntegerValue("mapCacheSegments", DEFAULT_CACHE_SEGMENTS);
+        cacheBytes = StringListStoreMapCache.parseByteSize(properties.getProperty("mapCacheBytes", "0"));
+
+        forceAlwaysDirty = true;
+    }
+
+    /**
+     * Return the shard number responsible for the given key
+     *
+     * This deliberately uses a different mixing of the hash code than {@link
+     * StringListStoreMapCache.segmentFor} does so that the keys within any one shard still spread
+     * out evenly across that shard's cache segments.
+     */
+    protected int shardFor(CharSequence key) {
+        int h = key.hashCode();
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % shards.length;
+    }
+
+    /**
+     * Return the number of cache segments to give each of the given number of shards
+     */
+    protected int segmentsPerShard(int count) {
+        return Math.max(1, Math.max(cacheSegments / count, Math.min(cacheSegments, DEFAULT_CACHE_SEGMENTS)));
+    }
+
+    /**
+     * Size the cache of the given shard, being one of the given number of shards, to its share of
+     * our byte budget if we have one, or else of our entry count
+     */
+    protected void sizeShardCache(MapDBStoreMap shard, int count) {
+        if (cacheBytes > 0) shard.setCacheBytes(Math.max(1, cacheBytes / count));
+        else shard.setCacheSize(cacheSize > 0 ? Math.max(1, cacheSize / count) : 0);
+    }
+
+    protected MapDBStoreMap shardOf(Object key) {
+        return shards[shardFor((CharSequence)key)];
+    }
+
+    protected static String shardLocation(String location, int shardNum) {
+        return location + "/" + String.format("shard%03d", shardNum);
+    }
+
+    /**
+     * Run the given operation on every shard in parallel, returning once all have completed
+     *
+     * If any of them throw an exception, then the first one (in shard order) gets rethrown, wrapped
+     * in a RuntimeException naming the given description.
+     */
+    protected void forAllShards(String description, final ShardOperation op) {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, shards.length)));
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>(shards.length);
+            for (int i = 0; i < shards.length; i++) {
+                final int shardNum = i;
+                final MapDBStoreMap shard = shards[i];
+                futures.add(pool.submit(new Callable<Object>() {
+                            @Override public Object call() throws Exception {
+                                op.run(shardNum, shard);
+                                return null;
+                            }
+                        }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(description + " on shard " + i, e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(description, e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Read the shard count out of the metadata file in the given KB directory
+     */
+    protected static int readShardCount(File metadataFile) {
+        try {
+            java.util.Properties metadata = new java.util.Properties();
+            InputStream in = new FileInputStream(metadataFile);
+            try {
+                metadata.load(in);
+            } finally {
+                in.close();
+            }
+            int version = Integer.parseInt(metadata.getProperty("version", "-1"));
+            if (version != FORMAT_VERSION)
+                throw new RuntimeException("Unsupported ShardedMapDBStoreMap format version " + version);
+            int count = Integer.parseInt(metadata.getProperty("shards"));
+            if (count < 1)
+                throw new RuntimeException("Invalid shard count " + count);
+            return count;
+        } catch (Exception e) {
+            throw new RuntimeException("readShardCount(" + metadataFile + ")", e);
+        }
+    }
+
+    /**
+     * Write a metadata file recording the given shard count
+     */
+    protected static void writeShardCount(File metadataFile, int count) {
+        try {
+            java.util.Properties metadata = new java.util.Properties();
+            metadata.setProperty("version", Integer.toString(FORMAT_VERSION));
+            metadata.setProperty("shards", Integer.toString(count));
+            OutputStream out = new FileOutputStream(metadataFile);
+            try {
+                metadata.store(out, "ShardedMapDBStoreMap");
+            } finally {
+                out.close();
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("writeShardCount(" + metadataFile + ", " + count + ")", e);
+        }
+    }
+
+    @Override public void open(String location, boolean openInReadOnlyMode) {
+        try {
+            if (getLocation() != null)
+                throw new RuntimeException("StoreMap is already open");
+
+            File dir = new File(location);
+            File metadataFile = new File(location + "/" + METADATA_FILENAME);
+            int count;
+            if (metadataFile.exists()) {
+                count = readShardCount(metadataFile);
+            } else {
+                if (dir.exists() && !dir.isDirectory())
+                    throw new RuntimeException("Existing KB at \"" + location
+                            + "\" is not in sharded MapDB format");
+                if (new File(location + "/MapDBStoreMap").exists()
+                        || new File(location + "/" + MapDBBTreeStoreMap.MAP_NAME).exists())
+                    throw new RuntimeException("Existing KB at \"" + location
+                            + "\" is an unsharded MapDB KB");
+                if (openInReadOnlyMode)
+                    throw new RuntimeException("No KB exists at \"" + location
+                            + "\" and we can't create one in read-only mode");
+                dir.mkdirs();
+                count = newShardCount;
+                writeShardCount(metadataFile, count);
+            }
+
+            shards = new MapDBStoreMap[count];
+            for (int i = 0; i < count; i++) {
+                MapDBStoreMap shard = new MapDBStoreMap();
+                shard.setCacheSegments(segmentsPerShard(count));
+                sizeShardCache(shard, count);
+                shard.setForceAlwaysDirty(forceAlwaysDirty);
+                shards[i] = shard;
+            }
+
+            final String loc = location;
+            final boolean ro = openInReadOnlyMode;
+            forAllShards("open", new ShardOperation() {
+                    @Override public void run(int shardNum, MapDBStoreMap shard) {
+                        shard.open(shardLocation(loc, shardNum), ro);
+                    }
+                });
+
+            this.readOnly = openInReadOnlyMode;
+            this.location = location;
+        } catch (Exception e) {
+            shards = null;
+            throw new RuntimeException("open(\"" + location + "\", " + openInReadOnlyMode + ")", e);
+        }
+    }
+
+    @Override public void close() {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is already closed");
+        forAllShards("close", new ShardOperation() {
+                @Override public void run(int shardNum, MapDBStoreMap shard) {
+                    shard.close();
+                }
+            });
+
+        // See comments in MapDBStoreMap.close
+        File f = new File(location);
+        f.setLastModified(System.currentTimeMillis());
+
+        location = null;
+        shards = null;
+        readOnly = false;
+    }
+
+    @Override public String getLocation() {
+        return location;
+    }
+
+    @Override public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override public void flush(final boolean sync) {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        if (!readOnly) log.info("Flushing " + shards.length + " MapDB shards...");
+        forAllShards("flush", new ShardOperation() {
+                @Override public void run(int shardNum, MapDBStoreMap shard) {
+                    shard.flush(sync);
+                }
+            });
+        if (!readOnly) log.info("Done flushing.");
+    }
+
+    @Override public synchronized void copy(final String newLocation) {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        File dir = new File(newLocation);
+        if (dir.exists() && !dir.isDirectory()) dir.delete();
+        dir.mkdirs();
+        writeShardCount(new File(newLocation + "/" + METADATA_FILENAME), shards.length);
+        forAllShards("copy", new ShardOperation() {
+                @Override public void run(int shardNum, MapDBStoreMap shard) {
+                    shard.copy(shardLocation(newLocation, shardNum));
+                }
+            });
+    }
+
+    @Override public void giveLargeAccessHint() {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        forAllShards("giveLargeAccessHint", new ShardOperation() {
+                @Override public void run(int shardNum, MapDBStoreMap shard) {
+                    shard.giveLargeAccessHint();
+                }
+            });
+    }
+
+    @Override public void logStats() {
+        if (shards == null) return;
+        for (int i = 0; i < shards.length; i++) {
+            log.debug("Shard " + i + ":");
+            shards[i].logStats();
+        }
+    }
+
+    @Override public synchronized void optimize() {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        if (isReadOnly())
+            throw new RuntimeException("StoreMap is open read-only");
+        forAllShards("optimize", new ShardOperation() {
+                @Override public void run(int shardNum, MapDBStoreMap shard) {
+                    shard.optimize();
+                }
+            });
+    }
+
+    /**
+     * Return the number of shards, or 0 if we are not open
+     */
+    public int getNumShards() {
+        if (shards == null) return 0;
+        return shards.length;
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Size the cache to the given total number of entries, to be split among the shards, and
+     * abandoning any byte budget
+     */
+    public void setCacheSize(int size) {
+        cacheSize = size;
+        cacheBytes = 0;
+        if (shards != null) {
+            for (MapDBStoreMap shard : shards) sizeShardCache(shard, shards.length);
+        }
+    }
+
+    public long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    /**
+     * Size the cache to roughly the given total number of bytes, to be split among the shards
+     *
+     * 0 abandons the byte budget, putting every shard back to its share of the cache size in
+     * entries.
+     */
+    public void setCacheBytes(long bytes) {
+        cacheBytes = Math.max(0, bytes);
+        if (shards != null) {
+            for (MapDBStoreMap shard : shards) sizeShardCache(shard, shards.length);
+        }
+    }
+
+    /**
+     * Control the dirtiness assumptions about cached values; see {@link
+     * MapDBStoreMap.setForceAlwaysDirty}
+     */
+    public void setForceAlwaysDirty(boolean forceAlwaysDirty) {
+        this.forceAlwaysDirty = forceAlwaysDirty;
+        if (shards != null) {
+            for (MapDBStoreMap shard : shards) shard.setForceAlwaysDirty(forceAlwaysDirty);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // java.util.Map methods are routed to the appropriate shard, or aggregated across all of them.
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Override public void clear() {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        if (isReadOnly())
+            throw new RuntimeException("StoreMap is open read-only");
+        forAllShards("clear", new ShardOperation() {
+                @Override public void run(int shardNum, MapDBStoreMap shard) {
+                    shard.clear();
+                }
+            });
+    }
+
+    @Override public boolean containsKey(Object key) {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        if (!(key instanceof String)) return false;
+        return shardOf(key).containsKey(key);
+    }
+
+    @Override public boolean containsValue(Object value) {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        for (MapDBStoreMap shard : shards)
+            if (shard.containsValue(value)) return true;
+        return false;
+    }
+
+    @Override public Set<Map.Entry<String, RTWListValue>> entrySet() {
+        // Not needed for StringListStore, and not worth the effort to enforce read-only-ness.
+        throw new RuntimeException("Not implemented");
+    }
+
+    @Override public RTWListValue get(Object key) {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        if (key instanceof String) return shardOf(key).get(key);
+        return null;
+    }
+
+    /**
+     * StoreMapKey hashes the same as the String it holds, so it can pick its shard and be passed
+     * along as-is
+     */
+    @Override public RTWListValue get(StoreMapKey key) {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        return shardOf(key).get(key);
+    }
+
+    @Override public boolean containsKey(StoreMapKey key) {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        return shardOf(key).containsKey(key);
+    }
+
+    @Override public boolean isEmpty() {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        for (MapDBStoreMap shard : shards)
+            if (!shard.isEmpty()) return false;
+        return true;
+    }
+
+    /**
+     * Each shard is a threadsafe MapDBStoreMap, and the choice of shard depends only on the key
+     */
+    @Override public boolean isThreadsafe() {
+        return true;
+    }
+
+    @Override public synchronized Set<String> keySet() {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        return new ShardedKeySet();
+    }
+
+    @Override public void putAll(Map<? extends String, ? extends RTWListValue> m) {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        if (isReadOnly())
+            throw new RuntimeException("StoreMap is open read-only");
+        for (String key : m.keySet())
+            put(key, m.get(key));
+    }
+
+    @Override public int size() {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        long total = 0;
+        for (MapDBStoreMap shard : shards) total += shard.size();
+        return (int)Math.min(total, Integer.MAX_VALUE);
+    }
+
+    @Override public Collection<RTWListValue> values() {
+        // Not needed for StringListStore, and not worth the effort to enforce read-only-ness.
+        throw new RuntimeException("Not implemented");
+    }
+
+    @Override public RTWListValue put(String key, RTWListValue value) {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        if (isReadOnly())
+            throw new RuntimeException("StoreMap is open read-only");
+        return shardOf(key).put(key, value);
+    }
+
+    @Override public RTWListValue remove(Object key) {
+        if (getLocation() == null)
+            throw new RuntimeException("StoreMap is not open");
+        if (isReadOnly())
+            throw new RuntimeException("StoreMap is open read-only");
+        if (key instanceof String) return shardOf(key).remove(key);
+        else return null;
+    }
+}
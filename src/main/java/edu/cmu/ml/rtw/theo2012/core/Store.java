@@ -3,6 +3,8 @@ package edu.cmu.ml.rtw.theo2012.core;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
 
 /**
  * This is an interface that may be used to implement back-end database storage mechanisms for Theo
@@ -256,10 +258,9 @@ public interface Store {
      * Return an iterator over primitive entities
      *
      * The given iterator makes no gaurantees about the order of iteration, and is meant to visit
-     * all primitive entities as quickly as possible.  There may be at most one iterator in use at
-     * any one time, and any attempt to use mroe than one iterator at a time may provoke undefined
-     * behavior (although an exception would be preferable).  Writing to the Store during iteration
-     * may invalidate the iterator or lead to undefined behavior.
+     * all primitive entities as quickly as possible.  Any number of iterators may be in use at
+     * once.  Writing to the Store during iteration may invalidate the iterator or lead to undefined
+     * behavior.
      *
      * This operation may be of use to the lowest layer of Theo for fsck-style operations, such as
      * checking for primitive entities that exist outside of the generalizations hierarchy.  But it
@@ -275,4 +276,18 @@ public interface Store {
      * file could take advantage of that opportunity.
      */
     public Iterator<String> getPrimitiveEntityIterator();
+
+    /**
+     * Return a Spliterator over primitive entities
+     *
+     * This is the same as {@link getPrimitiveEntityIterator} except that it may be split up for
+     * traversal by multiple threads, which is safe to do in read-only mode.  An implementation
+     * that can partition its primitive entities (e.g. by key range or bucket) should override this
+     * to split along those lines.  The default merely wraps the Iterator, which can only split by
+     * reading ahead into arrays.
+     */
+    default public Spliterator<String> getPrimitiveEntitySpliterator() {
+        return Spliterators.spliteratorUnknownSize(getPrimitiveEntityIterator(),
+                Spliterator.DISTINCT | Spliterator.NONNULL);
+    }
  }
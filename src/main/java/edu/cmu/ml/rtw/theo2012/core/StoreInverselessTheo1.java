@@ -7,6 +7,8 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
 
 import edu.cmu.ml.rtw.util.Logger;
 import edu.cmu.ml.rtw.util.LogFactory;
@@ -31,7 +33,10 @@ import edu.cmu.ml.rtw.util.Properties;
  *
  * This class is thread-safe in read-only mode.  This is because read operations mutate no state of
  * its own, and Store is also thread-safe in read-only mode.  This class is most assuredly not
- * thread-safe in read-write mode.
+ * thread-safe in read-write mode, except that, when its Store is a StringListStore in
+ * concurrent-writes mode (see {@link StringListStore.setConcurrentWrites}), each individual read or
+ * write is safe to do concurrently with others.  Sequences of operations (e.g. creating a slot and
+ * then using it) are, of course, not atomic.
  *
  *
  * CONSTRAINTS AND BEHAVIORS ENFORCED BY THIS CLASS
@@ -541,6 +546,16 @@ public class StoreInverselessTheo1 extends Theo1Base implements Theo1 {
 
         @Override public boolean deleteAllValues() {
             try {
+                // 2019-03: Except on the generalizations slot of a primitive entity, where
+                // deleteValue has bookkeeping to do for each value, we can hand the whole thing to
+                // the store, which deletes an entire slot in a single pass rather than rewriting
+                // it once per value.
+                if (!(location.size() == 2 && location.lastAsSlot().equals("generalizations"))) {
+                    if (!allSlots.contains(location.lastAsSlot()))
+                        throw new RuntimeException("\"" + location.lastAsSlot() + "\" is not a known slot");
+                    return store.delete(location, false, false);
+                }
+
                 // Use iterative fetch-next-and-delete approach so that we don't invite the risks of
                 // iterating over the things we're modifying.  Deleting a value from a Query object does
                 // not invalidate that Query object, so we don't need to reconstruct it.
@@ -766,8 +781,11 @@ public class StoreInverselessTheo1 extends Theo1Base implements Theo1 {
 
     /**
      * Complete set of entities that generalize directly or indirectly to slot
+     *
+     * 2019-03: Concurrent so that this may be maintained by concurrent writers when our Store is in
+     * concurrent-writes mode.
      */
-    protected final HashSet<String> allSlots = new HashSet<String>();
+    protected final Set<String> allSlots = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     /**
      * Complete set of entities that generalize directly or indirectly to context
@@ -1316,6 +1334,10 @@ public class StoreInverselessTheo1 extends Theo1Base implements Theo1 {
         }
     }
 
+    @Override public Spliterator<String> getPrimitiveEntityNameSpliterator() {
+        return store.getPrimitiveEntitySpliterator();
+    }
+
     @Override public PrimitiveEntity get(String primitiveEntity) {
         try {
             RTWLocation location = store.getLoc(primitiveEntity);
@@ -0,0 +1,97 @@
+package edu.cmu.ml.rtw.theo2012.core;
+
+/**
+ * Reusable, mutable key for looking things up in a {@link StringListStoreMap} without having to
+ * materialize a String
+ *
+ * {@link StringListStore} builds a database key for every access by gluing together the elements
+ * of an RTWLocation plus things like "  S" or a name partition hash.  Doing that with String
+ * concatenation copies the key once per element, and each of those copies is garbage by the time
+ * the lookup is done.  Instead, StringListStore appends everything into one of these, which is kept
+ * per-thread and reused, and then hands it to {@link StringListStoreMap.get(StoreMapKey)}.
+ *
+ * For lookup purposes, a StoreMapKey is indistinguishable from the String it holds: hashCode
+ * matches String.hashCode, and equals is true for any CharSequence with the same content.  This
+ * means that a StoreMapKey can be used directly as the argument to get or containsKey on a
+ * java.util.HashMap or ConcurrentHashMap whose keys are Strings, because those call equals on the
+ * probe rather than on the stored key.  The converse does not hold, because String.equals is false
+ * for anything that isn't a String, so a StoreMapKey must never be stored as a key itself.  Use
+ * toString for that.
+ *
+ * Not threadsafe, naturally.
+ */
+public final class StoreMapKey implements CharSequence {
+    protected final StringBuilder sb;
+
+    public StoreMapKey() {
+        sb = new StringBuilder(128);
+    }
+
+    /**
+     * Empty out this key so that it can be reused
+     */
+    public StoreMapKey reset() {
+        sb.setLength(0);
+        return this;
+    }
+
+    public StoreMapKey append(String s) {
+        sb.append(s);
+        return this;
+    }
+
+    public StoreMapKey append(CharSequence s, int start, int end) {
+        sb.append(s, start, end);
+        return this;
+    }
+
+    public StoreMapKey append(char c) {
+        sb.append(c);
+        return this;
+    }
+
+    /**
+     * Truncate to the given length, e.g. to back out a suffix added for a one-off lookup
+     */
+    public void setLength(int length) {
+        sb.setLength(length);
+    }
+
+    @Override public int length() {
+        return sb.length();
+    }
+
+    @Override public char charAt(int index) {
+        return sb.charAt(index);
+    }
+
+    @Override public CharSequence subSequence(int start, int end) {
+        return sb.subSequence(start, end);
+    }
+
+    @Override public String toString() {
+        return sb.toString();
+    }
+
+    /**
+     * Same as String.hashCode would return for our content
+     */
+    @Override public int hashCode() {
+        int h = 0;
+        final int len = sb.length();
+        for (int i = 0; i < len; i++)
+            h = 31 * h + sb.charAt(i);
+        return h;
+    }
+
+    @Override public boolean equals(Object obj) {
+        if (obj == this) return true;
+        if (!(obj instanceof CharSequence)) return false;
+        final CharSequence cs = (CharSequence)obj;
+        final int len = sb.length();
+        if (cs.length() != len) return false;
+        for (int i = 0; i < len; i++)
+            if (sb.charAt(i) != cs.charAt(i)) return false;
+        return true;
+    }
+}
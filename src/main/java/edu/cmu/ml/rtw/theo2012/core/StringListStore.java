@@ -7,11 +7,21 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -69,6 +79,7 @@ import edu.cmu.ml.rtw.util.Timer;
  * and may be removed as needed for speed reasons.
  *
  * This class is threadsafe only in read-only mode.  This greatly simplifies our implementation.
+ * (2019-03: Except in concurrent-writes mode; see {@link setConcurrentWrites}.)
  *
  *
  * NOTES ON IMPLEMENTATION
@@ -81,6 +92,7 @@ import edu.cmu.ml.rtw.util.Timer;
  * values appended to the RTWLocation at that node that are thought to be worth caching.  Further
  * work in this direction is left for the future; for all we know, we'll be using an entirely
  * different storage engine before it becomes worth spending more time improving this one.
+ * (2019-03: That future has arrived in the form of {@link SlotAddrCache}.)
  *
  * On a related note, this class does not feature any cache.  It is assumed that concrete
  * implementations will use an internal cache like TCHStore does as needed.  We have never explored
@@ -261,6 +273,18 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
          */
         @Override public boolean containsValue(RTWValue v) {
             try {
+                // Don't go gathering up all of the values of a segmented slot just for this
+                if (val == null && haveSegmentedSlots && endsInSlot()) {
+                    final Lock lock = lockEntity(this, false);
+                    try {
+                        String key = constructSlotAddr(this, false);
+                        if (key == null) return false;
+                        return slotContains(key, v);
+                    } finally {
+                        unlock(lock);
+                    }
+                }
+
                 RTWListValue list = getValues();
                 if (list.isEmpty()) return false;
                 return list.contains(v);
@@ -271,53 +295,83 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
     }
 
     /**
-     * Iterator over primitive entities
+     * Iterator over primitive entities by way of a scan through every key in the store
+     *
+     * This is only needed for a store lacking a primitive entity directory, which is to say a
+     * store predating the directory that is opened read-only, and for building the directory of
+     * such a store when it is opened read-write.  See the comments on the primitive entity
+     * directory.
      *
-     * Store only supports one iterator at a time, so having two of these in action simultaneously
-     * should be guarded against.  To achieve this, we give StringListStore an activeIterator
-     * member, and have instances of this class throw an exception if activeIterator isn't set to
-     * them.  That way, constructing a new KeyIterator invalidates all older KeyIterator instances.
+     * This iterates over the stored first parts of the entity names, i.e. without undoing any
+     * subslotTranslationTable translation.  Use {@link untranslateEntity} on them.
+     *
+     * 2019-03: This used to be restricted to one instance in use at a time, a holdover from Tokyo
+     * Cabinet.  None of the StoreMap implementations we have today need that.
      */
-    protected class PrimitiveEntityIterator implements Iterator<String> {
+    protected class PrimitiveEntityScanner implements Iterator<String> {
         protected String next;
         protected Iterator<String> keyIterator;
 
+        /**
+         * slsm's sorted view of its keys if it keeps them sorted, in which case we go by way of
+         * setNextSorted, or else null
+         */
+        protected final NavigableSet<String> sortedKeys;
+
+        /**
+         * Where setNextSorted is to resume looking, or null if there's nothing more to find
+         */
+        protected String seekKey = "";
+
+        /**
+         * Version of setNext for when slsm keeps its keys sorted
+         *
+         * 2019-03: All of the keys of a given primitive entity begin with the same first part
+         * followed by a space, and so, in a sorted StoreMap, they are contiguous.  So rather than
+         * going through every key in the KB, we look at the first key of each entity and then skip
+         * straight past the rest of them.  No key beginning with that first part and a space can
+         * sort after that first part followed by "!" because space is the only printable character
+         * that sorts before "!".  Each skip is a seek within the one view of the keys that we got
+         * at the start, so that pending writes are committed only once per scan rather than once
+         * per entity.
+         */
+        protected void setNextSorted() {
+            while (seekKey != null) {
+                String key = sortedKeys.ceiling(seekKey);
+                if (key == null) break;
+
+                // Start at position 1 because translated slots begin with a space.  Skip things
+                // like the " " signal key that aren't part of any entity.
+                int pos = key.indexOf(' ', 1);
+                if (pos < 0) {
+                    seekKey = key + '\0';  // The least key after this one
+                    continue;
+                }
+                String firstPart = key.substring(0, pos);
+                seekKey = firstPart + '!';
+
+                // Primitive entities are those having a slotlist
+                if (slsm.get(firstPart + "  S") == null) continue;
+                next = firstPart;
+                return;
+            }
+            seekKey = null;
+            next = null;
+        }
+
         protected void setNext() {
-            if (keyIterator == null) {
-                next = null;
+            if (sortedKeys != null) {
+                setNextSorted();
                 return;
             }
 
             // Look for a subslot list attached to a key with no spaces.  These indicate the
-            // existence of primitive entities.
+            // existence of primitive entities.  Start at position 1 because we expect translated
+            // slots to begin with a space, and we can't have a zero-length first part of the key
+            // anyway.
             while (keyIterator.hasNext()) {
                 String key = keyIterator.next();
-
-                // Mind that we have to put these through subslotUntranslationTable first, both to
-                // get real enttiy names back, and to not get tripped up by the initial space that
-                // most such entries have.
-                if (subslotUntranslationTable != null && key.length() > 1) {
-                    // Look for end of first part of key.  Start at position 1 because we expect
-                    // translated slots to begin with a space, and we can't have a zero-length first
-                    // part of the key anyway.
-                    int pos = key.indexOf(' ', 1); 
-                    if (pos > 0) {
-                        String firstPart = key.substring(0, pos);
-                        String newFirstPart = subslotUntranslationTable.get(firstPart);
-                        if (newFirstPart != null) {
-                            String newKey = newFirstPart + key.substring(pos);
-                            key = newKey;
-                        }
-                    }
-                }
-
-                // Similarly, untranslate keys that start with ' C'.
-                if (key.length() > 2 && key.charAt(0) == ' ' && key.charAt(1) == 'C') {
-                    String newKey = "concept:" + key.substring(2);
-                    key = newKey;
-                }
-
-                int pos = key.indexOf(' ');
+                int pos = key.indexOf(' ', 1);
                 if (pos < 0) continue;
                 if (key.length() != pos+3) continue;
                 if (key.charAt(pos+1) != ' ') continue;
@@ -328,21 +382,17 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
             next = null;
         }
 
-        public PrimitiveEntityIterator() {
-            keyIterator = slsm.keySet().iterator();
+        public PrimitiveEntityScanner() {
+            sortedKeys = slsm.sortedKeySet();
+            if (sortedKeys == null) keyIterator = slsm.keySet().iterator();
             setNext();
-            StringListStore.this.activeIterator = this;
         }
 
         @Override public boolean hasNext() {
-            if (StringListStore.this.activeIterator != this)
-                throw new RuntimeException("This iterator has been invalidated because a newer one has been constructed.");
             return (next != null);
         }
 
         @Override public String next() throws NoSuchElementException {
-            if (StringListStore.this.activeIterator != this)
-                throw new RuntimeException("This iterator has been invalidated because a newer one has been constructed.");
             if (next == null) throw new NoSuchElementException();
             String tmp = next;
             setNext();
@@ -354,6 +404,57 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
         }
     }
 
+    /**
+     * Spliterator over primitive entities by way of the primitive entity directory
+     *
+     * This covers a range of directory buckets, reading one bucket at a time, and so costs
+     * O(number of primitive entities + number of buckets).  Splitting divides the range of buckets
+     * in half.  Names come out untranslated.
+     *
+     * Each bucket is read only once, so writes to the store during iteration will not upset this,
+     * although whether entities added or removed in the meantime are seen is undefined, as is what
+     * happens if the directory is split in the meantime.
+     */
+    protected class EntityDirectorySpliterator implements Spliterator<String> {
+        protected int bucket;
+        protected final int end;
+        protected RTWListValue list = null;
+        protected int pos = 0;
+
+        public EntityDirectorySpliterator(int startBucket, int endBucket) {
+            bucket = startBucket;
+            end = endBucket;
+        }
+
+        @Override public boolean tryAdvance(Consumer<? super String> action) {
+            while (list == null || pos >= list.size()) {
+                if (bucket >= end) return false;
+                list = getEntityBucket(bucket++);
+                pos = 0;
+            }
+            action.accept(untranslateEntity(list.get(pos++).asString()));
+            return true;
+        }
+
+        @Override public Spliterator<String> trySplit() {
+            if (end - bucket < 2) return null;
+            final int mid = bucket + (end - bucket) / 2;
+            Spliterator<String> prefix = new EntityDirectorySpliterator(bucket, mid);
+            bucket = mid;
+            return prefix;
+        }
+
+        @Override public long estimateSize() {
+            long size = (long)numEntities * (end - bucket) / Math.max(1, numEntityBuckets);
+            if (list != null) size += list.size() - pos;
+            return size;
+        }
+
+        @Override public int characteristics() {
+            return DISTINCT | NONNULL;
+        }
+    }
+
     /**
      * Class that manages the caching of each entity's list of slot addresses
      *
@@ -530,22 +631,126 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
             }
         }
 
+        /**
+         * Subslots added while in bulk-load mode that have yet to be written out, keyed by the
+         * address of the slot they are added to, or null when not in bulk-load mode
+         *
+         * See {@link StringListStore.setBulkLoad}.
+         */
+        protected Map<String, Set<RTWValue>> pendingSlots = null;
+
+        /**
+         * Total number of subslots in pendingSlots
+         */
+        protected int numPendingSlots = 0;
+
+        /**
+         * Start or stop deferring slotlist additions, writing out anything deferred when stopping
+         */
+        public void setBulkLoad(boolean bulkLoad) {
+            if (bulkLoad) {
+                if (pendingSlots == null) pendingSlots = new HashMap<String, Set<RTWValue>>();
+            } else {
+                if (pendingSlots == null) return;
+                flushPendingSlots();
+                pendingSlots = null;
+            }
+        }
+
+        /**
+         * Write out all deferred slotlist additions
+         *
+         * This goes in sorted order of slot address so that all of an entity's slotlists get
+         * written together, which is the friendliest order for any StoreMap that keeps its keys
+         * sorted or its pages cached.  Each slotlist is read and written only once no matter how
+         * many subslots were added to it.
+         */
+        public void flushPendingSlots() {
+            if (pendingSlots == null) return;
+            synchronized (pendingSlots) {
+                if (pendingSlots.isEmpty()) return;
+                log.debug("Writing deferred additions to " + pendingSlots.size() + " slotlists");
+                List<String> addrs = new ArrayList<String>(pendingSlots.keySet());
+                Collections.sort(addrs);
+                List<String> newEntities = new ArrayList<String>();
+                for (String addr : addrs) {
+                    final String slotlistAddr = addr + "  S";
+                    final RTWListValue stored = slsm.get(slotlistAddr);
+                    if (stored == null && isEntityAddr(addr)) newEntities.add(addr);
+                    slsm.put(slotlistAddr, mergePendingSlots(stored, pendingSlots.get(addr)));
+                }
+                addEntities(newEntities);
+                pendingSlots.clear();
+                numPendingSlots = 0;
+            }
+        }
+
+        /**
+         * Write out any deferred slotlist additions for the given slot address alone
+         */
+        protected void flushPendingSlots(String addr) {
+            if (pendingSlots == null) return;
+            synchronized (pendingSlots) {
+                Set<RTWValue> pending = pendingSlots.remove(addr);
+                if (pending == null) return;
+                numPendingSlots -= pending.size();
+                final String slotlistAddr = addr + "  S";
+                final RTWListValue stored = slsm.get(slotlistAddr);
+                slsm.put(slotlistAddr, mergePendingSlots(stored, pending));
+                if (stored == null && isEntityAddr(addr)) addEntities(Collections.singletonList(addr));
+            }
+        }
+
+        /**
+         * Return the given slotlist with the given pending subslots appended to it
+         */
+        protected RTWListValue mergePendingSlots(RTWListValue stored, Set<RTWValue> pending) {
+            if (stored == null) return new RTWImmutableListValue(new ArrayList<RTWValue>(pending));
+            ArrayList<RTWValue> merged = new ArrayList<RTWValue>(stored.size() + pending.size());
+            merged.addAll(stored);
+            for (RTWValue subslot : pending)
+                if (!stored.contains(subslot)) merged.add(subslot);
+            if (merged.size() == stored.size()) return stored;
+            return new RTWImmutableListValue(merged);
+        }
+
         // No longer auto-adds parent slots
         public RTWListValue getSubslots(String addr) {
-            final String slotlistAddr = addr + "  S";
-            return slsm.get(slotlistAddr);
+            final RTWListValue stored = slsm.get(slotlistKey.get().reset().append(addr).append("  S"));
+            if (pendingSlots == null) return stored;
+            synchronized (pendingSlots) {
+                Set<RTWValue> pending = pendingSlots.get(addr);
+                if (pending == null) return stored;
+                return mergePendingSlots(stored, pending);
+            }
         }
 
         public void addSlot(String addr, RTWStringValue subslot) {
-            final String slotlistAddr = addr + "  S";
+            if (pendingSlots != null) {
+                // In bulk-load mode, all we need is an in-memory set operation.  The pending
+                // additions are bounded so that loading a huge KB doesn't run us out of heap.
+                synchronized (pendingSlots) {
+                    Set<RTWValue> pending = pendingSlots.get(addr);
+                    if (pending == null) {
+                        pending = new LinkedHashSet<RTWValue>(4);
+                        pendingSlots.put(addr, pending);
+                    }
+                    if (pending.add(subslot) && ++numPendingSlots >= kbBulkLoadSlotlistBuffer)
+                        flushPendingSlots();
+                }
+                return;
+            }
+            final StoreMapKey slotlistAddr = slotlistKey.get().reset().append(addr).append("  S");
             // FODO: maybe we can use an internal version of getValue that allows direct modification
             final RTWListValue v = slsm.get(slotlistAddr);
             if (v != null && v.contains(subslot)) return;
-            slsm.put(slotlistAddr, RTWImmutableListValue.append(v, subslot));
+            slsm.put(slotlistAddr.toString(), RTWImmutableListValue.append(v, subslot));
+            if (v == null && isEntityAddr(addr)) addEntities(Collections.singletonList(addr));
         }
 
         public void removeSlot(String addr, RTWStringValue subslot, boolean knownToExist) {
             try {
+                flushPendingSlots(addr);
                 final String slotlistAddr = addr + "  S";
                 // FODO: maybe we can use an internal version of getValue that allows direct modification
                 final RTWListValue v = slsm.get(slotlistAddr);
@@ -562,6 +767,7 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
                     } else {
                         if (v.size() == 1) {
                             slsm.remove(slotlistAddr);
+                            if (isEntityAddr(addr)) removeEntity(addr);
                         } else {
                             ArrayList<RTWValue> newList = new ArrayList<RTWValue>(v);
                             newList.remove(pos);
@@ -598,6 +804,161 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
         */
     }
 
+    /**
+     * Cache of RTWLocation -> slot address translations for {@link constructSlotAddr}
+     *
+     * 2019-03: This is the tree-shaped cache envisioned in the implementation notes up at the top.
+     * Each node holds the slot address of some RTWLocation, with the depth of the node equal to the
+     * number of elements in that RTWLocation, and its children are keyed by the slot names and
+     * element values that may be appended to it.  constructSlotAddr walks down the tree as far as
+     * it can and picks up the translation from there, so repeated access to something like <entity,
+     * slot, =value, subslot> costs a handful of hash lookups rather than a name partition fetch and
+     * scan plus a string concatenation for every element.
+     *
+     * Translating a slot name is a pure function of the name and the subslotTranslationTable, so
+     * those children never go stale.  The subslot name for an element, on the other hand, comes out
+     * of a name partition entry, and cullEmptyEntries is the only thing that ever removes one of
+     * those.  It calls {@link invalidate} when it does.  We never cache a translation that came back
+     * as null, so creation of new name partition entries can't make anything stale either.
+     *
+     * The size is bounded by a count of nodes.  When that is reached, we simply throw the whole
+     * tree away and start over, which is crude but cheap, and deep locations that are being
+     * hammered on will quickly be reestablished.  The count is not decremented on invalidation, so
+     * it is only an upper bound.
+     *
+     * Only the nodes for locations that constructSlotAddr has actually returned have their key
+     * filled in; the rest are there merely to lead the way to them.  That way, constructSlotAddr
+     * need not make a String out of every intermediate key it builds (see {@link StoreMapKey}).
+     *
+     * This is threadsafe in read-only mode, as StringListStore needs to be.
+     */
+    protected class SlotAddrCache {
+        protected class Node {
+            /**
+             * Our slot address, or null if it has not been needed yet
+             */
+            protected volatile String key;
+            protected final int depth;
+            protected volatile ConcurrentHashMap<String, Node> slotChildren = null;
+            protected volatile ConcurrentHashMap<RTWValue, Node> valueChildren = null;
+
+            protected Node(String key, int depth) {
+                this.key = key;
+                this.depth = depth;
+            }
+
+            protected synchronized ConcurrentHashMap<String, Node> getSlotChildren() {
+                if (slotChildren == null) slotChildren = new ConcurrentHashMap<String, Node>(4);
+                return slotChildren;
+            }
+
+            protected synchronized ConcurrentHashMap<RTWValue, Node> getValueChildren() {
+                if (valueChildren == null) valueChildren = new ConcurrentHashMap<RTWValue, Node>(4);
+                return valueChildren;
+            }
+
+            /**
+             * Return our child for element i of the given location, or null if we don't have one
+             */
+            protected Node getChild(RTWLocation l, int i) {
+                if (l.isSlot(i)) {
+                    final ConcurrentHashMap<String, Node> children = slotChildren;
+                    return children == null ? null : children.get(l.getAsSlot(i));
+                } else {
+                    final ConcurrentHashMap<RTWValue, Node> children = valueChildren;
+                    return children == null ? null : children.get(l.getAsElement(i).getVal());
+                }
+            }
+        }
+
+        protected final int maxNodes;
+        protected final AtomicInteger numNodes = new AtomicInteger();
+        protected volatile Node root = new Node(null, 0);
+
+        protected SlotAddrCache(int maxNodes) {
+            this.maxNodes = maxNodes;
+        }
+
+        /**
+         * Return the deepest node with a key along the path of the given location
+         *
+         * This returns the root, whose key is null, if we have nothing for even the first element.
+         * If createLocation is set, then this takes care of the slotlist additions that
+         * constructSlotAddr would have made for the slots along the way, stopping short if it
+         * doesn't know the key of the slot it would have to add to.
+         */
+        protected Node find(RTWLocation l, boolean createLocation) {
+            final Node top = root;
+            Node node = top;
+            Node found = top;
+            final int size = l.size();
+            for (int i = 0; i < size; i++) {
+                final Node child = node.getChild(l, i);
+                if (child == null) break;
+                if (createLocation && i > 0 && l.isSlot(i)) {
+                    if (node != found) break;
+                    slotlistCache.addSlot(node.key, new RTWStringValue(l.getAsSlot(i)));
+                }
+                node = child;
+                if (node.key != null) found = node;
+            }
+            return found;
+        }
+
+        /**
+         * Return the child of the given node for element i of the given location, creating it if
+         * necessary
+         *
+         * If key is non-null, then the child's key is set to its content.  Returns null if there
+         * is no longer any point in continuing to add to this path, e.g. because the tree has just
+         * been reset.
+         */
+        protected Node add(Node parent, RTWLocation l, int i, CharSequence key) {
+            Node existing = parent.getChild(l, i);
+            if (existing != null) {
+                if (key != null && existing.key == null) existing.key = key.toString();
+                return existing;
+            }
+            if (numNodes.incrementAndGet() > maxNodes) {
+                clear();
+                return null;
+            }
+            final Node child = new Node(key == null ? null : key.toString(), i + 1);
+            if (l.isSlot(i)) {
+                existing = parent.getSlotChildren().putIfAbsent(l.getAsSlot(i), child);
+            } else {
+                // Mutable values make for bad hash keys
+                final RTWValue val = l.getAsElement(i).getVal();
+                if (val instanceof RTWListValue && !(val instanceof RTWImmutableListValue)
+                        && !(val instanceof RTWImmutableSetListValue))
+                    return null;
+                existing = parent.getValueChildren().putIfAbsent(val, child);
+            }
+            if (existing == null) return child;
+            if (key != null && existing.key == null) existing.key = child.key;
+            return existing;
+        }
+
+        /**
+         * Forget the translation of the given location, which must end in an element, along with
+         * everything beneath it
+         */
+        protected void invalidate(RTWLocation l) {
+            Node node = root;
+            final int last = l.size() - 1;
+            for (int i = 0; i < last && node != null; i++)
+                node = node.getChild(l, i);
+            if (node == null) return;
+            final ConcurrentHashMap<RTWValue, Node> children = node.valueChildren;
+            if (children != null) children.remove(l.getAsElement(last).getVal());
+        }
+
+        protected void clear() {
+            root = new Node(null, 0);
+            numNodes.set(0);
+        }
+    }
+
     /**
      * Back-end database
      */
@@ -610,10 +971,147 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
     protected SlotlistCache slotlistCache;
 
     /**
-     * Used by PrimitiveEntityIterator instances to ensure that only the most-recently-constructed
-     * instance is usable.
+     * Cache used by constructSlotAddr, or null if disabled (see SlotAddrCache class documentation)
+     */
+    protected SlotAddrCache slotAddrCache;
+
+    /**
+     * Per-thread reusable keys for constructSlotAddr and SlotlistCache respectively
+     *
+     * These are separate because constructSlotAddr calls into SlotlistCache while it is still
+     * building its own key.
+     */
+    protected final ThreadLocal<StoreMapKey> addrKey = new ThreadLocal<StoreMapKey>() {
+        @Override protected StoreMapKey initialValue() {
+            return new StoreMapKey();
+        }
+    };
+    protected final ThreadLocal<StoreMapKey> slotlistKey = new ThreadLocal<StoreMapKey>() {
+        @Override protected StoreMapKey initialValue() {
+            return new StoreMapKey();
+        }
+    };
+
+    /**
+     * Per-thread reusable key for looking up segments of segmented slots
+     */
+    protected final ThreadLocal<StoreMapKey> segmentKey = new ThreadLocal<StoreMapKey>() {
+        @Override protected StoreMapKey initialValue() {
+            return new StoreMapKey();
+        }
+    };
+
+    /**
+     * Slots that this thread is in the middle of deleting wholesale, keyed by slot address, with
+     * the values that deleteValue has so far been asked to delete from each
+     *
+     * See the comments in delete.
+     */
+    protected final ThreadLocal<HashMap<String, HashSet<RTWValue>>> bulkDeletes =
+            new ThreadLocal<HashMap<String, HashSet<RTWValue>>>() {
+        @Override protected HashMap<String, HashSet<RTWValue>> initialValue() {
+            return new HashMap<String, HashSet<RTWValue>>();
+        }
+    };
+
+    /**
+     * Number of values beyond which a slot is segmented (see the comments on segmented slots); 0,
+     * the default, to never segment slots
+     */
+    protected final int kbSegmentThreshold;
+
+    /**
+     * Target number of values per segment of a segmented slot
+     */
+    protected final int kbSegmentSize;
+
+    /**
+     * Number of pairs in a legacy name partition beyond which its slot is switched to resizable
+     * name partitions (see the comments on resizable name partitions); 0, the default, to never
+     * switch
+     */
+    protected final int kbNamePartitionMaxPairs;
+
+    /**
+     * Target average number of pairs per resizable name partition
+     */
+    protected final int kbNamePartitionLoad;
+
+    /**
+     * Number of legacy name partitions to migrate with each new pair
+     */
+    protected final int kbNamePartitionMigrateBatch;
+
+    /**
+     * Number of deferred slotlist additions to accumulate in bulk-load mode before writing them out
+     */
+    protected final int kbBulkLoadSlotlistBuffer;
+
+    /**
+     * Whether this store contains any segmented slots
+     */
+    protected volatile boolean haveSegmentedSlots = false;
+
+    /**
+     * Maximum number of nodes in slotAddrCache; 0 to disable it
+     */
+    protected final int slotAddrCacheSize;
+
+    /**
+     * Whether to enter concurrent-writes mode automatically upon opening read-write
+     */
+    protected final boolean kbConcurrentWrites;
+
+    /**
+     * Number of lock stripes to use in concurrent-writes mode
+     */
+    protected final int kbLockStripes;
+
+    /**
+     * Whether we are in concurrent-writes mode, whether or not we are presently read-only
+     */
+    protected boolean concurrentWrites = false;
+
+    /**
+     * Whether to take entity locks, i.e. whether we are in concurrent-writes mode and not
+     * read-only, because there's no sense in paying for them when nothing can change
+     */
+    protected volatile boolean useEntityLocks = false;
+
+    /**
+     * Lock stripes for concurrent-writes mode, indexed by the hash of the primitive entity of the
+     * location being accessed
+     */
+    protected final ReentrantReadWriteLock[] entityLocks;
+
+    /**
+     * Lock to be held in concurrent-writes mode before taking more than one entity lock at once
+     *
+     * See {@link setConcurrentWrites}.
+     */
+    protected final ReentrantLock crossEntityLock = new ReentrantLock();
+
+    /**
+     * Guards the primitive entity directory in concurrent-writes mode, since its buckets are shared
+     * among unrelated entities
+     */
+    protected final Object entityDirectoryLock = new Object();
+
+    /**
+     * Target average number of entities per primitive entity directory bucket; 0, the default, for
+     * no directory
+     */
+    protected final int kbEntityBucketSize;
+
+    /**
+     * Number of buckets in the primitive entity directory, or 0 if this store has no directory
+     */
+    protected int numEntityBuckets = 0;
+
+    /**
+     * Number of primitive entities in the primitive entity directory
      */
-    protected PrimitiveEntityIterator activeIterator = null;
+    protected int numEntities = 0;
 
     /**
      * Point at which we switch from storing lists of values in slots to sets of values in slots
@@ -780,6 +1278,10 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
         // values in a slot before our hashing system craps out.  So we'll need to upgrade at some
         // point, but hopefully we'll pick up some more insight into a more desirable system along
         // the way.
+        //
+        // 2019-03: That point has come.  These F partitions are still where every lookup starts,
+        // but a slot whose F partitions get too big is switched over to resizable P partitions.
+        // See the comments on resizable name partitions.
 
         String hash = "  #F";
         int len = value.length();
@@ -810,6 +1312,9 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
      *
      * namePairList should be the current value of the name partition slot (so that collisions can
      * be dealt with).  null is a perfectly acceptable current value.
+     *
+     * Names produced here never start with "  =HP", which keeps them distinct from the names
+     * produced by getNewPartitionedName.
      */
     protected String getNewName(String keySoFar, RTWValue value, String hash, RTWListValue namePairList) {
         // Common case first
@@ -940,32 +1445,463 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
         }
     }
 
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Resizable name partitions
+    //
+    // 2019-03: As the comments in getNamePartitionHash foretold, its fixed 8.7k buckets, combined
+    // with getNewName's 93 collisions per bucket, don't scale to value subslots on slots with
+    // hundreds of thousands or millions of values.  And even well before getNewName gives up,
+    // every lookup is a linear scan of a bucket that keeps growing.
+    //
+    // So when the legacy ("F") name partition that a new pair is going into grows past
+    // kbNamePartitionMaxPairs pairs, we switch that slot over to a second ("P") scheme based on
+    // linear hashing.  Its state lives in a "  ^AP" entry alongside the slot, where ^A is the
+    // control character \u0001:
+    //
+    // "cake generalizations  ^AP" -> {version, level, split pointer, number of pairs}
+    //
+    // The P partition for a value is chosen from the low bits of its mixed hash code, there being
+    // 2^level + split partitions at any given time.  Whenever the average number of pairs per
+    // partition exceeds kbNamePartitionLoad, we split one partition in two.  So the number of
+    // partitions grows with the number of values that have subslots, a step at a time, with no
+    // big rehash ever necessary.  P partitions use keys like "cake generalizations  #P!!!!%".
+    //
+    // The old F partitions are migrated into the P partitions incrementally: their hashes are
+    // queued up in a "  ^AM" entry at the time of the switch, and each subsequent new pair in that
+    // slot migrates a few more of them.  A migrated F partition is replaced with a one-element
+    // "marker" list containing an RTWIntegerValue rather than a pair.  Lookups always start with
+    // the F partition just as they always have, so an unmigrated F partition works as before, and
+    // a marker tells us to go on to the P partitions.  New pairs are always put into P partitions,
+    // with their value's F partition first being migrated or else created as a marker, so that any
+    // value whose pair is in a P partition always has a marker in its F partition.
+    //
+    // Migration never changes the subslot name assigned to a value, so nothing below the value in
+    // the key hierarchy has to be moved, and things like SlotAddrCache never go stale.  New subslot
+    // names in the P scheme are based on the value's full hash code ("  =HP" plus 5 characters plus
+    // maybe a collision character) rather than on its partition, which keeps them unique across
+    // splits because values with the same hash code always wind up in the same partition.
+    //
+    // Markers are listed in the "  D" directory like any other partition, and are removed once the
+    // slot has no more P pairs and nothing left to migrate.  Versions of this class that predate
+    // this scheme will fail on encountering a marker.  For that reason, kbNamePartitionMaxPairs
+    // defaults to 0, and the switch has to be turned on explicitly for a KB that will never again
+    // be touched by such versions.  Slots that have already switched keep using P partitions
+    // either way.
+    //
+    // The ^A is what keeps these two entries from colliding with real subslots.  It's not enough
+    // that subslot names can't contain spaces, because there are hidden subslots whose names begin
+    // with one, most notably StringListSuperStore's " P" pointers slot, which a slot may well have
+    // if it is the destination of an RTWPointerValue.  No slot name contains a control character.
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    protected final static String NAME_PARTITION_STATE_SUFFIX = "  \u0001P";
+    protected final static String NAME_PARTITION_PENDING_SUFFIX = "  \u0001M";
+
     /**
-     * This is called by StringListStore after it has deleted a slot so that interested subclasses can
-     * override this method so as to trap this occurrence for their own purposes.
-     *
-     * It is not sufficient to override delete in order to detect all cases of a slot being deleted.
-     *
-     * The slot given will have already been deleted upon invokation.
-     *
-     * Note that the slot given will never be a top-level entity because those cannot be used as
-     * slots.  At present, StringListStore offers no way to exclusively detect the deletion of a top-level
-     * entity.  But this may be done by overriding this method and checking to see whether or not
-     * the parent of the given slot is a top-level entity, and whether or not it has any remaining
-     * subslots (since lack of subslots on a top-level entity is equivalent to nonexistence of that
-     * top-level entity).
+     * Value of a migrated F name partition
      */
-    protected void signalDeleteSlot(RTWLocation slot) {
-        // No-op, as far as StringListStore is concerned.
+    protected final static RTWListValue NAME_PARTITION_MARKER =
+            new RTWImmutableListValue(new RTWIntegerValue(1));
+
+    /**
+     * Version of the P scheme that we write and the newest that we read
+     */
+    protected final static int NAME_PARTITION_VERSION = 1;
+
+    /**
+     * Decoded content of a NAME_PARTITION_STATE_SUFFIX entry
+     */
+    protected static class NamePartitionState {
+        protected int level;
+        protected int split;
+        protected int numPairs;
+
+        protected NamePartitionState(RTWListValue v) {
+            if (v == null) return;
+            final int version = v.get(0).asInteger();
+            if (version > NAME_PARTITION_VERSION)
+                throw new RuntimeException("Name partition state version " + version
+                        + " is too new.  Looks like you'll need to find a more recent version of this class.");
+            level = v.get(1).asInteger();
+            split = v.get(2).asInteger();
+            numPairs = v.get(3).asInteger();
+        }
+
+        protected RTWListValue toRTWListValue() {
+            return new RTWImmutableListValue(new RTWIntegerValue(NAME_PARTITION_VERSION),
+                    new RTWIntegerValue(level), new RTWIntegerValue(split),
+                    new RTWIntegerValue(numPairs));
+        }
+
+        protected int getNumPartitions() {
+            return (1 << level) + split;
+        }
+
+        /**
+         * Return the P partition into which a value with the given hash code goes
+         */
+        protected int partitionFor(int hashCode) {
+            int h = hashCode * 0x9E3779B9;
+            h ^= h >>> 16;
+            int p = h & ((1 << level) - 1);
+            if (p < split) p = h & ((1 << (level + 1)) - 1);
+            return p;
+        }
     }
 
     /**
-     * Primitive delete of a single element from a slot
+     * Render an int as 5 characters in the same printable range that getNamePartitionHash uses
+     */
+    protected static void appendHashChars(StringBuilder sb, int i) {
+        long l = i & 0xFFFFFFFFL;
+        for (int j = 0; j < 5; j++) {
+            sb.append((char)((l % (126-33)) + 33));
+            l = l / (126-33);
+        }
+    }
+
+    /**
+     * Return the P name partition hash for the given partition number, including the prepended two
+     * spaces and "#" character
+     */
+    protected static String getPartitionedNameHash(int partition) {
+        StringBuilder sb = new StringBuilder(9);
+        sb.append("  #P");
+        appendHashChars(sb, partition);
+        return sb.toString();
+    }
+
+    /**
+     * Come up with a new subslot name for a value in the P scheme
      *
-     * It is assumed that the value being deleted does actually exist.  If it does not, then the
-     * resulting behavior is undefined; for efficiency purposes, this will not verify existence.
+     * This is getNewName's counterpart.  namePairList should be the current content of the P
+     * partition that the value goes in.
+     */
+    protected String getNewPartitionedName(String keySoFar, RTWValue value, RTWListValue namePairList) {
+        StringBuilder sb = new StringBuilder(11);
+        sb.append("  =HP");
+        appendHashChars(sb, value.hashCode());
+        final String hash = sb.toString();
+        if (namePairList == null) return hash;
+        String goodhash = hash;
+        char suffix = 32;
+        while (true) {
+            boolean collision = false;
+            for (RTWValue namePair : namePairList) {
+                if (((RTWListValue)namePair).get(1).equals(goodhash)) {
+                    collision = true;
+                    break;
+                }
+            }
+            if (!collision) break;
+            suffix++;
+            if (suffix > 126)
+                throw new RuntimeException("Aborting due to silly number of hash code collisions (full key is \"" + keySoFar + goodhash + "\")");
+            goodhash = hash + suffix;
+        }
+        return goodhash;
+    }
+
+    /**
+     * Return the subslot name assigned to the given value in the slot whose address is in the
+     * given key, or null if there is none
      *
-     * Note that, because top-level slots cannot be used as slots, that the given location will have
+     * namePartitionHash is the value's F partition hash.  The key is left as it was found.
+     */
+    protected String findValueName(StoreMapKey key, RTWValue refVal, String namePartitionHash) {
+        final int addrLength = key.length();
+        key.append(namePartitionHash);
+        RTWListValue namePairList = slsm.get(key);
+        key.setLength(addrLength);
+        if (namePairList == null) return null;
+
+        boolean migrated = false;
+        for (RTWValue v : namePairList) {
+            if (!(v instanceof RTWListValue)) {
+                migrated = true;
+                break;
+            }
+            RTWListValue pair = (RTWListValue)v;
+            if (refVal.equals(pair.get(0))) return pair.get(1).asString();
+        }
+        if (!migrated) return null;
+
+        // On to the P partitions
+        key.append(NAME_PARTITION_STATE_SUFFIX);
+        RTWListValue stateValue = slsm.get(key);
+        key.setLength(addrLength);
+        if (stateValue == null)
+            throw new RuntimeException("Name partition marker found in \"" + key + namePartitionHash
+                    + "\" but there is no name partition state");
+        NamePartitionState state = new NamePartitionState(stateValue);
+        key.append(getPartitionedNameHash(state.partitionFor(refVal.hashCode())));
+        namePairList = slsm.get(key);
+        key.setLength(addrLength);
+        if (namePairList == null) return null;
+        for (RTWValue v : namePairList) {
+            RTWListValue pair = (RTWListValue)v;
+            if (refVal.equals(pair.get(0))) return pair.get(1).asString();
+        }
+        return null;
+    }
+
+    /**
+     * Add the given hash to the "  D" name directory of the given slot
+     */
+    protected void addNameDirectoryEntry(String slotAddr, String namePartitionHash) {
+        String nameDirectorySlot = slotAddr + "  D";
+        RTWListValue nameDirectory = slsm.get(nameDirectorySlot);
+        slsm.put(nameDirectorySlot,
+                RTWImmutableListValue.append(nameDirectory, new RTWStringValue(namePartitionHash)));
+    }
+
+    /**
+     * Remove the given hash from the "  D" name directory of the given slot
+     */
+    protected void removeNameDirectoryEntry(String keyPrefix, String namePartitionHash) {
+        String nameDirectorySlot = keyPrefix + "  D";
+        RTWListValue v = slsm.get(nameDirectorySlot);
+        if (v == null) {
+            // bkisiel 2012-12-04: I don't see as this should happen, but it did for
+            // unexpected reasons during a test on the 08m KB, so I'm relaxing this to
+            // an error for the time being to see how things play out.
+            // throw new RuntimeException("\"" + nameDirectorySlot + "\" doesn't exist");
+            log.error("\"" + nameDirectorySlot + "\" doesn't exist.  Force-deleting anyway and ignoring.");
+            slsm.remove(nameDirectorySlot);
+        } else {
+            ArrayList<RTWValue> newList = new ArrayList<RTWValue>(v);
+            if (!newList.remove(new RTWStringValue(namePartitionHash)))
+                throw new RuntimeException("\"" + namePartitionHash + "\" not found in \"" + nameDirectorySlot + "\" (" + v + ")");
+            if (newList.size() == 0)
+                slsm.remove(nameDirectorySlot);
+            else
+                slsm.put(nameDirectorySlot, new RTWImmutableListValue(newList));
+        }
+    }
+
+    /**
+     * Assign a new subslot name to the given value in the slot with the given address, recording it
+     * in the appropriate name partition, and return it
+     *
+     * This is the half of constructSlotAddr that creates new name partition entries.
+     */
+    protected String createValueName(String slotAddr, RTWValue refVal, String namePartitionHash) {
+        final String namePartitionSlot = slotAddr + namePartitionHash;
+        RTWListValue namePairList = slsm.get(namePartitionSlot);
+        RTWListValue stateValue = slsm.get(slotAddr + NAME_PARTITION_STATE_SUFFIX);
+
+        // The legacy scheme, for slots that haven't needed anything else
+        if (stateValue == null) {
+            String subslotName = getNewName(slotAddr, refVal, namePartitionHash, namePairList);
+            RTWValue pair = new RTWImmutableListValue(refVal, new RTWStringValue(subslotName));
+            if (namePairList == null) {
+                slsm.put(namePartitionSlot, new RTWImmutableListValue(pair));
+
+                // No pre-existing name partition slot value means that we just created a new one,
+                // and that means that we have to add it to the name directory slot (creating that
+                // if need be).
+                addNameDirectoryEntry(slotAddr, namePartitionHash);
+            } else {
+                slsm.put(namePartitionSlot, RTWImmutableListValue.append(namePairList, pair));
+                if (kbNamePartitionMaxPairs > 0 && namePairList.size() >= kbNamePartitionMaxPairs)
+                    startPartitionedNames(slotAddr);
+            }
+            return subslotName;
+        }
+
+        // Otherwise, make sure the value's F partition is a marker, and then add to the P
+        // partitions.
+        NamePartitionState state = new NamePartitionState(stateValue);
+        if (namePairList == null) {
+            slsm.put(namePartitionSlot, NAME_PARTITION_MARKER);
+            addNameDirectoryEntry(slotAddr, namePartitionHash);
+        } else {
+            migrateNamePartition(slotAddr, namePartitionHash, namePairList, state);
+        }
+
+        final String partitionSlot = slotAddr + getPartitionedNameHash(state.partitionFor(refVal.hashCode()));
+        RTWListValue partition = slsm.get(partitionSlot);
+        String subslotName = getNewPartitionedName(slotAddr, refVal, partition);
+        RTWValue pair = new RTWImmutableListValue(refVal, new RTWStringValue(subslotName));
+        addPartitionedPair(slotAddr, state, pair);
+
+        migratePendingNamePartitions(slotAddr, state, kbNamePartitionMigrateBatch);
+        slsm.put(slotAddr + NAME_PARTITION_STATE_SUFFIX, state.toRTWListValue());
+        return subslotName;
+    }
+
+    /**
+     * Switch the slot with the given address over to the P scheme, queuing up all of its F
+     * partitions for migration
+     */
+    protected void startPartitionedNames(String slotAddr) {
+        log.debug("Switching \"" + slotAddr + "\" to resizable name partitions");
+        RTWListValue nameDirectory = slsm.get(slotAddr + "  D");
+        if (nameDirectory != null)
+            slsm.put(slotAddr + NAME_PARTITION_PENDING_SUFFIX, RTWImmutableListValue.copy(nameDirectory));
+        NamePartitionState state = new NamePartitionState(null);
+        migratePendingNamePartitions(slotAddr, state, kbNamePartitionMigrateBatch);
+        slsm.put(slotAddr + NAME_PARTITION_STATE_SUFFIX, state.toRTWListValue());
+    }
+
+    /**
+     * Add the given (value, name) pair to the appropriate P partition, splitting partitions as
+     * needed
+     *
+     * The caller is responsible for writing out the updated state.
+     */
+    protected void addPartitionedPair(String slotAddr, NamePartitionState state, RTWValue pair) {
+        final int partition = state.partitionFor(((RTWListValue)pair).get(0).hashCode());
+        final String hash = getPartitionedNameHash(partition);
+        final RTWListValue namePairList = slsm.get(slotAddr + hash);
+        slsm.put(slotAddr + hash, RTWImmutableListValue.append(namePairList, pair));
+        if (namePairList == null) addNameDirectoryEntry(slotAddr, hash);
+        state.numPairs++;
+
+        while (state.numPairs > state.getNumPartitions() * kbNamePartitionLoad)
+            splitNamePartition(slotAddr, state);
+    }
+
+    /**
+     * Split the next P partition in line for splitting
+     */
+    protected void splitNamePartition(String slotAddr, NamePartitionState state) {
+        final int partition = state.split;
+        final int sibling = partition + (1 << state.level);
+        state.split++;
+        if (state.split == (1 << state.level)) {
+            state.level++;
+            state.split = 0;
+        }
+
+        final String hash = getPartitionedNameHash(partition);
+        final RTWListValue namePairList = slsm.get(slotAddr + hash);
+        if (namePairList == null) return;
+        ArrayList<RTWValue> stay = new ArrayList<RTWValue>();
+        ArrayList<RTWValue> move = new ArrayList<RTWValue>();
+        for (RTWValue pair : namePairList) {
+            if (state.partitionFor(((RTWListValue)pair).get(0).hashCode()) == partition) stay.add(pair);
+            else move.add(pair);
+        }
+        if (move.size() == 0) return;
+        if (stay.size() == 0) {
+            slsm.remove(slotAddr + hash);
+            removeNameDirectoryEntry(slotAddr, hash);
+        } else {
+            slsm.put(slotAddr + hash, new RTWImmutableListValue(stay));
+        }
+        final String siblingHash = getPartitionedNameHash(sibling);
+        slsm.put(slotAddr + siblingHash, new RTWImmutableListValue(move));
+        addNameDirectoryEntry(slotAddr, siblingHash);
+    }
+
+    /**
+     * Move the pairs in the given F partition into the P partitions, leaving behind a marker
+     *
+     * This is a no-op if the partition has already been migrated.
+     */
+    protected void migrateNamePartition(String slotAddr, String namePartitionHash,
+            RTWListValue namePairList, NamePartitionState state) {
+        if (namePairList == null || namePairList.size() == 0) return;
+        if (!(namePairList.get(0) instanceof RTWListValue)) return;
+        for (RTWValue pair : namePairList)
+            addPartitionedPair(slotAddr, state, pair);
+        slsm.put(slotAddr + namePartitionHash, NAME_PARTITION_MARKER);
+    }
+
+    /**
+     * Migrate up to the given number of F partitions from the NAME_PARTITION_PENDING_SUFFIX queue
+     */
+    protected void migratePendingNamePartitions(String slotAddr, NamePartitionState state, int max) {
+        final String pendingSlot = slotAddr + NAME_PARTITION_PENDING_SUFFIX;
+        RTWListValue pending = slsm.get(pendingSlot);
+        if (pending == null) return;
+        ArrayList<RTWValue> remaining = new ArrayList<RTWValue>(pending);
+        for (int i = 0; i < max && remaining.size() > 0; i++) {
+            String hash = remaining.remove(remaining.size() - 1).asString();
+            if (!hash.startsWith("  #F")) continue;
+            migrateNamePartition(slotAddr, hash, slsm.get(slotAddr + hash), state);
+        }
+        if (remaining.size() == 0) slsm.remove(pendingSlot);
+        else slsm.put(pendingSlot, new RTWImmutableListValue(remaining));
+    }
+
+    /**
+     * Remove the pair for the given value from the P partitions of the slot with the given address
+     *
+     * This is the P scheme's part of cullEmptyEntries.
+     */
+    protected void removePartitionedPair(String keyPrefix, RTWValue value) {
+        final String stateSlot = keyPrefix + NAME_PARTITION_STATE_SUFFIX;
+        RTWListValue stateValue = slsm.get(stateSlot);
+        if (stateValue == null)
+            throw new RuntimeException("\"" + stateSlot + "\" doesn't exist");
+        NamePartitionState state = new NamePartitionState(stateValue);
+        final String hash = getPartitionedNameHash(state.partitionFor(value.hashCode()));
+        final String namePartitionSlot = keyPrefix + hash;
+        RTWListValue namePairList = slsm.get(namePartitionSlot);
+        if (namePairList == null)
+            throw new RuntimeException("\"" + namePartitionSlot + "\" doesn't exist");
+        ArrayList<RTWValue> newList = new ArrayList<RTWValue>();
+        for (RTWValue pair : namePairList) {
+            if (!((RTWListValue)pair).get(0).equals(value))
+                newList.add(pair);
+        }
+        if (newList.size() != namePairList.size()-1)
+            throw new RuntimeException("Deleting entry for " + value + " illegally yielded " + newList + " from " + namePairList + ", found in \"" + namePartitionSlot);
+        if (newList.size() == 0) {
+            slsm.remove(namePartitionSlot);
+            removeNameDirectoryEntry(keyPrefix, hash);
+        } else {
+            slsm.put(namePartitionSlot, new RTWImmutableListValue(newList));
+        }
+        state.numPairs--;
+
+        // If that was the last one, then clean up after ourselves, which, if migration is
+        // finished, means that all that's left in the directory are markers.
+        if (state.numPairs == 0 && slsm.get(keyPrefix + NAME_PARTITION_PENDING_SUFFIX) == null) {
+            RTWListValue nameDirectory = slsm.get(keyPrefix + "  D");
+            if (nameDirectory != null) {
+                ArrayList<RTWValue> newDirectory = new ArrayList<RTWValue>();
+                for (RTWValue h : nameDirectory) {
+                    if (h.asString().startsWith("  #F")) slsm.remove(keyPrefix + h.asString());
+                    else newDirectory.add(h);
+                }
+                if (newDirectory.size() == 0) slsm.remove(keyPrefix + "  D");
+                else slsm.put(keyPrefix + "  D", new RTWImmutableListValue(newDirectory));
+            }
+            slsm.remove(stateSlot);
+        } else {
+            slsm.put(stateSlot, state.toRTWListValue());
+        }
+    }
+
+    /**
+     * This is called by StringListStore after it has deleted a slot so that interested subclasses can
+     * override this method so as to trap this occurrence for their own purposes.
+     *
+     * It is not sufficient to override delete in order to detect all cases of a slot being deleted.
+     *
+     * The slot given will have already been deleted upon invokation.
+     *
+     * Note that the slot given will never be a top-level entity because those cannot be used as
+     * slots.  At present, StringListStore offers no way to exclusively detect the deletion of a top-level
+     * entity.  But this may be done by overriding this method and checking to see whether or not
+     * the parent of the given slot is a top-level entity, and whether or not it has any remaining
+     * subslots (since lack of subslots on a top-level entity is equivalent to nonexistence of that
+     * top-level entity).
+     */
+    protected void signalDeleteSlot(RTWLocation slot) {
+        // No-op, as far as StringListStore is concerned.
+    }
+
+    /**
+     * Primitive delete of a single element from a slot
+     *
+     * It is assumed that the value being deleted does actually exist.  If it does not, then the
+     * resulting behavior is undefined; for efficiency purposes, this will not verify existence.
+     *
+     * Note that, because top-level slots cannot be used as slots, that the given location will have
      * at at least two elements.
      *
      * This is factored out of delete so that subclasses can easily overide this in order to trap
@@ -981,6 +1917,11 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
      * element, or maybe subclasses could be forced to also do fast batch deletes.  We could
      * probably also call cullEmptyEntries less often if we got clever.
      *
+     * 2019-03: Deletes of entire slots now do get clever: delete still calls this once for each
+     * value, but with the slot registered in bulkDeletes, in which case this only deletes subslots
+     * on the value and leaves the slot itself for delete to remove all at once.  So subclasses
+     * trapping this method still see every value go by.
+     *
      * Deleting the last remaining value in a slot is equivalent to deleting that slot, and so this
      * method may entail a slot delete.  When it does so, it will call signalDeleteSlot afterward so
      * that subclasses may trap this condition.  Trapping delete is not sufficient to catch all
@@ -1021,11 +1962,22 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
                 }
             }
 
+            // If this slot is being deleted wholesale, then delete will remove all of its values
+            // in one go once it has called us for each of them.  All we have to do is note that
+            // this one is done.
+            HashSet<RTWValue> bulkDeleted = bulkDeletes.get().get(slotAddr);
+            if (bulkDeleted != null) {
+                bulkDeleted.add(value);
+                return;
+            }
+
             // We'll want to re-fetch what we're about to delete in case our subslot deletes
             // above entailed any funny business (e.g. from a subclass)
             RTWListValue curVal = slsm.get(slotAddr);
             if (curVal == null) {
-                return;  // Our work is already done
+                // Maybe it's segmented; otherwise our work is already done
+                if (haveSegmentedSlots) deleteSegmentedValue(location, slotAddr, value);
+                return;
             }
             if (!curVal.contains(value)) {
                 return;  // Our work is already done
@@ -1036,7 +1988,7 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
                 signalDeleteSlot(location);
             } else {
                 if (curVal instanceof RTWSetListValue) {
-                    if (curVal instanceof RTWImmutableSetListValue) {
+                    if (curVal instanceof RTWImmutableSetListValue || useEntityLocks) {
                         if (curVal.size() > kbMaxListSize) {
                             RTWSetListValue newVal = RTWSetListValue.copy(curVal);
                             newVal.remove(value);
@@ -1052,7 +2004,7 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
                         slsm.put(slotAddr, curVal);  // Notifies slsm to mark this entry dirty
                     }
                 } else if (curVal instanceof RTWArrayListValue) {
-                    if (curVal instanceof RTWImmutableListValue) {
+                    if (curVal instanceof RTWImmutableListValue || useEntityLocks) {
                         if (curVal.size() > kbMaxListSize) {
                             RTWSetListValue newVal = RTWSetListValue.copy(curVal);
                             newVal.remove(value);
@@ -1100,245 +2052,845 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
     }
 
     /**
-     * So this is basically all about recursive slotlist deletion and possibly cleaning up a subslot
-     * partition and directory entry?  Yes -- it's the other "half" of having deleted a slot.  It is
-     * responsible for deleting any parent slots that no longer need to exist as a result of this
-     * slot no longer needing to exist.
+     * So this is basically all about recursive slotlist deletion and possibly cleaning up a subslot
+     * partition and directory entry?  Yes -- it's the other "half" of having deleted a slot.  It is
+     * responsible for deleting any parent slots that no longer need to exist as a result of this
+     * slot no longer needing to exist.
+     *
+     * So, for outside calliers (i.e. deleteValue when it deletes the only remaining
+     * value in a slot), location should be a slot that just became empty and whose slot address (as
+     * returned by constructSlotAddr) has therefore just been removed from the underlying DB.
+     *
+     * This may call itself recursively with a location that ends in an element ref, which
+     * potentially includes some cleanup (as detailed within the source), but which necessarily
+     * terminates the recursion.
+     */
+    protected void cullEmptyEntries(RTWLocation location) {
+        try {
+            // log.debug("bkdb: cEE(" + location + ")");
+            // If l ends in a subslot name, and there's nothing there and it has no subslots, then
+            // we should delete the subslotlist entry for this location and then recurse into the
+            // parent (if there is one).  This also works when location contains only an entity
+            // name.
+            if (location.endsInSlot()) {
+                // FODO: this seems like a place where we're computing the slot address more often
+                // than we need to needlessly (although arguably we shouldn't sweat it and just make
+                // a custom RTWLocation instead).  I'm content to leave this as-is until we have a
+                // reason to believe that this winds up being a problematic drag.  Deletes are not
+                // our most common operation.
+                String key = constructSlotAddr(location, false);
+                if (!slotExists(key) && getSubslots(location) == null) {
+                    if (location.size() > 1) {
+                        RTWLocation parentLocation = location.parent();
+                        String parentKey = constructSlotAddr(parentLocation, false);
+                        slotlistCache.removeSlot(parentKey, new RTWStringValue(location.lastAsSlot()), true);
+                        cullEmptyEntries(parentLocation);
+                    }
+                }
+            }
+
+            // Operation here is similar, right down to finding out whether any subslots exist under
+            // the indicated value.  But once we do hit this case, we stop recursing; a value does
+            // not get deleted from a slot simply because it enters a state of having no subslots.
+            else {
+                // If subslots exist, don't blow this value away
+                if (getSubslots(location) != null) return;
+
+                // OK, blow it away.
+                RTWValue value = location.lastAsValue();
+                if (slotAddrCache != null) slotAddrCache.invalidate(location);
+                String keyPrefix = constructSlotAddr(location.parent(), false);
+                String namePartitionHash = getNamePartitionHash(value);
+                String namePartitionSlot = keyPrefix + namePartitionHash;
+                RTWListValue namePairList = slsm.get(namePartitionSlot);
+                if (namePairList == null)
+                    throw new RuntimeException("\"" + namePartitionSlot + "\" doesn't exist");
+                if (namePairList.size() > 0 && !(namePairList.get(0) instanceof RTWListValue)) {
+                    // A marker, so look in the P partitions
+                    removePartitionedPair(keyPrefix, value);
+                } else if (namePairList.size() == 1) {
+                    if (!((RTWListValue)namePairList.get(0)).get(0).equals(value))
+                        throw new RuntimeException("Failed to find \"" + value + "\" in \"" + namePartitionSlot + "\"");
+                    slsm.remove(namePartitionSlot);
+
+                    // In this case, because we've deleted the partition slot, we also have to
+                    // remove the hash for this partition slot from the directory slot
+                    removeNameDirectoryEntry(keyPrefix, namePartitionHash);
+                } else {
+                    ArrayList<RTWValue> newList = new ArrayList<RTWValue>();
+                    for (RTWValue pair : namePairList) {
+                        if (!((RTWListValue)pair).get(0).equals(value))
+                            newList.add(pair);
+                    }
+                    if (newList.size() != namePairList.size()-1)
+                        throw new RuntimeException("Deleting entry for " + value + " illegally yielded " + newList + " from " + namePairList + ", found in \"" + namePartitionSlot);
+                    slsm.put(namePartitionSlot, new RTWImmutableListValue(newList));
+                }
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("cullEmptyEntries(" + location + ")", e);
+        }
+    }
+
+    // this can return null (e.g. subslot under nonexistent value).
+    //
+    // FODO: we should probably rework this later on to properly adhere to all of the constraints
+    // that have since come into play, e.g. RTWElementRef as second element constitues an illegal
+    // location.
+    protected String constructSlotAddr(final RTWLocation l, boolean createLocation) {
+        // 2019-03: We used to munge this into a regular String one element at a time, which
+        // amounted to copying the whole thing over again for every element.  Now we build it up
+        // in a reusable per-thread StoreMapKey and only make a String out of it at the end.  The
+        // name partition lookups along the way are done directly with the StoreMapKey.
+        final StoreMapKey key = addrKey.get().reset();
+        boolean haveAddr = false;
+        try {
+            // Pick up from wherever slotAddrCache leaves off
+            int start = 0;
+            SlotAddrCache.Node node = null;
+            final SlotAddrCache cache = slotAddrCache;
+            if (cache != null) {
+                node = cache.find(l, createLocation);
+                start = node.depth;
+                if (start > 0) {
+                    if (start == l.size()) return node.key;
+                    key.append(node.key);
+                    haveAddr = true;
+                }
+            }
+
+            for (int i = start; i < l.size(); i++) {
+                if (!l.isSlot(i)) {
+                    RTWValue refVal = l.getAsElement(i).getVal();
+                    if (!haveAddr)
+                        throw new RuntimeException("First element of RTWLocation must be an entity name");
+                    String namePartitionHash = getNamePartitionHash(refVal);
+                    String subslotName = findValueName(key, refVal, namePartitionHash);
+                    if (subslotName == null) {
+                        // No subslots on the value indidcated in refVal.  So create the given
+                        // subslot if this is a write and otherwise return a null database key to
+                        // indicate the lack of a value.
+                        if (!createLocation) return null;
+                        if (isReadOnly())
+                            throw new RuntimeException("Can't set createLocation=true when in read-only mode");
+
+                        // We'd best make sure that the value we're supposed to be adding a subslot
+                        // for actually exists.
+                        final String slotAddr = key.toString();
+                        if (!slotExists(slotAddr))
+                            throw new RuntimeException("Cannot create subslot on value " + refVal + " of \"" + slotAddr + "\" because that slot has no values");
+                        if (!slotContains(slotAddr, refVal))
+                            throw new RuntimeException("Cannot create subslot on value " + refVal + " of \"" + slotAddr + "\" because it only contains values " + getSlotValues(slotAddr));
+
+                        // Map the value to a new subslot name in the value subslot name partition
+                        // slot
+                        subslotName = createValueName(slotAddr, refVal, namePartitionHash);
+                    }
+
+                    key.append(subslotName);
+                }
+                
+                // Handle a subslot
+                else {
+                    String regularString = l.getAsSlot(i);
+                    if (regularString.indexOf('"') >= 0)
+                        throw new RuntimeException("Slot address contains a double-quote, indicating an error");
+                    if (regularString.length() == 0)
+                        throw new RuntimeException("Illegal empty string in element " + i + " of RTWLocation");
+                    if (regularString.charAt(0) == '=')
+                        throw new RuntimeException("The \"=\" prefix to denote an RTWElementRef is no longer supported in the way that it used to be.");
+                    if (!haveAddr) {
+                        if (preventUppercase) {
+                            // This is a faster way to check for lowercasing than toLowerCase.  This
+                            // does in fact make a difference e.g. during relation kN checking.  In
+                            // fact, that whole place might be a good case study for how to spend
+                            // less time converting a slot list to a DB location (short of caching
+                            // results, which I'm not sure would be really that easy to do
+                            // effectively).
+                            int len = regularString.length();
+                            for (int j = 0; j < len; j++) {
+                                char c = regularString.charAt(j);
+                                if (c >= 'A' && c <= 'Z')
+                                    throw new RuntimeException("bkdb: lowercasing error at " + regularString);
+                            }
+                        }
+                        haveAddr = true;
+                    } else {
+                        if (createLocation)
+                            slotlistCache.addSlot(key.toString(), new RTWStringValue(regularString)); // FODO: we might be able to reuse an RTWStringValue from above, but not worth trying to work that out until we have bk:entityref and RTWLocationRef sorted
+
+                        // Note that we do the translation below after manipulating the slotlist;
+                        // the slotlist does not contain translated names.  Not sure that it would
+                        // be a valuable time/space tradeoff -- we'd probably have to put the
+                        // translation inside the slotlist class itself and cache the translations
+                        // for speed, which is probably not worth the effort.
+                        key.append(' ');
+                    }
+
+                    // Run the subslot through subslotTranslationTable if we have one.  Note that
+                    // we do this after the above lowercasing check.  We also have this sleazy
+                    // translation of the "concept:" prefix because there's not all that much of a
+                    // reason to give up this easy way to save space.
+                    appendTranslatedSlot(key, regularString);
+                }
+
+                if (node != null) node = cache.add(node, l, i, i == l.size() - 1 ? key : null);
+            }
+            if (!haveAddr) return null;
+            if (node != null) return node.key;
+            return key.toString();
+        } catch (Exception e) {
+            throw new RuntimeException("While resolving RTWLocation " + l + " after \""
+                    + key + "\"", e);
+        }
+    }
+
+    /**
+     * Append the given slot name to the given key, abbreviated according to
+     * subslotTranslationTable if we have one
+     *
+     * This is factored out of constructSlotAddr so that we can avoid the substring calls that we
+     * used to make to check for and strip the "concept:" prefix.
+     */
+    protected void appendTranslatedSlot(StoreMapKey key, String slot) {
+        if (subslotTranslationTable != null) {
+            String abbreviation = subslotTranslationTable.get(slot);
+            if (abbreviation != null) {
+                key.append(abbreviation);
+                return;
+            }
+            if (slot.length() > 8 && slot.startsWith("concept:")) {
+                key.append(" C").append(slot, 8, slot.length());
+                return;
+            }
+        }
+        key.append(slot);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Segmented slots
+    //
+    // 2019-03: This is the plan mentioned up in the class comments for distributing the values of
+    // a single slot among a set of entries.  Some NELL slots (e.g. candidate slots) grow into the
+    // hundreds of thousands of values, and, stored as one RTWListValue, adding or deleting a single
+    // value costs us a rewrite and reserialization of the whole thing through slsm.put, not to
+    // mention evicting half the cache to make room for it.
+    //
+    // So once a slot grows past kbSegmentThreshold values, we move its values out of its slot
+    // address key and into a set of segment entries, assigning each value to a segment according
+    // to its hash code.  A segment directory entry records the number of segments and the total
+    // number of values in the slot.  For a slot with address "cake generalizations", and writing
+    // ^A for the control character \u0001:
+    //
+    // "cake generalizations  ^AG" -> {numSegments, numValues}
+    // "cake generalizations  ^AG0" -> the values in segment 0
+    // ...
+    // "cake generalizations  ^AG15" -> the values in segment 15
+    //
+    // with no "cake generalizations" entry at all.  add, deleteValue, containsValue, and
+    // getNumValues then need only touch one segment (plus the directory), and so cost O(segment)
+    // rather than O(slot).  Fetching all of the values of the slot is still O(slot), of course.
+    //
+    // The number of segments is always a power of two so that we can double it when the segments
+    // get to be more than twice kbSegmentSize on average, which only requires splitting each
+    // segment in two.  Going the other way, a slot whose count drops below a quarter of
+    // kbSegmentThreshold is collapsed back into a plain slot.
+    //
+    // Segment keys can't collide with anything else because no slot name contains a control
+    // character.  It would not be enough to rely on the space, because there are hidden subslots
+    // whose names start with one, such as StringListSuperStore's " P" pointers slot.  The name
+    // partition entries use the same trick.
+    //
+    // To avoid having to probe for a segment directory every time we find a slot address key to
+    // be missing, we note in a hidden " segmentedSlots" entry whether this store has ever had a
+    // segmented slot, and skip all of this if not.  Note that versions of this class that predate
+    // segmented slots will see segmented slots as empty, and so must not be used to modify a store
+    // that has any.  For that reason, kbSegmentThreshold defaults to 0, and segmenting has to be
+    // turned on explicitly for a KB that will never again be touched by such versions.  Stores
+    // that already have segmented slots are read and written correctly either way.
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Suffix appended to a slot address to form its segment directory key, and, with a segment
+     * number appended, its segment keys
+     */
+    protected final static String SEGMENT_SUFFIX = "  \u0001G";
+
+    /**
+     * Hidden entry noting that the store has (or has had) segmented slots
+     */
+    protected final static String SEGMENTED_SLOTS_KEY = " segmentedSlots";
+
+    /**
+     * Return the segment of the given number of segments into which the given value goes
+     *
+     * RTWValue hash codes are all defined in terms of the content of the value, so this is stable
+     * across JVMs.  Using the low bits means that doubling the number of segments sends the values
+     * of segment i only to segment i or segment i + numSegments.
+     */
+    protected static int segmentFor(RTWValue value, int numSegments) {
+        int h = value.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (numSegments - 1);
+    }
+
+    /**
+     * Return the segment directory for the given slot address, or null if that slot isn't
+     * segmented
+     */
+    protected RTWListValue getSegmentDirectory(String key) {
+        if (!haveSegmentedSlots) return null;
+        return slsm.get(segmentKey.get().reset().append(key).append(SEGMENT_SUFFIX));
+    }
+
+    protected void putSegmentDirectory(String key, int numSegments, int numValues) {
+        slsm.put(key + SEGMENT_SUFFIX, new RTWImmutableListValue(new RTWIntegerValue(numSegments),
+                        new RTWIntegerValue(numValues)));
+    }
+
+    protected RTWListValue getSegment(String key, int segment) {
+        final StoreMapKey k = segmentKey.get().reset().append(key).append(SEGMENT_SUFFIX);
+        k.append(Integer.toString(segment));
+        return slsm.get(k);
+    }
+
+    /**
+     * Write the given segment, or remove it if it is null or empty
+     */
+    protected void putSegment(String key, int segment, RTWListValue values) {
+        final String segKey = key + SEGMENT_SUFFIX + segment;
+        if (values == null || values.size() == 0) slsm.remove(segKey);
+        else slsm.put(segKey, values);
+    }
+
+    /**
+     * Return the given set of values in whichever container is appropriate for its size
+     */
+    protected RTWListValue makeSlotContainer(Collection<RTWValue> values) {
+        if (values.size() > kbMaxListSize) {
+            RTWSetListValue set = new RTWSetListValue(values.size());
+            set.addAll(values);
+            return set;
+        }
+        return new RTWArrayListValue(new ArrayList<RTWValue>(values));
+    }
+
+    /**
+     * Replace all values in the slot with the given address, segmented or not, with the given
+     * values
+     *
+     * Any existing segments are removed first, and the slot is written segmented or plain
+     * according to kbSegmentThreshold, so that no stale segment can outlive the replacement.
+     */
+    protected void putSlotValues(String key, RTWListValue values) {
+        RTWListValue dir = getSegmentDirectory(key);
+        if (dir != null) {
+            final int numSegments = dir.get(0).asInteger();
+            for (int i = 0; i < numSegments; i++) putSegment(key, i, null);
+            slsm.remove(key + SEGMENT_SUFFIX);
+        }
+        if (kbSegmentThreshold > 0 && values.size() > kbSegmentThreshold) {
+            segmentSlot(key, values);
+        } else {
+            slsm.put(key, values);
+        }
+    }
+
+    /**
+     * Return whether the slot with the given address has any values, segmented or not
+     */
+    protected boolean slotExists(String key) {
+        return slsm.get(key) != null || getSegmentDirectory(key) != null;
+    }
+
+    /**
+     * Return all values in the slot with the given address, segmented or not, or null if it has
+     * none
+     *
+     * For a segmented slot, this gathers up all of the segments into a new RTWSetListValue.
+     */
+    protected RTWListValue getSlotValues(String key) {
+        RTWListValue list = slsm.get(key);
+        if (list != null) return list;
+        RTWListValue dir = getSegmentDirectory(key);
+        if (dir == null) return null;
+        final int numSegments = dir.get(0).asInteger();
+        RTWSetListValue all = new RTWSetListValue(dir.get(1).asInteger());
+        for (int i = 0; i < numSegments; i++) {
+            RTWListValue segment = getSegment(key, i);
+            if (segment != null) all.addAll(segment);
+        }
+        return all;
+    }
+
+    /**
+     * Return whether the slot with the given address contains the given value, touching only one
+     * segment if it is segmented
+     */
+    protected boolean slotContains(String key, RTWValue value) {
+        RTWListValue list = slsm.get(key);
+        if (list != null) return list.contains(value);
+        RTWListValue dir = getSegmentDirectory(key);
+        if (dir == null) return false;
+        RTWListValue segment = getSegment(key, segmentFor(value, dir.get(0).asInteger()));
+        return segment != null && segment.contains(value);
+    }
+
+    /**
+     * Return the number of values in the slot with the given address
+     */
+    protected int getSlotSize(String key) {
+        RTWListValue list = slsm.get(key);
+        if (list != null) return list.size();
+        RTWListValue dir = getSegmentDirectory(key);
+        if (dir == null) return 0;
+        return dir.get(1).asInteger();
+    }
+
+    /**
+     * Return some value from the segmented slot with the given address, or null if there is none
+     */
+    protected RTWValue getAnySegmentedValue(String key) {
+        RTWListValue dir = getSegmentDirectory(key);
+        if (dir == null) return null;
+        final int numSegments = dir.get(0).asInteger();
+        for (int i = 0; i < numSegments; i++) {
+            RTWListValue segment = getSegment(key, i);
+            if (segment != null && segment.size() > 0) return segment.get(0);
+        }
+        return null;
+    }
+
+    /**
+     * Convert the plain slot with the given address and values into a segmented slot
+     */
+    protected void segmentSlot(String key, RTWListValue values) {
+        if (!haveSegmentedSlots) {
+            slsm.put(SEGMENTED_SLOTS_KEY, new RTWImmutableListValue(new RTWIntegerValue(1)));
+            haveSegmentedSlots = true;
+        }
+
+        int numSegments = 1;
+        while (numSegments * kbSegmentSize < values.size()) numSegments *= 2;
+        List<List<RTWValue>> segments = new ArrayList<List<RTWValue>>(numSegments);
+        for (int i = 0; i < numSegments; i++) segments.add(new ArrayList<RTWValue>());
+        for (RTWValue v : values)
+            segments.get(segmentFor(v, numSegments)).add(v);
+        for (int i = 0; i < numSegments; i++)
+            putSegment(key, i, makeSlotContainer(segments.get(i)));
+        putSegmentDirectory(key, numSegments, values.size());
+        slsm.remove(key);
+    }
+
+    /**
+     * Double the number of segments in the segmented slot with the given address
+     */
+    protected void splitSegments(String key, int numSegments, int numValues) {
+        for (int i = 0; i < numSegments; i++) {
+            RTWListValue segment = getSegment(key, i);
+            if (segment == null) continue;
+            List<RTWValue> stay = new ArrayList<RTWValue>(segment.size());
+            List<RTWValue> move = new ArrayList<RTWValue>(segment.size());
+            for (RTWValue v : segment) {
+                if (segmentFor(v, numSegments * 2) == i) stay.add(v);
+                else move.add(v);
+            }
+            putSegment(key, i, makeSlotContainer(stay));
+            putSegment(key, i + numSegments, makeSlotContainer(move));
+        }
+        putSegmentDirectory(key, numSegments * 2, numValues);
+    }
+
+    /**
+     * Convert the segmented slot with the given address back into a plain slot
+     */
+    protected void collapseSegments(String key, int numSegments) {
+        List<RTWValue> all = new ArrayList<RTWValue>();
+        for (int i = 0; i < numSegments; i++) {
+            RTWListValue segment = getSegment(key, i);
+            if (segment == null) continue;
+            all.addAll(segment);
+            putSegment(key, i, null);
+        }
+        slsm.remove(key + SEGMENT_SUFFIX);
+        slsm.put(key, makeSlotContainer(all));
+    }
+
+    /**
+     * add for a segmented slot with the given address and directory
+     *
+     * Value must already have been made immutable.
+     */
+    protected boolean addSegmented(String key, RTWListValue dir, RTWValue value) {
+        final int numSegments = dir.get(0).asInteger();
+        final int numValues = dir.get(1).asInteger() + 1;
+        final int segNum = segmentFor(value, numSegments);
+        RTWListValue segment = getSegment(key, segNum);
+        if (segment == null) {
+            segment = new RTWArrayListValue(value);
+        } else {
+            if (segment.contains(value)) return false;  // Enforce setness
+            if (segment instanceof RTWImmutableListValue || segment instanceof RTWImmutableSetListValue
+                    || (segment instanceof RTWArrayListValue && segment.size() >= kbMaxListSize)
+                    || useEntityLocks) {
+                ArrayList<RTWValue> tmp = new ArrayList<RTWValue>(segment.size() + 1);
+                tmp.addAll(segment);
+                tmp.add(value);
+                segment = makeSlotContainer(tmp);
+            } else {
+                segment.add(value);
+            }
+        }
+        putSegment(key, segNum, segment);
+
+        if (numValues > numSegments * kbSegmentSize * 2) splitSegments(key, numSegments, numValues);
+        else putSegmentDirectory(key, numSegments, numValues);
+        return true;
+    }
+
+    /**
+     * The part of deleteValue that actually removes the value, for a segmented slot with the given
+     * address
+     */
+    protected void deleteSegmentedValue(RTWLocation location, String key, RTWValue value) {
+        RTWListValue dir = getSegmentDirectory(key);
+        if (dir == null) return;  // Our work is already done
+        final int numSegments = dir.get(0).asInteger();
+        final int numValues = dir.get(1).asInteger() - 1;
+        final int segNum = segmentFor(value, numSegments);
+        RTWListValue segment = getSegment(key, segNum);
+        if (segment == null || !segment.contains(value)) return;  // Our work is already done
+
+        if (segment instanceof RTWImmutableListValue || segment instanceof RTWImmutableSetListValue
+                || useEntityLocks) {
+            ArrayList<RTWValue> tmp = new ArrayList<RTWValue>(segment);
+            tmp.remove(value);
+            segment = makeSlotContainer(tmp);
+        } else {
+            segment.remove(value);
+        }
+        putSegment(key, segNum, segment);
+
+        if (numValues == 0) {
+            for (int i = 0; i < numSegments; i++) putSegment(key, i, null);
+            slsm.remove(key + SEGMENT_SUFFIX);
+            cullEmptyEntries(location);
+            signalDeleteSlot(location);
+        } else if (numValues < kbSegmentThreshold / 4) {
+            collapseSegments(key, numSegments);
+        } else {
+            putSegmentDirectory(key, numSegments, numValues);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Primitive entity directory
+    //
+    // 2019-03: The only record of which primitive entities exist is that each one has a "<entity>
+    //   S" slotlist, which means that finding them all used to require going through every key in
+    // the store -- values, slotlists, name partitions, and all -- and picking out the slotlists
+    // that belong to entities rather than to slots.  On a KB with a billion keys, that's a long
+    // wait for a few million entities.
+    //
+    // So we keep a directory of primitive entities in a set of bucket entries, assigning each
+    // entity to a bucket according to the hash of its name, along with a header entry recording
+    // the number of buckets, the number of entities, and whether the directory was sealed, i.e.
+    // whether the store was last closed cleanly:
+    //
+    // " entityDirectory" -> {numBuckets, numEntities, sealed}
+    // " E0" -> the entities in bucket 0
+    // ...
+    // " E15" -> the entities in bucket 15
+    //
+    // An entity goes into the directory when its slotlist comes into being and leaves it when its
+    // slotlist goes away, which is the same as when it gains its first slot and loses its last.
+    // The names are stored as the first part of the entity's keys, i.e. after any translation by
+    // subslotTranslationTable.
+    //
+    // As with segmented slots, the number of buckets is a power of two, and it is doubled when
+    // there come to be more than twice kbEntityBucketSize entities per bucket on average.  We
+    // don't bother shrinking it back down.  Empty buckets have no entry.
+    //
+    // These keys can't collide with those of any entity because no entity name can start with a
+    // space and none of the subslotTranslationTable abbreviations start with " E".
+    //
+    // We can't trust a directory merely because it exists, because a crash could have left it
+    // half-updated.  So sealed acts as a dirty marker: it is cleared as soon as the store is opened
+    // read-write, before anything else can be written, and set again only when we close the store
+    // or make it read-only, after everything else has been written.  A directory that isn't sealed
+    // is ignored in read-only mode and rebuilt from scratch in read-write mode.  Opening read-write
+    // with the directory turned off drops it outright.
+    //
+    // Versions of this class that predate the directory know nothing of the marker and would leave
+    // a sealed directory sealed while adding and removing entities, so, as with segmented slots, a
+    // KB that has a directory must not be modified by one of them.  That is why the directory is
+    // off by default.  Setting kbEntityBucketSize turns it on, building it
+    // the next time the store is opened read-write.  When it is off, a read-write open drops any
+    // directory the store has rather than let it go stale.  Without a usable directory, iterating
+    // over primitive entities falls back on scanning the keys.
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Header entry of the primitive entity directory
+     */
+    protected final static String ENTITY_DIRECTORY_KEY = " entityDirectory";
+
+    /**
+     * Prefix to which a bucket number is appended to form the key of a directory bucket
+     */
+    protected final static String ENTITY_BUCKET_PREFIX = " E";
+
+    /**
+     * Return whether the given slot address is that of a primitive entity, i.e. whether its
+     * slotlist is the one that lists the slots of a primitive entity
+     */
+    protected static boolean isEntityAddr(String addr) {
+        return addr.indexOf(' ', 1) < 0;
+    }
+
+    /**
+     * Return the bucket of the given number of buckets into which the given stored entity name
+     * goes
+     *
+     * String.hashCode is defined by the language, so this is stable across JVMs.  As with
+     * segmentFor, doubling the number of buckets sends the entities of bucket i only to bucket i or
+     * bucket i + numBuckets.
+     */
+    protected static int entityBucketFor(String name, int numBuckets) {
+        int h = name.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (numBuckets - 1);
+    }
+
+    /**
+     * Return the given bucket of the primitive entity directory, or null if it is empty
+     */
+    protected RTWListValue getEntityBucket(int bucket) {
+        return slsm.get(ENTITY_BUCKET_PREFIX + bucket);
+    }
+
+    /**
+     * Write the given bucket of the primitive entity directory, or remove it if it is empty
+     */
+    protected void putEntityBucket(int bucket, Collection<RTWValue> names) {
+        final String key = ENTITY_BUCKET_PREFIX + bucket;
+        if (names.isEmpty()) slsm.remove(key);
+        else slsm.put(key, makeSlotContainer(names));
+    }
+
+    /**
+     * Value of the sealed field of the primitive entity directory header for a directory that can be
+     * trusted
+     *
+     * Anything else, including the -1 that we used to write while the store was open, means that
+     * the directory is not to be trusted.
+     */
+    protected final static int ENTITY_DIRECTORY_SEALED = 1;
+
+    /**
+     * Write the header of the primitive entity directory, marking it as unsealed
+     */
+    protected void putEntityDirectory() {
+        slsm.put(ENTITY_DIRECTORY_KEY, new RTWImmutableListValue(new RTWIntegerValue(numEntityBuckets),
+                        new RTWIntegerValue(numEntities), new RTWIntegerValue(0)));
+    }
+
+    /**
+     * Mark the primitive entity directory as sealed, which is what lets it be trusted the next time
+     * the store is opened
+     *
+     * This must be the last write before closing the store or making it read-only.
+     */
+    protected void sealEntityDirectory() {
+        if (numEntityBuckets == 0 || isReadOnly()) return;
+        slsm.put(ENTITY_DIRECTORY_KEY, new RTWImmutableListValue(new RTWIntegerValue(numEntityBuckets),
+                        new RTWIntegerValue(numEntities), new RTWIntegerValue(ENTITY_DIRECTORY_SEALED)));
+    }
+
+    /**
+     * Remove the primitive entity directory with the given number of buckets
      *
-     * So, for outside calliers (i.e. deleteValue when it deletes the only remaining
-     * value in a slot), location should be a slot that just became empty and whose slot address (as
-     * returned by constructSlotAddr) has therefore just been removed from the underlying DB.
+     * A crash in the middle of splitEntityBuckets can leave behind buckets beyond numBuckets, so we
+     * remove twice that many.
+     */
+    protected void dropEntityDirectory(int numBuckets) {
+        for (int i = 0; i < 2 * numBuckets; i++) slsm.remove(ENTITY_BUCKET_PREFIX + i);
+        slsm.remove(ENTITY_DIRECTORY_KEY);
+    }
+
+    /**
+     * Add the given stored entity names to the primitive entity directory
      *
-     * This may call itself recursively with a location that ends in an element ref, which
-     * potentially includes some cleanup (as detailed within the source), but which necessarily
-     * terminates the recursion.
+     * Names already present are skipped.  Each bucket is read and written once no matter how many
+     * of the names go into it, which is what lets deferred slotlist additions in bulk-load mode be
+     * recorded here in batches.
      */
-    protected void cullEmptyEntries(RTWLocation location) {
-        try {
-            // log.debug("bkdb: cEE(" + location + ")");
-            // If l ends in a subslot name, and there's nothing there and it has no subslots, then
-            // we should delete the subslotlist entry for this location and then recurse into the
-            // parent (if there is one).  This also works when location contains only an entity
-            // name.
-            if (location.endsInSlot()) {
-                // FODO: this seems like a place where we're computing the slot address more often
-                // than we need to needlessly (although arguably we shouldn't sweat it and just make
-                // a custom RTWLocation instead).  I'm content to leave this as-is until we have a
-                // reason to believe that this winds up being a problematic drag.  Deletes are not
-                // our most common operation.
-                String key = constructSlotAddr(location, false);
-                RTWListValue v = slsm.get(key);
-                if (v == null && getSubslots(location) == null) {
-                    if (location.size() > 1) {
-                        RTWLocation parentLocation = location.parent();
-                        String parentKey = constructSlotAddr(parentLocation, false);
-                        slotlistCache.removeSlot(parentKey, new RTWStringValue(location.lastAsSlot()), true);
-                        cullEmptyEntries(parentLocation);
-                    }
-                }
+    protected void addEntities(Collection<String> names) {
+        if (numEntityBuckets == 0 || names.isEmpty()) return;
+        if (useEntityLocks) {
+            synchronized (entityDirectoryLock) {
+                addEntitiesInternal(names);
             }
+        } else {
+            addEntitiesInternal(names);
+        }
+    }
 
-            // Operation here is similar, right down to finding out whether any subslots exist under
-            // the indicated value.  But once we do hit this case, we stop recursing; a value does
-            // not get deleted from a slot simply because it enters a state of having no subslots.
-            else {
-                // If subslots exist, don't blow this value away
-                if (getSubslots(location) != null) return;
+    protected void addEntitiesInternal(Collection<String> names) {
+        Map<Integer, List<RTWValue>> byBucket = new HashMap<Integer, List<RTWValue>>();
+        for (String name : names) {
+            final int bucket = entityBucketFor(name, numEntityBuckets);
+            List<RTWValue> l = byBucket.get(bucket);
+            if (l == null) {
+                l = new ArrayList<RTWValue>();
+                byBucket.put(bucket, l);
+            }
+            l.add(new RTWStringValue(name));
+        }
 
-                // OK, blow it away.
-                RTWValue value = location.lastAsValue();
-                String keyPrefix = constructSlotAddr(location.parent(), false);
-                String namePartitionHash = getNamePartitionHash(value);
-                String namePartitionSlot = keyPrefix + namePartitionHash;
-                RTWListValue namePairList = slsm.get(namePartitionSlot);
-                if (namePairList == null)
-                    throw new RuntimeException("\"" + namePartitionSlot + "\" doesn't exist");
-                if (namePairList.size() == 1) {
-                    if (!((RTWListValue)namePairList.get(0)).get(0).equals(value))
-                        throw new RuntimeException("Failed to find \"" + value + "\" in \"" + namePartitionSlot + "\"");
-                    slsm.remove(namePartitionSlot);
+        boolean changed = false;
+        for (Map.Entry<Integer, List<RTWValue>> entry : byBucket.entrySet()) {
+            final int bucket = entry.getKey();
+            RTWListValue existing = getEntityBucket(bucket);
+            Set<RTWValue> merged = new LinkedHashSet<RTWValue>();
+            if (existing != null) merged.addAll(existing);
+            final int before = merged.size();
+            merged.addAll(entry.getValue());
+            if (merged.size() == before) continue;
+            numEntities += merged.size() - before;
+            putEntityBucket(bucket, merged);
+            changed = true;
+        }
+        if (!changed) return;
 
-                    // In this case, because we've deleted the partition slot, we also have to
-                    // remove the hash for this partition slot from the directory slot
-                    String nameDirectorySlot = keyPrefix + "  D";
-                    RTWListValue v = slsm.get(nameDirectorySlot);
-                    if (v == null) {
-                        // bkisiel 2012-12-04: I don't see as this should happen, but it did for
-                        // unexpected reasons during a test on the 08m KB, so I'm relaxing this to
-                        // an error for the time being to see how things play out.
-                        // throw new RuntimeException("\"" + nameDirectorySlot + "\" doesn't exist");
-                        log.error("\"" + nameDirectorySlot + "\" doesn't exist.  Force-deleting anyway and ignoring.");
-                        slsm.remove(nameDirectorySlot);
-                    } else {
-                        ArrayList<RTWValue> newList = new ArrayList<RTWValue>(v);
-                        if (!newList.remove(new RTWStringValue(namePartitionHash)))
-                            throw new RuntimeException("\"" + namePartitionHash + "\" not found in \"" + nameDirectorySlot + "\" (" + v + ")");
-                        if (newList.size() == 0)
-                            slsm.remove(nameDirectorySlot);
-                        else
-                            slsm.put(nameDirectorySlot, new RTWImmutableListValue(newList));
-                    }
-                } else {
-                    ArrayList<RTWValue> newList = new ArrayList<RTWValue>();
-                    for (RTWValue pair : namePairList) {
-                        if (!((RTWListValue)pair).get(0).equals(value))
-                            newList.add(pair);
-                    }
-                    if (newList.size() != namePairList.size()-1)
-                        throw new RuntimeException("Deleting entry for " + value + " illegally yielded " + newList + " from " + namePairList + ", found in \"" + namePartitionSlot);
-                    slsm.put(namePartitionSlot, new RTWImmutableListValue(newList));
-                }
+        while (numEntities > 2 * kbEntityBucketSize * (long)numEntityBuckets)
+            splitEntityBuckets();
+        putEntityDirectory();
+    }
+
+    /**
+     * Remove the given stored entity name from the primitive entity directory, if present
+     */
+    protected void removeEntity(String name) {
+        if (numEntityBuckets == 0) return;
+        if (useEntityLocks) {
+            synchronized (entityDirectoryLock) {
+                removeEntityInternal(name);
             }
-        } catch (Exception e) {
-            throw new RuntimeException("cullEmptyEntries(" + location + ")", e);
+        } else {
+            removeEntityInternal(name);
         }
     }
 
-    // this can return null (e.g. subslot under nonexistent value).
-    //
-    // FODO: we should probably rework this later on to properly adhere to all of the constraints
-    // that have since come into play, e.g. RTWElementRef as second element constitues an illegal
-    // location.
-    protected String constructSlotAddr(final RTWLocation l, boolean createLocation) {
-        // So the plan is to munge this into a regular String
-        String slotAddr = null;
-        try {
-            for (int i = 0; i < l.size(); i++) {
-                if (!l.isSlot(i)) {
-                    RTWValue refVal = l.getAsElement(i).getVal();
-                    if (slotAddr == null)
-                        throw new RuntimeException("First element of RTWLocation must be an entity name");
-                    String subslotName = null;  // Next bit to put into slotAddr
-                    String namePartitionHash = getNamePartitionHash(refVal);
-                    String namePartitionSlot = slotAddr + namePartitionHash;
-                    RTWListValue namePairList = slsm.get(namePartitionSlot);
-                    boolean alreadyHavePartitionEntry = false;
-                    if (namePairList != null) {
-                        for (RTWValue v : (RTWListValue)namePairList) {
-                            RTWListValue pair = (RTWListValue)v;
-                            if (refVal.equals(pair.get(0))) {
-                                subslotName = pair.get(1).asString();
-                                alreadyHavePartitionEntry = true;
-                                break;
-                            }
-                        }
-                    }
-                    if (subslotName == null) {
-                        // No subslots on the value indidcated in refVal.  So create the given
-                        // subslot if this is a write and otherwise return a null database key to
-                        // indicate the lack of a value.
-                        if (!createLocation) return null;
-                        if (isReadOnly())
-                            throw new RuntimeException("Can't set createLocation=true when in read-only mode");
-
-                        // We'd best make sure that the value we're supposed to be adding a subslot
-                        // for actually exists.
-                        RTWListValue slotVal = slsm.get(slotAddr);
-                        if (slotVal == null)
-                            throw new RuntimeException("Cannot create subslot on value " + refVal + " of \"" + slotAddr + "\" because that slot has no values");
-                        if (!slotVal.contains(refVal))
-                            throw new RuntimeException("Cannot create subslot on value " + refVal + " of \"" + slotAddr + "\" because it only contains values " + slotVal);
-
-                        // First map the value to the new subslot name in the value subslot name
-                        // partition slot
-                        subslotName = getNewName(slotAddr, refVal, namePartitionHash, namePairList);
-                        RTWValue pair = new RTWImmutableListValue(refVal, new RTWStringValue(subslotName));
-                        if (namePairList == null) {
-                            namePairList = new RTWImmutableListValue(pair);
-                            slsm.put(namePartitionSlot, namePairList);
-                            
-                            // No pre-existing name partition slot value means that we just created
-                            // a new one, and that means that we have to add it to the name
-                            // directory slot (creating that if need be).
-                            String nameDirectorySlot = slotAddr + "  D";
-                            RTWListValue nameDirectory = slsm.get(nameDirectorySlot);
-                            slsm.put(nameDirectorySlot,
-                                    RTWImmutableListValue.append(nameDirectory,
-                                            new RTWStringValue(namePartitionHash)));
-                        } else {
-                            slsm.put(namePartitionSlot, RTWImmutableListValue.append(namePairList, pair));
-                        }
-                    }
+    protected void removeEntityInternal(String name) {
+        final int bucket = entityBucketFor(name, numEntityBuckets);
+        RTWListValue existing = getEntityBucket(bucket);
+        if (existing == null) return;
+        List<RTWValue> remaining = new ArrayList<RTWValue>(existing);
+        if (!remaining.remove(new RTWStringValue(name))) return;
+        putEntityBucket(bucket, remaining);
+        numEntities--;
+        putEntityDirectory();
+    }
 
-                    slotAddr = slotAddr + subslotName;
-                }
-                
-                // Handle a subslot
-                else {
-                    String regularString = l.getAsSlot(i);
-                    if (regularString.contains("\""))
-                        throw new RuntimeException("Slot address contains a double-quote, indicating an error");
-                    if (regularString.length() == 0)
-                        throw new RuntimeException("Illegal empty string in element " + i + " of RTWLocation");
-                    if (regularString.charAt(0) == '=')
-                        throw new RuntimeException("The \"=\" prefix to denote an RTWElementRef is no longer supported in the way that it used to be.");
-                    if (slotAddr == null) {
-                        if (preventUppercase) {
-                            // This is a faster way to check for lowercasing than toLowerCase.  This
-                            // does in fact make a difference e.g. during relation kN checking.  In
-                            // fact, that whole place might be a good case study for how to spend
-                            // less time converting a slot list to a DB location (short of caching
-                            // results, which I'm not sure would be really that easy to do
-                            // effectively).
-                            int len = regularString.length();
-                            for (int j = 0; j < len; j++) {
-                                char c = regularString.charAt(j);
-                                if (c >= 'A' && c <= 'Z')
-                                    throw new RuntimeException("bkdb: lowercasing error at " + regularString);
-                            }
-                        }
+    /**
+     * Double the number of buckets in the primitive entity directory
+     *
+     * The caller is responsible for writing the header afterward.
+     */
+    protected void splitEntityBuckets() {
+        final int newNumBuckets = numEntityBuckets * 2;
+        log.debug("Splitting primitive entity directory into " + newNumBuckets + " buckets");
+        for (int i = 0; i < numEntityBuckets; i++) {
+            RTWListValue existing = getEntityBucket(i);
+            if (existing == null) continue;
+            List<RTWValue> stay = new ArrayList<RTWValue>();
+            List<RTWValue> move = new ArrayList<RTWValue>();
+            for (RTWValue name : existing) {
+                if (entityBucketFor(name.asString(), newNumBuckets) == i) stay.add(name);
+                else move.add(name);
+            }
+            putEntityBucket(i, stay);
+            putEntityBucket(i + numEntityBuckets, move);
+        }
+        numEntityBuckets = newNumBuckets;
+    }
 
-                        // Run the subslot through subslotTranslationTable if we have one.  Note
-                        // that we do this after the above lowercasing check.  We also have this
-                        // sleazy translation of the "concept:" prefix because there's not all that
-                        // much of a reason to give up this easy way to save space.
-                        if (subslotTranslationTable != null) {
-                            String abbreviation = subslotTranslationTable.get(regularString);
-                            if (abbreviation != null) {
-                                regularString = abbreviation;
-                            } else {
-                                if (regularString.length() > 8 && regularString.substring(0, 8).equals("concept:"))
-                                    regularString = " C" + regularString.substring(8);
-                            }
-                        } 
+    /**
+     * Load the primitive entity directory header if the directory is sealed
+     *
+     * In read-write mode, this also drops a directory that is unsealed or turned off, builds one if
+     * it is turned on and there isn't a usable one, and unseals the directory for the duration.
+     */
+    protected void openEntityDirectory() {
+        numEntityBuckets = 0;
+        numEntities = 0;
+        RTWListValue dir = slsm.get(ENTITY_DIRECTORY_KEY);
+        final boolean upToDate = (dir != null && dir.size() >= 3
+                && dir.get(2).asInteger() == ENTITY_DIRECTORY_SEALED);
+
+        if (isReadOnly()) {
+            if (upToDate) {
+                numEntityBuckets = dir.get(0).asInteger();
+                numEntities = dir.get(1).asInteger();
+            } else if (dir != null) {
+                log.warn("Store's primitive entity directory is not sealed, meaning that the store is open read-write elsewhere or was not closed cleanly.  Iterating over primitive entities will require a scan of every key until it is opened read-write.");
+            }
+            return;
+        }
 
-                        slotAddr = regularString;
-                    } else {
-                        if (createLocation)
-                            slotlistCache.addSlot(slotAddr, new RTWStringValue(regularString)); // FODO: we might be able to reuse an RTWStringValue from above, but not worth trying to work that out until we have bk:entityref and RTWLocationRef sorted
-
-                        // Run the subslot through subslotTranslationTable if we have one.  Note
-                        // that we do this after manipulating the slotlist; the slotlist does not
-                        // contain translated names.  Not sure that it would be a valuable
-                        // time/space tradeoff -- we'd probably have to put the translation inside
-                        // the slotlist class itself and cache the translations for speed, which is
-                        // probably not worth the effort.  We also have this sleazy translation of
-                        // the "concept:" prefix because there's not all that much of a reason to
-                        // give up this easy way to save space.
-                        if (subslotTranslationTable != null) {
-                            String abbreviation = subslotTranslationTable.get(regularString);
-                            if (abbreviation != null) {
-                                regularString = abbreviation;
-                            } else {
-                                if (regularString.length() > 8 && regularString.substring(0, 8).equals("concept:"))
-                                    regularString = " C" + regularString.substring(8);
-                            }
-                        }
+        if (dir != null && (!upToDate || kbEntityBucketSize == 0)) {
+            if (kbEntityBucketSize > 0)
+                log.info("Store's primitive entity directory was not sealed.  Rebuilding it.");
+            dropEntityDirectory(dir.get(0).asInteger());
+            dir = null;
+        }
+        if (kbEntityBucketSize == 0) return;
+        if (dir != null) {
+            numEntityBuckets = dir.get(0).asInteger();
+            numEntities = dir.get(1).asInteger();
+            putEntityDirectory();
+            return;
+        }
+        buildEntityDirectory();
+    }
 
-                        // FODO: This turns out to be a little bit of a hotspot.  Maybe it could
-                        // help if we could optimize the case of successive subslots or whatever it
-                        // would take to do this with a single StringBuilder rather than doing it
-                        // once per iteration?
-                        slotAddr = slotAddr + " " + regularString;
-                    }
-                }
+    /**
+     * Construct a primitive entity directory for a store that lacks one
+     *
+     * This scans every key in the store, so it's something to do only once per store.  Names are
+     * added in batches of kbBulkLoadSlotlistBuffer to keep us from holding all of them at once.
+     */
+    protected void buildEntityDirectory() {
+        numEntityBuckets = 1;
+        numEntities = 0;
+        log.info("Building primitive entity directory");
+        Iterator<String> it = new PrimitiveEntityScanner();
+        List<String> batch = new ArrayList<String>();
+        while (it.hasNext()) {
+            batch.add(it.next());
+            if (batch.size() >= kbBulkLoadSlotlistBuffer) {
+                addEntities(batch);
+                batch.clear();
+                log.info("Added " + numEntities + " primitive entities to directory so far");
             }
-            return slotAddr;
-        } catch (Exception e) {
-            if (slotAddr == null) slotAddr = "";
-            throw new RuntimeException("While resolving RTWLocation " + l + " after \""
-                    + slotAddr + "\"", e);
         }
+        addEntities(batch);
+        putEntityDirectory();
+        if (numEntities > 0)
+            log.info("Done building primitive entity directory of " + numEntities + " entities in "
+                    + numEntityBuckets + " buckets");
+    }
+
+    /**
+     * Undo any translation of a stored entity name, giving the name proper
+     */
+    protected String untranslateEntity(String firstPart) {
+        if (subslotUntranslationTable != null) {
+            String untranslated = subslotUntranslationTable.get(firstPart);
+            if (untranslated != null) return untranslated;
+        }
+        if (firstPart.length() > 2 && firstPart.charAt(0) == ' ' && firstPart.charAt(1) == 'C')
+            return "concept:" + firstPart.substring(2);
+        return firstPart;
     }
 
     /**
@@ -1356,17 +2908,19 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
      * This is and can no longer be used on an element reference.
      */
     protected RTWListValue get(RTWLocation location) {
+        final Lock lock = lockEntity(location, false);
         try {
             if (location.endsInSlot()) {
                 String key = constructSlotAddr(location, false);
                 if (key == null) return null;
-                RTWListValue list = slsm.get(key);
-                return list;
+                return getSlotValues(key);
             } else {
                 throw new RuntimeException("What are you doing?");
             }
         } catch (Exception e) {
             throw new RuntimeException("get(" + location + ")", e);
+        } finally {
+            unlock(lock);
         }
     }
 
@@ -1377,7 +2931,7 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
      */
     protected void put(RTWLocation location, RTWListValue values) {
         String key = constructSlotAddr(location, true);
-        slsm.put(key, values);
+        putSlotValues(key, values);
     }
 
     /**
@@ -1472,6 +3026,18 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
         Properties properties = TheoFactory.getProperties();
         kbMaxListSize = properties.getPropertyIntegerValue("kbMaxListSize", 100);
         preventUppercase = properties.getPropertyBooleanValue("preventUppercase", false);  // bkdb: be sure to coordinate agreement on this default between InMind and NELL during the wedge merge
+        slotAddrCacheSize = properties.getPropertyIntegerValue("kbSlotAddrCacheSize", 200000);
+        kbSegmentThreshold = properties.getPropertyIntegerValue("kbSegmentThreshold", 0);
+        kbSegmentSize = Math.max(1, properties.getPropertyIntegerValue("kbSegmentSize", 1000));
+        kbNamePartitionMaxPairs = properties.getPropertyIntegerValue("kbNamePartitionMaxPairs", 0);
+        kbNamePartitionLoad = Math.max(1, properties.getPropertyIntegerValue("kbNamePartitionLoad", 8));
+        kbNamePartitionMigrateBatch = properties.getPropertyIntegerValue("kbNamePartitionMigrateBatch", 4);
+        kbBulkLoadSlotlistBuffer = Math.max(1, properties.getPropertyIntegerValue("kbBulkLoadSlotlistBuffer", 1000000));
+        kbEntityBucketSize = Math.max(0, properties.getPropertyIntegerValue("kbEntityBucketSize", 0));
+        kbConcurrentWrites = properties.getPropertyBooleanValue("kbConcurrentWrites", false);
+        kbLockStripes = Integer.highestOneBit(Math.max(1, properties.getPropertyIntegerValue("kbLockStripes", 1024)));
+        entityLocks = new ReentrantReadWriteLock[kbLockStripes];
+        for (int i = 0; i < kbLockStripes; i++) entityLocks[i] = new ReentrantReadWriteLock();
     }
     
     @Override public RTWLocation getLoc(RTWLocation l) {
@@ -1513,6 +3079,8 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
             // because otherwise the subslotTranslationTable entry will be given a slotlist.
             slotlistCache = new SlotlistCache();
             slotlistCache.updateSlotlistsIfNecessary();
+            haveSegmentedSlots = (slsm.get(SEGMENTED_SLOTS_KEY) != null);
+            openEntityDirectory();
 
             // If this is a fresh database, then use a translation table
             subslotTranslationTable = null;
@@ -1725,7 +3293,12 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
                 for (Map.Entry<String, String> entry : subslotTranslationTable.entrySet())
                     subslotUntranslationTable.put(entry.getValue(), entry.getKey());
             }
-            
+
+            // Translations depend on subslotTranslationTable, so this has to come after that's
+            // been settled.
+            slotAddrCache = (slotAddrCacheSize > 0 ? new SlotAddrCache(slotAddrCacheSize) : null);
+
+            if (kbConcurrentWrites && !openInReadOnlyMode) setConcurrentWrites(true);
         } catch (Exception e) {
             throw new RuntimeException("open(\"" + filename + "\", " + openInReadOnlyMode + ")", e);
         }
@@ -1745,14 +3318,19 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
     @Override public void setReadOnly(boolean makeReadOnly) {
         if (makeReadOnly) {
             if (isReadOnly()) return;
+            slotlistCache.setBulkLoad(false);
+            sealEntityDirectory();
             String currentLocation = slsm.getLocation();
             slsm.close();
             slsm.open(currentLocation, true);
+            useEntityLocks = false;
         } else {
             if (!isReadOnly()) return;
             String currentLocation = slsm.getLocation();
             slsm.close();
             slsm.open(currentLocation, false);
+            openEntityDirectory();
+            useEntityLocks = concurrentWrites;
         }
     }
 
@@ -1764,18 +3342,152 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
     }
 
     @Override public void flush(boolean sync) {
+        if (slotlistCache != null) slotlistCache.flushPendingSlots();
         slsm.flush(sync);
     }
 
+    /**
+     * Enter or leave bulk-load mode
+     *
+     * 2019-03: Building a KB from scratch (e.g. importing an HFT file into an empty KB) spends
+     * much of its time maintaining slotlists.  Every write with createLocation has to fetch the
+     * slotlist of each slot along the way to see if it needs adding to, and the fetch can't be
+     * served from the StoreMap's cache when that has been turned off or overrun, as is the
+     * norm for a big load.  In bulk-load mode, slotlist additions are instead collected in memory
+     * and written out in sorted batches of kbBulkLoadSlotlistBuffer.  getSubslots merges in
+     * whatever is pending, so everything reads back the same as usual in the meantime.
+     *
+     * Leaving bulk-load mode writes out whatever remains pending, as does close.
+     */
+    public void setBulkLoad(boolean bulkLoad) {
+        if (slotlistCache == null)
+            throw new RuntimeException("Store is not open");
+        if (bulkLoad && isReadOnly())
+            throw new RuntimeException("Can't enter bulk-load mode in read-only mode");
+        if (bulkLoad && concurrentWrites)
+            throw new RuntimeException("Can't enter bulk-load mode in concurrent-writes mode");
+        slotlistCache.setBulkLoad(bulkLoad);
+    }
+
+    /**
+     * Return whether we are in bulk-load mode
+     */
+    public boolean isBulkLoad() {
+        return slotlistCache != null && slotlistCache.pendingSlots != null;
+    }
+
+    /**
+     * Enter or leave concurrent-writes mode
+     *
+     * 2019-03: Normally, this class is threadsafe only in read-only mode, meaning that something
+     * like a multithreaded learner updating beliefs has to put one big lock around the whole KB.
+     * In concurrent-writes mode, we instead lock at the granularity of the primitive entity that a
+     * location begins with: reads take the read lock and writes the write lock of one of
+     * kbLockStripes ReentrantReadWriteLocks chosen by the hash of the entity name.  Everything that
+     * a read or write of a location touches (its slot, its slotlists, its name partitions, its
+     * segments) lives under keys beginning with that entity, and so writers working on different
+     * entities need not wait on each other beyond any collisions of lock stripes.
+     *
+     * The exceptions are the primitive entity directory, which gets a lock of its own, and
+     * anything that touches more than one entity, such as StringListSuperStore's maintenance of its
+     * hidden pointers slots.  Operations like that must take crossEntityLock before taking any
+     * entity lock (see {@link lockEntities}), which serializes them with respect to each other
+     * while leaving single-entity operations to go about their business.  Because a single-entity
+     * operation never waits on a second lock while holding its first, this is deadlock-free.
+     *
+     * Individual Store operations are atomic with respect to one another; sequences of them are
+     * not.  Slot containers are copy-on-write in this mode: rather than adding or removing a value
+     * in place, as we otherwise do to a mutable container fetched from the StoreMap, a write puts a
+     * new container, so that a container handed out by get or cached by the StoreMap never changes
+     * under a reader that is no longer holding the lock.
+     *
+     * This requires a StoreMap that is threadsafe in read-write mode (see {@link
+     * StringListStoreMap.isThreadsafe}), and can't be combined with bulk-load mode.  Locks are not
+     * taken in read-only mode.  The kbConcurrentWrites property enters this mode automatically
+     * upon opening read-write.
+     */
+    public void setConcurrentWrites(boolean concurrentWrites) {
+        if (concurrentWrites) {
+            if (!slsm.isThreadsafe())
+                throw new RuntimeException("Concurrent-writes mode requires a threadsafe StoreMap, which "
+                        + slsm.getClass().getName() + " is not");
+            if (isBulkLoad())
+                throw new RuntimeException("Can't enter concurrent-writes mode in bulk-load mode");
+        }
+        this.concurrentWrites = concurrentWrites;
+        useEntityLocks = concurrentWrites && !isReadOnly();
+    }
+
+    /**
+     * Return whether we are in concurrent-writes mode
+     */
+    public boolean isConcurrentWrites() {
+        return concurrentWrites;
+    }
+
+    /**
+     * Take the read or write lock for the primitive entity that the given location begins with,
+     * returning it, or return null if we are not taking locks
+     */
+    protected Lock lockEntity(RTWLocation location, boolean write) {
+        if (!useEntityLocks) return null;
+        return lockEntity(location.getPrimitiveEntity(), write);
+    }
+
+    protected Lock lockEntity(String entity, boolean write) {
+        if (!useEntityLocks) return null;
+        int h = entity.hashCode() * 0x9E3779B9;
+        ReentrantReadWriteLock rwl = entityLocks[(h ^ (h >>> 16)) & (entityLocks.length - 1)];
+        Lock l = write ? rwl.writeLock() : rwl.readLock();
+        l.lock();
+        return l;
+    }
+
+    /**
+     * Unlock the given lock returned by lockEntity or lockEntities, if any
+     */
+    protected static void unlock(Lock lock) {
+        if (lock != null) lock.unlock();
+    }
+
+    /**
+     * Take crossEntityLock followed by the write locks for the primitive entities of the given
+     * locations, returning something to pass to {@link unlockEntities}, or null if we are not
+     * taking locks
+     *
+     * This is for operations involving more than one entity.  Further entity locks may be taken
+     * while these are held.
+     */
+    protected List<Lock> lockEntities(RTWLocation... locations) {
+        if (!useEntityLocks) return null;
+        crossEntityLock.lock();
+        List<Lock> locks = new ArrayList<Lock>(locations.length + 1);
+        locks.add(crossEntityLock);
+        for (RTWLocation location : locations)
+            locks.add(lockEntity(location, true));
+        return locks;
+    }
+
+    protected static void unlockEntities(List<Lock> locks) {
+        if (locks == null) return;
+        for (int i = locks.size() - 1; i >= 0; i--) unlock(locks.get(i));
+    }
+
     /**
      * Close the Store.  This should always be called when done using the KB.
      */
     @Override public void close() {
+        if (slotlistCache != null) slotlistCache.setBulkLoad(false);
+        if (isOpen()) sealEntityDirectory();
+        concurrentWrites = false;
+        useEntityLocks = false;
         slsm.close();
         slotlistCache = null;
+        slotAddrCache = null;
     }
 
     @Override public void copy(String filename) {
+        if (slotlistCache != null) slotlistCache.flushPendingSlots();
         slsm.copy(filename);
     }
 
@@ -1784,24 +3496,48 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
     }
 
     @Override public RTWListValue getSubslots(RTWLocation location) {
+        final Lock lock = lockEntity(location, false);
         try {
             String key = constructSlotAddr(location, false);
             if (key == null) return null;
             return slotlistCache.getSubslots(key);
         } catch (Exception e) {
             throw new RuntimeException("getSubslots(" + location + ")", e);
+        } finally {
+            unlock(lock);
         }
     }
 
     @Override public int getNumValues(RTWLocation location) {
         // We can make this more efficient once we have natively-stored sets
+        if (location.endsInSlot()) {
+            final Lock lock = lockEntity(location, false);
+            try {
+                String key = constructSlotAddr(location, false);
+                if (key == null) return 0;
+                return getSlotSize(key);
+            } finally {
+                unlock(lock);
+            }
+        }
         RTWValue v = get(location);
         if (v == null) return 0;
-        if (location.endsInSlot()) return ((RTWListValue)v).size();
         else return 1;
     }
 
     @Override public boolean add(RTWLocation location, RTWValue value) {
+        final Lock lock = lockEntity(location, true);
+        try {
+            return addLocked(location, value);
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    /**
+     * Guts of add, to be called with the entity lock held (see {@link setConcurrentWrites})
+     */
+    protected boolean addLocked(RTWLocation location, RTWValue value) {
         try {
             if (isReadOnly())
                 throw new RuntimeException("Cannot add when in read-only mode");
@@ -1834,6 +3570,9 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
                 if (value instanceof RTWListValue && !(value instanceof RTWImmutableListValue))
                     value = RTWImmutableListValue.copy((RTWListValue)value);
 
+                RTWListValue dir = getSegmentDirectory(key);
+                if (dir != null) return addSegmented(key, dir, value);
+
                 slsm.put(key, new RTWArrayListValue(value));
                 return true;
             } else {
@@ -1843,8 +3582,14 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
                 if (value instanceof RTWListValue && !(value instanceof RTWImmutableListValue))
                     value = RTWImmutableListValue.copy((RTWListValue)value);
 
-                if (curVal instanceof RTWArrayListValue) {
-                    if (!(curVal instanceof RTWImmutableListValue) && curVal.size() <= kbMaxListSize) {
+                if (kbSegmentThreshold > 0 && curVal.size() >= kbSegmentThreshold) {
+                    ArrayList<RTWValue> tmp = new ArrayList<RTWValue>(curVal.size() + 1);
+                    tmp.addAll(curVal);
+                    tmp.add(value);
+                    segmentSlot(key, new RTWArrayListValue(tmp));
+                } else if (curVal instanceof RTWArrayListValue) {
+                    if (!(curVal instanceof RTWImmutableListValue) && curVal.size() <= kbMaxListSize
+                            && !useEntityLocks) {
                         curVal.add(value);
                         slsm.put(key, curVal);  // Notifies slsm that this key is dirty
                     } else if (curVal.size() > kbMaxListSize) {
@@ -1855,7 +3600,8 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
                         slsm.put(key, curVal);
                     }
                 } else if (curVal instanceof RTWSetListValue) {
-                    if (!(curVal instanceof RTWImmutableSetListValue) && curVal.size() >= kbMaxListSize) {
+                    if (!(curVal instanceof RTWImmutableSetListValue) && curVal.size() >= kbMaxListSize
+                            && !useEntityLocks) {
                         curVal.add(value);
                         slsm.put(key, curVal);  // Notifies slsm that this key is dirty
                     } else if (curVal.size() >= kbMaxListSize) {
@@ -1876,7 +3622,62 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
         }
     }
 
+    /**
+     * The bulk half of deleting a whole slot (see the comments in delete)
+     *
+     * key is the address of the slot at location, and values is its current content.  Returns
+     * whether anything was deleted.
+     */
+    protected boolean bulkDeleteSlot(RTWLocation location, String key, RTWListValue values) {
+        final HashMap<String, HashSet<RTWValue>> bulk = bulkDeletes.get();
+        if (bulk.containsKey(key)) return false;  // Already underway further up the stack
+        final HashSet<RTWValue> deleted = new HashSet<RTWValue>();
+        bulk.put(key, deleted);
+        try {
+            // Snapshot the values because a mutable slot container could be changed under us
+            for (RTWValue value : values.toArray(new RTWValue[values.size()])) {
+                if (!deleted.contains(value)) deleteValue(location, value);
+            }
+        } finally {
+            bulk.remove(key);
+        }
+        if (deleted.isEmpty()) return false;
+
+        // Now remove everything that deleteValue was asked to delete in one pass
+        RTWListValue curVal = getSlotValues(key);
+        if (curVal == null) return true;
+        ArrayList<RTWValue> remaining = new ArrayList<RTWValue>();
+        for (RTWValue v : curVal)
+            if (!deleted.contains(v)) remaining.add(v);
+        if (remaining.isEmpty()) {
+            RTWListValue dir = getSegmentDirectory(key);
+            if (dir != null) {
+                final int numSegments = dir.get(0).asInteger();
+                for (int i = 0; i < numSegments; i++) putSegment(key, i, null);
+                slsm.remove(key + SEGMENT_SUFFIX);
+            }
+            slsm.remove(key);
+            cullEmptyEntries(location);
+            signalDeleteSlot(location);
+        } else {
+            putSlotValues(key, makeSlotContainer(remaining));
+        }
+        return true;
+    }
+
     @Override public boolean delete(RTWLocation location, boolean errIfMissing, boolean recursive) {
+        final Lock lock = lockEntity(location, true);
+        try {
+            return deleteLocked(location, errIfMissing, recursive);
+        } finally {
+            unlock(lock);
+        }
+    }
+
+    /**
+     * Guts of delete, to be called with the entity lock held (see {@link setConcurrentWrites})
+     */
+    protected boolean deleteLocked(RTWLocation location, boolean errIfMissing, boolean recursive) {
         // log.debug("SLS: delete(" + location + ", " + errIfMissing + ", " + recursive + ")"); //bkdb
         try {
             if (isReadOnly())
@@ -1892,20 +3693,42 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
                     if (errIfMissing) throw new RuntimeException("No such slot");
                     return false;
                 }
-                RTWListValue curVal = slsm.get(key);
-                if (curVal == null && !recursive) {
+                if (!recursive && !slotExists(key)) {
                     if (errIfMissing) throw new RuntimeException("Slot has no value");
                     return false;
                 }
+                RTWListValue curVal;
+                boolean deletedSomething = false;
+
+                // 2019-03: Deleting the values one at a time, as below, costs O(n^2) for a slot
+                // with n values because each deleteValue rewrites what's left of the slot.  So we
+                // first go through all of the values, calling deleteValue on each so that it
+                // deletes any subslots on them and so that subclasses overriding deleteValue get
+                // their usual crack at each one, but with this slot registered in bulkDeletes so
+                // that deleteValue doesn't touch the slot itself.  Then we remove the whole slot
+                // in one go.
+                //
+                // Should the slot wind up with anything in it that deleteValue wasn't asked to
+                // delete (e.g. something added by a subclass in the meantime), we put that back,
+                // and the iterative loop below takes care of it.
+                curVal = getSlotValues(key);
+                if (curVal != null && curVal.size() > 0)
+                    deletedSomething = bulkDeleteSlot(location, key, curVal);
 
                 // Use this iterative fetch-and-delete to reduce the possiblity of some subclass
                 // overriding deleteValue in such a way that the slot we're operating on changes
                 // in ways other than we might expect from the primitive deletes we're
                 // performing here.
-                boolean deletedSomething = false;
                 while (true) {
                     curVal = slsm.get(key);
-                    if (curVal == null) break;
+                    if (curVal == null) {
+                        // Segmented slots get deleted one value at a time as well
+                        RTWValue v = getAnySegmentedValue(key);
+                        if (v == null) break;
+                        deleteValue(location, v);
+                        deletedSomething = true;
+                        continue;
+                    }
 
                     // Shouldn't have zero-length lists stored, but this is not irrecoverable, and
                     // it does occurr in older KBs, so we'll autofix it and complain loudly to the
@@ -1943,10 +3766,18 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
                 }
 
                 // If a recursive delete, then delete all subslots as well.  Again use
-                // fetch-and-delete loop.
+                // fetch-and-delete loop, but with a pass over a snapshot of the subslots first so
+                // that we aren't re-fetching the slotlist for every one of them.
                 if (recursive) {
+                    RTWListValue subslots = getSubslots(location);
+                    if (subslots != null) {
+                        for (RTWValue subslot : new ArrayList<RTWValue>(subslots)) {
+                            if (delete(location.subslot(subslot.asString()), false, true))
+                                deletedSomething = true;
+                        }
+                    }
                     while (true) {
-                        RTWListValue subslots = getSubslots(location);
+                        subslots = getSubslots(location);
                         if (subslots == null) break;
 
                         // bkisiel 2013-02-18: We used to have errIfMissing=false here, but I don't
@@ -1977,16 +3808,15 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
                 }
 
                 RTWValue value = location.lastAsValue();
-                RTWListValue curVal = slsm.get(key);
-                if (curVal == null) {
+                if (!slotExists(key)) {
                     if (errIfMissing) throw new RuntimeException("Slot has no value");
                     return false;
                 }
 
-                if (!curVal.contains(value)) {
+                if (!slotContains(key, value)) {
                     if (errIfMissing) 
                         throw new RuntimeException(value + " not found in \""
-                                + key + "\" (" + curVal + ")");
+                                + key + "\" (" + getSlotValues(key) + ")");
                     return false;
                 }
 
@@ -2008,7 +3838,32 @@ public class StringListStore<SLSM extends StringListStoreMap> implements Store {
     }
 
     @Override public Iterator<String> getPrimitiveEntityIterator() {
-        return new PrimitiveEntityIterator();
+        return Spliterators.iterator(getPrimitiveEntitySpliterator());
+    }
+
+    /**
+     * 2019-03: With a primitive entity directory, this splits by ranges of directory buckets.
+     * Without one, we're stuck with a scan of every key, which doesn't split in any useful way.
+     */
+    @Override public Spliterator<String> getPrimitiveEntitySpliterator() {
+        // Primitive entities are recorded along with their slotlists, so those had better all be
+        // there
+        if (slotlistCache != null) slotlistCache.flushPendingSlots();
+        if (numEntityBuckets > 0) return new EntityDirectorySpliterator(0, numEntityBuckets);
+        final Iterator<String> it = new PrimitiveEntityScanner();
+        return Spliterators.spliteratorUnknownSize(new Iterator<String>() {
+                @Override public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override public String next() {
+                    return untranslateEntity(it.next());
+                }
+
+                @Override public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            }, Spliterator.DISTINCT | Spliterator.NONNULL);
     }
 
     // bkisiel 2012-05-29: Now that we're going to be using more than one backend storage engine
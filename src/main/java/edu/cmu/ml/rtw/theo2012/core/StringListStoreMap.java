@@ -1,5 +1,9 @@
 package edu.cmu.ml.rtw.theo2012.core;
 
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+
 /**
  * Special case of {@link StoreMap} that is easier to implement and while still providing the
  * capabilities needed by {@link StringListStore}
@@ -12,4 +16,125 @@ package edu.cmu.ml.rtw.theo2012.core;
  * answering.
  */
 public interface StringListStoreMap extends StoreMap<String, RTWListValue> {
+
+    /**
+     * Version of get that takes a {@link StoreMapKey} so that the caller doesn't have to
+     * materialize a String key just to do a lookup
+     *
+     * 2019-03: The default implementation just converts the key to a String.  Implementations that
+     * can hash and compare the key without doing that (e.g. anything with a java.util.HashMap
+     * inside) should override this.
+     */
+    default public RTWListValue get(StoreMapKey key) {
+        return get(key.toString());
+    }
+
+    /**
+     * Version of containsKey that takes a {@link StoreMapKey}
+     *
+     * See {@link get(StoreMapKey)}.
+     */
+    default public boolean containsKey(StoreMapKey key) {
+        return containsKey(key.toString());
+    }
+
+    /**
+     * Return whether this map may be read and written by multiple threads at once in read-write
+     * mode
+     *
+     * All implementations must be threadsafe in read-only mode.  This is what {@link
+     * StringListStore.setConcurrentWrites} needs on top of that.
+     */
+    default public boolean isThreadsafe() {
+        return false;
+    }
+
+    /**
+     * Return whether this map keeps its keys in sorted order, in which case {@link keyIterator}
+     * is a cheap range scan and returns keys in ascending order
+     *
+     * 2019-03: Both of our original implementations are hash-based, which is why StringListStore
+     * keeps things like slotlists rather than finding an entity's keys by looking for them.  An
+     * ordered implementation like {@link MapDBBTreeStoreMap} lets StringListStore take shortcuts
+     * where a range of keys is what it's after.
+     */
+    default public boolean isSorted() {
+        return false;
+    }
+
+    /**
+     * Iterate over the keys k such that fromKey <= k < toKey
+     *
+     * toKey may be null to mean no upper bound.  The default implementation is a filtered scan of
+     * the whole key set, and returns the keys in no particular order.  Implementations for which
+     * {@link isSorted} is true must override this to do a range scan returning keys in ascending
+     * order.
+     *
+     * As with keySet, modifying the map while iterating has undefined results.
+     */
+    default public Iterator<String> keyIterator(final String fromKey, final String toKey) {
+        final Iterator<String> it = keySet().iterator();
+        return new Iterator<String>() {
+            protected String next = advance();
+
+            protected String advance() {
+                while (it.hasNext()) {
+                    String key = it.next();
+                    if (key.compareTo(fromKey) < 0) continue;
+                    if (toKey != null && key.compareTo(toKey) >= 0) continue;
+                    return key;
+                }
+                return null;
+            }
+
+            @Override public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override public String next() {
+                if (next == null) throw new NoSuchElementException();
+                String key = next;
+                next = advance();
+                return key;
+            }
+
+            @Override public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Return a sorted view of the keys that can be seeked about in, or null if this map doesn't
+     * keep its keys sorted
+     *
+     * 2019-03: keyIterator is fine for one range scan, but something that hops from range to range
+     * (e.g. StringListStore's scan for primitive entities) would have to start a new range scan,
+     * with all of its setup, for every hop.  Implementations commit any pending writes when this is
+     * called; whether writes made after that are seen in the view is undefined.  The view must not
+     * be modified.  Implementations for which {@link isSorted} is true should override this.
+     */
+    default public NavigableSet<String> sortedKeySet() {
+        return null;
+    }
+
+    /**
+     * Iterate over the keys beginning with the given prefix
+     *
+     * See {@link keyIterator(String, String)}.
+     */
+    default public Iterator<String> keyIterator(String prefix) {
+        return keyIterator(prefix, prefixEnd(prefix));
+    }
+
+    /**
+     * Return the smallest String greater than every String that begins with the given prefix, or
+     * null if there is no such thing (i.e. the prefix is empty or all \uffff)
+     */
+    public static String prefixEnd(String prefix) {
+        int i = prefix.length() - 1;
+        while (i >= 0 && prefix.charAt(i) == Character.MAX_VALUE) i--;
+        if (i < 0) return null;
+        return prefix.substring(0, i) + (char)(prefix.charAt(i) + 1);
+    }
 }
@@ -1,11 +1,12 @@
 package edu.cmu.ml.rtw.theo2012.core;
 
 import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import edu.cmu.ml.rtw.util.FasterLRUCache;
 import edu.cmu.ml.rtw.util.Logger;
 import edu.cmu.ml.rtw.util.LogFactory;
 import edu.cmu.ml.rtw.util.Properties;
@@ -77,6 +78,27 @@ public abstract class StringListStoreMapCache {
 
     private final static Logger log = LogFactory.getLogger();
 
+    /**
+     * Replacement policies available for the cache segments
+     *
+     * LRU is the traditional FasterLRUCache.  TINYLFU is {@link TinyLFUSegmentCache}, which is
+     * meant to keep one-shot scans from flushing out the working set.
+     */
+    public enum Policy {
+        LRU, TINYLFU;
+
+        /**
+         * Parse a policy name as would be given in a properties file, e.g. "lru" or "tinylfu"
+         */
+        public static Policy fromString(String name) {
+            try {
+                return Policy.valueOf(name.trim().toUpperCase());
+            } catch (Exception e) {
+                throw new RuntimeException("Unrecognized cache policy \"" + name + "\"", e);
+            }
+        }
+    }
+
     /**
      * Das cache
      *
@@ -115,8 +137,12 @@ public abstract class StringListStoreMapCache {
      * overhead on smaller KBs; it does not on this one I suppose we could try to set this based on
      * the KB size; for the record, this testing is being done on a KB with 205B records (and with
      * perhaps far too few buckets at 131M!)
+     *
+     * 2019-03: Das cache is now split into segments; see the comments on the Segment class.  This
+     * is null if we are not caching.  The number of segments is always a power of two so that we
+     * can select one by masking.
      */
-    protected FasterLRUCache<String, RTWValue> cache = null;
+    protected volatile Segment[] segments = null;
 
     // 2013-03-07: It became clear during testing of the JSON0 query API that thread starvation was
     // a real issue.  The presumed mode of failure is that most KB operations are KB-intensive
@@ -154,18 +180,89 @@ public abstract class StringListStoreMapCache {
     // want to revert to a version prior to this date for a well-vetted known stable and working
     // version should there be any suspicion that the implemenatation after this date is
     // harebrained.
-    private final ReentrantReadWriteLock cacheLock = new ReentrantReadWriteLock(true);
-    private final Lock cacheReadLock = cacheLock.readLock();
-    private final Lock cacheWriteLock = cacheLock.writeLock();
+    //
+    // 2019-03: The single lock around the single LRU cache is what the 2016-06 FODO on
+    // getValueWithCache complains about: every cache miss has to take the one write lock in order
+    // to insert, so a read-only KB-heavy job with many threads winds up going about as fast as one
+    // thread.  So the cache is now split into a power-of-two number of independently-locked
+    // segments, each of which is a FasterLRUCache of its own and is selected by hashing the key.
+    // Each segment keeps the same fair read-write locking discipline described above.  A single
+    // segment behaves exactly as the old single cache did.  Eviction is LRU only within a segment,
+    // which is a fine approximation of global LRU as long as the key hash spreads things evenly.
+    //
+    // The underlying storage mechanism is still guarded by a single read-write lock because the
+    // abstract put and remove methods are documented as never receiving concurrent invocations.
+    // Reads from the storage mechanism can of course still run concurrently.
+    protected class Segment {
+        protected SegmentCache<String, RTWValue> cache;
+
+        protected final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+        protected final Lock readLock = lock.readLock();
+        protected final Lock writeLock = lock.writeLock();
+
+        /**
+         * Set (under writeLock) when {@link resize} replaces this segment.  Anybody who manages to
+         * lock a retired segment must go back and find the new segment for their key instead.
+         */
+        protected boolean retired = false;
+
+        /**
+         * Construct a segment holding the given number of entries, or, if weighted is set, the
+         * given number of estimated bytes.
+         */
+        protected Segment(long capacity, boolean weighted) {
+            if (weighted) {
+                // FasterLRUCache can only count entries, so LRU in this case means our own cache
+                // with admission turned off
+                cache = new TinyLFUSegmentCache<String, RTWValue>(capacity, policy == Policy.TINYLFU,
+                        BYTE_WEIGHER);
+                return;
+            }
+            switch (policy) {
+                case LRU:
+                    cache = new FasterLRUSegmentCache<String, RTWValue>((int)capacity);
+                    break;
+                case TINYLFU:
+                    cache = new TinyLFUSegmentCache<String, RTWValue>((int)capacity);
+                    break;
+                default:
+                    throw new RuntimeException("Unrecognized cache policy " + policy);
+            }
+        }
+    }
+
+    /**
+     * Number of segments to use when the cache is of nonzero size
+     */
+    protected final int numSegments;
+
+    /**
+     * Replacement policy used by each segment
+     */
+    protected final Policy policy;
+
+    /**
+     * Hit and miss counters for {@link getValue}, kept so that we can compare policies and sizes
+     * on real workloads.  A hit on a cached nonexistent slot counts as a hit.
+     */
+    protected final LongAdder hits = new LongAdder();
+    protected final LongAdder misses = new LongAdder();
 
     private final ReentrantReadWriteLock storeLock = new ReentrantReadWriteLock(true);
     private final Lock storeReadLock = storeLock.readLock();
     private final Lock storeWriteLock = storeLock.writeLock();
 
     protected int kbCacheSize;
+
+    /**
+     * When nonzero, the cache is sized to this many estimated bytes rather than to kbCacheSize
+     * entries.  See {@link resizeBytes}.
+     */
+    protected long kbCacheBytes = 0;
+
     protected boolean writeBack;
     protected boolean readOnly;
-    protected boolean forceAlwaysDirty;
+    protected volatile boolean forceAlwaysDirty;
 
     /**
      * Constructor
@@ -183,17 +280,82 @@ public abstract class StringListStoreMapCache {
      * upon being closed.  This may result in many spurious writes.  This behavior may be defeated
      * through the use of {@link setForceAlwaysDirty} when the caller is willing to gauarantee that
      * modifications will never be made except via {@link putValue}.
+     *
+     * This constructs a cache of a single segment, which is the traditional behavior.
      */
     public StringListStoreMapCache(int cacheSize, boolean writeBack, boolean readOnly,
             boolean forceAlwaysDirty) {
+        this(cacheSize, writeBack, readOnly, forceAlwaysDirty, 1, Policy.LRU);
+    }
+
+    /**
+     * Constructor that splits the cache into the given number of independently-locked segments
+     *
+     * numSegments will be rounded up to the next power of two.  Using more segments lets more
+     * threads make use of the cache at once, at the cost of eviction decisions being made within
+     * each segment rather than across the whole cache.  Each segment gets an equal share of
+     * whatever size the cache is later given by {@link resize} or {@link resizeBytes}.
+     */
+    public StringListStoreMapCache(int cacheSize, boolean writeBack, boolean readOnly,
+            boolean forceAlwaysDirty, int numSegments) {
+        this(cacheSize, writeBack, readOnly, forceAlwaysDirty, numSegments, Policy.LRU);
+    }
+
+    /**
+     * Constructor that additionally selects the replacement policy used within each segment
+     */
+    public StringListStoreMapCache(int cacheSize, boolean writeBack, boolean readOnly,
+            boolean forceAlwaysDirty, int numSegments, Policy policy) {
         this.writeBack = writeBack;
         this.readOnly = readOnly;
         this.forceAlwaysDirty = forceAlwaysDirty;
+        this.policy = policy;
+
+        if (numSegments < 1)
+            throw new RuntimeException("Number of cache segments must be positive, not " + numSegments);
+        int n = 1;
+        while (n < numSegments) n = n << 1;
+        this.numSegments = n;
 
-        // This will create the cache object if our size is > 0
+        // This will create the cache segments if our size is > 0
+        //
+        // 2019-03: Note that kbCacheSize is always still zero at this point, and so the cache only
+        // ever comes into existence if somebody calls resize or resizeBytes later on.  That's not
+        // what cacheSize would suggest, but it's what every KB has been running with, and quietly
+        // turning on a large write-back cache for all of them would be no small change.
         resize(kbCacheSize);
     }
 
+    /**
+     * Return the segment responsible for the given key out of the given set of segments
+     */
+    protected Segment segmentFor(Segment[] segs, CharSequence location) {
+        // Spread the high bits down because String.hashCode tends to leave the low bits of similar
+        // keys (e.g. all the slots of one entity) rather correlated.
+        int h = location.hashCode();
+        h ^= (h >>> 16);
+        return segs[h & (segs.length - 1)];
+    }
+
+    /**
+     * Lock and return the current segment responsible for the given key, or return null if there
+     * is no cache
+     *
+     * This takes care of the case where {@link resize} swaps out the set of segments while we were
+     * waiting for the lock.
+     */
+    protected Segment lockSegment(CharSequence location, boolean write) {
+        while (true) {
+            Segment[] segs = segments;
+            if (segs == null) return null;
+            Segment seg = segmentFor(segs, location);
+            Lock l = write ? seg.writeLock : seg.readLock;
+            l.lock();
+            if (!seg.retired) return seg;
+            l.unlock();
+        }
+    }
+
     // FODO: 2016-06: It becomes clear from analyzing some slow things that holding a lock
     // throughout this entire method can easily reduce multithreaded KB-intensive operations down to
     // almost effectively a single thread in spite of spending a large amount of time on things like
@@ -202,19 +364,59 @@ public abstract class StringListStoreMapCache {
     // some real performance gains refactoring in such a way as to lock in a less coarse fashion.
     // This could be especially useful in read/write situtions where we necessarily want to be able
     // to go as fast as the underlying storage mechanism can possibly allow.
+    //
+    // 2019-03: Locking is now per-segment; see comments on the Segment class.
     protected RTWListValue getValueWithCache(String location) {
         RTWValue value = null;
-        RTWValue valueForCache = null;
-        cacheReadLock.lock();
+        Segment seg = lockSegment(location, false);
+        if (seg == null) return get(location);
         try {
-            value = cache.get(location);
+            value = seg.cache.get(location);
             if (value != null) {
+                hits.increment();
                 if (value.equals(SLOT_DOESNT_EXIST)) return null;
                 else return (RTWListValue)value;
             }
         } finally {
-            cacheReadLock.unlock();
+            seg.readLock.unlock();
+        }
+        return getValueAfterMiss(location);
+    }
+
+    /**
+     * Version of {@link getValueWithCache(String)} that probes the cache with a {@link StoreMapKey}
+     *
+     * The key only gets turned into a String if we have to go to the store, or if the segment's
+     * cache can't be probed with anything but a String.
+     */
+    protected RTWListValue getValueWithCache(StoreMapKey location) {
+        Segment seg = lockSegment(location, false);
+        if (seg == null) return get(location.toString());
+        boolean probed = false;
+        try {
+            if (seg.cache.acceptsEquivalentKeys()) {
+                probed = true;
+                RTWValue value = seg.cache.getEquivalent(location);
+                if (value != null) {
+                    hits.increment();
+                    if (value.equals(SLOT_DOESNT_EXIST)) return null;
+                    else return (RTWListValue)value;
+                }
+            }
+        } finally {
+            seg.readLock.unlock();
         }
+        if (!probed) return getValueWithCache(location.toString());
+        return getValueAfterMiss(location.toString());
+    }
+
+    /**
+     * Second half of {@link getValueWithCache}: get the value from the store and cache it
+     */
+    protected RTWListValue getValueAfterMiss(String location) {
+        RTWValue value = null;
+        RTWValue valueForCache = null;
+        misses.increment();
 
         // This is the main time sink, so it's valuable to do outside of the cache lock.  We just
         // have to make sure we don't get while putting.  If we do concurrent gets of the same
@@ -230,15 +432,15 @@ public abstract class StringListStoreMapCache {
         valueForCache = value;
         if (valueForCache == null) valueForCache = SLOT_DOESNT_EXIST;
 
-        FasterLRUCache.Item<String, RTWValue> decached = new FasterLRUCache.Item<String, RTWValue>();
-        cacheWriteLock.lock();
+        SegmentCache.Evicted<String, RTWValue> decached = new SegmentCache.Evicted<String, RTWValue>();
+        Segment seg = lockSegment(location, true);
+        if (seg == null) return (RTWListValue)value;
         try {
-            cache.put(location, valueForCache, false || (forceAlwaysDirty && !readOnly), decached);
+            seg.cache.put(location, valueForCache, false || (forceAlwaysDirty && !readOnly), decached);
         } finally {
-            cacheWriteLock.unlock();
+            seg.writeLock.unlock();
         }
-        if (decached.getKey() != null)
-            commitDirty(decached.getKey(), decached.getValue(), false);
+        commitEvicted(decached);
         return (RTWListValue)value;
     }
 
@@ -267,6 +469,15 @@ public abstract class StringListStoreMapCache {
         }
     }
 
+    /**
+     * Write out whatever dirty entries got evicted from the cache
+     */
+    protected void commitEvicted(SegmentCache.Evicted<String, RTWValue> decached) {
+        if (decached.isEmpty()) return;
+        for (Map.Entry<String, RTWValue> d : decached.getEntries())
+            commitDirty(d.getKey(), d.getValue(), false);
+    }
+
     /**
      * Read from KB, using cached value if available and caching the gotten value if not.
      *
@@ -280,7 +491,27 @@ public abstract class StringListStoreMapCache {
                 throw new RuntimeException("location is null");
 
             RTWListValue v;
-            if (cache == null) v = get(location);
+            if (segments == null) v = get(location);
+            else v = getValueWithCache(location);
+            return v;
+        } catch (Exception e) {
+            throw new RuntimeException("getValue(\"" + location + "\")", e);
+        }
+    }
+
+    /**
+     * Version of {@link getValue(String)} that takes a {@link StoreMapKey}
+     *
+     * 2019-03: This lets a {@link StringListStoreMap} answer get(StoreMapKey) out of the cache
+     * without materializing a String key for every lookup.
+     */
+    public RTWListValue getValue(StoreMapKey location) {
+        try {
+            if (location == null)
+                throw new RuntimeException("location is null");
+
+            RTWListValue v;
+            if (segments == null) v = get(location.toString());
             else v = getValueWithCache(location);
             return v;
         } catch (Exception e) {
@@ -298,30 +529,36 @@ public abstract class StringListStoreMapCache {
             if (value == null)
                 throw new RuntimeException("value is null");
 
-            // It's possible that locking here could be finer-grained, but at present it's not
-            // interesting to consider.
-            cacheWriteLock.lock();
-            try {
+            Segment seg = lockSegment(location, true);
+            if (seg == null) {
                 RTWValue previous;
-                if (cache == null) {
+                storeWriteLock.lock();
+                try {
                     previous = get(location);
                     commitDirty(location, value, true); // no guarantee of immutability
-                } else if (!writeBack) {
-                    FasterLRUCache.Item<String, RTWValue> decached = new FasterLRUCache.Item<String, RTWValue>();
-                    previous = cache.put(location, value, false || (forceAlwaysDirty && !readOnly), decached);
-                    if (decached.getKey() != null)
-                        commitDirty(decached.getKey(), decached.getValue(), false);
+                } finally {
+                    storeWriteLock.unlock();
+                }
+                if (previous == null || previous.equals(SLOT_DOESNT_EXIST)) return null;
+                else return (RTWListValue)previous;
+            }
+
+            try {
+                RTWValue previous;
+                if (!writeBack) {
+                    SegmentCache.Evicted<String, RTWValue> decached = new SegmentCache.Evicted<String, RTWValue>();
+                    previous = seg.cache.put(location, value, false || (forceAlwaysDirty && !readOnly), decached);
+                    commitEvicted(decached);
                     commitDirty(location, value, true); // no gaurantee of immutability
                 } else {
-                    FasterLRUCache.Item<String, RTWValue> decached = new FasterLRUCache.Item<String, RTWValue>();
-                    previous = cache.put(location, value, true, decached);
-                    if (decached.getKey() != null)
-                        commitDirty(decached.getKey(), decached.getValue(), false);
+                    SegmentCache.Evicted<String, RTWValue> decached = new SegmentCache.Evicted<String, RTWValue>();
+                    previous = seg.cache.put(location, value, true, decached);
+                    commitEvicted(decached);
                 }
                 if (previous == null || previous.equals(SLOT_DOESNT_EXIST)) return null;
                 else return (RTWListValue)previous;
             } finally {
-                cacheWriteLock.unlock();
+                seg.writeLock.unlock();
             }
         } catch (Exception e) {
             throw new RuntimeException("putValue(\"" + location + "\", " + value + ")", e);
@@ -335,7 +572,8 @@ public abstract class StringListStoreMapCache {
         if(readOnly)
             throw new RuntimeException("Can't remove on read-only KB");
 
-        if (cache == null) {
+        Segment seg = lockSegment(location, true);
+        if (seg == null) {
             storeWriteLock.lock();
             try {
                 RTWValue cur = get(location);
@@ -347,11 +585,8 @@ public abstract class StringListStoreMapCache {
             }
         }
 
-        // It's possible that locking here could be finer-grained, but at present it's not
-        // interesting to consider.
-        cacheWriteLock.lock();
         try {
-            RTWValue cur = cache.get(location);
+            RTWValue cur = seg.cache.get(location);
             if (cur == null) {
                 storeWriteLock.lock();
                 try {
@@ -359,10 +594,9 @@ public abstract class StringListStoreMapCache {
                 } finally {
                     storeWriteLock.unlock();
                 }
-                FasterLRUCache.Item<String, RTWValue> decached = new FasterLRUCache.Item<String, RTWValue>();
-                cache.put(location, SLOT_DOESNT_EXIST, false, decached);
-                if (decached.getKey() != null)
-                    commitDirty(decached.getKey(), decached.getValue(), false);
+                SegmentCache.Evicted<String, RTWValue> decached = new SegmentCache.Evicted<String, RTWValue>();
+                seg.cache.put(location, SLOT_DOESNT_EXIST, false, decached);
+                commitEvicted(decached);
                 return null;
             } else if (cur.equals(SLOT_DOESNT_EXIST)) {
                 return null;
@@ -374,20 +608,37 @@ public abstract class StringListStoreMapCache {
                     } finally {
                         storeWriteLock.unlock();
                     }
-                    FasterLRUCache.Item<String, RTWValue> decached = new FasterLRUCache.Item<String, RTWValue>();
-                    cache.put(location, SLOT_DOESNT_EXIST, false, decached);
-                    if (decached.getKey() != null)
-                        commitDirty(decached.getKey(), decached.getValue(), false);
+                    SegmentCache.Evicted<String, RTWValue> decached = new SegmentCache.Evicted<String, RTWValue>();
+                    seg.cache.put(location, SLOT_DOESNT_EXIST, false, decached);
+                    commitEvicted(decached);
                 } else {
-                    FasterLRUCache.Item<String, RTWValue> decached = new FasterLRUCache.Item<String, RTWValue>();
-                    cache.put(location, SLOT_DOESNT_EXIST, true, decached);
-                    if (decached.getKey() != null)
-                        commitDirty(decached.getKey(), decached.getValue(), false);
+                    SegmentCache.Evicted<String, RTWValue> decached = new SegmentCache.Evicted<String, RTWValue>();
+                    seg.cache.put(location, SLOT_DOESNT_EXIST, true, decached);
+                    commitEvicted(decached);
                 }
                 return (RTWListValue)cur;
             }
         } finally {
-            cacheWriteLock.unlock();
+            seg.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Write all dirty cache entries in the given segment to the KB
+     *
+     * The caller must hold the segment's write lock.
+     */
+    protected void commitSegmentDirty(Segment seg, boolean mightMutate) {
+        // Make sure to not mark anything in the cache clean if forceAlwaysDirty has been set
+        // because otherwise we have to assume everything is dirty at all times due to the
+        // possibility of the calling code directly modifying one of the values on its own.
+        Iterator<Map.Entry<String, RTWValue>> it;
+        if (forceAlwaysDirty) it = seg.cache.dirtyIterator();
+        else it = seg.cache.cleaningDirtyIterator();
+
+        while (it.hasNext()) {
+            Map.Entry<String, RTWValue> d = it.next();
+            commitDirty(d.getKey(), d.getValue(), mightMutate);
         }
     }
 
@@ -395,14 +646,16 @@ public abstract class StringListStoreMapCache {
      * Write all dirty cache entries to the KB and clear the cache.
      */
     public void clear() {
-        // It's possible that locking here could be finer-grained, but at present it's not
-        // interesting to consider.
-        cacheWriteLock.lock();
-        try {
-            commitAllDirty(false);
-            if (cache != null) cache.clear();
-        } finally {
-            cacheWriteLock.unlock();
+        Segment[] segs = segments;
+        if (segs == null) return;
+        for (Segment seg : segs) {
+            seg.writeLock.lock();
+            try {
+                commitSegmentDirty(seg, false);
+                seg.cache.clear();
+            } finally {
+                seg.writeLock.unlock();
+            }
         }
     }
 
@@ -410,27 +663,19 @@ public abstract class StringListStoreMapCache {
      * Write all dirty cache entries to the KB
      *
      * Does not remove entries from cache, but does mark them all clean.
+     *
+     * Segments are committed one at a time, so other threads may continue to use the rest of the
+     * cache in the meantime.
      */
     public void commitAllDirty(boolean mightMutate) {
-        if (cache != null) {
-            // It's possible that locking here could be finer-grained, but at present it's not
-            // interesting to consider.
-            cacheWriteLock.lock();
+        Segment[] segs = segments;
+        if (segs == null) return;
+        for (Segment seg : segs) {
+            seg.writeLock.lock();
             try {
-                // Make sure to not mark anything in the cache clean if forceAlwaysDirty has been
-                // set because otherwise we have to assume everything is dirty at all times due to
-                // the possibility of the calling code directly modifying one of the values on its
-                // own.
-                Iterator<FasterLRUCache.Item<String, RTWValue>> it;
-                if (forceAlwaysDirty) it = cache.dirtyIterator();
-                else it = cache.cleaningDirtyIterator();
-
-                while (it.hasNext()) {
-                    FasterLRUCache.Item<String, RTWValue> d = it.next();
-                    commitDirty(d.getKey(), d.getValue(), mightMutate);
-                }
+                commitSegmentDirty(seg, mightMutate);
             } finally {
-                cacheWriteLock.unlock();
+                seg.writeLock.unlock();
             }
         }
     }
@@ -443,24 +688,241 @@ public abstract class StringListStoreMapCache {
     }
 
     /**
-     * Resize the cache
+     * Return the number of segments the cache is split into when it is of nonzero size
+     */
+    public int getNumSegments() {
+        return numSegments;
+    }
+
+    /**
+     * Return the replacement policy used within each segment
+     */
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Return the number of {@link getValue} invocations answered from the cache
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Return the number of {@link getValue} invocations that had to go to the underlying storage
+     * mechanism while the cache was enabled
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Return the fraction of {@link getValue} invocations answered from the cache, or 0 if there
+     * have been none
+     */
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        if (total == 0) return 0.0;
+        return (double)h / (double)total;
+    }
+
+    /**
+     * Zero the hit and miss counters, e.g. to measure only a particular phase of operation
+     */
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
+    }
+
+    /**
+     * Return the byte budget if the cache is sized in bytes, or 0 if it is sized in entries
+     */
+    public long sizeBytes() {
+        return kbCacheBytes;
+    }
+
+    /**
+     * Return the estimated number of bytes held by the cache, or -1 if this is not known
+     *
+     * This is only known when the cache is sized in bytes.
+     */
+    public long getEstimatedBytes() {
+        Segment[] segs = segments;
+        if (segs == null) return 0;
+        if (kbCacheBytes == 0) return -1;
+        long total = 0;
+        for (Segment seg : segs) {
+            seg.readLock.lock();
+            try {
+                total += seg.cache.getWeightedSize();
+            } finally {
+                seg.readLock.unlock();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Resize the cache to hold the given number of entries
      *
-     * This is likely to entail a cache flush.
+     * This is likely to entail a cache flush.  A size of 0 disables the cache, including when it
+     * had been sized in bytes.
      */
-    public void resize(int newSize) {
-        // It's possible that locking here could be finer-grained, but at present it's not
-        // interesting to consider.
-        cacheWriteLock.lock();
+    public synchronized void resize(int newSize) {
+        rebuild(newSize, 0);
+    }
+
+    /**
+     * Resize the cache to hold roughly the given number of bytes worth of keys and values
+     *
+     * Sizing by number of entries makes heap use unpredictable because a cached value might be a
+     * two-element generalizations list or an RTWSetListValue with hundreds of thousands of values
+     * in it.  Here, each entry is instead weighed according to {@link estimateRetainedSize}, and
+     * entries are evicted to keep the total within budget.  The budget is split evenly among the
+     * segments.
+     *
+     * This is likely to entail a cache flush.  A size of 0 disables the cache.
+     */
+    public synchronized void resizeBytes(long newBytes) {
+        rebuild(newBytes > 0 ? kbCacheSize : 0, newBytes);
+    }
+
+    /**
+     * Replace the cache segments with new ones of the given size in entries or, if newBytes is
+     * nonzero, in bytes.
+     */
+    protected synchronized void rebuild(int newSize, long newBytes) {
+        // Lock out the entirety of the old cache while we swap in the new one so that nothing
+        // winds up in a segment that's on its way out.
+        Segment[] oldSegs = segments;
+        if (oldSegs != null) {
+            for (Segment seg : oldSegs) seg.writeLock.lock();
+        }
         try {
-            commitAllDirty(false);
+            if (oldSegs != null) {
+                for (Segment seg : oldSegs) {
+                    commitSegmentDirty(seg, false);
+                    seg.retired = true;
+                }
+            }
             kbCacheSize = newSize;
-            if (kbCacheSize > 0) {
-                cache = new FasterLRUCache<String, RTWValue>(kbCacheSize);
+            kbCacheBytes = newBytes;
+            if (kbCacheBytes > 0) {
+                long segBytes = kbCacheBytes / numSegments;
+                if (segBytes < 1) segBytes = 1;
+                Segment[] newSegs = new Segment[numSegments];
+                for (int i = 0; i < numSegments; i++) newSegs[i] = new Segment(segBytes, true);
+                segments = newSegs;
+            } else if (kbCacheSize > 0) {
+                int segSize = kbCacheSize / numSegments;
+                if (segSize < 1) segSize = 1;
+                Segment[] newSegs = new Segment[numSegments];
+                for (int i = 0; i < numSegments; i++) newSegs[i] = new Segment(segSize, false);
+                segments = newSegs;
             } else {
-                cache = null;
+                segments = null;
             }
         } finally {
-            cacheWriteLock.unlock();
+            if (oldSegs != null) {
+                for (Segment seg : oldSegs) seg.writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Rough estimate of the heap occupied by a String of the given length (object header, fields,
+     * and a char array)
+     */
+    protected static long estimateStringSize(int length) {
+        return 40 + 2L * length;
+    }
+
+    /**
+     * Number of elements of a list whose size we'll actually add up in {@link
+     * estimateRetainedSize} before extrapolating to the rest of them
+     *
+     * Otherwise, adding one value at a time to a large slot would cost us time quadratic in its
+     * size just to keep weighing it.
+     */
+    protected final static int WEIGH_SAMPLE_SIZE = 64;
+
+    /**
+     * Estimate how many bytes of heap the given value occupies
+     *
+     * This doesn't pretend to be exact.  It accounts for string lengths, list and set sizes, and the
+     * overhead of the backing ArrayList or HashSet, assuming a 64-bit JVM with compressed oops.  For
+     * large lists, only a sample of the elements is actually weighed.
+     */
+    public static long estimateRetainedSize(RTWValue v) {
+        if (v instanceof RTWStringValue) {
+            return 16 + estimateStringSize(v.asString().length());
+        } else if (v instanceof RTWLazyListValue) {
+            // Don't go decoding elements just to weigh them
+            return ((RTWLazyListValue)v).estimateRetainedSize();
+        } else if (v instanceof RTWListValue) {
+            RTWListValue lv = (RTWListValue)v;
+            int n = lv.size();
+            long size;
+            if (v instanceof RTWSetListValue) {
+                // Wrapper, HashSet, HashMap, table at default load factor, and a node per entry
+                int tableSize = 16;
+                while (tableSize * 0.75 < n) tableSize = tableSize << 1;
+                size = 16 + 16 + 48 + 16 + 4L * tableSize + 32L * n;
+            } else {
+                // Wrapper, possible unmodifiable wrapper, ArrayList, and its array
+                size = 16 + 16 + 24 + 16 + 4L * n;
+            }
+            long elements = 0;
+            int weighed = 0;
+            for (RTWValue e : lv) {
+                if (weighed == WEIGH_SAMPLE_SIZE) break;
+                elements += estimateRetainedSize(e);
+                weighed++;
+            }
+            if (weighed > 0 && weighed < n) elements = elements * n / weighed;
+            return size + elements;
+        } else if (v instanceof Entity) {
+            RTWLocation l = ((Entity)v).getRTWLocation();
+            long size = 16 + 32 + 16 + 4L * l.size();
+            for (int i = 0; i < l.size(); i++) {
+                if (l.isSlot(i)) size += estimateStringSize(l.getAsSlot(i).length());
+                else size += 16 + estimateRetainedSize(l.getAsElement(i).getVal());
+            }
+            return size;
+        } else {
+            // Integers, doubles, booleans, RTWThisHasNoValue, and our own RTWNullValue
+            return 16;
+        }
+    }
+
+    /**
+     * Weigher for byte-budgeted segments: the key, the value, and our bookkeeping per entry
+     */
+    protected final static SegmentCache.Weigher<String, RTWValue> BYTE_WEIGHER =
+            new SegmentCache.Weigher<String, RTWValue>() {
+                @Override public long weigh(String key, RTWValue value) {
+                    return 64 + estimateStringSize(key.length()) + estimateRetainedSize(value);
+                }
+            };
+
+    /**
+     * Parse a size in bytes as might be given in a properties file, e.g. "4g", "512m", "100000k",
+     * or plain "1073741824"
+     */
+    public static long parseByteSize(String str) {
+        try {
+            String s = str.trim().toLowerCase();
+            if (s.endsWith("b")) s = s.substring(0, s.length()-1);
+            long multiplier = 1;
+            if (s.endsWith("k")) multiplier = 1L << 10;
+            else if (s.endsWith("m")) multiplier = 1L << 20;
+            else if (s.endsWith("g")) multiplier = 1L << 30;
+            else if (s.endsWith("t")) multiplier = 1L << 40;
+            if (multiplier != 1) s = s.substring(0, s.length()-1);
+            return Long.parseLong(s.trim()) * multiplier;
+        } catch (Exception e) {
+            throw new RuntimeException("parseByteSize(\"" + str + "\")", e);
         }
     }
 
@@ -477,21 +939,14 @@ public abstract class StringListStoreMapCache {
      * The onus, then, is on the calling code to ensure that values are never modified directly, as
      * changes in that case might be lost.
      */
-    public void setForceAlwaysDirty(boolean forceAlwaysDirty) {
-        // It's possible that locking here could be finer-grained, but at present it's not
-        // interesting to consider.
-        cacheWriteLock.lock();
-        try {
-            if (forceAlwaysDirty != this.forceAlwaysDirty) {
-                this.forceAlwaysDirty = forceAlwaysDirty;
+    public synchronized void setForceAlwaysDirty(boolean forceAlwaysDirty) {
+        if (forceAlwaysDirty != this.forceAlwaysDirty) {
+            this.forceAlwaysDirty = forceAlwaysDirty;
                 
-                // If this is being turned off, we might wonder if we need to assume that those things
-                // already in the cache all have to be marked dirty.  But the cache already forces all
-                // entries to be marked dirty whenever forceAlwaysDirty is true, so we need take no
-                // further action here.
-            }
-        } finally {
-            cacheWriteLock.unlock();
+            // If this is being turned off, we might wonder if we need to assume that those things
+            // already in the cache all have to be marked dirty.  But the cache already forces all
+            // entries to be marked dirty whenever forceAlwaysDirty is true, so we need take no
+            // further action here.
         }
     }
 
@@ -499,7 +954,30 @@ public abstract class StringListStoreMapCache {
      * Log cache statistics
      */
     public void logStats() {
-        log.debug("Main KB Cache: " + cache.logStats());
+        Segment[] segs = segments;
+        if (segs == null) {
+            log.debug("Main KB Cache: disabled");
+            return;
+        }
+        log.debug("Main KB Cache: policy " + policy + ", " + segs.length + " segment(s), "
+                + getHitCount() + " hits, " + getMissCount() + " misses, hit rate "
+                + String.format("%.4f", getHitRate()));
+        if (kbCacheBytes > 0) {
+            long bytes = getEstimatedBytes();
+            log.debug("Main KB Cache memory: ~" + (bytes >> 20) + "MB of " + (kbCacheBytes >> 20)
+                    + "MB budget (" + String.format("%.1f", 100.0 * bytes / kbCacheBytes) + "%)");
+        }
+        for (int i = 0; i < segs.length; i++) {
+            segs[i].readLock.lock();
+            try {
+                if (segs.length == 1)
+                    log.debug("Main KB Cache: " + segs[i].cache.logStats());
+                else
+                    log.debug("Main KB Cache segment " + i + ": " + segs[i].cache.logStats());
+            } finally {
+                segs[i].readLock.unlock();
+            }
+        }
     }
 
     /**
@@ -1,7 +1,22 @@
 package edu.cmu.ml.rtw.theo2012.core;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
 
 import edu.cmu.ml.rtw.util.Logger;
 import edu.cmu.ml.rtw.util.LogFactory;
@@ -101,6 +116,21 @@ import edu.cmu.ml.rtw.util.Properties;
  * short-term goals, and I think it might anyway better be tackled during a later revision when we
  * have Theo2012 up, running, better-understood, and more experience with Stores other than
  * StringListStore
+ *
+ * 2019-03: Deferred pointers.  Maintaining _P doubles the number of random writes made when
+ * adding RTWPointerValues, which hurts when building a KB from scratch.  So, when in deferred
+ * pointers mode (see {@link setDeferPointers}, which is implied by bulk-load mode), add writes
+ * each backpointer it would have added to an append-only log file instead, and the log gets merged
+ * into _P in sorted order all at once.  This happens upon flush, close, or leaving deferred
+ * pointers mode, or when the log reaches kbPointerLogMaxEntries entries.  Meanwhile, we remember
+ * which primitive entities have backpointers waiting in the log, and getPointers and
+ * getPointingSlots merge the log before answering for any of those.  Deletes merge the log first
+ * as well because they rely on _P being complete.  It is only backpointer maintenance that is
+ * deferred; validateRTWPointerValue still happens as usual during add.
+ *
+ * The merge never holds more than kbPointerLogSortChunk entries in memory at once.  A log longer
+ * than that is sorted a chunk at a time into temporary run files alongside the log, and the runs
+ * are then merged together as they are added to _P.
  */
 public class StringListSuperStore<SLSM extends StringListStoreMap> extends StringListStore<SLSM> implements SuperStore { 
     private final static Logger log = LogFactory.getLogger();
@@ -122,6 +152,132 @@ public class StringListSuperStore<SLSM extends StringListStoreMap> extends Strin
      */
     protected final boolean developerMode;    
 
+    /**
+     * Number of entries at which the deferred pointers log gets merged
+     */
+    protected final int kbPointerLogMaxEntries;
+
+    /**
+     * Number of deferred pointers log entries to sort in memory at a time while merging
+     */
+    protected final int kbPointerLogSortChunk;
+
+    /**
+     * Directory in which to put the deferred pointers log
+     */
+    protected final String kbPointerLogDir;
+
+    /**
+     * Deferred pointers log file, or null if not in deferred pointers mode
+     */
+    protected File pointerLogFile = null;
+
+    /**
+     * Stream to pointerLogFile
+     */
+    protected DataOutputStream pointerLog = null;
+
+    /**
+     * Number of entries in pointerLog
+     */
+    protected volatile int numPointerLogEntries = 0;
+
+    /**
+     * Primitive entities to which pointerLog has backpointers to add
+     */
+    protected Set<String> pointerLogEntities = new HashSet<String>();
+
+    /**
+     * Lock for all of the above
+     */
+    protected final Object pointerLogLock = new Object();
+
+    /**
+     * One entry from the deferred pointers log
+     */
+    protected static class PointerLogEntry {
+        public final RTWPointerValue destination;
+        public final String slot;
+        public final RTWPointerValue source;
+        public final String entity;
+
+        public PointerLogEntry(RTWPointerValue destination, String slot, RTWPointerValue source) {
+            this.destination = destination;
+            this.slot = slot;
+            this.source = source;
+            this.entity = destination.getDestination().getPrimitiveEntity();
+        }
+    }
+
+    /**
+     * Order in which to merge the deferred pointers log: grouped by primitive entity, and then by
+     * slot, so that all of the writes to an entity's _P happen together
+     */
+    protected final static Comparator<PointerLogEntry> POINTER_LOG_ORDER = new Comparator<PointerLogEntry>() {
+        @Override public int compare(PointerLogEntry a, PointerLogEntry b) {
+            int c = a.entity.compareTo(b.entity);
+            if (c != 0) return c;
+            return a.slot.compareTo(b.slot);
+        }
+    };
+
+    /**
+     * One sorted run of deferred pointers log entries being read back during a merge, with the
+     * entry at its head
+     */
+    protected static class PointerLogRun {
+        protected final int runNum;
+        protected final DataInputStream in;
+        protected int remaining;
+        protected PointerLogEntry head;
+
+        protected PointerLogRun(int runNum, File file, int numEntries) throws IOException {
+            this.runNum = runNum;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            this.remaining = numEntries;
+            advance();
+        }
+
+        /**
+         * Move on to the next entry, leaving head null and closing the file if there is none
+         */
+        protected void advance() throws IOException {
+            if (remaining == 0) {
+                head = null;
+                in.close();
+                return;
+            }
+            head = readPointerLogEntry(in);
+            remaining--;
+        }
+    }
+
+    /**
+     * Order in which to take entries from a set of sorted runs, which breaks ties by run so that
+     * entries with equal keys come out in log order as they would from a single stable sort
+     */
+    protected final static Comparator<PointerLogRun> POINTER_LOG_RUN_ORDER = new Comparator<PointerLogRun>() {
+        @Override public int compare(PointerLogRun a, PointerLogRun b) {
+            int c = POINTER_LOG_ORDER.compare(a.head, b.head);
+            if (c != 0) return c;
+            return Integer.compare(a.runNum, b.runNum);
+        }
+    };
+
+    protected static PointerLogEntry readPointerLogEntry(DataInputStream in) throws IOException {
+        RTWPointerValue destination = (RTWPointerValue)RTWValueBinaryCodec.read(in);
+        String slot = RTWValueBinaryCodec.readString(in);
+        RTWPointerValue source = (RTWPointerValue)RTWValueBinaryCodec.read(in);
+        return new PointerLogEntry(destination, slot, source);
+    }
+
+    protected static void writePointerLogEntry(DataOutputStream out, RTWPointerValue destination,
+            String slot, RTWPointerValue source) throws IOException {
+        RTWValueBinaryCodec.write(out, destination);
+        RTWValueBinaryCodec.writeString(out, slot);
+        RTWValueBinaryCodec.write(out, source);
+    }
+
     /**
      * Subclass of RTWBag that we use to return from getPointers
      *
@@ -147,11 +303,21 @@ public class StringListSuperStore<SLSM extends StringListStoreMap> extends Strin
             loc = pointersSlot;
         }
 
+        /**
+         * Merge the deferred pointers log if it has anything for us, so that a PointersBag stays
+         * as current as the slot it represents
+         */
+        protected void sync() {
+            if (numPointerLogEntries > 0) mergePointerLogFor(loc.parent().parent());
+        }
+
         @Override public int getNumValues() {
+            sync();
             return loc.getNumValues();
         }
 
         @Override public String valueDump() {
+            sync();
             return loc.valueDump();
         }
 
@@ -175,10 +341,12 @@ public class StringListSuperStore<SLSM extends StringListStoreMap> extends Strin
         }
 
         @Override public boolean isEmpty() {
+            sync();
             return loc.isEmpty();
         }
 
         @Override public boolean has1Value() {
+            sync();
             return loc.has1Value();
         }
 
@@ -203,10 +371,12 @@ public class StringListSuperStore<SLSM extends StringListStoreMap> extends Strin
         }
 
         @Override public boolean has1Entity() {
+            sync();
             return loc.has1Entity();
         }
         
         @Override public Iterable<RTWValue> iter() {
+            sync();
             return loc.iter();
         }
 
@@ -227,10 +397,12 @@ public class StringListSuperStore<SLSM extends StringListStoreMap> extends Strin
         }
 
         @Override public Iterable<Entity> entityIter() {
+            sync();
             return loc.entityIter();
         }
 
         @Override public RTWValue into1Value() {
+            sync();
             return loc.into1Value();
         }
 
@@ -251,10 +423,12 @@ public class StringListSuperStore<SLSM extends StringListStoreMap> extends Strin
         }
 
         @Override public Entity into1Entity() {
+            sync();
             return loc.into1Entity();
         }
 
         @Override public RTWValue need1Value() {
+            sync();
             return loc.need1Value();
         }
 
@@ -263,6 +437,7 @@ public class StringListSuperStore<SLSM extends StringListStoreMap> extends Strin
         }
 
         @Override public Entity need1Entity() {
+            sync();
             return loc.need1Entity();
         }
 
@@ -279,6 +454,7 @@ public class StringListSuperStore<SLSM extends StringListStoreMap> extends Strin
         }
 
         @Override public boolean containsValue(RTWValue v) {
+            sync();
             return loc.containsValue(v);
         }
     }
@@ -348,7 +524,12 @@ public class StringListSuperStore<SLSM extends StringListStoreMap> extends Strin
     }
     
     @Override protected void deleteValue(RTWLocation location, RTWValue value) {
+        // In concurrent-writes mode, we only get here by way of our delete, which holds
+        // crossEntityLock, and so we're free to take entity locks as we go
+        final Lock lock = lockEntity(location, true);
         try {
+            mergePointerLog();
+
             // For our delete code, we'll use the running example of deleting <Japan> value from the
             // <Gojira, attacks> slot.
 
@@ -425,11 +606,16 @@ public class StringListSuperStore<SLSM extends StringListStoreMap> extends Strin
                 // slots.
                 RTWValue pointerValue = new RTWPointerValue(location.parent());
                 if (developerMode) log.debug("now we will delete hidden pointer " + pointerValue + " from " + pointerSlot);
-                if (!super.getLoc(pointerSlot).containsValue(pointerValue))  //bkdb: the dance of location attachment
-                    throw new RuntimeException("Missing hidden backpointer " + pointerValue
-                            + " in " + pointerSlot + ".  Existent backpointers are: "
-                            + super.getLoc(pointerSlot).valueDump());
-                super.deleteValue(pointerSlot, new RTWPointerValue(location.parent()));
+                final Lock destinationLock = lockEntity(destination, true);
+                try {
+                    if (!super.getLoc(pointerSlot).containsValue(pointerValue))  //bkdb: the dance of location attachment
+                        throw new RuntimeException("Missing hidden backpointer " + pointerValue
+                                + " in " + pointerSlot + ".  Existent backpointers are: "
+                                + super.getLoc(pointerSlot).valueDump());
+                    super.deleteValue(pointerSlot, new RTWPointerValue(location.parent()));
+                } finally {
+                    unlock(destinationLock);
+                }
             }
 
             // And finally we can perform the actual delete we came here to perform.  No existence
@@ -437,11 +623,15 @@ public class StringListSuperStore<SLSM extends StringListStoreMap> extends Strin
             super.deleteValue(location, value);
         } catch (Exception e) {
             throw new RuntimeException("deleteValue(" + location + ", " + value + ")", e);
+        } finally {
+            unlock(lock);
         }
     }
 
     @Override protected void signalDeleteSlot(RTWLocation location) {
         try {
+            mergePointerLog();
+
             // Read the comments inside deleteValue first.
 
             // Basically, what we have to do is check for and delete any RTWPointerValue values that
@@ -514,6 +704,210 @@ public class StringListSuperStore<SLSM extends StringListStoreMap> extends Strin
         // MBL's properties file.  So we just continue that practice for the time being.  bk:prop
         Properties properties = TheoFactory.getProperties();
         developerMode = properties.getPropertyBooleanValue("developerMode", false);
+        kbPointerLogMaxEntries = Math.max(1, properties.getPropertyIntegerValue("kbPointerLogMaxEntries", 10000000));
+        kbPointerLogSortChunk = Math.max(1, properties.getPropertyIntegerValue("kbPointerLogSortChunk", 1000000));
+        kbPointerLogDir = properties.getProperty("kbPointerLogDir", System.getProperty("java.io.tmpdir"));
+    }
+
+    /**
+     * Enter or leave deferred pointers mode (see class-level comments)
+     *
+     * Leaving deferred pointers mode merges the log.
+     */
+    public void setDeferPointers(boolean deferPointers) {
+        try {
+            synchronized (pointerLogLock) {
+                if (deferPointers) {
+                    if (pointerLogFile != null) return;
+                    if (isReadOnly())
+                        throw new RuntimeException("Can't defer pointers in read-only mode");
+                    File dir = new File(kbPointerLogDir);
+                    dir.mkdirs();
+                    pointerLogFile = File.createTempFile("theo2012-pointers-", ".log", dir);
+                    pointerLogFile.deleteOnExit();
+                    pointerLog = new DataOutputStream(new BufferedOutputStream(
+                                    new FileOutputStream(pointerLogFile), 1 << 16));
+                    numPointerLogEntries = 0;
+                } else {
+                    if (pointerLogFile == null) return;
+                    mergePointerLog();
+                    pointerLog.close();
+                    pointerLogFile.delete();
+                    pointerLog = null;
+                    pointerLogFile = null;
+                }
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("setDeferPointers(" + deferPointers + ")", e);
+        }
+    }
+
+    /**
+     * Return whether we are in deferred pointers mode
+     */
+    public boolean isDeferPointers() {
+        return pointerLogFile != null;
+    }
+
+    /**
+     * Add everything in the deferred pointers log to our hidden pointers slots and empty the log
+     *
+     * This is a no-op if the log is empty or if we are not in deferred pointers mode.
+     */
+    protected void mergePointerLog() {
+        if (numPointerLogEntries == 0) return;
+        try {
+            synchronized (pointerLogLock) {
+                if (numPointerLogEntries == 0) return;
+                pointerLog.flush();
+                final int numEntries = numPointerLogEntries;
+                log.debug("Merging " + numEntries + " deferred pointers");
+
+                // Sort the log a chunk at a time.  If it all fits in one chunk, then that's all we
+                // need, and we can skip the run files.
+                List<PointerLogEntry> chunk = null;
+                List<File> runFiles = new ArrayList<File>();
+                List<Integer> runSizes = new ArrayList<Integer>();
+                try {
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(
+                                    new FileInputStream(pointerLogFile), 1 << 16));
+                    try {
+                        int remaining = numEntries;
+                        while (remaining > 0) {
+                            final int n = Math.min(remaining, kbPointerLogSortChunk);
+                            chunk = new ArrayList<PointerLogEntry>(n);
+                            for (int i = 0; i < n; i++) chunk.add(readPointerLogEntry(in));
+                            remaining -= n;
+                            Collections.sort(chunk, POINTER_LOG_ORDER);
+                            if (remaining == 0 && runFiles.isEmpty()) break;
+                            runFiles.add(writePointerLogRun(chunk));
+                            runSizes.add(n);
+                            chunk = null;
+                        }
+                    } finally {
+                        in.close();
+                    }
+
+                    // Empty out the log before adding anything so that nothing we do from here can
+                    // wind up back in here.
+                    pointerLog.close();
+                    pointerLog = new DataOutputStream(new BufferedOutputStream(
+                                    new FileOutputStream(pointerLogFile), 1 << 16));
+                    numPointerLogEntries = 0;
+                    pointerLogEntities.clear();
+
+                    if (chunk != null) {
+                        for (PointerLogEntry entry : chunk) addPointerLogEntry(entry);
+                    } else {
+                        PriorityQueue<PointerLogRun> runs =
+                                new PriorityQueue<PointerLogRun>(runFiles.size(), POINTER_LOG_RUN_ORDER);
+                        for (int i = 0; i < runFiles.size(); i++)
+                            runs.add(new PointerLogRun(i, runFiles.get(i), runSizes.get(i)));
+                        while (!runs.isEmpty()) {
+                            PointerLogRun run = runs.poll();
+                            addPointerLogEntry(run.head);
+                            run.advance();
+                            if (run.head != null) runs.add(run);
+                        }
+                    }
+                } finally {
+                    for (File f : runFiles) f.delete();
+                }
+                log.debug("Done merging deferred pointers");
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("mergePointerLog()", e);
+        }
+    }
+
+    /**
+     * Write the given sorted chunk of deferred pointers log entries out to a new run file for
+     * mergePointerLog, returning the file
+     */
+    protected File writePointerLogRun(List<PointerLogEntry> chunk) throws IOException {
+        File file = File.createTempFile("theo2012-pointers-", ".run", pointerLogFile.getParentFile());
+        file.deleteOnExit();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(file), 1 << 16));
+        try {
+            for (PointerLogEntry entry : chunk)
+                writePointerLogEntry(out, entry.destination, entry.slot, entry.source);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Add the backpointer in the given deferred pointers log entry to our hidden pointers slots
+     */
+    protected void addPointerLogEntry(PointerLogEntry entry) {
+        RTWLocation pointerSlot =
+                entry.destination.getDestination().append(pointerSlotName).subslot(entry.slot);
+        super.add(pointerSlot, entry.source);
+    }
+
+    /**
+     * Add the given backpointer to the deferred pointers log if we are in deferred pointers mode,
+     * returning false if we are not, in which case the caller must add it itself
+     *
+     * Checking the mode here under pointerLogLock, rather than beforehand, makes sure that the
+     * backpointer can't wind up in a log that's just been closed by setDeferPointers.
+     */
+    protected boolean logPointer(RTWLocation destination, String slot, RTWPointerValue source) {
+        try {
+            synchronized (pointerLogLock) {
+                if (pointerLog == null) return false;
+                writePointerLogEntry(pointerLog, new RTWPointerValue(destination), slot, source);
+                numPointerLogEntries++;
+                pointerLogEntities.add(destination.getPrimitiveEntity());
+                if (numPointerLogEntries >= kbPointerLogMaxEntries) mergePointerLog();
+                return true;
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("logPointer(" + destination + ", \"" + slot + "\", "
+                    + source + ")", e);
+        }
+    }
+
+    /**
+     * Merge the deferred pointers log if it has anything in it for the given referent
+     */
+    protected void mergePointerLogFor(RTWLocation referent) {
+        if (numPointerLogEntries == 0) return;
+        synchronized (pointerLogLock) {
+            if (pointerLogEntities.contains(referent.getPrimitiveEntity())) mergePointerLog();
+        }
+    }
+
+    /**
+     * Bulk-load mode implies deferred pointers mode
+     */
+    @Override public void setBulkLoad(boolean bulkLoad) {
+        // Merge the pointers before the slotlists get written out, since merging adds to them
+        if (!bulkLoad) setDeferPointers(false);
+        super.setBulkLoad(bulkLoad);
+        if (bulkLoad) setDeferPointers(true);
+    }
+
+    @Override public void setReadOnly(boolean makeReadOnly) {
+        if (makeReadOnly) setDeferPointers(false);
+        super.setReadOnly(makeReadOnly);
+    }
+
+    @Override public void flush(boolean sync) {
+        mergePointerLog();
+        super.flush(sync);
+    }
+
+    @Override public void copy(String filename) {
+        mergePointerLog();
+        super.copy(filename);
+    }
+
+    @Override public void close() {
+        setDeferPointers(false);
+        super.close();
     }
 
     @Override public void open(String filename, boolean openInReadOnlyMode) {
@@ -577,7 +971,38 @@ public class StringListSuperStore<SLSM extends StringListStoreMap> extends Strin
         return substitute;
     }
 
+    /**
+     * Deleting anything may involve deleting pointers to or from other entities, so, in
+     * concurrent-writes mode, this has to count as a cross-entity operation
+     */
+    @Override public boolean delete(RTWLocation location, boolean errIfMissing, boolean recursive) {
+        final List<Lock> locks = lockEntities(location);
+        try {
+            return super.delete(location, errIfMissing, recursive);
+        } finally {
+            unlockEntities(locks);
+        }
+    }
+
     @Override public boolean add(RTWLocation location, RTWValue value) {
+        // Adding an RTWPointerValue means adding a hidden pointer to its destination, which, in
+        // concurrent-writes mode, is a cross-entity operation.  Anything else is left to
+        // StringListStore's locking.
+        if (value instanceof RTWPointerValue && useEntityLocks) {
+            final List<Lock> locks = lockEntities(location, ((RTWPointerValue)value).getDestination());
+            try {
+                return addWithPointers(location, value);
+            } finally {
+                unlockEntities(locks);
+            }
+        }
+        return addWithPointers(location, value);
+    }
+
+    /**
+     * Guts of add
+     */
+    protected boolean addWithPointers(RTWLocation location, RTWValue value) {
         try {
             boolean wasNew = super.add(location, value);
             
@@ -594,11 +1019,13 @@ public class StringListSuperStore<SLSM extends StringListStoreMap> extends Strin
                 // there there is some value.  location necessarily ends in a slot because that's
                 // the only kind of a place we can add a value to.
                 String slot = location.lastAsSlot();
-                RTWLocation pointerSlot = destination.append(pointerSlotName).subslot(slot);
 
                 // Note that we know location must have a parent because top-level entities
                 // cannot be used as slots.
-                super.add(pointerSlot, new RTWPointerValue(location.parent()));
+                if (!logPointer(destination, slot, new RTWPointerValue(location.parent()))) {
+                    RTWLocation pointerSlot = destination.append(pointerSlotName).subslot(slot);
+                    super.add(pointerSlot, new RTWPointerValue(location.parent()));
+                }
             }
 
             return wasNew;
@@ -624,6 +1051,7 @@ public class StringListSuperStore<SLSM extends StringListStoreMap> extends Strin
             // Conveniently, our hidden pointers slot is exactly the bag of value we want to return.
             // Also conveniently, if an illegitimate referent is given, then StringListStore will
             // either hand us back a null or throw an exception about it
+            mergePointerLogFor(referent);
             return new PointersBag(super.getLoc(referent.append(pointerSlotName).subslot(slot)));
         } catch (Exception e) {
             throw new RuntimeException("getPointer(" + referent + ", \"" + slot + "\")", e);
@@ -634,6 +1062,7 @@ public class StringListSuperStore<SLSM extends StringListStoreMap> extends Strin
     @Override public RTWListValue getPointingSlots(RTWLocation referent) {
         try {
             // Similarly convenient
+            mergePointerLogFor(referent);
             return super.getSubslots(referent.append(pointerSlotName));
         } catch (Exception e) {
             throw new RuntimeException("getPointingSlots(" + referent + ")", e);
@@ -1,5 +1,17 @@
 package edu.cmu.ml.rtw.theo2012.core;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
 /**
  * The lowest layer of Theo, in fact a "sub-Theo", intended to be the most expedient API to use in
  * order to write new KB storage implementations for which there is not already some other better
@@ -363,4 +375,87 @@ public interface Theo0 {
      */
     public RTWValue valueFromString(String str);
 
+    ////////////////////////////////////////////////////////////////////////////
+    // Whole-KB traversal
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Return a Spliterator over the names of all primitive entities in the KB<p>
+     *
+     * This is the Theo counterpart to {@link Store.getPrimitiveEntitySpliterator}, and the same
+     * terms apply: no particular order, and no writing to the KB during traversal.  It may be split
+     * up for traversal by multiple threads only in read-only mode.<p>
+     *
+     * Implementations layered on some other Theo0 or Store are expected to simply pass this along
+     * so that the partitioning comes from the lowest layer.  Use {@link
+     * getPrimitiveEntitySpliterator} to get PrimitiveEntity objects from the layer at hand.<p>
+     *
+     * Theo0 itself has no way to list primitive entities, so the default walks the specializations
+     * of "everything", depth-first, the same way an HFT export does, and can only split by reading
+     * ahead into arrays.  Primitive entities outside of the generalizations hierarchy won't be
+     * found this way, so implementations that can do better should override this.<p>
+     */
+    default public Spliterator<String> getPrimitiveEntityNameSpliterator() {
+        final List<PrimitiveEntity> stack = new ArrayList<PrimitiveEntity>();
+        final Set<String> visited = new HashSet<String>();
+        PrimitiveEntity everything = getPrimitiveEntity("everything");
+        if (everything != null) {
+            stack.add(everything);
+            visited.add(everything.getName());
+        }
+        return Spliterators.spliteratorUnknownSize(new Iterator<String>() {
+                @Override public boolean hasNext() {
+                    return !stack.isEmpty();
+                }
+
+                @Override public String next() {
+                    if (stack.isEmpty()) throw new NoSuchElementException();
+                    PrimitiveEntity pe = stack.remove(stack.size() - 1);
+                    for (Entity spec : pe.getQuery("specializations").entityIter()) {
+                        PrimitiveEntity specPE = spec.toPrimitiveEntity();
+                        if (visited.add(specPE.getName())) stack.add(specPE);
+                    }
+                    return pe.getName();
+                }
+
+                @Override public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            }, Spliterator.DISTINCT | Spliterator.NONNULL);
+    }
+
+    /**
+     * Return a Spliterator over all primitive entities in the KB<p>
+     *
+     * See {@link getPrimitiveEntityNameSpliterator}.<p>
+     */
+    default public Spliterator<PrimitiveEntity> getPrimitiveEntitySpliterator() {
+        return new PrimitiveEntitySpliterator(this, getPrimitiveEntityNameSpliterator());
+    }
+
+    /**
+     * Return a Stream over all primitive entities in the KB<p>
+     *
+     * A parallel Stream may only be requested in read-only mode.<p>
+     */
+    default public Stream<PrimitiveEntity> getPrimitiveEntityStream(boolean parallel) {
+        if (parallel && !isReadOnly())
+            throw new RuntimeException("Parallel traversal is only possible in read-only mode");
+        return StreamSupport.stream(getPrimitiveEntitySpliterator(), parallel);
+    }
+
+    /**
+     * Apply the given action to every primitive entity in the KB using a fork-join pool of the
+     * given number of threads, returning when all are done<p>
+     *
+     * The work is divided by splitting up {@link getPrimitiveEntitySpliterator}, and so along
+     * whatever partitions the underlying storage offers.  The action must be threadsafe, and, as
+     * with any multithreaded use of a KB, this may only be done in read-only mode.  A parallelism
+     * of 0 or less means to use one thread per available processor.<p>
+     */
+    default public void forEachEntity(Consumer<? super PrimitiveEntity> action, int parallelism) {
+        if (!isReadOnly())
+            throw new RuntimeException("Parallel traversal is only possible in read-only mode");
+        PrimitiveEntitySpliterator.forEach(getPrimitiveEntitySpliterator(), action, parallelism);
+    }
 }
\ No newline at end of file
@@ -125,12 +125,12 @@ public abstract class Theo0Base implements Theo0 {
         try {
             boolean deletedSomething = false;
             if (entity.isQuery()) {
+                // 2019-03: deleteAllValues rather than one deleteValue at a time so that
+                // implementations that can delete a whole slot at once get the chance to do so in
+                // one operation
                 Query q = entity.toQuery();
-                while (q != null && q.getNumValues() > 0) {
-                    RTWValue v = q.iter().iterator().next();
-                    q.deleteValue(v);
+                if (q != null && q.deleteAllValues())
                     deletedSomething = true;
-                }
                 if (developerMode) log.debug("Finished deleting all values from query " + q);
             }
 
@@ -308,7 +308,13 @@ public abstract class Theo0Base implements Theo0 {
         }
     }   
 
-    @Override public RTWValue valueFromString(String str) {
+    /**
+     * The first half of valueFromString: break the given string down into a list of tokens
+     *
+     * This needs no KB access at all, and so may be called from any thread, e.g. by parse workers
+     * in an HFT import.  The result is meant to be handed to {@link valueFromTokens}.
+     */
+    public static List<Object> tokenizeValueString(String str) {
         try {
             // First thing to do is to tokenize the given string.  Our primary delimiters of
             // interest are spaces and parentheses.  At least in our current
@@ -431,6 +437,18 @@ public abstract class Theo0Base implements Theo0 {
                     tokenList.add(str.substring(startPos));
             }
             
+            return tokenList;
+        } catch (Exception e) {
+            throw new RuntimeException("tokenizeValueString(\"" + str + "\")", e);
+        }
+    }
+
+    /**
+     * The second half of valueFromString: turn a list of tokens from {@link tokenizeValueString}
+     * into an RTWValue, resolving entity names against this KB
+     */
+    public RTWValue valueFromTokens(List<Object> tokenList) {
+        try {
             Pair<RTWValue, Integer> pair = valueFromString_recur(tokenList, 0);
             if (pair.getRight() < tokenList.size()) {
                 StringBuffer sb = new StringBuffer();
@@ -443,6 +461,16 @@ public abstract class Theo0Base implements Theo0 {
                 throw new RuntimeException("Extra junk at end of expression: " + sb.toString());
             }
             return pair.getLeft();
+        } catch (Exception e) {
+            throw new RuntimeException("valueFromTokens(" + tokenList + ")", e);
+        }
+    }
+
+    @Override public RTWValue valueFromString(String str) {
+        try {
+            // 2019-03: Split into two halves so that the KB-independent half can be done apart
+            // from the rest.  See tokenizeValueString for the gory details.
+            return valueFromTokens(tokenizeValueString(str));
         } catch (Exception e) {
             throw new RuntimeException("valueFromString(\"" + str + "\")", e);
         }
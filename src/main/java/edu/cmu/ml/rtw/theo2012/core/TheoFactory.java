@@ -102,15 +102,10 @@ public class TheoFactory {
 
         if (format.equals("tch")) {
             theo1 = TheoFactoryTCH.openTheo1(name, readOnly, create);
-        } else if (format.equals("hm")) {
-            if (!file.exists() || !file.isFile()) {
-                if (!create) {
-                    throw new RuntimeException(file + " does not exist");
-                }
-                // else our Store will automatically create on open
-            }
-
-            SuperStore store = new StringListSuperStore<StringListStoreMap>(new HashMapStoreMap());
+        } else if (format.equals("hm") || format.equals("mhm") || format.equals("ahm")
+                || format.equals("mdb") || format.equals("bmdb") || format.equals("smdb")) {
+            StringListStoreMap storeMap = newStringListStoreMap(format, file, create);
+            SuperStore store = new StringListSuperStore<StringListStoreMap>(storeMap);
             PointerInversingTheo1 pITheo1 = new PointerInversingTheo1(new StoreInverselessTheo1(store));
             pITheo1.open(file.toString(), readOnly);
             theo1 = pITheo1;
@@ -130,6 +125,46 @@ public class TheoFactory {
                N4JTheo0 theo0 = new N4JTheo0(file.toString(), readOnly, create=(!readOnly));
                theo1 = new MinimalTheo1(theo0);
             */
+        } else {
+            throw new RuntimeException("Unrecognized defaultKBFormat value " + format);
+        }
+        return theo1;
+    }
+
+    /**
+     * Construct the StringListStoreMap used by the given KB format for a KB at the given location,
+     * or return null if the format is not one that is built on a StringListStoreMap<p>
+     *
+     * This will throw an exception if there is no KB at the given location and create is not
+     * set.<p>
+     */
+    protected static StringListStoreMap newStringListStoreMap(String format, File file, boolean create) {
+        if (format.equals("hm")) {
+            if (!file.exists() || !file.isFile()) {
+                if (!create) {
+                    throw new RuntimeException(file + " does not exist");
+                }
+                // else our Store will automatically create on open
+            }
+            return new HashMapStoreMap();
+        } else if (format.equals("mhm")) {
+            // Same single-file arrangement as hm, but memory-mapped rather than loaded
+            if (!file.exists() || !file.isFile()) {
+                if (!create) {
+                    throw new RuntimeException(file + " does not exist");
+                }
+                // else our Store will automatically create on open
+            }
+            return new MappedHashStoreMap();
+        } else if (format.equals("ahm")) {
+            // Same as hm, but with the content kept serialized in a compact arena
+            if (!file.exists() || !file.isFile()) {
+                if (!create) {
+                    throw new RuntimeException(file + " does not exist");
+                }
+                // else our Store will automatically create on open
+            }
+            return new ArenaStoreMap();
         } else if (format.equals("mdb")) {
             if (!file.exists() || !file.isDirectory()) {
                 if (!create) {
@@ -138,10 +173,6 @@ public class TheoFactory {
                 // else our Store will automatically create on open
             }
 
-            MapDBStoreMap storeMap = new MapDBStoreMap();
-            storeMap.setForceAlwaysDirty(false);
-            SuperStore store = new StringListSuperStore<StringListStoreMap>(storeMap);
-            
             // bkdb: do we want to automatically invoke Theo2012Converter here?  We should probably
             // at least detect a non-Theo KB here by finding a string generalization from slot to
             // entity or something like that.  We don't want to do that inside of PIT1 beacuse
@@ -151,14 +182,59 @@ public class TheoFactory {
             //
             // OTOH, this is really the locus for format detection, and it does make sense to leave
             // things like PIT1 more appliance-like and NELL-agnostic.
-            
-            PointerInversingTheo1 pITheo1 = new PointerInversingTheo1(new StoreInverselessTheo1(store));
-            pITheo1.open(file.toString(), readOnly);
-            theo1 = pITheo1;
+
+            MapDBStoreMap storeMap = new MapDBStoreMap();
+            storeMap.setForceAlwaysDirty(false);
+            return storeMap;
+        } else if (format.equals("bmdb")) {
+            // Same as mdb, but with the keys kept sorted so that ranges of them can be scanned
+            if (!file.exists() || !file.isDirectory()) {
+                if (!create) {
+                    throw new RuntimeException(file + " does not exist");
+                }
+                // else our Store will automatically create on open
+            }
+
+            MapDBBTreeStoreMap storeMap = new MapDBBTreeStoreMap();
+            storeMap.setForceAlwaysDirty(false);
+            return storeMap;
+        } else if (format.equals("smdb")) {
+            // Same as mdb, but federated across a number of MapDB files for KBs well into the
+            // billions of records.
+            if (!file.exists() || !file.isDirectory()) {
+                if (!create) {
+                    throw new RuntimeException(file + " does not exist");
+                }
+                // else our Store will automatically create on open
+            }
+
+            ShardedMapDBStoreMap storeMap = new ShardedMapDBStoreMap();
+            storeMap.setForceAlwaysDirty(false);
+            return storeMap;
+        } else if (format.equals("tch") || format.equals("n4j")) {
+            return null;
         } else {
             throw new RuntimeException("Unrecognized defaultKBFormat value " + format);
         }
-        return theo1;
+    }
+
+    /**
+     * Open a KB in bulk-load mode for the purpose of loading a large amount of content into it,
+     * e.g. building a KB from an HFT file<p>
+     *
+     * See {@link BulkLoadSession} for what this entails.  The KB is opened read/write, and, if
+     * create is set, it will be created if it does not exist.  Not all KB formats support this;
+     * at present, the ones built on a StringListStoreMap (hm, mhm, ahm, mdb, bmdb, and smdb) do.<p>
+     *
+     * This will throw an exception if the operation cannot be completed.
+     */
+    public static BulkLoadSession openBulkLoad(String name, boolean create, List<String> options) {
+        properties = getProperties(options);
+        String format = properties.getProperty("defaultKBFormat", "tch");
+        StringListStoreMap storeMap = newStringListStoreMap(format, new File(name), create);
+        if (storeMap == null)
+            throw new RuntimeException("Bulk loading is not supported for KB format " + format);
+        return new BulkLoadSession(storeMap, name);
     }
 
     /**
@@ -0,0 +1,438 @@
+package edu.cmu.ml.rtw.theo2012.core;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * {@link SegmentCache} implementation using the W-TinyLFU replacement policy
+ *
+ * Years of hand-tuning the size of our pure-LRU cache (see the comments on {@link
+ * StringListStoreMapCache} and on mapCacheSize in {@link MapDBStoreMap}) came down to trying to
+ * make the cache big enough that one-shot scans like relation instance iteration, a {@link
+ * StringListStore.PrimitiveEntityIterator} walk, or an HFT export wouldn't push out the things that
+ * actually get used over and over again, like conditionedKnownNegatives.  LRU has no way to tell
+ * the difference between something touched once and something touched a thousand times.
+ *
+ * This policy keeps a small LRU "window" through which every new entry enters, followed by a
+ * "main" region that is a segmented LRU of a probationary part and a protected part.  Entries are
+ * promoted from probation to protected when they get touched again.  When something falls out of
+ * the window, it only gets admitted to the main region if it has been seen more frequently than
+ * the entry that would otherwise be evicted from the main region.  Frequencies are estimated with
+ * a count-min sketch of 4-bit counters that are periodically halved so that the past fades away.
+ * The upshot is that a scan passes through the window and is turned away at the door without
+ * flushing the working set.
+ *
+ * The window is 1% of capacity and the protected part is 80% of the main region.  These are the
+ * usual fixed proportions; we don't do any adaptive resizing of the window.
+ *
+ * Capacity may be expressed either in number of entries or, given a {@link SegmentCache.Weigher},
+ * in any other unit such as (estimated) bytes.  In the weighted case, admitting one heavy entry may
+ * cost several victims from the main region.  An entry heavier than the whole cache passes straight
+ * through.
+ *
+ * Admission can also be turned off, in which case the entire capacity is given over to the window
+ * and this degenerates into a plain LRU.  That's how we get a weighted LRU, which FasterLRUCache
+ * can't do.
+ *
+ * All methods are synchronized because {@link get} necessarily mutates the recency ordering and
+ * the frequency sketch, and StringListStoreMapCache only holds its segment read lock for get.
+ */
+public class TinyLFUSegmentCache<K, V> implements SegmentCache<K, V> {
+    protected final static int WINDOW = 0;
+    protected final static int PROBATION = 1;
+    protected final static int PROTECTED = 2;
+
+    protected static class Node<K, V> {
+        protected K key;
+        protected V value;
+        protected boolean dirty;
+        protected long weight;
+        protected int queue;
+        protected Node<K, V> prev;
+        protected Node<K, V> next;
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters used to estimate how often keys have been seen
+     *
+     * All four rows share one table, with each counter picked out by a different rehashing of the
+     * key's hash code.  Sixteen counters are packed into each long.
+     */
+    protected static class FrequencySketch {
+        protected final static long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+                                                0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+        protected final static long HALVING_MASK = 0x7777777777777777L;
+
+        protected final long[] table;
+        protected final int mask;
+        protected final int sampleSize;
+        protected int additions = 0;
+
+        protected FrequencySketch(int capacity) {
+            int n = 16;
+            while (n < capacity && n < (1 << 30)) n = n << 1;
+            table = new long[n];
+            mask = n - 1;
+            sampleSize = (n < (Integer.MAX_VALUE / 10)) ? n * 10 : Integer.MAX_VALUE;
+        }
+
+        protected int rehash(int hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            h += h >>> 32;
+            return (int)h;
+        }
+
+        protected int frequency(int hash) {
+            int min = 15;
+            for (int i = 0; i < 4; i++) {
+                int h = rehash(hash, i);
+                int index = (h >>> 4) & mask;
+                int shift = (h & 15) << 2;
+                int count = (int)((table[index] >>> shift) & 15L);
+                if (count < min) min = count;
+            }
+            return min;
+        }
+
+        protected void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int h = rehash(hash, i);
+                int index = (h >>> 4) & mask;
+                int shift = (h & 15) << 2;
+                if (((table[index] >>> shift) & 15L) != 15L) {
+                    table[index] += (1L << shift);
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++)
+                    table[i] = (table[i] >>> 1) & HALVING_MASK;
+                additions = additions / 2;
+            }
+        }
+
+        protected void clear() {
+            for (int i = 0; i < table.length; i++) table[i] = 0;
+            additions = 0;
+        }
+    }
+
+    /**
+     * Iterator over the dirty entries, optionally cleaning each one as it is returned
+     */
+    protected class DirtyIterator implements Iterator<Map.Entry<K, V>> {
+        protected final Iterator<Node<K, V>> it = data.values().iterator();
+        protected final boolean cleaning;
+        protected Node<K, V> nextNode = null;
+
+        protected DirtyIterator(boolean cleaning) {
+            this.cleaning = cleaning;
+            advance();
+        }
+
+        protected void advance() {
+            nextNode = null;
+            while (it.hasNext()) {
+                Node<K, V> n = it.next();
+                if (n.dirty) {
+                    nextNode = n;
+                    return;
+                }
+            }
+        }
+
+        @Override public boolean hasNext() {
+            return nextNode != null;
+        }
+
+        @Override public Map.Entry<K, V> next() {
+            if (nextNode == null) throw new NoSuchElementException();
+            Node<K, V> n = nextNode;
+            if (cleaning) n.dirty = false;
+            advance();
+            return new AbstractMap.SimpleImmutableEntry<K, V>(n.key, n.value);
+        }
+
+        @Override public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    protected final HashMap<K, Node<K, V>> data;
+    protected final FrequencySketch sketch;
+
+    /**
+     * Sentinel nodes for the circular lists of the three regions.  The node after the sentinel is
+     * the least recently used.
+     */
+    protected final Node<K, V>[] heads;
+
+    /**
+     * Total weight of the entries in each region
+     */
+    protected final long[] sizes = new long[3];
+
+    protected final long capacity;
+    protected final long windowCapacity;
+    protected final long mainCapacity;
+    protected final long protectedCapacity;
+
+    /**
+     * Null for an entry-count cache in which every entry weighs 1
+     */
+    protected final Weigher<K, V> weigher;
+
+    protected long admitted = 0;
+    protected long rejected = 0;
+    protected long evictions = 0;
+
+    /**
+     * Construct an entry-count-based W-TinyLFU cache
+     */
+    public TinyLFUSegmentCache(int capacity) {
+        this(capacity, true, null);
+    }
+
+    /**
+     * General constructor
+     *
+     * If weigher is null, then capacity is a number of entries.  Otherwise, capacity is in whatever
+     * units the weigher returns.  Setting admission false yields a plain LRU.
+     */
+    @SuppressWarnings("unchecked")
+    public TinyLFUSegmentCache(long capacity, boolean admission, Weigher<K, V> weigher) {
+        if (capacity < 1)
+            throw new RuntimeException("Capacity must be positive, not " + capacity);
+        this.capacity = capacity;
+        this.weigher = weigher;
+        if (admission) {
+            windowCapacity = Math.max(1, capacity / 100);
+            mainCapacity = capacity - windowCapacity;
+        } else {
+            windowCapacity = capacity;
+            mainCapacity = 0;
+        }
+        protectedCapacity = (long)(mainCapacity * 0.8);
+
+        data = new HashMap<K, Node<K, V>>();
+
+        // The sketch wants to be sized in terms of the number of entries we expect to hold.  When
+        // weighted, we can only guess, so aim for something that wouldn't be silly for a cache of
+        // modestly-sized entries without letting the table grow absurdly large.
+        int expectedEntries;
+        if (!admission) expectedEntries = 16;
+        else if (weigher == null) expectedEntries = (int)Math.min(capacity, Integer.MAX_VALUE);
+        else expectedEntries = (int)Math.min(capacity / 256, 1 << 24);
+        sketch = new FrequencySketch(expectedEntries);
+
+        heads = (Node<K, V>[])new Node[3];
+        for (int i = 0; i < 3; i++) {
+            heads[i] = new Node<K, V>();
+            heads[i].prev = heads[i];
+            heads[i].next = heads[i];
+        }
+    }
+
+    protected long weigh(K key, V value) {
+        if (weigher == null) return 1;
+        return weigher.weigh(key, value);
+    }
+
+    protected static int spread(Object key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    protected void unlink(Node<K, V> n) {
+        n.prev.next = n.next;
+        n.next.prev = n.prev;
+        n.prev = null;
+        n.next = null;
+        sizes[n.queue] -= n.weight;
+    }
+
+    protected void append(Node<K, V> n, int queue) {
+        Node<K, V> head = heads[queue];
+        n.queue = queue;
+        n.prev = head.prev;
+        n.next = head;
+        head.prev.next = n;
+        head.prev = n;
+        sizes[queue] += n.weight;
+    }
+
+    protected Node<K, V> first(int queue) {
+        Node<K, V> n = heads[queue].next;
+        if (n == heads[queue]) return null;
+        return n;
+    }
+
+    /**
+     * Update recency for an entry that was just touched, promoting it to the protected region if it
+     * was on probation
+     */
+    protected void onAccess(Node<K, V> n) {
+        if (n.queue == PROBATION) {
+            unlink(n);
+            append(n, PROTECTED);
+            demoteProtected();
+        } else {
+            int queue = n.queue;
+            unlink(n);
+            append(n, queue);
+        }
+    }
+
+    /**
+     * Move entries from the protected region back to probation until the protected region fits in
+     * its share of the main region
+     */
+    protected void demoteProtected() {
+        while (sizes[PROTECTED] > protectedCapacity) {
+            Node<K, V> demoted = first(PROTECTED);
+            unlink(demoted);
+            append(demoted, PROBATION);
+        }
+    }
+
+    protected void evict(Node<K, V> n, Evicted<K, V> evicted) {
+        data.remove(n.key);
+        if (n.dirty) evicted.add(n.key, n.value);
+        evictions++;
+    }
+
+    /**
+     * Return the main region's least recently used entry on probation, or, failing that, in the
+     * protected region.
+     */
+    protected Node<K, V> mainVictim() {
+        Node<K, V> victim = first(PROBATION);
+        if (victim == null) victim = first(PROTECTED);
+        return victim;
+    }
+
+    /**
+     * Bring everything back within capacity after an insertion or a change in weight
+     *
+     * The least recently used entries in the window are moved out one by one.  Each one is admitted
+     * into the main region only if it has been seen more frequently than the entry (or entries) that
+     * would have to be evicted from the main region to make room for it.
+     */
+    protected void maintain(Evicted<K, V> evicted) {
+        while (sizes[WINDOW] > windowCapacity) {
+            Node<K, V> candidate = first(WINDOW);
+            unlink(candidate);
+
+            int candidateFreq = sketch.frequency(spread(candidate.key));
+            boolean admit = candidate.weight <= mainCapacity;
+            while (admit && sizes[PROBATION] + sizes[PROTECTED] + candidate.weight > mainCapacity) {
+                Node<K, V> victim = mainVictim();
+                if (candidateFreq > sketch.frequency(spread(victim.key))) {
+                    unlink(victim);
+                    evict(victim, evicted);
+                } else {
+                    admit = false;
+                }
+            }
+
+            if (admit) {
+                append(candidate, PROBATION);
+                admitted++;
+            } else {
+                evict(candidate, evicted);
+                rejected++;
+            }
+        }
+
+        // A main region entry might have gotten heavier
+        demoteProtected();
+        while (sizes[PROBATION] + sizes[PROTECTED] > mainCapacity) {
+            Node<K, V> victim = mainVictim();
+            unlink(victim);
+            evict(victim, evicted);
+        }
+    }
+
+    @Override public V get(K key) {
+        return getEquivalent(key);
+    }
+
+    /**
+     * HashMap asks the probe key rather than the stored key whether they're equal, and spread only
+     * looks at hashCode, so a stand-in key can be used as-is
+     */
+    @Override public boolean acceptsEquivalentKeys() {
+        return true;
+    }
+
+    @Override public synchronized V getEquivalent(Object key) {
+        sketch.increment(spread(key));
+        Node<K, V> n = data.get(key);
+        if (n == null) return null;
+        onAccess(n);
+        return n.value;
+    }
+
+    @Override public synchronized V put(K key, V value, boolean dirty, Evicted<K, V> evicted) {
+        sketch.increment(spread(key));
+        Node<K, V> n = data.get(key);
+        if (n != null) {
+            V previous = n.value;
+            int queue = n.queue;
+            unlink(n);
+            n.value = value;
+            n.weight = weigh(key, value);
+            if (dirty) n.dirty = true;
+            append(n, queue);
+            onAccess(n);
+            maintain(evicted);
+            return previous;
+        }
+
+        n = new Node<K, V>();
+        n.key = key;
+        n.value = value;
+        n.weight = weigh(key, value);
+        n.dirty = dirty;
+        data.put(key, n);
+        append(n, WINDOW);
+        maintain(evicted);
+        return null;
+    }
+
+    @Override public synchronized void clear() {
+        data.clear();
+        for (int i = 0; i < 3; i++) {
+            heads[i].prev = heads[i];
+            heads[i].next = heads[i];
+            sizes[i] = 0;
+        }
+        sketch.clear();
+    }
+
+    @Override public synchronized Iterator<Map.Entry<K, V>> dirtyIterator() {
+        return new DirtyIterator(false);
+    }
+
+    @Override public synchronized Iterator<Map.Entry<K, V>> cleaningDirtyIterator() {
+        return new DirtyIterator(true);
+    }
+
+    @Override public synchronized long getWeightedSize() {
+        return sizes[WINDOW] + sizes[PROBATION] + sizes[PROTECTED];
+    }
+
+    @Override public synchronized String logStats() {
+        if (mainCapacity == 0)
+            return "LRU capacity " + capacity + ": size " + sizes[WINDOW] + ", entries " + data.size()
+                    + ", evictions " + evictions;
+        return "W-TinyLFU capacity " + capacity + ": window " + sizes[WINDOW] + "/" + windowCapacity
+                + ", probation " + sizes[PROBATION] + ", protected " + sizes[PROTECTED] + "/"
+                + protectedCapacity + ", entries " + data.size() + ", admitted " + admitted + ", rejected " + rejected
+                + ", evictions " + evictions;
+    }
+}
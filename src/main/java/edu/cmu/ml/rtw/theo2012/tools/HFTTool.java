@@ -40,7 +40,7 @@ public class HFTTool {
             kb = TheoFactory.open(kbLocation, false, true, options);
 
             HFTUtil hftUtil = new HFTUtil(kb);
-            hftUtil.importHFT0(hftFile);
+            hftUtil.importHFT(hftFile);
         } catch (Exception e) {
             throw new RuntimeException("importHFT(" + hftFile + ", " + kbLocation + ", "
                     + options + ")", e);
@@ -49,13 +49,38 @@ public class HFTTool {
         }
     }
 
-    protected void exportHFT(String hftFile, String kbLocation, List<String> options) {
+    protected void bulkImportHFT(String hftFile, String kbLocation, List<String> options) {
+        BulkLoadSession session = null;
+        try {
+            session = TheoFactory.openBulkLoad(kbLocation, true, options);
+
+            HFTUtil hftUtil = new HFTUtil(session.getTheo());
+            hftUtil.importHFT(hftFile);
+            int numViolations = session.finish();
+            if (numViolations > 0)
+                throw new RuntimeException("Imported content has " + numViolations
+                        + " constraint violations.  See log for details.");
+        } catch (Exception e) {
+            throw new RuntimeException("bulkImportHFT(" + hftFile + ", " + kbLocation + ", "
+                    + options + ")", e);
+        } finally {
+            if (session != null) session.close();
+        }
+    }
+
+    protected void exportHFT(String hftFile, String kbLocation, List<String> options,
+            boolean parallel) {
         Theo2 kb = null;
         try {
             kb = TheoFactory.open(kbLocation, true, false, options);
             
             HFTUtil hftUtil = new HFTUtil(kb);
-            hftUtil.exportHFT0(hftFile);
+            if (hftFile.endsWith(".hft1"))
+                hftUtil.exportHFT1(hftFile);
+            else if (parallel)
+                hftUtil.exportHFT0Parallel(hftFile);
+            else
+                hftUtil.exportHFT0(hftFile);
         } catch (Exception e) {
             throw new RuntimeException("exportHFT(" + hftFile + ", " + kbLocation + ")", e);
         } finally {
@@ -83,7 +108,8 @@ public class HFTTool {
                 "Commandline access to things to do with HFT files                               \n" +
                 "                                                                                \n" +
                 "Usage:                                                                          \n" +
-                " " + progname + " [--kbformat=<kbformat>] <cmd> <hftfile> <kbloc>               \n" +
+                " " + progname + " [--kbformat=<kbformat>] [--bulkload] [--parallel] <cmd>       \n" +
+                "     <hftfile> <kbloc>                                                          \n" +
                 "                                                                                \n" +
                 "where                                                                           \n" +
                 " --kbformat     Sets the format for new KB files, overriding whatever default is\n" +
@@ -93,16 +119,24 @@ public class HFTTool {
                 "                  n4j      Neo4J format.                                        \n" +
                 "                  n4j0     Neo4J format opened as Theo0 rather than Theo1.      \n" +
                 "                                                                                \n" +
+                " --bulkload     Import in bulk-load mode, which is much faster for building a   \n" +
+                "                  new KB.  Constraints are checked once at the end rather than  \n" +
+                "                  on each belief, and the import fails if any are violated,     \n" +
+                "                  albeit with the content having been imported.                 \n" +
+                "                                                                                \n" +
+                " --parallel     Export HFT0 on multiple threads (see the hftExportThreads       \n" +
+                "                  property).  The file holds the same beliefs but not in the    \n" +
+                "                  same order as a serial export, and may repeat a few of them.  \n" +
+                "                                                                                \n" +
                 " <cmd>          Selects command to run.  One of:                                \n" +
                 "                  import: Reads <hftfile> and \"executes\" it into <kbfile>.      \n" +
                 "                                                                                \n" +
                 "                  export: Read <kbfile> and creates / overwrites <hftfile> with \n" +
                 "                    a new HFT file that will recreate the KB if executed into a \n" +
                 "                    new, empty KB.  The choice of how to construct this HFT file\n" +
-                "                    will be some sort of \"best practice\".  As of this writing,  \n" +
-                "                    HFT0 is the only HFT format that exists, and only one kind  \n" +
-                "                    of \"command\" is defined, so there aren't any choices to be  \n" +
-                "                    made yet.                                                   \n" +
+                "                    will be some sort of \"best practice\".  The file is written  \n" +
+                "                    in the binary HFT1 format if its name ends in \".hft1\", and  \n" +
+                "                    as HFT0 otherwise.  Imports recognize either format.        \n" +
                 "                                                                                \n" +
                 " <hftfile>      HFT file to use.  If this is an output file, then it will be    \n" +
                 "                  created, overwriting any existing file.                       \n" +
@@ -132,6 +166,8 @@ public class HFTTool {
         String hftFile = null;
         String kbLocation = null;
         List<String> options = new ArrayList<String>();
+        boolean bulkLoad = false;
+        boolean parallel = false;
 
         // Parse command line options (quick and dirty to avoid adding more 3rd-party dependencies)
         for (String arg : args) {
@@ -140,6 +176,14 @@ public class HFTTool {
                     Usage(progname);
                     System.exit(0);
                 }
+                if (arg.equals("--bulkload")) {
+                    bulkLoad = true;
+                    continue;
+                }
+                if (arg.equals("--parallel")) {
+                    parallel = true;
+                    continue;
+                }
                 options.add(arg);
             } else if (cmd == null) {
                 cmd = arg;
@@ -160,9 +204,10 @@ public class HFTTool {
         // We'll let the handler for each command worry about opening files and suchlike.  We can
         // refactor some of that back here if/when there are more commands with more commonality.
         if (cmd.equals("import")) {
-            importHFT(hftFile, kbLocation, options);
+            if (bulkLoad) bulkImportHFT(hftFile, kbLocation, options);
+            else importHFT(hftFile, kbLocation, options);
         } else if (cmd.equals("export")) {
-            exportHFT(hftFile, kbLocation, options);
+            exportHFT(hftFile, kbLocation, options, parallel);
         } else {
             throw new RuntimeException("Unrecognized command \"" + cmd + "\"");
         }
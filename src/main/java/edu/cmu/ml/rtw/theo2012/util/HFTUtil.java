@@ -1,25 +1,49 @@
 package edu.cmu.ml.rtw.theo2012.util;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
 
 import edu.cmu.ml.rtw.util.AsyncInputStream;
 import edu.cmu.ml.rtw.util.Logger;
 import edu.cmu.ml.rtw.util.LogFactory;
+import edu.cmu.ml.rtw.util.Properties;
 import edu.cmu.ml.rtw.util.Timer;
 
 import edu.cmu.ml.rtw.theo2012.core.*;
@@ -42,6 +66,30 @@ public class HFTUtil {
      */
     public HFTUtil(Theo2 kb) {
         this.kb = kb;
+        Properties properties = TheoFactory.getProperties();
+        importThreads = properties.getPropertyIntegerValue("hftImportThreads",
+                Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+        exportThreads = properties.getPropertyIntegerValue("hftExportThreads",
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Set the number of threads that exportHFT0Parallel uses
+     *
+     * 1 or fewer means to export everything on the calling thread.  exportHFT0 ignores this and
+     * always exports on the calling thread.
+     */
+    public void setExportThreads(int exportThreads) {
+        this.exportThreads = exportThreads;
+    }
+
+    /**
+     * Set the number of parse workers to use when importing (see importHFT0Parallel)
+     *
+     * 1 or fewer means to import everything on the calling thread the way we always used to.
+     */
+    public void setImportThreads(int importThreads) {
+        this.importThreads = importThreads;
     }
 
     ////////////////////////////////////////////////////////////////////////////
@@ -52,24 +100,85 @@ public class HFTUtil {
     protected boolean logCommands = false;
     protected boolean parseOnly = false;
 
-    protected void importHFT0Line(String line) {
+    /**
+     * Number of parse workers to use when importing
+     */
+    protected int importThreads;
+
+    /**
+     * Number of lines handed to a parse worker at a time
+     */
+    protected final static int IMPORT_BATCH_SIZE = 1000;
+
+    /**
+     * One line of an HFT0 file after having gone through parseHFT0Line
+     *
+     * If tokens is null, then the line is to be skipped, having either been a comment or blank or
+     * else having been rejected, in which case warning or error says why.
+     */
+    protected static class HFT0Line {
+        protected final String line;
+        protected List<Object> tokens;
+        protected String warning;
+        protected RuntimeException error;
+
+        protected HFT0Line(String line) {
+            this.line = line;
+        }
+    }
+
+    /**
+     * The half of importHFT0Line that does not need the KB, and so may be done on any thread
+     *
+     * This never throws; any trouble is recorded in the returned object for applyHFT0Line to deal
+     * with so that errors get handled in file order.
+     */
+    protected static HFT0Line parseHFT0Line(String line) {
+        HFT0Line parsed = new HFT0Line(line);
         try {
             // Skip commented and empty lines
-            if (line.length() == 0 || line.charAt(0) == '#') return;
+            if (line.length() == 0 || line.charAt(0) == '#') return parsed;
 
             int pos = 0;
             if (line.length() < 4
                     || (line.charAt(pos++) != 'a')
                     || (line.charAt(pos++) != 'b')
                     || (line.charAt(pos++) != ' ')) {
+                parsed.warning = "Ignoring unrecognized HFT0 command: " + line;
+                return parsed;
+            }
+
+            parsed.tokens = Theo0Base.tokenizeValueString(line.substring(3));
+        } catch (Exception e) {
+            parsed.error = new RuntimeException("parseHFT0Line(\"" + line + "\")", e);
+        }
+        return parsed;
+    }
+
+    /**
+     * The half of importHFT0Line that resolves what parseHFT0Line produced against the KB and
+     * applies it
+     *
+     * This must be called on the importing thread, in file order, because the meaning of a line can
+     * depend on what came before it (e.g. whether some entity is a slot yet).
+     */
+    protected void applyHFT0Line(HFT0Line parsed) {
+        try {
+            if (parsed.error != null) throw parsed.error;
+            if (parsed.warning != null) {
                 if (continueOnError)
-                    log.warn("Ignoring unrecognized HFT0 command: " + line);
+                    log.warn(parsed.warning);
                 else
-                    throw new RuntimeException("Ignoring unrecognized HFT0 command: " + line);
+                    throw new RuntimeException(parsed.warning);
                 return;
             }
+            if (parsed.tokens == null) return;
 
-            RTWValue expression = kb.valueFromString(line.substring(3));
+            RTWValue expression;
+            if (kb instanceof Theo0Base)
+                expression = ((Theo0Base)kb).valueFromTokens(parsed.tokens);
+            else
+                expression = kb.valueFromString(parsed.line.substring(3));
             if (logCommands) log.debug(expression.toString());  // bkdb: shouldn't need tostring
             if (expression instanceof Entity) {
                 Entity entity = (Entity)expression;
@@ -91,14 +200,43 @@ public class HFTUtil {
                     throw new RuntimeException("Ignoring non-entity expression " + expression);
             }
         } catch (Exception e) {
-            throw new RuntimeException("importHFT0Line(\"" + line + "\")", e);
+            throw new RuntimeException("importHFT0Line(\"" + parsed.line + "\")", e);
+        }
+    }
+
+    protected void importHFT0Line(String line) {
+        applyHFT0Line(parseHFT0Line(line));
+    }
+
+    /**
+     * Log progress every million lines (or beliefs, or whatever "what" is), in the same way for all
+     * of the kinds of import
+     *
+     * Returns the (possibly new) timer for JVM memory reports.
+     */
+    protected Timer logImportProgress(int lines, String what, Timer lastJVMReport) {
+        if (lines % 1000000 == 0) {
+            String jvmString = "";
+            if (lastJVMReport == null || lastJVMReport.getElapsedMin() >= 10) {
+                long totalMemory = Runtime.getRuntime().totalMemory() / 1048756;
+                long usedMemory = totalMemory - Runtime.getRuntime().freeMemory() / 1048756;
+                jvmString = " (JVM Total:" + totalMemory + "MB, Used:" + usedMemory
+                        + "MB)";
+                if (lastJVMReport == null) lastJVMReport = new Timer();
+                lastJVMReport.start();
+            }
+            log.info("Imported " + (lines / 1000000) + "M " + what + jvmString);
         }
+        return lastJVMReport;
     }
 
     public void importHFT0(BufferedReader in, String sourceName) {
+        if (importThreads > 1) {
+            importHFT0Parallel(in, sourceName);
+            return;
+        }
         try {
             int lines = 0;
-            long totalMemory, usedMemory;
             Timer lastJVMReport = null;
             int errorCount = 0;
 
@@ -111,18 +249,7 @@ public class HFTUtil {
                 while (true) {
                     line = in.readLine().trim();
                     lines++;
-                    if (lines % 1000000 == 0) {
-                        String jvmString = "";
-                        if (lastJVMReport == null || lastJVMReport.getElapsedMin() >= 10) {
-                            totalMemory = Runtime.getRuntime().totalMemory() / 1048756;
-                            usedMemory = totalMemory - Runtime.getRuntime().freeMemory() / 1048756;
-                            jvmString = " (JVM Total:" + totalMemory + "MB, Used:" + usedMemory
-                                    + "MB)";
-                            if (lastJVMReport == null) lastJVMReport = new Timer();
-                            lastJVMReport.start();
-                        }
-                        log.info("Imported " + (lines / 1000000) + "M lines" + jvmString);
-                    }
+                    lastJVMReport = logImportProgress(lines, "lines", lastJVMReport);
                     if (line.startsWith("HFTEND")) {
                         gotEnd = true;
                         break;
@@ -154,6 +281,140 @@ public class HFTUtil {
         }
     }
 
+    /**
+     * Parallel version of importHFT0<p>
+     *
+     * Parsing a line of HFT0 costs about as much as writing it to the KB, so doing both on one
+     * thread leaves most of the machine idle.  So here we have three stages: a reader thread that
+     * reads lines and hands them out in batches of IMPORT_BATCH_SIZE, importThreads workers that
+     * run each batch through parseHFT0Line, and the calling thread, which takes the parsed batches
+     * in file order and applies each line to the KB with applyHFT0Line.  The reader can only get
+     * so many batches ahead of the writer, which bounds memory usage.<p>
+     *
+     * Only tokenization happens in parallel.  Resolving entity names and building Entity objects
+     * has to happen on the writer because it reads the KB, and because an earlier line can change
+     * the meaning of a later one.<p>
+     *
+     * Error handling, the abort after 100 errors, and progress logging are the same as for the
+     * serial import.<p>
+     */
+    protected void importHFT0Parallel(final BufferedReader in, final String sourceName) {
+        final ExecutorService pool = Executors.newFixedThreadPool(importThreads);
+        final BlockingQueue<Future<HFT0Line[]>> batches =
+                new ArrayBlockingQueue<Future<HFT0Line[]>>(importThreads * 4);
+        final AtomicReference<Throwable> readerError = new AtomicReference<Throwable>();
+        final boolean[] gotEnd = new boolean[1];
+
+        // The end of the input is signalled by a batch of null
+        final FutureTask<HFT0Line[]> endOfInput = new FutureTask<HFT0Line[]>(new Callable<HFT0Line[]>() {
+                @Override public HFT0Line[] call() {
+                    return null;
+                }
+            });
+        endOfInput.run();
+
+        Thread reader = new Thread(new Runnable() {
+                @Override public void run() {
+                    try {
+                        String line = in.readLine();
+                        if (line == null || !line.startsWith("HFTBEGIN 0"))
+                            throw new RuntimeException("Unrecognized HFT header line: " + line);
+                        while (true) {
+                            final String[] batch = new String[IMPORT_BATCH_SIZE];
+                            int n = 0;
+                            while (n < batch.length) {
+                                line = in.readLine();
+                                if (line == null) break;
+                                line = line.trim();
+                                if (line.startsWith("HFTEND")) {
+                                    gotEnd[0] = true;
+                                    break;
+                                }
+                                batch[n++] = line;
+                            }
+                            if (n > 0) {
+                                final int size = n;
+                                batches.put(pool.submit(new Callable<HFT0Line[]>() {
+                                            @Override public HFT0Line[] call() {
+                                                HFT0Line[] parsed = new HFT0Line[size];
+                                                for (int i = 0; i < size; i++)
+                                                    parsed[i] = parseHFT0Line(batch[i]);
+                                                return parsed;
+                                            }
+                                        }));
+                            }
+                            if (line == null || gotEnd[0]) break;
+                        }
+                    } catch (InterruptedException e) {
+                        // The writer gave up on us
+                        return;
+                    } catch (Throwable e) {
+                        readerError.set(e);
+                    }
+                    try {
+                        batches.put(endOfInput);
+                    } catch (InterruptedException e) {
+                        // Ditto
+                    }
+                }
+            }, "HFT0 import reader");
+        reader.setDaemon(true);
+
+        int lines = 1;
+        try {
+            Timer lastJVMReport = null;
+            int errorCount = 0;
+
+            try {
+                reader.start();
+                while (true) {
+                    HFT0Line[] batch;
+                    try {
+                        batch = batches.take().get();
+                    } catch (ExecutionException e) {
+                        throw new RuntimeException("Parse worker failed", e.getCause());
+                    }
+                    if (batch == null) break;
+                    for (HFT0Line parsed : batch) {
+                        lines++;
+                        lastJVMReport = logImportProgress(lines, "lines", lastJVMReport);
+                        try {
+                            applyHFT0Line(parsed);
+                        } catch (Exception e) {
+                            if (continueOnError) {
+                                log.error(sourceName + ":" + parsed.line, e);
+                                errorCount++;
+                                if (errorCount > 100)
+                                    throw new RuntimeException("Too many errors: aborting");
+                            } else {
+                                throw new RuntimeException(sourceName + ":" + parsed.line, e);
+                            }
+                        }
+                    }
+                }
+                reader.join();
+                if (readerError.get() != null)
+                    throw new RuntimeException("Reading " + sourceName, readerError.get());
+                if (!gotEnd[0])
+                    throw new RuntimeException("Incomplete HFT file");
+                lines++;
+                log.info("Finished importing " + lines + " HFT lines from " + sourceName);
+            } catch (Exception e) {
+                log.fatal("At " + sourceName + " line " + lines, e);
+            } finally {
+                // Unblock and stop the reader and workers if we're bailing out early
+                pool.shutdownNow();
+                reader.interrupt();
+                batches.clear();
+                reader.join();
+            }
+
+            in.close();
+        } catch (Exception e) {
+            throw new RuntimeException("importHFT0Parallel(<in>, \"" + sourceName +"\")", e);
+        }
+    }
+
     public void importHFT0(String hftFile) {
         try {
             BufferedReader in;
@@ -201,6 +462,24 @@ public class HFTUtil {
     protected int totalPEs = 0;
     protected int numPEs = 0;
 
+    /**
+     * Number of threads to use when exporting to a file
+     */
+    protected int exportThreads;
+
+    /**
+     * Set on the HFTUtil instances that exportHFT0Parallel uses to export individual partitions
+     *
+     * See exportHFT0Parallel for how these behave differently.
+     */
+    protected boolean partitionWorker = false;
+
+    /**
+     * Beliefs that a partition worker has emitted by way of exportHFT0Dependency for the primitive
+     * entity it is currently exporting
+     */
+    protected Set<String> emittedDependencies = new HashSet<String>();
+
     /**
      * Maps a primitive entity to the set of Strings based on it that have been exported.  When we
      * have completely exported a primitive entity, we replace that set with doneExporting as an
@@ -211,6 +490,12 @@ public class HFTUtil {
 
     protected void exportHFT0Entity(PrintStream out, Entity entity, Set<String> exportedLocs) {
         try {
+            // Partition workers leave other primitive entities to whichever worker has them
+            if (partitionWorker) {
+                exportHFT0Dependency(out, entity);
+                return;
+            }
+
             // Contract this out to exportFHTPrimitive if this is a primitive entity
             if (entity.isPrimitiveEntity()) {
                 exportHFT0Primitive(out, entity.toPrimitiveEntity());
@@ -244,6 +529,61 @@ public class HFTUtil {
         }
     }
 
+    /**
+     * A partition worker's version of exportHFT0Entity: emit only what is needed for the given
+     * entity to exist, as opposed to everything rooted at the same primitive entity
+     *
+     * All primitive entities already exist by the time the partitions are being exported, so what
+     * this amounts to is emitting the chain of beliefs that the entity is built on.  Whatever
+     * partition the entity is actually rooted in will emit those beliefs again, which is harmless.
+     */
+    protected void exportHFT0Dependency(PrintStream out, Entity entity) {
+        try {
+            if (entity.isPrimitiveEntity()) return;
+            if (entity.isQuery()) {
+                exportHFT0Dependency(out, entity.toQuery().getQueryEntity());
+                return;
+            }
+            if (entity.isBelief()) {
+                Belief b = entity.toBelief();
+                String bstr = b.toString();
+                if (!emittedDependencies.add(bstr)) return;
+                exportHFT0Dependency(out, b.getBeliefQuery());
+                RTWValue v = b.getBeliefValue();
+                if (v instanceof Entity) exportHFT0Dependency(out, (Entity)v);
+                emitBelief(out, b, bstr);
+                return;
+            }
+            throw new RuntimeException("What the heck is this if not a primitive entity, query, or belief?");
+        } catch (Exception e) {
+            throw new RuntimeException("exportHFT0Dependency(<out>, " + entity + ")", e);
+        }
+    }
+
+    /**
+     * Set while exporting HFT1, in which case beliefs go here instead of to the PrintStream that
+     * the export methods are passed
+     */
+    protected HFT1Writer hft1Out = null;
+
+    /**
+     * Emit an assertion of the given belief
+     *
+     * bstr is its string form if the caller happens to have it handy, or else null.
+     */
+    protected void emitBelief(PrintStream out, Belief b, String bstr) {
+        try {
+            if (hft1Out != null) {
+                hft1Out.write(b);
+                return;
+            }
+            if (bstr == null) bstr = b.toString();
+            out.println("ab " + bstr);
+        } catch (Exception e) {
+            throw new RuntimeException("emitBelief(<out>, " + b + ", <bstr>)", e);
+        }
+    }
+
     protected int queryDepth = 0;
 
     /**
@@ -284,7 +624,7 @@ public class HFTUtil {
                     // pays off in terms of pruning our recursion.
                     if (v instanceof Entity && !((Entity)v).isPrimitiveEntity())
                         exportHFT0Entity(out, (Entity)v, exportedLocs);
-                    out.println("ab " + q.getBelief(v).toString());
+                    emitBelief(out, q.getBelief(v), null);
                 }
 
                 // Recurse
@@ -326,8 +666,15 @@ public class HFTUtil {
                 exportHFT0Query(out, pe.getQuery(s), exportedLocs);
             }
 
-            // Now we can mark this entity as being completely done
+            // Now we can mark this entity as being completely done.  A partition worker never
+            // comes back to an entity, so it can forget about it entirely and keep its memory
+            // usage down.
             exportedLocs = null;
+            if (partitionWorker) {
+                exportedEntities.remove(peName);
+                emittedDependencies.clear();
+                return;
+            }
             exportedEntities.put(peName, doneExporting);
 
             if (++numPEs % 100000 == 0) {
@@ -392,9 +739,10 @@ public class HFTUtil {
                 // Make sure our generalization exists first, of course
                 exportHFT0PrimitiveOnly(out, gen.toPrimitiveEntity());
 
-                String bstr = q.getBelief(gen).toString();
+                Belief b = q.getBelief(gen);
+                String bstr = b.toString();
                 if (exportedLocs.add(bstr))
-                    out.println("ab " + bstr);
+                    emitBelief(out, b, bstr);
             }
             exportedLocs = null;
             exportedEntities.put(peName, doneExporting);
@@ -471,6 +819,177 @@ public class HFTUtil {
         }
     }
 
+    /**
+     * Return the names of all primitive entities reachable from the given one by way of
+     * specializations, including itself, in depth-first order
+     */
+    protected List<String> collectPrimitiveEntities(String root) {
+        try {
+            List<String> names = new ArrayList<String>();
+            Set<String> visited = new HashSet<String>();
+            List<PrimitiveEntity> stack = new ArrayList<PrimitiveEntity>();
+            stack.add(kb.getPrimitiveEntity(root));
+            visited.add(root);
+            while (!stack.isEmpty()) {
+                PrimitiveEntity pe = stack.remove(stack.size() - 1);
+                names.add(pe.getName());
+                for (Entity spec : pe.getQuery("specializations").entityIter()) {
+                    PrimitiveEntity specPE = spec.toPrimitiveEntity();
+                    if (visited.add(specPE.getName())) stack.add(specPE);
+                }
+            }
+            return names;
+        } catch (Exception e) {
+            throw new RuntimeException("collectPrimitiveEntities(\"" + root + "\")", e);
+        }
+    }
+
+    /**
+     * Open the given file for writing, gzipping if the name of the final output file ends in
+     * ".gz"
+     */
+    protected static PrintStream openExportPart(File file, boolean gzip) throws java.io.IOException {
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+        if (gzip) os = new GZIPOutputStream(os, 1 << 16);
+        return new PrintStream(os);
+    }
+
+    /**
+     * Parallel version of exportHFT0 for the primitive entity given by root<p>
+     *
+     * The generalizations hierarchy, and then all slots and everything they need, are exported
+     * first on the calling thread, just as exportHFT0 would, so that every primitive entity exists
+     * and every slot has its full metadata before anything else gets used.  The remaining primitive
+     * entities are then split into contiguous partitions (in the same depth-first order that
+     * exportHFT0 would visit them), and exportThreads threads export the partitions concurrently,
+     * each into its own part file.  Finally, the part files are concatenated in order into the
+     * output file.  When gzipping, each part is its own gzip member, and GZIPInputStream reads
+     * concatenated members as one stream, so importHFT0 needs no special treatment for the result.<p>
+     *
+     * The partition workers are separate HFTUtil instances, and differ from the usual in three
+     * ways.  They do not recurse into specializations.  They don't keep track of entities once they
+     * are done with them, so memory no longer grows with the size of the KB.  And when they need
+     * some composite entity rooted in some other primitive entity to exist (e.g. because it is a
+     * slot value), they emit only the beliefs that make up that entity rather than exporting the
+     * whole other primitive entity.  Such beliefs might be emitted more than once.  That's
+     * harmless on import, and a small price for not having to coordinate between partitions.<p>
+     *
+     * This relies on the KB being safe for concurrent reads, which is the case when it is open in
+     * read-only mode.  Because it produces a file with a different (but equivalent) order of
+     * beliefs than exportHFT0 does, it only ever happens when asked for explicitly.<p>
+     */
+    protected void exportHFT0Parallel(String filename, String root) {
+        if (exportThreads <= 1) {
+            exportHFT0(filename, root);
+            return;
+        }
+        final boolean gzip = filename.endsWith(".gz");
+        List<File> parts = new ArrayList<File>();
+        ExecutorService pool = null;
+        try {
+            if (!kb.isReadOnly())
+                throw new RuntimeException("Parallel export requires a KB opened in read-only mode");
+            numPEs = 0;
+            totalPEs = 0;
+
+            // Part 0: the header, the generalizations hierarchy, and all of the slots
+            File part0 = new File(filename + ".part000");
+            parts.add(part0);
+            PrintStream out = openExportPart(part0, gzip);
+            out.println("HFTBEGIN 0");
+            exportHFT0BuildSlaveSlots(kb.getSlot("slot"));
+            log.debug("Detected slave slots: " + slaveSlots);
+            log.info("Exporting generalizations hierarchy starting at " + root + "...");
+            exportHFT0PrimitiveOnly(out, kb.getPrimitiveEntity("everything"));
+            log.info("There are " + totalPEs + " primitive entities in the KB to export.");
+            exportedEntities.clear();
+            log.info("Exporting slots...");
+            exportHFT0Primitive(out, kb.getPrimitiveEntity("slot"));
+            out.close();
+            if (out.checkError())
+                throw new RuntimeException("Error writing " + part0);
+
+            // Now partition what's left
+            List<String> remaining = new ArrayList<String>();
+            for (String name : collectPrimitiveEntities(root))
+                if (exportedEntities.get(name) != doneExporting) remaining.add(name);
+            exportedEntities.clear();
+            final int numPartitions = Math.max(1, Math.min(remaining.size(), exportThreads * 4));
+            log.info("Exporting " + remaining.size() + " remaining primitive entities in "
+                    + numPartitions + " partitions on " + exportThreads + " threads...");
+
+            final AtomicInteger numExported = new AtomicInteger();
+            final int total = remaining.size();
+            pool = Executors.newFixedThreadPool(exportThreads);
+            List<Future<Object>> futures = new ArrayList<Future<Object>>(numPartitions);
+            for (int i = 0; i < numPartitions; i++) {
+                final List<String> partition = remaining.subList((int)((long)total * i / numPartitions),
+                        (int)((long)total * (i+1) / numPartitions));
+                final File partFile = new File(filename + String.format(".part%03d", i+1));
+                parts.add(partFile);
+                futures.add(pool.submit(new Callable<Object>() {
+                            @Override public Object call() throws Exception {
+                                HFTUtil worker = new HFTUtil(kb);
+                                worker.slaveSlots = slaveSlots;
+                                worker.partitionWorker = true;
+                                PrintStream partOut = openExportPart(partFile, gzip);
+                                try {
+                                    for (String name : partition) {
+                                        worker.exportHFT0Primitive(partOut, kb.getPrimitiveEntity(name));
+                                        int n = numExported.incrementAndGet();
+                                        if (n % 100000 == 0)
+                                            log.info("Finished exporting " + (n / 1000)
+                                                    + "k primitive entities (" + ((long)n * 100 / total)
+                                                    + "%)...");
+                                    }
+                                } finally {
+                                    partOut.close();
+                                }
+                                if (partOut.checkError())
+                                    throw new RuntimeException("Error writing " + partFile);
+                                return null;
+                            }
+                        }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("Exporting partition " + i, e.getCause());
+                }
+            }
+
+            // And finally the trailer, and then glue it all together
+            File trailer = new File(filename + String.format(".part%03d", numPartitions+1));
+            parts.add(trailer);
+            out = openExportPart(trailer, gzip);
+            out.println("HFTEND");
+            out.close();
+
+            OutputStream finalOut = new BufferedOutputStream(new FileOutputStream(filename), 1 << 16);
+            try {
+                byte[] buf = new byte[1 << 16];
+                for (File part : parts) {
+                    InputStream partIn = new FileInputStream(part);
+                    try {
+                        int n;
+                        while ((n = partIn.read(buf)) > 0) finalOut.write(buf, 0, n);
+                    } finally {
+                        partIn.close();
+                    }
+                }
+            } finally {
+                finalOut.close();
+            }
+            log.info("Done exporting!");
+        } catch (Exception e) {
+            throw new RuntimeException("exportHFT0Parallel(\"" + filename + "\", \"" + root + "\")", e);
+        } finally {
+            if (pool != null) pool.shutdownNow();
+            for (File part : parts) part.delete();
+        }
+    }
+
     /**
      * Export HFT0 recursing along the generalizations hierarchy starting at the primitive entity
      * given by root.<p>
@@ -510,4 +1029,621 @@ public class HFTUtil {
     public void exportHFT0(String filename) {
         exportHFT0(filename, "everything");
     }
+
+    /**
+     * Export the entire KB as HFT0 using exportThreads threads (see exportHFT0Parallel)<p>
+     *
+     * The KB must be open in read-only mode.  If the given filenae ends in ".gz" the output will
+     * be gzipped.
+     */
+    public void exportHFT0Parallel(String filename) {
+        exportHFT0Parallel(filename, "everything");
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // HFT1
+    //
+    // HFT1 is a binary alternative to HFT0 for when all we want is to dump a KB and restore it
+    // again as quickly as possible.  It contains the same beliefs in the same order as HFT0 would,
+    // but with each one encoded in binary rather than rendered as a string that has to be
+    // tokenized again on the way back in.
+    //
+    // The file begins with the ASCII line "HFTBEGIN 1" (so that it can be told apart from HFT0 by
+    // its first line) and ends with a block header of all zeros followed by the ASCII line
+    // "HFTEND".  In between is a sequence of blocks, each of which is:
+    //
+    //   int     number of beliefs in the block (never 0)
+    //   int     uncompressed length of the block content
+    //   int     stored length of the block content
+    //   byte    compression: 0 for none, 1 for deflate
+    //   byte[]  block content
+    //
+    // and where the (uncompressed) block content is:
+    //
+    //   varint  number of strings in the block's string dictionary
+    //   string  each dictionary string (varint length + UTF-8, see RTWValueBinaryCodec.writeString)
+    //   then, for each belief, a varint length followed by that many bytes of encoded belief
+    //
+    // A belief is encoded as a term, where a term is a tag byte followed by:
+    //
+    //   HFT1_PRIMITIVE  varint dictionary index of the primitive entity name
+    //   HFT1_QUERY      term for the entity, varint dictionary index of the slot name
+    //   HFT1_BELIEF     term for the entity, varint dictionary index of the slot name, term for value
+    //   HFT1_STRING     varint dictionary index
+    //   HFT1_INTEGER    zigzag-encoded varint
+    //   HFT1_DOUBLE     8-byte IEEE 754 bits
+    //   HFT1_TRUE, HFT1_FALSE, HFT1_NONE   nothing further
+    //   HFT1_LIST       varint number of elements, then a term for each
+    //
+    // Every block has its own dictionary, so that any block can be decoded without reference to
+    // any other.  That keeps the dictionaries from growing with the size of the file, and lets
+    // importHFT1 decode blocks in parallel.  Note that exportHFT1 walks the KB the same way that
+    // exportHFT0 does, including its record of which entities have been exported, so memory usage
+    // on export still grows with the size of the KB just as it does for HFT0.
+    ////////////////////////////////////////////////////////////////////////////
+
+    protected final static String HFT1_HEADER = "HFTBEGIN 1";
+    protected final static String HFT1_TRAILER = "HFTEND";
+
+    protected final static int HFT1_PRIMITIVE = 1;
+    protected final static int HFT1_QUERY = 2;
+    protected final static int HFT1_BELIEF = 3;
+    protected final static int HFT1_STRING = 4;
+    protected final static int HFT1_INTEGER = 5;
+    protected final static int HFT1_DOUBLE = 6;
+    protected final static int HFT1_TRUE = 7;
+    protected final static int HFT1_FALSE = 8;
+    protected final static int HFT1_NONE = 9;
+    protected final static int HFT1_LIST = 10;
+
+    protected final static int HFT1_COMPRESSION_NONE = 0;
+    protected final static int HFT1_COMPRESSION_DEFLATE = 1;
+
+    /**
+     * Writes beliefs to an HFT1 stream a block at a time
+     */
+    protected static class HFT1Writer {
+        protected final DataOutputStream out;
+        protected final boolean compress;
+        protected final int maxBlockBytes;
+        protected final int maxBlockBeliefs;
+
+        protected final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+        protected final List<String> dictionaryStrings = new ArrayList<String>();
+        protected final ByteArrayOutputStream body = new ByteArrayOutputStream(1 << 16);
+        protected final DataOutputStream bodyOut = new DataOutputStream(body);
+        protected final ByteArrayOutputStream scratch = new ByteArrayOutputStream(256);
+        protected final DataOutputStream scratchOut = new DataOutputStream(scratch);
+        protected final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        protected int numBeliefs = 0;
+
+        protected HFT1Writer(OutputStream out, boolean compress, int maxBlockBytes, int maxBlockBeliefs)
+                throws IOException {
+            this.out = new DataOutputStream(out);
+            this.compress = compress;
+            this.maxBlockBytes = maxBlockBytes;
+            this.maxBlockBeliefs = maxBlockBeliefs;
+            this.out.write((HFT1_HEADER + "\n").getBytes(StandardCharsets.US_ASCII));
+        }
+
+        protected int stringIndex(String s) {
+            Integer i = dictionary.get(s);
+            if (i == null) {
+                i = dictionaryStrings.size();
+                dictionary.put(s, i);
+                dictionaryStrings.add(s);
+            }
+            return i;
+        }
+
+        protected void writeEntity(DataOutput o, Entity e) throws IOException {
+            if (e.isPrimitiveEntity()) {
+                o.writeByte(HFT1_PRIMITIVE);
+                RTWValueBinaryCodec.writeVarInt(o, stringIndex(e.toPrimitiveEntity().getName()));
+            } else if (e.isQuery()) {
+                Query q = e.toQuery();
+                o.writeByte(HFT1_QUERY);
+                writeEntity(o, q.getQueryEntity());
+                RTWValueBinaryCodec.writeVarInt(o, stringIndex(q.getQuerySlot().getName()));
+            } else if (e.isBelief()) {
+                Belief b = e.toBelief();
+                Query q = b.getBeliefQuery();
+                o.writeByte(HFT1_BELIEF);
+                writeEntity(o, q.getQueryEntity());
+                RTWValueBinaryCodec.writeVarInt(o, stringIndex(q.getQuerySlot().getName()));
+                writeValue(o, b.getBeliefValue());
+            } else {
+                throw new RuntimeException("What the heck is this if not a primitive entity, query, or belief?");
+            }
+        }
+
+        protected void writeValue(DataOutput o, RTWValue v) throws IOException {
+            if (v instanceof Entity) {
+                writeEntity(o, (Entity)v);
+            } else if (v instanceof RTWStringValue) {
+                o.writeByte(HFT1_STRING);
+                RTWValueBinaryCodec.writeVarInt(o, stringIndex(v.asString()));
+            } else if (v instanceof RTWIntegerValue) {
+                final int i = v.asInteger();
+                o.writeByte(HFT1_INTEGER);
+                RTWValueBinaryCodec.writeVarInt(o, (i << 1) ^ (i >> 31));
+            } else if (v instanceof RTWDoubleValue) {
+                o.writeByte(HFT1_DOUBLE);
+                o.writeLong(Double.doubleToRawLongBits(v.asDouble()));
+            } else if (v instanceof RTWBooleanValue) {
+                o.writeByte(v.asBoolean() ? HFT1_TRUE : HFT1_FALSE);
+            } else if (v instanceof RTWThisHasNoValue) {
+                o.writeByte(HFT1_NONE);
+            } else if (v instanceof RTWListValue) {
+                RTWListValue l = (RTWListValue)v;
+                o.writeByte(HFT1_LIST);
+                RTWValueBinaryCodec.writeVarInt(o, l.size());
+                for (RTWValue e : l) writeValue(o, e);
+            } else {
+                throw new RuntimeException("Don't know how to encode " + v.getClass().getName());
+            }
+        }
+
+        protected void write(Belief b) throws IOException {
+            scratch.reset();
+            writeEntity(scratchOut, b);
+            RTWValueBinaryCodec.writeVarInt(bodyOut, scratch.size());
+            scratch.writeTo(bodyOut);
+            numBeliefs++;
+            if (numBeliefs >= maxBlockBeliefs || body.size() >= maxBlockBytes) flushBlock();
+        }
+
+        protected void flushBlock() throws IOException {
+            if (numBeliefs == 0) return;
+            ByteArrayOutputStream raw = new ByteArrayOutputStream(body.size() + 16 * dictionaryStrings.size());
+            DataOutputStream rawOut = new DataOutputStream(raw);
+            RTWValueBinaryCodec.writeVarInt(rawOut, dictionaryStrings.size());
+            for (String s : dictionaryStrings) RTWValueBinaryCodec.writeString(rawOut, s);
+            body.writeTo(rawOut);
+            byte[] content = raw.toByteArray();
+
+            int compression = HFT1_COMPRESSION_NONE;
+            byte[] stored = content;
+            int storedLength = content.length;
+            if (compress) {
+                deflater.reset();
+                deflater.setInput(content);
+                deflater.finish();
+                byte[] buf = new byte[content.length + (content.length >> 4) + 64];
+                int n = 0;
+                while (!deflater.finished()) {
+                    if (n == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+                    n += deflater.deflate(buf, n, buf.length - n);
+                }
+                if (n < content.length) {
+                    compression = HFT1_COMPRESSION_DEFLATE;
+                    stored = buf;
+                    storedLength = n;
+                }
+            }
+
+            out.writeInt(numBeliefs);
+            out.writeInt(content.length);
+            out.writeInt(storedLength);
+            out.writeByte(compression);
+            out.write(stored, 0, storedLength);
+
+            numBeliefs = 0;
+            body.reset();
+            dictionary.clear();
+            dictionaryStrings.clear();
+        }
+
+        protected void close() throws IOException {
+            flushBlock();
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeByte(0);
+            out.write((HFT1_TRAILER + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.close();
+            deflater.end();
+        }
+    }
+
+    /**
+     * A decoded HFT1 term that refers to an entity, not yet resolved against the KB
+     *
+     * This is what lets the decoding of a block happen off of the importing thread.
+     */
+    protected static class HFT1Term {
+        protected final int kind;
+        protected final String name;   // Primitive entity name or slot name
+        protected final HFT1Term entity;
+        protected final Object value;  // RTWValue, HFT1Term, or Object[] for a list
+
+        protected HFT1Term(int kind, String name, HFT1Term entity, Object value) {
+            this.kind = kind;
+            this.name = name;
+            this.entity = entity;
+            this.value = value;
+        }
+
+        @Override public String toString() {
+            if (kind == HFT1_PRIMITIVE) return name;
+            if (kind == HFT1_QUERY) return "(" + entity + " " + name + ")";
+            return "((" + entity + " " + name + ") = " + valueToString(value) + ")";
+        }
+
+        protected static String valueToString(Object value) {
+            if (!(value instanceof Object[])) return String.valueOf(value);
+            StringBuilder sb = new StringBuilder("{");
+            for (Object o : (Object[])value) {
+                if (sb.length() > 1) sb.append(", ");
+                sb.append(valueToString(o));
+            }
+            return sb.append("}").toString();
+        }
+    }
+
+    /**
+     * One decoded HFT1 block: a belief term, or else an error, for each belief in it
+     */
+    protected static class HFT1Block {
+        protected final HFT1Term[] beliefs;
+        protected final RuntimeException[] errors;
+
+        protected HFT1Block(int numBeliefs) {
+            beliefs = new HFT1Term[numBeliefs];
+            errors = new RuntimeException[numBeliefs];
+        }
+    }
+
+    protected static Object decodeHFT1Term(RTWValueBinaryCodec.ByteArrayInput in, String[] dictionary)
+            throws IOException {
+        final int tag = in.readUnsignedByte();
+        switch (tag) {
+        case HFT1_PRIMITIVE:
+            return new HFT1Term(HFT1_PRIMITIVE, dictionary[RTWValueBinaryCodec.readVarInt(in)], null, null);
+        case HFT1_QUERY: {
+            HFT1Term entity = (HFT1Term)decodeHFT1Term(in, dictionary);
+            return new HFT1Term(HFT1_QUERY, dictionary[RTWValueBinaryCodec.readVarInt(in)], entity, null);
+        }
+        case HFT1_BELIEF: {
+            HFT1Term entity = (HFT1Term)decodeHFT1Term(in, dictionary);
+            String slot = dictionary[RTWValueBinaryCodec.readVarInt(in)];
+            return new HFT1Term(HFT1_BELIEF, slot, entity, decodeHFT1Term(in, dictionary));
+        }
+        case HFT1_STRING:
+            return new RTWStringValue(dictionary[RTWValueBinaryCodec.readVarInt(in)]);
+        case HFT1_INTEGER: {
+            final int z = RTWValueBinaryCodec.readVarInt(in);
+            return new RTWIntegerValue((z >>> 1) ^ -(z & 1));
+        }
+        case HFT1_DOUBLE:
+            return new RTWDoubleValue(Double.longBitsToDouble(in.readLong()));
+        case HFT1_TRUE:
+            return RTWBooleanValue.TRUE;
+        case HFT1_FALSE:
+            return RTWBooleanValue.FALSE;
+        case HFT1_NONE:
+            return RTWThisHasNoValue.NONE;
+        case HFT1_LIST: {
+            final int n = RTWValueBinaryCodec.readVarInt(in);
+            Object[] elements = new Object[n];
+            for (int i = 0; i < n; i++) elements[i] = decodeHFT1Term(in, dictionary);
+            return elements;
+        }
+        default:
+            throw new RuntimeException("Unrecognized HFT1 tag " + tag);
+        }
+    }
+
+    /**
+     * Decode one block as read from an HFT1 stream
+     *
+     * This needs no KB access, and so may be called from any thread.  Trouble with an individual
+     * belief is recorded in the returned block rather than thrown, because the length prefixes let
+     * us skip over it to the next one.
+     */
+    protected static HFT1Block decodeHFT1Block(int numBeliefs, int rawLength, int compression,
+            byte[] stored) {
+        try {
+            byte[] raw;
+            if (compression == HFT1_COMPRESSION_DEFLATE) {
+                Inflater inflater = new Inflater();
+                try {
+                    raw = new byte[rawLength];
+                    inflater.setInput(stored);
+                    int n = 0;
+                    while (n < rawLength && !inflater.finished()) {
+                        int k = inflater.inflate(raw, n, rawLength - n);
+                        if (k == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                            throw new RuntimeException("Truncated compressed block");
+                        n += k;
+                    }
+                    if (n != rawLength)
+                        throw new RuntimeException("Expected " + rawLength + " bytes but got " + n);
+                } finally {
+                    inflater.end();
+                }
+            } else if (compression == HFT1_COMPRESSION_NONE) {
+                raw = stored;
+            } else {
+                throw new RuntimeException("Unrecognized HFT1 compression " + compression);
+            }
+
+            RTWValueBinaryCodec.ByteArrayInput in = new RTWValueBinaryCodec.ByteArrayInput(raw, 0);
+            String[] dictionary = new String[RTWValueBinaryCodec.readVarInt(in)];
+            for (int i = 0; i < dictionary.length; i++)
+                dictionary[i] = RTWValueBinaryCodec.readString(in);
+
+            HFT1Block block = new HFT1Block(numBeliefs);
+            for (int i = 0; i < numBeliefs; i++) {
+                final int length = RTWValueBinaryCodec.readVarInt(in);
+                final int next = in.getPosition() + length;
+                try {
+                    Object term = decodeHFT1Term(in, dictionary);
+                    if (!(term instanceof HFT1Term) || ((HFT1Term)term).kind != HFT1_BELIEF)
+                        throw new RuntimeException("Non-belief term " + HFT1Term.valueToString(term));
+                    if (in.getPosition() != next)
+                        throw new RuntimeException("Belief length mismatch");
+                    block.beliefs[i] = (HFT1Term)term;
+                } catch (Exception e) {
+                    block.errors[i] = new RuntimeException("Belief " + i + " of block", e);
+                }
+                in = new RTWValueBinaryCodec.ByteArrayInput(raw, next);
+            }
+            return block;
+        } catch (Exception e) {
+            throw new RuntimeException("decodeHFT1Block(" + numBeliefs + ", " + rawLength + ", "
+                    + compression + ", <stored>)", e);
+        }
+    }
+
+    /**
+     * Turn a decoded term into an RTWValue, resolving entities against the KB
+     */
+    protected RTWValue resolveHFT1Term(Object term) {
+        if (term instanceof Object[]) {
+            Object[] elements = (Object[])term;
+            ArrayList<RTWValue> list = new ArrayList<RTWValue>(elements.length);
+            for (Object o : elements) list.add(resolveHFT1Term(o));
+            return RTWArrayListValue.construct(list);
+        }
+        if (!(term instanceof HFT1Term)) return (RTWValue)term;
+        HFT1Term t = (HFT1Term)term;
+        if (t.kind == HFT1_PRIMITIVE) return kb.getPrimitiveEntity(t.name);
+        Entity entity = (Entity)resolveHFT1Term(t.entity);
+        Query q = entity.getQuery(t.name);
+        if (t.kind == HFT1_QUERY) return q;
+        return q.getBelief(resolveHFT1Term(t.value));
+    }
+
+    /**
+     * Apply one belief from an HFT1 file to the KB
+     */
+    protected void applyHFT1Belief(HFT1Term belief) {
+        try {
+            Query q = ((Entity)resolveHFT1Term(belief.entity)).getQuery(belief.name);
+            RTWValue value = resolveHFT1Term(belief.value);
+            if (logCommands) log.debug(q + " = " + value);
+            if (!parseOnly) q.addValue(value);
+        } catch (Exception e) {
+            throw new RuntimeException("applyHFT1Belief(" + belief + ")", e);
+        }
+    }
+
+    /**
+     * Read the next block from an HFT1 stream and return a task that will decode it, or null at the
+     * end of the stream
+     */
+    protected static Callable<HFT1Block> readHFT1Block(DataInputStream in) throws IOException {
+        final int numBeliefs = in.readInt();
+        final int rawLength = in.readInt();
+        final int storedLength = in.readInt();
+        final int compression = in.readUnsignedByte();
+        if (numBeliefs == 0) {
+            byte[] trailer = new byte[HFT1_TRAILER.length()];
+            in.readFully(trailer);
+            if (!HFT1_TRAILER.equals(new String(trailer, StandardCharsets.US_ASCII)))
+                throw new RuntimeException("Missing HFT1 trailer");
+            return null;
+        }
+        final byte[] stored = new byte[storedLength];
+        in.readFully(stored);
+        return new Callable<HFT1Block>() {
+            @Override public HFT1Block call() {
+                return decodeHFT1Block(numBeliefs, rawLength, compression, stored);
+            }
+        };
+    }
+
+    /**
+     * Import an HFT1 stream<p>
+     *
+     * When importThreads is more than 1, blocks are read on a separate thread and decoded by a pool
+     * of importThreads workers, much as importHFT0Parallel does for HFT0.  Either way, beliefs are
+     * applied to the KB on the calling thread in file order.  Error handling, the abort after 100
+     * errors, and progress logging are the same as for HFT0.<p>
+     */
+    public void importHFT1(InputStream is, final String sourceName) {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(is, 1 << 16));
+        final ExecutorService pool = importThreads > 1 ? Executors.newFixedThreadPool(importThreads) : null;
+        final BlockingQueue<Future<HFT1Block>> blocks =
+                new ArrayBlockingQueue<Future<HFT1Block>>(Math.max(1, importThreads * 4));
+        final AtomicReference<Throwable> readerError = new AtomicReference<Throwable>();
+        final FutureTask<HFT1Block> endOfInput = new FutureTask<HFT1Block>(new Callable<HFT1Block>() {
+                @Override public HFT1Block call() {
+                    return null;
+                }
+            });
+        endOfInput.run();
+
+        Thread reader = null;
+        int beliefs = 0;
+        try {
+            Timer lastJVMReport = null;
+            int errorCount = 0;
+
+            try {
+                byte[] header = new byte[HFT1_HEADER.length() + 1];
+                in.readFully(header);
+                if (!(HFT1_HEADER + "\n").equals(new String(header, StandardCharsets.US_ASCII)))
+                    throw new RuntimeException("Unrecognized HFT header line: "
+                            + new String(header, StandardCharsets.US_ASCII).trim());
+
+                if (pool != null) {
+                    reader = new Thread(new Runnable() {
+                            @Override public void run() {
+                                try {
+                                    while (true) {
+                                        Callable<HFT1Block> task = readHFT1Block(in);
+                                        if (task == null) break;
+                                        blocks.put(pool.submit(task));
+                                    }
+                                } catch (InterruptedException e) {
+                                    return;
+                                } catch (Throwable e) {
+                                    readerError.set(e);
+                                }
+                                try {
+                                    blocks.put(endOfInput);
+                                } catch (InterruptedException e) {
+                                    // The importing thread gave up on us
+                                }
+                            }
+                        }, "HFT1 import reader");
+                    reader.setDaemon(true);
+                    reader.start();
+                }
+
+                while (true) {
+                    HFT1Block block;
+                    if (pool == null) {
+                        Callable<HFT1Block> task = readHFT1Block(in);
+                        block = (task == null ? null : task.call());
+                    } else {
+                        try {
+                            block = blocks.take().get();
+                        } catch (ExecutionException e) {
+                            throw new RuntimeException("Decode worker failed", e.getCause());
+                        }
+                    }
+                    if (block == null) break;
+                    for (int i = 0; i < block.beliefs.length; i++) {
+                        beliefs++;
+                        lastJVMReport = logImportProgress(beliefs, "beliefs", lastJVMReport);
+                        try {
+                            if (block.errors[i] != null) throw block.errors[i];
+                            applyHFT1Belief(block.beliefs[i]);
+                        } catch (Exception e) {
+                            if (continueOnError) {
+                                log.error(sourceName + ": belief " + beliefs, e);
+                                errorCount++;
+                                if (errorCount > 100)
+                                    throw new RuntimeException("Too many errors: aborting");
+                            } else {
+                                throw new RuntimeException(sourceName + ": belief " + beliefs, e);
+                            }
+                        }
+                    }
+                }
+                if (reader != null) reader.join();
+                if (readerError.get() != null)
+                    throw new RuntimeException("Reading " + sourceName, readerError.get());
+                log.info("Finished importing " + beliefs + " HFT1 beliefs from " + sourceName);
+            } catch (Exception e) {
+                log.fatal("At " + sourceName + " belief " + beliefs, e);
+            } finally {
+                if (pool != null) pool.shutdownNow();
+                if (reader != null) {
+                    reader.interrupt();
+                    blocks.clear();
+                    reader.join();
+                }
+            }
+
+            in.close();
+        } catch (Exception e) {
+            throw new RuntimeException("importHFT1(<in>, \"" + sourceName +"\")", e);
+        }
+    }
+
+    public void importHFT1(String hftFile) {
+        try {
+            log.info("Importing from " + hftFile + "...");
+            InputStream in = new FileInputStream(hftFile);
+            if (hftFile.endsWith(".gz")) in = new GZIPInputStream(in, 1 << 16);
+            importHFT1(in, hftFile);
+        } catch (Exception e) {
+            throw new RuntimeException("importHFT1(\"" + hftFile + "\")", e);
+        }
+    }
+
+    /**
+     * Import the given file, which may be either HFT0 or HFT1, as determined by its first line
+     */
+    public void importHFT(String hftFile) {
+        try {
+            InputStream in = new FileInputStream(hftFile);
+            if (hftFile.endsWith(".gz")) in = new GZIPInputStream(in);
+            byte[] header = new byte[HFT1_HEADER.length()];
+            int n = 0;
+            try {
+                while (n < header.length) {
+                    int k = in.read(header, n, header.length - n);
+                    if (k < 0) break;
+                    n += k;
+                }
+            } finally {
+                in.close();
+            }
+            if (n == header.length && HFT1_HEADER.equals(new String(header, StandardCharsets.US_ASCII)))
+                importHFT1(hftFile);
+            else
+                importHFT0(hftFile);
+        } catch (Exception e) {
+            throw new RuntimeException("importHFT(\"" + hftFile + "\")", e);
+        }
+    }
+
+    /**
+     * HFT1 counterpart to exportHFT0<p>
+     *
+     * This visits everything in the same order that exportHFT0 does, and so emits the same beliefs
+     * in the same order; only the encoding differs.  Blocks are compressed unless the hft1Compress
+     * property is false.<p>
+     */
+    public void exportHFT1(OutputStream os, String root) {
+        try {
+            Properties properties = TheoFactory.getProperties();
+            hft1Out = new HFT1Writer(new BufferedOutputStream(os, 1 << 16),
+                    properties.getPropertyBooleanValue("hft1Compress", true),
+                    properties.getPropertyIntegerValue("hft1BlockBytes", 1 << 20),
+                    properties.getPropertyIntegerValue("hft1BlockBeliefs", 65536));
+            numPEs = 0;
+            totalPEs = 0;
+            exportHFT0BuildSlaveSlots(kb.getSlot("slot"));
+            log.debug("Detected slave slots: " + slaveSlots);
+            log.info("Exporting generalizations hierarchy starting at " + root + "...");
+            exportHFT0PrimitiveOnly(null, kb.getPrimitiveEntity("everything"));
+            log.info("There are " + totalPEs + " primitive entities in the KB to export.");
+            exportedEntities.clear();
+            log.info("Exporting everything else...");
+            exportHFT0Primitive(null, kb.getPrimitiveEntity(root));
+            hft1Out.close();
+            log.info("Done exporting!");
+        } catch (Exception e) {
+            throw new RuntimeException("exportHFT1(<out>, \"" + root + "\")", e);
+        } finally {
+            hft1Out = null;
+        }
+    }
+
+    /**
+     * Export the entire KB as HFT1
+     */
+    public void exportHFT1(String filename) {
+        try {
+            exportHFT1(new FileOutputStream(filename), "everything");
+        } catch (Exception e) {
+            throw new RuntimeException("exportHFT1(\"" + filename + "\")", e);
+        }
+    }
 }
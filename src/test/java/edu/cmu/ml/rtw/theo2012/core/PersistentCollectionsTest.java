@@ -0,0 +1,155 @@
+package edu.cmu.ml.rtw.theo2012.core;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Checks PersistentVector and PersistentHashSet against ArrayList and HashSet, and that old
+ * versions are unaffected by new ones
+ */
+public class PersistentCollectionsTest {
+    /**
+     * Key with a caller-chosen hash code, so that we can force collisions
+     */
+    protected static class Key {
+        protected final int id;
+        protected final int hash;
+
+        protected Key(int id, int hash) {
+            this.id = id;
+            this.hash = hash;
+        }
+
+        @Override public int hashCode() {
+            return hash;
+        }
+
+        @Override public boolean equals(Object o) {
+            return o instanceof Key && ((Key)o).id == id;
+        }
+    }
+
+    @Test public void vectorAppends() {
+        // Sizes right around where the tail fills and where the tree grows a level
+        final int[] checkpoints =
+                {0, 1, 31, 32, 33, 64, 1024, 1056, 1057, 32 * 32 * 32 + 33, 50000};
+        final List<PersistentVector<Integer>> versions = new ArrayList<PersistentVector<Integer>>();
+        PersistentVector<Integer> v = PersistentVector.empty();
+        int next = 0;
+        for (int size = 0; size <= 50000; size++) {
+            if (next < checkpoints.length && checkpoints[next] == size) {
+                versions.add(v);
+                next++;
+            }
+            v = v.plus(size);
+        }
+
+        for (int i = 0; i < checkpoints.length; i++) {
+            PersistentVector<Integer> version = versions.get(i);
+            assertEquals(checkpoints[i], version.size());
+            for (int j = 0; j < version.size(); j++)
+                assertEquals(j, version.get(j).intValue());
+            int j = 0;
+            for (Integer e : version) assertEquals(j++, e.intValue());
+            assertEquals(checkpoints[i], j);
+            try {
+                version.get(version.size());
+                fail("Expected IndexOutOfBoundsException");
+            } catch (IndexOutOfBoundsException e) {
+                // Expected
+            }
+        }
+
+        List<Integer> plain = new ArrayList<Integer>();
+        for (int i = 0; i < 5000; i++) plain.add(i * 7);
+        PersistentVector<Integer> copied = PersistentVector.from(plain);
+        assertEquals(plain, copied);
+        assertEquals(plain.hashCode(), copied.hashCode());
+        try {
+            copied.add(1);
+            fail("Expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+    }
+
+    @Test public void hashSetAdds() {
+        final Set<Integer> expected = new HashSet<Integer>();
+        PersistentHashSet<Integer> s = PersistentHashSet.empty();
+        PersistentHashSet<Integer> half = null;
+        for (int i = 0; i < 20000; i++) {
+            s = s.plus(i * 31);
+            expected.add(i * 31);
+            if (i == 9999) half = s;
+        }
+        assertEquals(expected, s);
+        assertEquals(s, expected);
+        assertEquals(expected.hashCode(), s.hashCode());
+        assertSame(s, s.plus(31));
+        assertFalse(s.contains(1));
+        assertFalse(s.contains(null));
+
+        assertEquals(10000, half.size());
+        assertTrue(half.contains(9999 * 31));
+        assertFalse(half.contains(10000 * 31));
+        int n = 0;
+        for (Integer e : half) {
+            assertTrue(e < 10000 * 31);
+            n++;
+        }
+        assertEquals(10000, n);
+
+        assertEquals(expected, PersistentHashSet.from(expected));
+        try {
+            s.remove(31);
+            fail("Expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+    }
+
+    @Test public void hashSetCollisions() {
+        PersistentHashSet<Key> s = PersistentHashSet.empty();
+        for (int i = 0; i < 100; i++) s = s.plus(new Key(i, i % 3));
+        PersistentHashSet<Key> before = s;
+        s = s.plus(new Key(100, 100 % 3));
+        assertSame(s, s.plus(new Key(5, 2)));
+
+        assertEquals(100, before.size());
+        assertEquals(101, s.size());
+        for (int i = 0; i <= 100; i++) assertTrue(s.contains(new Key(i, i % 3)));
+        assertFalse(before.contains(new Key(100, 100 % 3)));
+        assertFalse(s.contains(new Key(101, 0)));
+        Set<Key> seen = new HashSet<Key>();
+        for (Key k : s) assertTrue(seen.add(k));
+        assertEquals(101, seen.size());
+    }
+
+    @Test public void immutableValueAppends() {
+        RTWImmutableListValue list = null;
+        RTWImmutableSetListValue set = null;
+        for (int i = 0; i < 3000; i++) {
+            list = RTWImmutableListValue.append(list, new RTWIntegerValue(i));
+            set = RTWImmutableSetListValue.append(set, new RTWIntegerValue(i));
+        }
+        RTWImmutableListValue longer = RTWImmutableListValue.append(list, new RTWStringValue("x"));
+        RTWImmutableSetListValue bigger =
+                RTWImmutableSetListValue.append(set, new RTWStringValue("x"));
+        assertEquals(3000, list.size());
+        assertEquals(3001, longer.size());
+        assertEquals(3000, set.size());
+        assertEquals(3001, bigger.size());
+        assertFalse(set.contains(new RTWStringValue("x")));
+        assertTrue(bigger.contains(new RTWStringValue("x")));
+        for (int i = 0; i < 3000; i++) {
+            assertEquals(new RTWIntegerValue(i), longer.get(i));
+            assertTrue(bigger.contains(new RTWIntegerValue(i)));
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package edu.cmu.ml.rtw.theo2012.core;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Round trips through RTWValueBinaryCodec
+ */
+public class RTWValueBinaryCodecTest {
+    protected static byte[] encode(RTWValue v) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        RTWValueBinaryCodec.write(out, v);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    protected static RTWValue decode(byte[] bytes) throws IOException {
+        RTWValueBinaryCodec.ByteArrayInput in = new RTWValueBinaryCodec.ByteArrayInput(bytes, 0);
+        RTWValue v = RTWValueBinaryCodec.read(in);
+        assertEquals(bytes.length, in.getPosition());
+        return v;
+    }
+
+    @Test public void scalars() throws IOException {
+        RTWValue[] values = {
+            new RTWStringValue(""), new RTWStringValue("cake"),
+            new RTWStringValue("k\u00e4se \u4e2d"),
+            new RTWIntegerValue(0), new RTWIntegerValue(-1), new RTWIntegerValue(Integer.MAX_VALUE),
+            new RTWIntegerValue(Integer.MIN_VALUE), new RTWDoubleValue(0.25),
+            new RTWDoubleValue(-1e300), RTWBooleanValue.TRUE, RTWBooleanValue.FALSE,
+            RTWThisHasNoValue.NONE
+        };
+        for (RTWValue v : values) assertEquals(v, decode(encode(v)));
+    }
+
+    @Test public void listsAndSets() throws IOException {
+        RTWListValue list = new RTWArrayListValue();
+        list.add(new RTWStringValue("a"));
+        list.add(new RTWIntegerValue(2));
+        list.add(new RTWArrayListValue(new RTWStringValue("nested")));
+        assertEquals(list, decode(encode(list)));
+
+        RTWSetListValue set = new RTWSetListValue();
+        for (int i = 0; i < 1000; i++) set.add(new RTWIntegerValue(i));
+        RTWValue decoded = decode(encode(set));
+        assertTrue(decoded instanceof RTWSetListValue);
+        assertEquals(1000, ((RTWListValue)decoded).size());
+        for (int i = 0; i < 1000; i++)
+            assertTrue(((RTWListValue)decoded).contains(new RTWIntegerValue(i)));
+    }
+
+    @Test public void pointers() throws IOException {
+        RTWElementRef food = new RTWElementRef(new RTWStringValue("food"));
+        RTWPointerValue p = new RTWPointerValue(new AbstractRTWLocation(
+                new Object[] {"cake", "generalizations", food}));
+        assertEquals(p, decode(encode(p)));
+    }
+
+    @Test public void taggedAndLegacyMix() throws IOException {
+        RTWValue v = new RTWArrayListValue(new RTWStringValue("a b"), new RTWIntegerValue(7));
+        for (boolean binary : new boolean[] {true, false}) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            RTWValueBinaryCodec.writeTagged(out, v, binary);
+            out.flush();
+            assertEquals(v, RTWValueBinaryCodec.readTagged(
+                    new RTWValueBinaryCodec.ByteArrayInput(bytes.toByteArray(), 0)));
+        }
+    }
+
+    @Test public void byteArrayInputText() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF("k\u00e4se");
+        out.writeBytes("one\ntwo\r\nthree\rfour");
+        out.flush();
+
+        RTWValueBinaryCodec.ByteArrayInput in =
+                new RTWValueBinaryCodec.ByteArrayInput(bytes.toByteArray(), 0);
+        assertEquals("k\u00e4se", in.readUTF());
+        assertEquals("one", in.readLine());
+        assertEquals("two", in.readLine());
+        assertEquals("three", in.readLine());
+        assertEquals("four", in.readLine());
+        assertNull(in.readLine());
+        try {
+            in.readUTF();
+            fail("Expected EOFException");
+        } catch (EOFException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package edu.cmu.ml.rtw.theo2012.core;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Checks RTWValueSet against LinkedHashSet, which has the same insertion-order semantics
+ */
+public class RTWValueSetTest {
+    protected static RTWValue randomValue(Random r) {
+        switch (r.nextInt(4)) {
+            case 0:
+                return new RTWIntegerValue(r.nextInt(500));
+            case 1:
+                return new RTWStringValue("k\u00e4se" + r.nextInt(500));
+            case 2:
+                return new RTWArrayListValue(new RTWStringValue("l"),
+                        new RTWIntegerValue(r.nextInt(50)));
+            default:
+                return new RTWStringValue("s" + r.nextInt(2000));
+        }
+    }
+
+    protected static void assertSameContents(Set<RTWValue> expected, RTWValueSet actual) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected, actual);
+        assertEquals(actual, expected);
+        assertEquals(expected.hashCode(), actual.hashCode());
+        List<RTWValue> order = new ArrayList<RTWValue>(actual);
+        assertEquals(new ArrayList<RTWValue>(expected), order);
+    }
+
+    @Test public void randomOperations() {
+        final Random r = new Random(42);
+        final Set<RTWValue> expected = new LinkedHashSet<RTWValue>();
+        final RTWValueSet actual = new RTWValueSet();
+        for (int i = 0; i < 50000; i++) {
+            RTWValue v = randomValue(r);
+            switch (r.nextInt(3)) {
+                case 0:
+                    assertEquals(expected.remove(v), actual.remove(v));
+                    break;
+                case 1:
+                    assertEquals(expected.contains(v), actual.contains(v));
+                    break;
+                default:
+                    assertEquals(expected.add(v), actual.add(v));
+            }
+            if (i % 5000 == 0) assertSameContents(expected, actual);
+        }
+        assertSameContents(expected, actual);
+        assertFalse(actual.contains("s1"));  // Strings aren't RTWValues
+    }
+
+    @Test public void removeMostThenRefill() {
+        final RTWValueSet set = new RTWValueSet(10);
+        final Set<RTWValue> expected = new LinkedHashSet<RTWValue>();
+        for (int i = 0; i < 10000; i++) {
+            set.add(new RTWStringValue("v" + i));
+            expected.add(new RTWStringValue("v" + i));
+        }
+        for (int i = 0; i < 10000; i++) {
+            if (i % 10 == 0) continue;
+            assertTrue(set.remove(new RTWStringValue("v" + i)));
+            expected.remove(new RTWStringValue("v" + i));
+        }
+        assertSameContents(expected, set);
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i % 10 != 0, set.add(new RTWStringValue("v" + i)));
+            expected.add(new RTWStringValue("v" + i));
+        }
+        assertSameContents(expected, set);
+        set.clear();
+        assertTrue(set.isEmpty());
+        assertFalse(set.contains(new RTWStringValue("v0")));
+    }
+
+    @Test public void modifyWhileIterating() {
+        final RTWValueSet set = new RTWValueSet();
+        for (int i = 0; i < 1000; i++) set.add(new RTWIntegerValue(i));
+
+        // Adding during iteration is allowed, and the iterator doesn't see the additions
+        int n = 0;
+        for (RTWValue v : set) {
+            set.add(new RTWIntegerValue(1000 + v.asInteger()));
+            n++;
+        }
+        assertEquals(1000, n);
+        assertEquals(2000, set.size());
+
+        // Iterator.remove
+        Iterator<RTWValue> it = set.iterator();
+        while (it.hasNext()) {
+            if (it.next().asInteger() % 2 == 1) it.remove();
+        }
+        assertEquals(1000, set.size());
+        Set<RTWValue> expected = new HashSet<RTWValue>();
+        for (int i = 0; i < 2000; i += 2) expected.add(new RTWIntegerValue(i));
+        assertEquals(expected, set);
+    }
+
+    @Test public void backsSetListValues() {
+        RTWSetListValue s = new RTWSetListValue();
+        for (int i = 0; i < 100; i++) s.add(new RTWStringValue("x" + i));
+        RTWSetListValue t = RTWSetListValue.append(s, new RTWStringValue("y"));
+        assertEquals(100, s.size());
+        assertEquals(101, t.size());
+        assertTrue(t.contains(new RTWStringValue("x99")));
+        assertTrue(t.contains(new RTWStringValue("y")));
+        assertFalse(s.contains(new RTWStringValue("y")));
+    }
+}
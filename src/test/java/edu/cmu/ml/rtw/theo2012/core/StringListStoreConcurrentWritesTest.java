@@ -0,0 +1,126 @@
+package edu.cmu.ml.rtw.theo2012.core;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Exercises StringListStore's concurrent-writes mode
+ */
+public class StringListStoreConcurrentWritesTest {
+    /**
+     * HashMapStoreMap made threadsafe the cheap way, which is all that concurrent-writes mode asks
+     */
+    protected static class SynchronizedHashMapStoreMap extends HashMapStoreMap {
+        @Override public synchronized RTWListValue get(Object key) {
+            return super.get(key);
+        }
+
+        @Override public synchronized RTWListValue get(StoreMapKey key) {
+            return super.get(key);
+        }
+
+        @Override public synchronized boolean containsKey(Object key) {
+            return super.containsKey(key);
+        }
+
+        @Override public synchronized boolean containsKey(StoreMapKey key) {
+            return super.containsKey(key);
+        }
+
+        @Override public synchronized RTWListValue put(String key, RTWListValue value) {
+            return super.put(key, value);
+        }
+
+        @Override public synchronized RTWListValue remove(Object key) {
+            return super.remove(key);
+        }
+
+        @Override public boolean isThreadsafe() {
+            return true;
+        }
+    }
+
+    protected StringListStore<SynchronizedHashMapStoreMap> store;
+
+    @Before public void setUp() {
+        TheoFactory.getProperties().setProperty("kbSegmentThreshold", "100");
+        TheoFactory.getProperties().setProperty("kbSegmentSize", "10");
+        store = new StringListStore<SynchronizedHashMapStoreMap>(new SynchronizedHashMapStoreMap());
+        store.open("/", false);
+        store.setConcurrentWrites(true);
+    }
+
+    @After public void tearDown() {
+        store.close();
+        TheoFactory.getProperties().remove("kbSegmentThreshold");
+        TheoFactory.getProperties().remove("kbSegmentSize");
+    }
+
+    /**
+     * A container handed out by get must not change afterward, whether the slot is plain or
+     * segmented
+     */
+    @Test public void containersAreCopiedOnWrite() {
+        final RTWLocation slot = store.getLoc("cake", "generalizations");
+        for (int i = 0; i < 300; i++) {
+            RTWListValue before = store.get(slot);
+            final int n = (before == null ? 0 : before.size());
+            assertEquals(i, n);
+            store.add(slot, new RTWIntegerValue(i));
+            if (before != null) assertEquals(n, before.size());
+        }
+        for (int i = 0; i < 300; i++) {
+            RTWListValue before = store.get(slot);
+            store.delete(slot.element(new RTWIntegerValue(i)), true, true);
+            assertEquals(300 - i, before.size());
+            assertTrue(before.contains(new RTWIntegerValue(i)));
+        }
+        assertNull(store.get(slot));
+    }
+
+    /**
+     * Writers on different entities and the same entity, with readers iterating over what they
+     * get as they go
+     */
+    @Test public void concurrentAddsAndReads() throws Exception {
+        final int numThreads = 8;
+        final int numValues = 500;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < numThreads; t++) {
+            final int id = t;
+            threads.add(new Thread() {
+                    @Override public void run() {
+                        try {
+                            final RTWLocation own = store.getLoc("e" + id, "values");
+                            final RTWLocation shared = store.getLoc("shared", "values");
+                            for (int i = 0; i < numValues; i++) {
+                                store.add(own, new RTWIntegerValue(i));
+                                store.add(shared, new RTWIntegerValue(id * numValues + i));
+                                RTWListValue snapshot = store.get(shared);
+                                int n = 0;
+                                for (RTWValue v : snapshot) n++;
+                                if (n != snapshot.size()) throw new RuntimeException("Torn read");
+                            }
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                });
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        if (failure.get() != null) throw new RuntimeException("Worker failed", failure.get());
+
+        for (int t = 0; t < numThreads; t++)
+            assertEquals(numValues, store.getNumValues(store.getLoc("e" + t, "values")));
+        assertEquals(numThreads * numValues, store.getNumValues(store.getLoc("shared", "values")));
+    }
+}
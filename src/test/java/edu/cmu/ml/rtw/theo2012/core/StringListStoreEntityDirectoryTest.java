@@ -0,0 +1,139 @@
+package edu.cmu.ml.rtw.theo2012.core;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Exercises StringListStore's primitive entity directory
+ */
+public class StringListStoreEntityDirectoryTest {
+    protected File file;
+
+    @Before public void setUp() throws Exception {
+        TheoFactory.getProperties().setProperty("kbEntityBucketSize", "4");
+        file = File.createTempFile("entitydirectorytest", ".hm");
+        file.delete();
+    }
+
+    @After public void tearDown() {
+        TheoFactory.getProperties().remove("kbEntityBucketSize");
+        file.delete();
+    }
+
+    protected StringListStore<HashMapStoreMap> open(boolean readOnly) {
+        StringListStore<HashMapStoreMap> store =
+                new StringListStore<HashMapStoreMap>(new HashMapStoreMap());
+        store.open(file.getPath(), readOnly);
+        return store;
+    }
+
+    protected static Set<String> entities(StringListStore<?> store) {
+        Set<String> entities = new HashSet<String>();
+        Iterator<String> it = store.getPrimitiveEntityIterator();
+        while (it.hasNext()) assertTrue(entities.add(it.next()));
+        return entities;
+    }
+
+    protected static int sealedField(StringListStore<HashMapStoreMap> store) {
+        return store.slsm.get(StringListStore.ENTITY_DIRECTORY_KEY).get(2).asInteger();
+    }
+
+    @Test public void directoryTracksEntities() {
+        StringListStore<HashMapStoreMap> store = open(false);
+        try {
+            for (int i = 0; i < 100; i++)
+                store.add(store.getLoc("e" + i, "name"), new RTWStringValue("n" + i));
+            assertTrue(store.numEntityBuckets > 1);
+            Set<String> all = entities(store);
+            for (int i = 0; i < 100; i++) assertTrue(all.contains("e" + i));
+
+            for (int i = 0; i < 50; i++) store.delete(store.getLoc("e" + i), true, true);
+            Set<String> half = entities(store);
+            for (int i = 0; i < 100; i++) assertEquals(i >= 50, half.contains("e" + i));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test public void sealedOnlyWhenClosedCleanly() {
+        StringListStore<HashMapStoreMap> store = open(false);
+        for (int i = 0; i < 20; i++)
+            store.add(store.getLoc("e" + i, "name"), new RTWStringValue("n" + i));
+        assertEquals(0, sealedField(store));
+        store.close();
+
+        // A cleanly-closed store's directory gets used
+        StringListStore<HashMapStoreMap> reader = open(true);
+        assertEquals(StringListStore.ENTITY_DIRECTORY_SEALED, sealedField(reader));
+        assertTrue(reader.numEntityBuckets > 0);
+        assertEquals(20, reader.numEntities);
+        reader.close();
+
+        // Now write to it and leave it on disk as though we'd crashed without closing.  Someone
+        // opening it read-only meanwhile must not trust the directory, but must still see
+        // everything.
+        store = open(false);
+        assertEquals(0, sealedField(store));
+        store.add(store.getLoc("e20", "name"), new RTWStringValue("n20"));
+        store.delete(store.getLoc("e0"), true, true);
+        store.flush(true);
+        reader = open(true);
+        assertEquals(0, reader.numEntityBuckets);
+        Set<String> seen = entities(reader);
+        assertTrue(seen.contains("e20"));
+        assertFalse(seen.contains("e0"));
+        reader.close();
+        store.close();
+
+        // And the directory comes back once it's closed cleanly
+        reader = open(true);
+        assertTrue(reader.numEntityBuckets > 0);
+        assertEquals(20, reader.numEntities);
+        assertEquals(seen, entities(reader));
+        reader.close();
+    }
+
+    @Test public void unsealedDirectoryIsRebuilt() {
+        StringListStore<HashMapStoreMap> store = open(false);
+        for (int i = 0; i < 20; i++)
+            store.add(store.getLoc("e" + i, "name"), new RTWStringValue("n" + i));
+        final int numBuckets = store.numEntityBuckets;
+        store.close();
+
+        // Doctor the file to look like a crash in the middle of updating the directory: unsealed,
+        // and with one entity's bucket gone missing and a bogus one added in its place, so that
+        // the number of keys is the same as it was.
+        HashMapStoreMap raw = new HashMapStoreMap();
+        raw.open(file.getPath(), false);
+        raw.put(StringListStore.ENTITY_DIRECTORY_KEY, new RTWImmutableListValue(
+                        new RTWIntegerValue(numBuckets), new RTWIntegerValue(20),
+                        new RTWIntegerValue(0)));
+        RTWListValue bucket = null;
+        int bucketNum = 0;
+        while (bucket == null) bucket = raw.get(StringListStore.ENTITY_BUCKET_PREFIX + bucketNum++);
+        raw.remove(StringListStore.ENTITY_BUCKET_PREFIX + (bucketNum - 1));
+        raw.put(StringListStore.ENTITY_BUCKET_PREFIX + (numBuckets - 1 + bucketNum),
+                new RTWArrayListValue(new RTWStringValue("bogus")));
+        raw.close();
+
+        StringListStore<HashMapStoreMap> reader = open(true);
+        assertEquals(0, reader.numEntityBuckets);
+        Set<String> scanned = entities(reader);
+        for (int i = 0; i < 20; i++) assertTrue(scanned.contains("e" + i));
+        reader.close();
+
+        store = open(false);
+        assertTrue(store.numEntityBuckets > 0);
+        assertEquals(scanned, entities(store));
+        assertFalse(scanned.contains("bogus"));
+        store.close();
+    }
+}
@@ -0,0 +1,93 @@
+package edu.cmu.ml.rtw.theo2012.core;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Checks that looking up a StringListStoreMapCache by StoreMapKey sees the same entries, dirty
+ * ones included, as looking it up by String
+ */
+public class StringListStoreMapCacheTest {
+    /**
+     * Cache over a HashMap that counts how often it gets read from
+     */
+    protected static class CountingCache extends StringListStoreMapCache {
+        protected final Map<String, RTWListValue> store = new HashMap<String, RTWListValue>();
+        protected int gets = 0;
+
+        protected CountingCache(Policy policy) {
+            super(0, true, false, false, 4, policy);
+        }
+
+        @Override protected RTWListValue get(String key) {
+            gets++;
+            return store.get(key);
+        }
+
+        @Override protected void put(String key, RTWListValue value, boolean mightMutate) {
+            store.put(key, value);
+        }
+
+        @Override protected void remove(String key) {
+            store.remove(key);
+        }
+    }
+
+    protected static StoreMapKey key(String s) {
+        return new StoreMapKey().append(s);
+    }
+
+    protected void checkLookups(StringListStoreMapCache.Policy policy) {
+        CountingCache cache = new CountingCache(policy);
+        cache.resize(1000);
+
+        RTWListValue v = new RTWArrayListValue(new RTWStringValue("k\u00e4se"));
+        cache.putValue("cake  Tg", v);
+        assertTrue(cache.store.isEmpty());
+
+        // A dirty entry has to be found without going to the store, which doesn't have it yet
+        assertEquals(v, cache.getValue(key("cake  Tg")));
+        assertEquals(0, cache.gets);
+
+        // A miss goes to the store once and caches what it finds, absence included
+        cache.store.put("pie  Tg", v);
+        assertEquals(v, cache.getValue(key("pie  Tg")));
+        assertEquals(v, cache.getValue(key("pie  Tg")));
+        assertNull(cache.getValue(key("tart  Tg")));
+        assertNull(cache.getValue(key("tart  Tg")));
+        assertEquals(2, cache.gets);
+
+        // And what gets cached under the StoreMapKey is found again by String
+        assertEquals(v, cache.getValue("pie  Tg"));
+        assertNull(cache.getValue("tart  Tg"));
+        assertEquals(2, cache.gets);
+
+        cache.removeValue("cake  Tg");
+        assertNull(cache.getValue(key("cake  Tg")));
+        assertEquals(2, cache.gets);
+    }
+
+    @Test public void tinyLFULookupByStoreMapKey() {
+        checkLookups(StringListStoreMapCache.Policy.TINYLFU);
+    }
+
+    @Test public void weightedLookupByStoreMapKey() {
+        CountingCache cache = new CountingCache(StringListStoreMapCache.Policy.LRU);
+        cache.resizeBytes(1L << 20);
+        RTWListValue v = new RTWArrayListValue(new RTWIntegerValue(7));
+        cache.putValue("cake  Tg", v);
+        assertEquals(v, cache.getValue(key("cake  Tg")));
+        assertEquals(0, cache.gets);
+    }
+
+    @Test public void noCacheLookupByStoreMapKey() {
+        CountingCache cache = new CountingCache(StringListStoreMapCache.Policy.TINYLFU);
+        cache.store.put("cake  Tg", new RTWArrayListValue(new RTWIntegerValue(7)));
+        assertEquals(1, cache.getValue(key("cake  Tg")).size());
+        assertEquals(1, cache.gets);
+    }
+}
@@ -0,0 +1,91 @@
+package edu.cmu.ml.rtw.theo2012.core;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Exercises StringListStore's resizable ("P") name partitions
+ */
+public class StringListStoreNamePartitionTest {
+    protected StringListSuperStore<HashMapStoreMap> store;
+
+    @Before public void setUp() {
+        // Tiny F partitions so that a slot switches to P partitions after only a couple of values
+        // with subslots
+        TheoFactory.getProperties().setProperty("kbNamePartitionMaxPairs", "2");
+        store = new StringListSuperStore<HashMapStoreMap>(new HashMapStoreMap());
+        store.open("/", false);
+    }
+
+    @After public void tearDown() {
+        store.close();
+        TheoFactory.getProperties().remove("kbNamePartitionMaxPairs");
+    }
+
+    protected RTWLocation valueLoc(RTWLocation slot, int i) {
+        return slot.element(new RTWStringValue("v" + i));
+    }
+
+    @Test public void partitionedSlotKeepsValuesAndSubslots() {
+        final RTWLocation slot = store.getLoc("cake", "generalizations");
+        for (int i = 0; i < 200; i++) {
+            store.add(slot, new RTWStringValue("v" + i));
+            store.add(valueLoc(slot, i).subslot("source"), new RTWIntegerValue(i));
+        }
+        assertEquals(200, store.getNumValues(slot));
+        for (int i = 0; i < 200; i++) {
+            RTWLocation source = valueLoc(slot, i).subslot("source");
+            assertEquals(1, store.getNumValues(source));
+            assertTrue(store.getLoc(source).containsValue(new RTWIntegerValue(i)));
+        }
+    }
+
+    /**
+     * A slot that is the destination of an RTWPointerValue has StringListSuperStore's hidden " P"
+     * subslot, which must not be mistaken for (or clobbered by) the slot's name partition state
+     */
+    @Test public void partitionedSlotAsPointerDestination() {
+        final RTWLocation slot = store.getLoc("cake", "generalizations");
+        store.add(slot, new RTWStringValue("v0"));
+        store.add(valueLoc(slot, 0).subslot("source"), new RTWIntegerValue(0));
+
+        // Only a slot with subslots can be pointed to
+        store.add(slot.subslot("note"), new RTWStringValue("n"));
+
+        final RTWLocation referrer = store.getLoc("pie", "related");
+        store.add(referrer, new RTWPointerValue(slot));
+        assertEquals(1, store.getPointers(slot, "related").getNumValues());
+
+        for (int i = 1; i < 200; i++) {
+            store.add(slot, new RTWStringValue("v" + i));
+            store.add(valueLoc(slot, i).subslot("source"), new RTWIntegerValue(i));
+        }
+
+        assertEquals(200, store.getNumValues(slot));
+        for (int i = 0; i < 200; i++)
+            assertEquals(1, store.getNumValues(valueLoc(slot, i).subslot("source")));
+        assertEquals(1, store.getPointers(slot, "related").getNumValues());
+        assertTrue(store.getPointers(slot, "related").containsValue(
+                new RTWPointerValue(store.getLoc("pie"))));
+        assertEquals(1, store.getPointingSlots(slot).size());
+        assertEquals(0, store.getNumValues(slot.subslot(store.pointerSlotName)));
+
+        // Removing the pointer empties out the hidden subslot, which then gets culled.  That must
+        // leave the name partitions alone.
+        store.delete(referrer.element(new RTWPointerValue(slot)), true, true);
+        assertEquals(0, store.getPointers(slot, "related").getNumValues());
+        assertEquals(200, store.getNumValues(slot));
+        for (int i = 0; i < 200; i++)
+            assertEquals(1, store.getNumValues(valueLoc(slot, i).subslot("source")));
+        store.add(referrer, new RTWPointerValue(slot));
+
+        // The pointer's destination has to be deletable along with everything below it, and
+        // deleting it has to take the pointer with it.
+        store.delete(slot, true, true);
+        assertEquals(0, store.getNumValues(slot));
+        assertEquals(0, store.getNumValues(referrer));
+    }
+}
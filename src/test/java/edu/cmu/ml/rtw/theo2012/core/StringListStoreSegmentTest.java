@@ -0,0 +1,77 @@
+package edu.cmu.ml.rtw.theo2012.core;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Exercises StringListStore's segmented slots
+ */
+public class StringListStoreSegmentTest {
+    protected HashMapStoreMap slsm;
+    protected StringListStore<HashMapStoreMap> store;
+
+    @Before public void setUp() {
+        TheoFactory.getProperties().setProperty("kbSegmentThreshold", "100");
+        TheoFactory.getProperties().setProperty("kbSegmentSize", "10");
+        slsm = new HashMapStoreMap();
+        store = new StringListStore<HashMapStoreMap>(slsm);
+        store.open("/", false);
+    }
+
+    @After public void tearDown() {
+        store.close();
+        TheoFactory.getProperties().remove("kbSegmentThreshold");
+        TheoFactory.getProperties().remove("kbSegmentSize");
+    }
+
+    protected boolean isSegmented(String key) {
+        return slsm.get(key + StringListStore.SEGMENT_SUFFIX) != null;
+    }
+
+    @Test public void segmentAndCollapse() {
+        final RTWLocation slot = store.getLoc("cake", "candidates");
+        for (int i = 0; i < 1000; i++)
+            assertTrue(store.add(slot, new RTWIntegerValue(i)));
+        assertFalse(store.add(slot, new RTWIntegerValue(7)));
+        assertTrue(isSegmented("cake candidates"));
+        assertNull(slsm.get("cake candidates"));
+
+        assertEquals(1000, store.getNumValues(slot));
+        for (int i = 0; i < 1000; i++)
+            assertTrue(store.getLoc(slot).containsValue(new RTWIntegerValue(i)));
+        assertFalse(store.getLoc(slot).containsValue(new RTWIntegerValue(1000)));
+        int n = 0;
+        for (RTWValue v : store.getLoc(slot).iter()) n++;
+        assertEquals(1000, n);
+
+        // Dropping below a quarter of the threshold turns it back into a plain slot
+        for (int i = 0; i < 990; i++)
+            store.delete(slot.element(new RTWIntegerValue(i)), true, true);
+        assertFalse(isSegmented("cake candidates"));
+        assertEquals(10, store.getNumValues(slot));
+        for (int i = 990; i < 1000; i++)
+            assertTrue(store.getLoc(slot).containsValue(new RTWIntegerValue(i)));
+    }
+
+    @Test public void subslotsOnSegmentedValues() {
+        final RTWLocation slot = store.getLoc("cake", "candidates");
+        for (int i = 0; i < 300; i++) {
+            store.add(slot, new RTWIntegerValue(i));
+            store.add(slot.element(new RTWIntegerValue(i)).subslot("source"),
+                    new RTWStringValue("s" + i));
+        }
+        assertTrue(isSegmented("cake candidates"));
+        for (int i = 0; i < 300; i++) {
+            RTWLocation source = slot.element(new RTWIntegerValue(i)).subslot("source");
+            assertTrue(store.getLoc(source).containsValue(new RTWStringValue("s" + i)));
+        }
+
+        store.delete(slot, true, true);
+        assertEquals(0, store.getNumValues(slot));
+        assertFalse(isSegmented("cake candidates"));
+        assertNull(store.getSubslots(store.getLoc("cake")));
+    }
+}
@@ -0,0 +1,96 @@
+package edu.cmu.ml.rtw.theo2012.core;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Exercises StringListSuperStore's deferred pointers mode
+ */
+public class StringListSuperStorePointerLogTest {
+    protected File logDir;
+    protected StringListSuperStore<HashMapStoreMap> store;
+
+    @Before public void setUp() throws Exception {
+        logDir = File.createTempFile("pointerlogtest", "");
+        logDir.delete();
+        logDir.mkdirs();
+
+        // A sort chunk small enough that merges go through run files
+        TheoFactory.getProperties().setProperty("kbPointerLogSortChunk", "7");
+        TheoFactory.getProperties().setProperty("kbPointerLogDir", logDir.getPath());
+        store = new StringListSuperStore<HashMapStoreMap>(new HashMapStoreMap());
+        store.open("/", false);
+    }
+
+    @After public void tearDown() {
+        store.close();
+        TheoFactory.getProperties().remove("kbPointerLogSortChunk");
+        TheoFactory.getProperties().remove("kbPointerLogDir");
+        File[] leftovers = logDir.listFiles();
+        logDir.delete();
+        assertEquals("Leftover files in " + logDir, 0, leftovers.length);
+    }
+
+    protected void addPointers(int numTargets, int numReferrers) {
+        for (int t = 0; t < numTargets; t++)
+            store.add(store.getLoc("target" + t, "name"), new RTWStringValue("t" + t));
+        for (int r = 0; r < numReferrers; r++) {
+            for (int t = r % 3; t < numTargets; t += 3) {
+                store.add(store.getLoc("referrer" + r, "likes"),
+                        new RTWPointerValue(store.getLoc("target" + t)));
+                store.add(store.getLoc("referrer" + r, "knows"),
+                        new RTWPointerValue(store.getLoc("target" + t)));
+            }
+        }
+    }
+
+    protected void checkPointers(int numTargets, int numReferrers) {
+        for (int t = 0; t < numTargets; t++) {
+            RTWLocation target = store.getLoc("target" + t);
+            int expected = 0;
+            for (int r = 0; r < numReferrers; r++) {
+                if (t % 3 != r % 3) continue;
+                expected++;
+                assertTrue(store.getPointers(target, "likes").containsValue(
+                                new RTWPointerValue(store.getLoc("referrer" + r))));
+            }
+            assertEquals(expected, store.getPointers(target, "likes").getNumValues());
+            assertEquals(expected, store.getPointers(target, "knows").getNumValues());
+        }
+    }
+
+    @Test public void deferredMatchesImmediate() {
+        store.setDeferPointers(true);
+        assertTrue(store.isDeferPointers());
+        addPointers(20, 30);
+        checkPointers(20, 30);
+
+        // More after the first merge, and then leaving deferred pointers mode merges the rest
+        for (int r = 30; r < 40; r++)
+            store.add(store.getLoc("referrer" + r, "likes"),
+                    new RTWPointerValue(store.getLoc("target" + (r % 3))));
+        store.setDeferPointers(false);
+        assertFalse(store.isDeferPointers());
+        assertEquals(10 + 4, store.getPointers(store.getLoc("target0"), "likes").getNumValues());
+
+        // Deleting a referrer has to take its backpointers with it
+        store.delete(store.getLoc("referrer0"), true, true);
+        assertEquals(9 + 4, store.getPointers(store.getLoc("target0"), "likes").getNumValues());
+    }
+
+    @Test public void deleteMergesFirst() {
+        store.setDeferPointers(true);
+        addPointers(6, 6);
+        store.delete(store.getLoc("target0"), true, true);
+        store.setDeferPointers(false);
+        final RTWPointerValue target0 = new RTWPointerValue(store.getLoc("target0"));
+        for (int r = 0; r < 6; r++)
+            assertFalse(store.getLoc("referrer" + r, "likes").containsValue(target0));
+        assertEquals(2, store.getPointers(store.getLoc("target3"), "likes").getNumValues());
+    }
+}